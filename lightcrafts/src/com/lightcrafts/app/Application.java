@@ -1719,11 +1719,13 @@ public class Application {
         return ComboFrame.LastActiveComboFrame;
     }
 
+    // Native libraries loaded at startup, before the platform's own
+    private final static String[] NativeLibraries = new String[] {
+        "DCRaw", "Segment", "JAI", "FASTJAI", "fbf", "LCJPEG", "LCTIFF"
+    };
+
     private static void verifyLibraries() {
-        String[] libs = new String[] {
-            "DCRaw", "Segment", "JAI", "FASTJAI", "fbf", "LCJPEG", "LCTIFF"
-        };
-        for (String lib : libs) {
+        for (String lib : NativeLibraries) {
             try {
                 System.loadLibrary(lib);
             }
@@ -1758,6 +1760,48 @@ public class Application {
         }
     }
 
+    /**
+     * Initialize the native libraries, the engine and the document database
+     * without any splash, frames or dialogs, so Documents can be created by
+     * createDocumentHeadless() from the command line.  Problems are reported
+     * on standard error.
+     */
+    public static void initHeadless() {
+        for (String lib : NativeLibraries) {
+            try {
+                System.loadLibrary(lib);
+            }
+            catch (UnsatisfiedLinkError e) {
+                System.err.println(
+                    "Couldn't link with native library \"" + lib + "\": " +
+                    e.getMessage()
+                );
+            }
+        }
+        try {
+            Env.loadLibraries();
+        }
+        catch (UnsatisfiedLinkError e) {
+            System.err.println(
+                "Couldn't link with platform-specific native libraries: " +
+                e.getMessage()
+            );
+        }
+        try {
+            Class.forName("com.lightcrafts.jai.JAIContext");
+            Class.forName("com.lightcrafts.mediax.jai.JAI");
+            Class.forName("com.lightcrafts.media.jai.codec.ImageCodec");
+        }
+        catch (ClassNotFoundException e) {
+            System.err.println(
+                "Couldn't link with image processing class libraries: " +
+                e.getMessage()
+            );
+        }
+        initLogging();
+        initDocumentDatabase();
+    }
+
     private static void scanProfiles() {
         // These Platform methods cache their results, which can be expensive
         // to determine the first time through.
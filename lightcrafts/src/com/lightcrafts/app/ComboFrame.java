@@ -612,6 +612,7 @@ public class ComboFrame
         advice = new AdviceManager(this);
 
         if (doc != null) {
+            doc.getEngine().setInteractive();
             editor = doc.getEditor();
             history = new DocUndoHistory(doc);
             templates.dispose();
@@ -37,6 +37,7 @@ public class DocumentWriter {
      * jobs using the given ProgressThread.  The XMLException can only arise
      * when surprises occur in the LZN structure as it is navigated for
      * features that mangle XML like "copy original" and "multilayer TIFF".
+     * The frame may be null if a ProgressThread is given.
      */
     public static boolean save(
         Document doc, ComboFrame frame, boolean saveDirectly,
@@ -56,9 +57,13 @@ public class DocumentWriter {
 
             if (options.isLzn()) {
                 // Just write the XML to a file, with a thumbnail and a preview:
-                frame.pause();
+                if (frame != null) {
+                    frame.pause();
+                }
                 saveLzn(doc, xml);
-                frame.resume();
+                if (frame != null) {
+                    frame.resume();
+                }
             }
             else {
                 // We're performing some kind of Engine export:
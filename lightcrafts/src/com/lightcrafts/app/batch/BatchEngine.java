@@ -0,0 +1,599 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.app.batch;
+
+import com.lightcrafts.app.Application;
+import com.lightcrafts.app.DocumentWriter;
+import static com.lightcrafts.app.batch.Locale.LOCALE;
+import com.lightcrafts.image.BadImageFileException;
+import com.lightcrafts.image.ColorProfileException;
+import com.lightcrafts.image.ImageInfo;
+import com.lightcrafts.image.ImageFileFilter;
+import com.lightcrafts.image.UnknownImageTypeException;
+import com.lightcrafts.image.UnsupportedColorProfileException;
+import com.lightcrafts.image.export.ImageExportOptions;
+import com.lightcrafts.image.export.ImageFileExportOptions;
+import com.lightcrafts.image.metadata.ImageMetadata;
+import com.lightcrafts.image.types.ImageType;
+import com.lightcrafts.image.types.JPEGImageType;
+import com.lightcrafts.image.types.LZNImageType;
+import com.lightcrafts.image.types.TIFFImageType;
+import com.lightcrafts.jai.JAIContext;
+import com.lightcrafts.model.Engine;
+import com.lightcrafts.ui.editor.Document;
+import com.lightcrafts.ui.editor.DocumentReader;
+import com.lightcrafts.ui.editor.assoc.DocumentDatabase;
+import com.lightcrafts.ui.export.ExportNameUtility;
+import com.lightcrafts.ui.export.SaveOptions;
+import com.lightcrafts.utils.ProgressIndicator;
+import com.lightcrafts.utils.thread.ProgressThread;
+import com.lightcrafts.utils.xml.XMLException;
+import com.lightcrafts.utils.xml.XmlDocument;
+import com.lightcrafts.utils.xml.XmlNode;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Applies a template to many image files and saves them, or exports many
+ * image files, without any user interface.  BatchProcessor runs it under a
+ * dialog, and main() runs it from the command line.
+ * <p>
+ * Files are processed by several worker threads at once, as many as there
+ * are processors by default or as set by the lightcrafts.batch.threads system
+ * property.  The memory to render a file is estimated from its size, and a
+ * worker waits to render until its file fits in the heap left over by the
+ * engine's tile cache alongside the files the other workers are rendering,
+ * so large images don't run the batch out of memory.  One file is always
+ * allowed to render, however large.
+ * <p>
+ * Progress is reported per file to a Listener, from the worker threads.
+ */
+public class BatchEngine {
+
+    /**
+     * Follow the progress of a batch.  All methods are called on the worker
+     * threads.
+     */
+    public static interface Listener {
+        /**
+         * Work on the given file has started.
+         */
+        void fileStarted(File file);
+        /**
+         * Rendering the given file has reached the given value out of the
+         * given maximum.
+         */
+        void fileProgress(File file, int value, int maximum);
+        /**
+         * The given file has been processed and saved to the given file.
+         */
+        void fileSaved(File file, File outFile);
+        /**
+         * The given file could not be processed, for the given localized
+         * reason and error.
+         */
+        void fileFailed(File file, String message, Throwable error);
+    }
+
+    // Estimated bytes held per pixel while a file renders: the 16-bit RGB
+    // source image plus about as much again in tiles and export buffers.
+    private final static int BytesPerPixel = 12;
+
+    // Memory for rendering, shared by all batches
+    private final static MemoryBudget Budget = new MemoryBudget();
+
+    // Output file names are claimed one at a time, so workers can't pick the
+    // same one.
+    private final static Object NameLock = new Object();
+
+    private final BatchConfig conf;
+    private final XmlDocument template;
+    private int threadCount;
+    private volatile boolean canceled;
+
+    /**
+     * Set up a batch.  If the template is null, the files are exported
+     * according to the BatchConfig.  Otherwise the template is applied to
+     * each file, and each file is saved next to its original in the format
+     * given by the BatchConfig.
+     */
+    public BatchEngine(BatchConfig conf, XmlDocument template) {
+        this.conf = conf;
+        this.template = template;
+        threadCount = getDefaultThreadCount();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int count) {
+        threadCount = Math.max(count, 1);
+    }
+
+    /**
+     * Process the given files, returning when they're all done or when the
+     * batch has been canceled.
+     */
+    public void process(File[] files, final Listener listener) {
+        final Queue<File> queue =
+            new ConcurrentLinkedQueue<File>(Arrays.asList(files));
+        int count = Math.min(threadCount, files.length);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int n=0; n<count; n++) {
+            Thread worker = new Thread(
+                new Runnable() {
+                    public void run() {
+                        File file;
+                        while ((! canceled) && ((file = queue.poll()) != null)) {
+                            processFile(file, listener);
+                        }
+                    }
+                },
+                "Batch Processor " + n
+            );
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                }
+                catch (InterruptedException e) {
+                    cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop starting files.  Files that are already started are finished.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    private void processFile(File file, Listener listener) {
+        listener.fileStarted(file);
+
+        // An empty file holding the output name, in case we fail
+        File claimed = null;
+        long reserved = 0;
+        try {
+            // Opening the document decodes the source image, so the memory
+            // has to be reserved before that.
+            reserved = Budget.reserve(getMemoryEstimate(file));
+
+            Document doc = Application.createDocumentHeadless(file);
+            try {
+                // Each file gets its own export options, since they get
+                // mutated along the way.
+                ImageFileExportOptions export = copyExportOptions(conf.export);
+                boolean ignoreResize =
+                    export.resizeWidth.getValue() == 0 &&
+                    export.resizeHeight.getValue() == 0;
+
+                ProgressThread progress = new FileProgress(file, listener);
+                File outFile;
+
+                if (template != null) {
+                    XmlDocument xml;
+                    synchronized(template) {
+                        xml = new XmlDocument(template);
+                    }
+                    doc.applyTemplate(xml.getRoot());
+
+                    SaveOptions save = doc.getSaveOptions();
+                    if (save == null) {
+                        save = createTemplateSaveOptions(doc, export, ignoreResize);
+                        claimed = save.getFile();
+                    }
+                    doc.setSaveOptions(save);
+
+                    DocumentWriter.save(doc, null, false, progress);
+                    outFile = save.getFile();
+                    synchronized(NameLock) {
+                        DocumentDatabase.addDocumentFile(outFile);
+                    }
+                }
+                else {
+                    conformExportOptions(doc, export, ignoreResize);
+                    claimed = export.getExportFile();
+
+                    Engine engine = doc.getEngine();
+                    DocumentWriter.export(engine, export, progress);
+                    outFile = export.getExportFile();
+                }
+                claimed = null;
+                listener.fileSaved(file, outFile);
+            }
+            finally {
+                doc.dispose();
+            }
+        }
+        catch (Throwable e) {
+            if ((claimed != null) && (claimed.length() == 0)) {
+                claimed.delete();
+            }
+            listener.fileFailed(file, getErrorMessage(e), e);
+        }
+        finally {
+            Budget.release(reserved);
+        }
+    }
+
+    // Construct SaveOptions for processed images that have never been saved.
+    // Save back to the same directory as the original image,
+    // with a unique file name, with the given export options, except
+    // the resize dimensions, which are set to the document's "natural"
+    // dimensions.
+    private static SaveOptions createTemplateSaveOptions(
+        Document doc, ImageFileExportOptions export, boolean ignoreResize
+    ) {
+        ImageMetadata meta = doc.getMetadata();
+        File file = meta.getFile();
+        ImageType type = export.getImageType();
+        String ext = type.getExtensions()[0];
+        file = ExportNameUtility.setFileExtension(file, ext);
+        file = claimFile(file);
+        if (type == LZNImageType.INSTANCE) {
+            SaveOptions options = SaveOptions.createLzn(file);
+            return options;
+        }
+        SaveOptions options;
+        Engine engine = doc.getEngine();
+        Dimension size = engine.getNaturalSize();
+
+        if (type instanceof TIFFImageType) {
+            options = SaveOptions.createSidecarTiff(export);
+        }
+        else if (type instanceof JPEGImageType) {
+            options = SaveOptions.createSidecarJpeg(export);
+        }
+        else {
+            throw new IllegalArgumentException(
+                "Can't save to image type \"" + type.getName() + "\""
+            );
+        }
+        if (ignoreResize) {
+            export.resizeWidth.setValue(size.width);
+            export.resizeHeight.setValue(size.height);
+        }
+        options.setFile(file);
+
+        return options;
+    }
+
+    // Ensure that the given ImageExportOptions agrees with the BatchConfig
+    // about the output folder, the batch name, and the output file type
+    // extension, and agrees with the given Document and the BatchConfig
+    // about the output image size.  With no output folder, files are
+    // exported next to their originals.
+    private void conformExportOptions(
+        Document doc, ImageFileExportOptions export, boolean ignoreResize
+    ) {
+        ImageMetadata meta = doc.getMetadata();
+        File file = meta.getFile();
+        String name = file.getName();
+        File directory =
+            (conf.directory != null) ? conf.directory : file.getParentFile();
+        File outFile = new File(directory, name);
+
+        // Mutate the default file into a conformant name:
+        String outLabel = (conf.name != null) ? conf.name : "";
+        String outName = ExportNameUtility.trimFileExtension(
+            outFile.getName()
+        );
+        String outSuffix = export.getImageType().getExtensions()[0];
+        if (outLabel.length() > 0) {
+            outFile = new File(
+                directory,
+                outName + outLabel + "." + outSuffix
+            );
+        }
+        else {
+            outFile = new File(
+                directory, outName + "." + outSuffix
+            );
+        }
+        outFile = claimFile(outFile);
+        export.setExportFile(outFile);
+
+        if (ignoreResize) {
+            Engine engine = doc.getEngine();
+            Dimension size = engine.getNaturalSize();
+            export.resizeWidth.setValue(size.width);
+            export.resizeHeight.setValue(size.height);
+        }
+    }
+
+    // Find a name like the given one that isn't taken, and take it by
+    // creating an empty file, so other workers won't choose it too.  The
+    // export replaces the empty file.
+    private static File claimFile(File file) {
+        synchronized(NameLock) {
+            file = ExportNameUtility.ensureNotExists(file);
+            try {
+                file.createNewFile();
+            }
+            catch (IOException e) {
+                // The export will report it.
+            }
+            return file;
+        }
+    }
+
+    private static ImageFileExportOptions copyExportOptions(
+        ImageFileExportOptions export
+    ) throws XMLException {
+        XmlDocument doc = new XmlDocument("Export");
+        export.write(doc.getRoot());
+        return (ImageFileExportOptions) ImageExportOptions.read(doc.getRoot());
+    }
+
+    // The memory to render the given file, from the image size in its
+    // metadata.  If that's unknown, assume the worst: the whole budget.
+    private static long getMemoryEstimate(File file)
+        throws BadImageFileException, IOException, UnknownImageTypeException
+    {
+        ImageMetadata meta = ImageInfo.getInstanceFor(file).getMetadata();
+        long width = meta.getImageWidth();
+        long height = meta.getImageHeight();
+        if ((width <= 0) || (height <= 0)) {
+            return Long.MAX_VALUE;
+        }
+        return width * height * BytesPerPixel;
+    }
+
+    private static String getErrorMessage(Throwable e) {
+        if (e instanceof XMLException) {
+            return LOCALE.get("BatchLogXmlError");
+        }
+        if (e instanceof BadImageFileException) {
+            return LOCALE.get("BatchLogBadImageError");
+        }
+        if (e instanceof IOException) {
+            return LOCALE.get("BatchLogIOError");
+        }
+        if (e instanceof OutOfMemoryError) {
+            return LOCALE.get("BatchLogMemoryError");
+        }
+        if (e instanceof UnknownImageTypeException) {
+            return LOCALE.get("BatchLogImageTypeError");
+        }
+        if (e instanceof UnsupportedColorProfileException) {
+            return LOCALE.get("BatchLogCameraError");
+        }
+        if (e instanceof ColorProfileException) {
+            return LOCALE.get("BatchLogColorError");
+        }
+        e.printStackTrace();
+        return LOCALE.get("BatchLogUnknownError");
+    }
+
+    private static int getDefaultThreadCount() {
+        int count = Runtime.getRuntime().availableProcessors();
+        String value = System.getProperty("lightcrafts.batch.threads");
+        if (value != null) {
+            try {
+                count = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return Math.max(count, 1);
+    }
+
+    // Relays the Engine's progress for one file to the Listener.
+    private static class FileProgress extends ProgressThread {
+
+        FileProgress(final File file, final Listener listener) {
+            super(
+                new ProgressIndicator() {
+                    private int min;
+                    private int max;
+                    private int value;
+
+                    public void incrementBy(int delta) {
+                        value += delta;
+                        listener.fileProgress(file, value - min, max - min);
+                    }
+                    public void setIndeterminate(boolean indeterminate) {
+                        value = min;
+                    }
+                    public void setMaximum(int maxValue) {
+                        max = maxValue;
+                    }
+                    public void setMinimum(int minValue) {
+                        min = minValue;
+                        value = minValue;
+                    }
+                }
+            );
+        }
+
+        // ProgressThread requires this method, even though we're only
+        // extending ProgressThread to provide a ProgressIndicator to
+        // Engine.write().
+        public void run() {
+        }
+    }
+
+    // Bytes of the heap available for rendering, beyond the tile cache
+    private static class MemoryBudget {
+
+        private final long capacity;
+        private long used;
+
+        MemoryBudget() {
+            long tileCache = JAIContext.fileCache.getMemoryCapacity();
+            capacity = Math.max(
+                Runtime.getRuntime().maxMemory() - tileCache, 0
+            );
+        }
+
+        // Wait until the given bytes fit alongside the others reserved, or
+        // until nothing else is reserved, and reserve them.  Return the
+        // bytes reserved, to pass to release().
+        synchronized long reserve(long bytes) throws InterruptedException {
+            bytes = Math.min(bytes, capacity);
+            while ((used > 0) && (used + bytes > capacity)) {
+                wait();
+            }
+            used += bytes;
+            return bytes;
+        }
+
+        synchronized void release(long bytes) {
+            if (bytes > 0) {
+                used -= bytes;
+                notifyAll();
+            }
+        }
+    }
+
+    private final static String Usage =
+        "usage: BatchEngine [-template file] [-output folder] [-name label]\n" +
+        "                   [-format JPEG|TIFF] [-width pixels]\n" +
+        "                   [-height pixels] [-threads count] file|folder ...";
+
+    /**
+     * Export image files, or apply a template to them, from the command
+     * line.  Folders are expanded to the image files they contain.  Each
+     * file's result or error is printed, and the exit status is the number
+     * of files that failed, up to 255.
+     */
+    public static void main(String[] args) {
+        BatchConfig conf = new BatchConfig();
+        conf.name = "";
+        File templateFile = null;
+        int threads = 0;
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int n=0; n<args.length; n++) {
+                String arg = args[n];
+                if (arg.equals("-template")) {
+                    templateFile = new File(args[++n]);
+                }
+                else if (arg.equals("-output")) {
+                    conf.directory = new File(args[++n]);
+                }
+                else if (arg.equals("-name")) {
+                    conf.name = args[++n];
+                }
+                else if (arg.equals("-format")) {
+                    ImageType type =
+                        ImageType.getImageTypeByName(args[++n].toUpperCase());
+                    if ((type != JPEGImageType.INSTANCE) &&
+                        ! (type instanceof TIFFImageType)) {
+                        throw new IllegalArgumentException(args[n]);
+                    }
+                    conf.export =
+                        (ImageFileExportOptions) type.newExportOptions();
+                }
+                else if (arg.equals("-width")) {
+                    conf.export.resizeWidth.setValue(
+                        Integer.parseInt(args[++n])
+                    );
+                }
+                else if (arg.equals("-height")) {
+                    conf.export.resizeHeight.setValue(
+                        Integer.parseInt(args[++n])
+                    );
+                }
+                else if (arg.equals("-threads")) {
+                    threads = Integer.parseInt(args[++n]);
+                }
+                else if (arg.startsWith("-")) {
+                    throw new IllegalArgumentException(arg);
+                }
+                else {
+                    addFiles(new File(arg), files);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            // ArrayIndexOutOfBoundsException
+            // IllegalArgumentException (including NumberFormatException)
+            System.err.println(Usage);
+            System.exit(255);
+        }
+        if (files.isEmpty()) {
+            System.err.println(Usage);
+            System.exit(255);
+        }
+        Application.initHeadless();
+
+        XmlDocument template = null;
+        if (templateFile != null) {
+            DocumentReader.Interpretation interp =
+                DocumentReader.read(templateFile);
+            if (interp == null) {
+                System.err.println(
+                    "Not a template: " + templateFile.getAbsolutePath()
+                );
+                System.exit(255);
+            }
+            template = interp.xml;
+        }
+        BatchEngine engine = new BatchEngine(conf, template);
+        if (threads > 0) {
+            engine.setThreadCount(threads);
+        }
+        final int[] failures = new int[1];
+
+        engine.process(
+            files.toArray(new File[files.size()]),
+            new Listener() {
+                public void fileStarted(File file) {
+                }
+                public void fileProgress(File file, int value, int maximum) {
+                }
+                public void fileSaved(File file, File outFile) {
+                    System.out.println(
+                        file.getPath() + " -- " +
+                        LOCALE.get("BatchLogSavedMessage", outFile.getPath())
+                    );
+                }
+                public void fileFailed(
+                    File file, String message, Throwable error
+                ) {
+                    synchronized(failures) {
+                        failures[0]++;
+                    }
+                    System.err.println(
+                        file.getPath() + " -- " + message + ": " +
+                        error.getClass().getName() + " " + error.getMessage()
+                    );
+                }
+            }
+        );
+        System.exit(Math.min(failures[0], 255));
+    }
+
+    // Add the given file, or the image files in the given folder, sorted by
+    // name.
+    private static void addFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] images = file.listFiles(ImageFileFilter.INSTANCE);
+            if (images != null) {
+                Arrays.sort(images);
+                files.addAll(Arrays.asList(images));
+            }
+        }
+        else {
+            files.add(file);
+        }
+    }
+}
@@ -8,11 +8,11 @@ import com.lightcrafts.image.types.ImageType;
 import com.lightcrafts.jai.JAIContext;
 import com.lightcrafts.jai.utils.Functions;
 import com.lightcrafts.ui.LightZoneSkin;
+import com.lightcrafts.ui.browser.model.BrowserCatalog;
 import com.lightcrafts.ui.browser.model.ImageTask;
 import com.lightcrafts.mediax.jai.RenderedOp;
 import com.lightcrafts.mediax.jai.operator.AffineDescriptor;
 import com.lightcrafts.utils.filecache.FileCacheFactory;
-import com.lightcrafts.utils.filecache.FileCache;
 
 import javax.swing.*;
 import java.awt.*;
@@ -20,8 +20,8 @@ import java.awt.color.ColorSpace;
 import java.awt.geom.AffineTransform;
 import java.awt.image.ColorModel;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 
 class BatchImageComponent extends JComponent {
 
@@ -68,13 +68,15 @@ class BatchImageComponent extends JComponent {
      */
     void setCachedFile(File file) {
         if (file != null) {
+            File dir = file.getParentFile();
+            BrowserCatalog catalog =
+                BrowserCatalog.open(dir, FileCacheFactory.get(dir));
             try {
-                String key = ImageTask.getImageKey(file);
-                FileCache cache = FileCacheFactory.get(file.getParentFile());
-                File cachedFile = cache.getFileFor(key);
-
-                if (cachedFile != null)
-                    image = JPEGImageType.getImageFromInputStream(new FileInputStream(cachedFile), null,
+                byte[] data = (catalog != null) ?
+                    catalog.get(file.getName(), BrowserCatalog.Thumbnail) :
+                    null;
+                if (data != null)
+                    image = JPEGImageType.getImageFromInputStream(new ByteArrayInputStream(data), null,
                                                                   ImageTask.CacheImageSize, ImageTask.CacheImageSize);
             }
             catch (Throwable t) {
@@ -85,6 +87,10 @@ class BatchImageComponent extends JComponent {
                 t.printStackTrace();
                 image = null;
             }
+            finally {
+                if (catalog != null)
+                    catalog.close();
+            }
         }
         repaint();
     }
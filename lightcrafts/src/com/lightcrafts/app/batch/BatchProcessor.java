@@ -2,29 +2,10 @@
 
 package com.lightcrafts.app.batch;
 
-import com.lightcrafts.app.Application;
 import com.lightcrafts.app.ComboFrame;
-import com.lightcrafts.app.DocumentWriter;
 import static com.lightcrafts.app.batch.Locale.LOCALE;
-import com.lightcrafts.image.BadImageFileException;
-import com.lightcrafts.image.ColorProfileException;
-import com.lightcrafts.image.UnknownImageTypeException;
-import com.lightcrafts.image.UnsupportedColorProfileException;
-import com.lightcrafts.image.export.ImageFileExportOptions;
-import com.lightcrafts.image.metadata.ImageMetadata;
-import com.lightcrafts.image.types.ImageType;
-import com.lightcrafts.image.types.JPEGImageType;
-import com.lightcrafts.image.types.LZNImageType;
-import com.lightcrafts.image.types.TIFFImageType;
-import com.lightcrafts.model.Engine;
-import com.lightcrafts.ui.editor.Document;
-import com.lightcrafts.ui.editor.assoc.DocumentDatabase;
-import com.lightcrafts.ui.export.ExportNameUtility;
-import com.lightcrafts.ui.export.SaveOptions;
 import com.lightcrafts.ui.LightZoneSkin;
-import com.lightcrafts.utils.xml.XMLException;
 import com.lightcrafts.utils.xml.XmlDocument;
-import com.lightcrafts.utils.xml.XmlNode;
 
 import javax.swing.*;
 import java.awt.*;
@@ -33,7 +14,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.io.File;
-import java.io.IOException;
 
 /**
  * This encapsulates the procedures applied when LightZone processes multiple
@@ -44,12 +24,15 @@ public class BatchProcessor {
 
     private static JDialog Dialog;  // Blocks UI during batch processing
     private static BatchText Text;  // Where log messages stream to
+    private static final Object LogLock = new Object(); // Keeps log lines whole
     private static Thread Thread;   // Where the work is done
     private static BatchProgressBar Progress;   // Image export progress
     private static BatchImageComponent Image;   // The current Engine image
     private static JLabel Label;    // File counts and time estimates
     private static JButton Button;  // Either "Cancel" or "Done"
     private static long Start;      // Time started, for time estimates
+    private static volatile BatchEngine Engine; // Processes the files
+    private static File Current;    // The file the dialog is following
     private static boolean Interrupted; // Flag to halt background work
     private static boolean Finished;    // Flag to indicate work is halted
     private static boolean Canceled;    // Flag to indicate work is canceled by the user
@@ -138,6 +121,9 @@ public class BatchProcessor {
             public void actionPerformed(ActionEvent e) {
                 if (!Finished) {
                     Canceled = true;
+                    if (Engine != null) {
+                        Engine.cancel();
+                    }
                     Button.setText("Canceling...");
                 } else
                     Dialog.setVisible(false);
@@ -156,6 +142,9 @@ public class BatchProcessor {
             new ComponentAdapter() {
                 public void componentHidden(ComponentEvent e) {
                     Interrupted = true;
+                    if (Engine != null) {
+                        Engine.cancel();
+                    }
                 }
             }
         );
@@ -189,110 +178,69 @@ public class BatchProcessor {
         }
     }
 
-    // Conduct the export and template processes, in the background under the dialog.
+    // Conduct the export and template processes, in the background under
+    // the dialog.  The files are processed several at a time by a
+    // BatchEngine, and the dialog follows whichever file started last.
     static void processTemplate(
         File[] files, XmlDocument template, BatchConfig conf
     ) {
-        ImageFileExportOptions export = conf.export;
-        boolean ignoreResize =
-            export.resizeWidth.getValue() == 0 &&
-                export.resizeHeight.getValue() == 0;
-
-        // Remember the requested output width and height, because they may get
-        // mutated each time a file is processed.  See these methods:
-        //     createTemplateSaveOptions()
-        //     conformExportOptions()
-        //     Engine.write()
-        int exportWidth = export.resizeWidth.getValue();
-        int exportHeight = export.resizeHeight.getValue();
-
-        for (int n=0; n<files.length; n++) {
-            if (Canceled)
-                break;
-
-            if (Interrupted) {
-                synchronized(Thread) {
-                    Thread.notifyAll();
-                    return;
-                }
-            }
-
-            try {
-                File file = files[n];
-
-                Image.setCachedFile(file);
-
-                logStart(file);
-                Document doc = Application.createDocumentHeadless(file);
-                File outFile;
-                String outName;
-
-                // Enforce the original requested output dimensions, since
-                // the ImageExportOptions may have been mutated on a previous
-                // iteration.
-                export.resizeWidth.setValue(exportWidth);
-                export.resizeHeight.setValue(exportHeight);
+        final int max = files.length;
+        final int[] count = new int[1];
 
-                if (template != null) {
-                    XmlNode root = template.getRoot();
-
-                    doc.applyTemplate(root);
-
-                    SaveOptions save = doc.getSaveOptions();
-                    if (save == null) {
-                        save = createTemplateSaveOptions(doc, export, ignoreResize);
+        Engine = new BatchEngine(conf, template);
+        if (Canceled || Interrupted) {
+            Engine.cancel();
+        }
+        Engine.process(
+            files,
+            new BatchEngine.Listener() {
+                public void fileStarted(File file) {
+                    synchronized(count) {
+                        Current = file;
                     }
-                    doc.setSaveOptions(save);
-
-                    ComboFrame frame = (ComboFrame) Dialog.getOwner();
-                    DocumentWriter.save(doc, frame, false, Progress);
-                    outFile = save.getFile();
-                    outName = outFile.getName();
-                    DocumentDatabase.addDocumentFile(outFile);
-                } else {
-                    conformExportOptions(doc, conf, ignoreResize);
-
-                    Engine engine = doc.getEngine();
-                    DocumentWriter.export(engine, export, Progress);
-                    outFile = export.getExportFile();
-                    outName = outFile.getName();
+                    Image.setCachedFile(file);
+                    Progress.reset();
+                }
+                public void fileProgress(File file, int value, int maximum) {
+                    synchronized(count) {
+                        if (file != Current) {
+                            return;
+                        }
+                    }
+                    Progress.setProgress(value, maximum);
+                }
+                public void fileSaved(File file, File outFile) {
+                    // Workers finish concurrently, don't let their log
+                    // lines interleave
+                    synchronized(LogLock) {
+                        logStart(file);
+                        logEnd(
+                            LOCALE.get(
+                                "BatchLogSavedMessage", outFile.getName()
+                            )
+                        );
+                    }
+                    Image.setFile(outFile);
+                    fileDone();
+                }
+                public void fileFailed(
+                    File file, String message, Throwable error
+                ) {
+                    synchronized(LogLock) {
+                        logStart(file);
+                        logError(message, error);
+                    }
+                    fileDone();
+                }
+                private void fileDone() {
+                    int done;
+                    synchronized(count) {
+                        done = ++count[0];
+                    }
+                    updateLabel(done, max);
                 }
-
-                doc.dispose();
-
-                logEnd(LOCALE.get("BatchLogSavedMessage", outName));
-
-                Image.setFile(outFile);
-
-                Progress.reset();
-            }
-            catch (XMLException e) {
-                logError(LOCALE.get("BatchLogXmlError"), e);
-            }
-            catch (BadImageFileException e) {
-                logError(LOCALE.get("BatchLogBadImageError"), e);
-            }
-            catch (IOException e) {
-                logError(LOCALE.get("BatchLogIOError"), e);
-            }
-            catch (OutOfMemoryError e) {
-                logError(LOCALE.get("BatchLogMemoryError"), e);
-            }
-            catch (UnknownImageTypeException e) {
-                logError(LOCALE.get("BatchLogImageTypeError"), e);
-            }
-            catch (UnsupportedColorProfileException e) {
-                logError(LOCALE.get("BatchLogCameraError"), e);
-            }
-            catch (ColorProfileException e) {
-                logError(LOCALE.get("BatchLogColorError"), e);
-            }
-            catch (Throwable e) {
-                logError(LOCALE.get("BatchLogUnknownError"), e);
-                e.printStackTrace();
             }
-            updateLabel(n + 1, files.length);
-        }
+        );
         synchronized(Thread) {
             Finished = true;
             Thread.notifyAll();
@@ -300,91 +248,6 @@ public class BatchProcessor {
         }
     }
 
-    // Construct SaveOptions for processed images that have never been saved.
-    // Save back to the same directory as the original image,
-    // with a unique file name, with the given export options, except
-    // the resize dimensions, which are set to the document's "natural"
-    // dimensions.
-    private static SaveOptions createTemplateSaveOptions(
-        Document doc, ImageFileExportOptions export, boolean ignoreResize
-    ) {
-        ImageMetadata meta = doc.getMetadata();
-        File file = meta.getFile();
-        ImageType type = export.getImageType();
-        String ext = type.getExtensions()[0];
-        file = ExportNameUtility.setFileExtension(file, ext);
-        file = ExportNameUtility.ensureNotExists(file);
-        if (type == LZNImageType.INSTANCE) {
-            SaveOptions options = SaveOptions.createLzn(file);
-            return options;
-        }
-        SaveOptions options;
-        Engine engine = doc.getEngine();
-        Dimension size = engine.getNaturalSize();
-
-        if (type instanceof TIFFImageType) {
-            options = SaveOptions.createSidecarTiff(export);
-        }
-        else if (type instanceof JPEGImageType) {
-            options = SaveOptions.createSidecarJpeg(export);
-        }
-        else {
-            throw new IllegalArgumentException(
-                "Can't save to image type \"" + type.getName() + "\""
-            );
-        }
-        if (ignoreResize) {
-            export.resizeWidth.setValue(size.width);
-            export.resizeHeight.setValue(size.height);
-        }
-        options.setFile(file);
-
-        return options;
-    }
-
-    // Ensure that the given ImageExportOptions agrees with the given
-    // TemplateBatchConfigurator about the output folder, the batch name,
-    // and the output file type extension, and agrees with the given Document
-    // and the configurator about the output image size.
-    private static void conformExportOptions(
-        Document doc, BatchConfig conf, boolean ignoreResize
-    ) {
-        ImageMetadata meta = doc.getMetadata();
-        File file = meta.getFile();
-        String name = file.getName();
-        File directory = conf.directory;
-        File outFile = new File(directory, name);
-
-        // Mutate the default file into a conformant name:
-        String outLabel = conf.name;
-        String outName = ExportNameUtility.trimFileExtension(
-            outFile.getName()
-        );
-        ImageFileExportOptions export = conf.export;
-
-        String outSuffix = export.getImageType().getExtensions()[0];
-        if (outLabel.length() > 0) {
-            outFile = new File(
-                directory,
-                outName + outLabel + "." + outSuffix
-            );
-        }
-        else {
-            outFile = new File(
-                directory, outName + "." + outSuffix
-            );
-        }
-        outFile = ExportNameUtility.ensureNotExists(outFile);
-        export.setExportFile(outFile);
-
-        if (ignoreResize) {
-            Engine engine = doc.getEngine();
-            Dimension size = engine.getNaturalSize();
-            export.resizeWidth.setValue(size.width);
-            export.resizeHeight.setValue(size.height);
-        }
-    }
-
     private static void logStart(File file) {
         String path = file.getName();
         Text.appendStart(path);
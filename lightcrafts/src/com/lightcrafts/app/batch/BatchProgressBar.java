@@ -84,6 +84,22 @@ class BatchProgressBar extends ProgressThread {
         return indicator.bar;
     }
 
+    // Show a value out of a maximum, for the progress of one of several
+    // files processed at once.
+    void setProgress(final int value, final int max) {
+        final BatchProgressIndicator indicator =
+            (BatchProgressIndicator) getProgressIndicator();
+        EventQueue.invokeLater(
+            new Runnable() {
+                public void run() {
+                    indicator.bar.setIndeterminate(false);
+                    indicator.bar.setMaximum(max);
+                    indicator.bar.setValue(value);
+                }
+            }
+        );
+    }
+
     void reset() {
         BatchProgressIndicator indicator =
             (BatchProgressIndicator) getProgressIndicator();
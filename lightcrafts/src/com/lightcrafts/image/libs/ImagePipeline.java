@@ -0,0 +1,203 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.libs;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An <code>ImagePipeline</code> computes the pieces of an image being written
+ * (strips or tiles) on a background thread, a bounded number of pieces ahead
+ * of the writer, so that computing the image overlaps encoding it.  The
+ * pieces are handed to the writer in order by {@link #take()} and handed
+ * back by {@link #recycle(Object)} once encoded, which lets the next piece be
+ * computed.
+ *
+ * @param <T> The type of the pieces.
+ */
+abstract class ImagePipeline<T> {
+
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Construct an <code>ImagePipeline</code>.  Computing starts with the
+     * first call to {@link #take()}.
+     *
+     * @param pieces The number of pieces of the image.
+     * @param depth The maximum number of pieces computed but not yet
+     * recycled.
+     */
+    ImagePipeline( int pieces, int depth ) {
+        m_pieces = pieces;
+        m_depth = Math.max( depth, 1 );
+        m_slots = new Semaphore( m_depth );
+        m_queue = new LinkedBlockingQueue<Object>();
+        m_thread = new Thread(
+            new Runnable() {
+                public void run() {
+                    produce();
+                }
+            },
+            "Image Pipeline"
+        );
+        m_thread.setDaemon( true );
+    }
+
+    /**
+     * Stops computing pieces.  This must be called when the writer is done,
+     * even if it stopped early.
+     */
+    void dispose() {
+        m_stop = true;
+        //
+        // Wake the thread if it's waiting for a piece to be recycled so it
+        // notices it should stop.
+        //
+        m_slots.release( m_depth );
+    }
+
+    /**
+     * Gets the maximum number of pieces computed but not yet recycled.
+     *
+     * @return Returns said number.
+     */
+    int getDepth() {
+        return m_depth;
+    }
+
+    /**
+     * Hands a piece back once it has been encoded.
+     *
+     * @param piece A piece returned by {@link #take()}.
+     */
+    void recycle( T piece ) {
+        recycled( piece );
+        m_slots.release();
+    }
+
+    /**
+     * Gets the next piece of the image, waiting for it to be computed.
+     *
+     * @return Returns said piece.
+     * @throws LCImageLibException if computing the piece failed or the
+     * calling thread was interrupted.
+     */
+    @SuppressWarnings({"unchecked"})
+    T take() throws LCImageLibException {
+        if ( !m_started ) {
+            m_started = true;
+            m_thread.start();
+        }
+        final Object item;
+        try {
+            item = m_queue.take();
+        }
+        catch ( InterruptedException e ) {
+            throw new LCImageLibException( e );
+        }
+        if ( item instanceof Failure ) {
+            final Throwable t = ((Failure)item).m_cause;
+            if ( t instanceof LCImageLibException )
+                throw (LCImageLibException)t;
+            if ( t instanceof RuntimeException )
+                throw (RuntimeException)t;
+            if ( t instanceof Error )
+                throw (Error)t;
+            throw new LCImageLibException( t );
+        }
+        return (T)item;
+    }
+
+    ////////// protected //////////////////////////////////////////////////////
+
+    /**
+     * Computes a piece of the image.  This is called on the pipeline's
+     * thread, in order of index.
+     *
+     * @param index The index of the piece.
+     * @return Returns said piece.
+     */
+    protected abstract T compute( int index ) throws Exception;
+
+    /**
+     * Called when a piece is handed back, so its memory may be reused.  By
+     * default, this does nothing.
+     *
+     * @param piece The piece.
+     */
+    protected void recycled( T piece ) {
+        // do nothing by default
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * A <code>Failure</code> is queued in place of a piece if computing it
+     * failed.
+     */
+    private static final class Failure {
+        Failure( Throwable cause ) {
+            m_cause = cause;
+        }
+        final Throwable m_cause;
+    }
+
+    /**
+     * Computes all the pieces in order, waiting whenever the pipeline is
+     * full.
+     */
+    private void produce() {
+        try {
+            for ( int i = 0; i < m_pieces; ++i ) {
+                m_slots.acquire();
+                if ( m_stop )
+                    return;
+                m_queue.put( compute( i ) );
+            }
+        }
+        catch ( InterruptedException e ) {
+            // nobody interrupts this thread
+        }
+        catch ( Throwable t ) {
+            m_queue.add( new Failure( t ) );
+        }
+    }
+
+    /**
+     * The maximum number of pieces computed but not yet recycled.
+     */
+    private final int m_depth;
+
+    /**
+     * The number of pieces of the image.
+     */
+    private final int m_pieces;
+
+    /**
+     * The computed pieces, in order, and possibly a {@link Failure} last.
+     */
+    private final BlockingQueue<Object> m_queue;
+
+    /**
+     * A permit for every piece that may be computed before the writer
+     * recycles one.
+     */
+    private final Semaphore m_slots;
+
+    /**
+     * Whether {@link #m_thread} has been started.
+     */
+    private boolean m_started;
+
+    /**
+     * A flag to indicate that computing should stop.
+     */
+    private volatile boolean m_stop;
+
+    /**
+     * The thread that computes the pieces.
+     */
+    private final Thread m_thread;
+}
+/* vim:set et sw=4 ts=4: */
@@ -14,7 +14,6 @@ import sun.awt.image.ByteInterleavedRaster;
 
 import com.lightcrafts.image.metadata.*;
 import com.lightcrafts.image.types.JPEGImageType;
-import com.lightcrafts.mediax.jai.PlanarImage;
 import com.lightcrafts.utils.ProgressIndicator;
 import com.lightcrafts.utils.bytebuffer.ByteBufferUtil;
 import com.lightcrafts.utils.thread.ProgressThread;
@@ -409,8 +408,7 @@ public final class LCJPEGWriter {
 
         final int imageWidth = image.getWidth();
         final int imageHeight = image.getHeight();
-        final Rectangle stripRect = new Rectangle();
-        int stripHeight = 8;
+        final int stripHeight = 8;
 
         ProgressIndicator indicator = null;
         if ( thread != null )
@@ -430,54 +428,70 @@ public final class LCJPEGWriter {
 
         final ByteInterleavedRaster rasterBuffer = new ByteInterleavedRaster(sm, new Point(0, 0));
 
-        for ( int y = 0; y < imageHeight; y += stripHeight ) {
-            if ( thread != null && thread.isCanceled() )
-                return;
-            stripHeight = Math.min( stripHeight, imageHeight - y );
-            stripRect.setBounds( 0, y, imageWidth, stripHeight );
-
-            final ByteInterleavedRaster raster = (ByteInterleavedRaster) rasterBuffer.createTranslatedChild(0, y);
-
-            // Prefetch tiles, uses all CPUs
-            if (image instanceof PlanarImage)
-                ((PlanarImage) image).getTiles(((PlanarImage) image).getTileIndices(raster.getBounds()));
-
-            image.copyData(raster);
-
-            final DataBufferByte db = (DataBufferByte)raster.getDataBuffer();
-
-            final int[] offsets = raster.getDataOffsets();
-            int offset = offsets[0];
-            for (int i = 1; i < offsets.length; i++)
-                offset = Math.min(offset, offsets[i]);
-
-            if ( bands == 4 /* CMYK */ ) {
-                //
-                // A long-standing Photoshop bug is that CMYK images are stored
-                // inverted.  To be compatible with Photoshop, we have to
-                // invert CMYK images too.
-                //
-                final byte[] data = db.getData();
-                for ( int i = 0; i < data.length; ++i )
-                    data[i] = (byte)~data[i];
+        //
+        // Strips are computed ahead on another thread while libjpeg
+        // compresses the current one.
+        //
+        final StripPipeline pipeline =
+            new StripPipeline( image, stripHeight, rasterBuffer );
+        try {
+            for ( int y = 0; y < imageHeight; y += stripHeight ) {
+                if ( thread != null && thread.isCanceled() )
+                    return;
+                final ByteInterleavedRaster raster =
+                    (ByteInterleavedRaster)pipeline.take();
+                writeStrip( raster, bands );
+                pipeline.recycle( raster );
+
+                if ( indicator != null )
+                    indicator.incrementBy( raster.getHeight() );
             }
-
-            final int lineStride = raster.getScanlineStride();
-            final int written = writeScanLines( db.getData(), offset, stripHeight, lineStride );
-
-            if ( written != stripHeight )
-                throw new LCImageLibException(
-                    "something is wrong: " + written + " != " + stripHeight
-                );
-
-            if ( indicator != null )
-                indicator.incrementBy( stripHeight );
+        }
+        finally {
+            pipeline.dispose();
         }
 
         if ( indicator != null )
             indicator.setIndeterminate( true );
     }
 
+    /**
+     * Encodes a strip of the image.
+     *
+     * @param raster The strip.
+     * @param bands The number of bands of the image.
+     */
+    private void writeStrip( ByteInterleavedRaster raster, int bands )
+        throws LCImageLibException
+    {
+        final int stripHeight = raster.getHeight();
+        final DataBufferByte db = (DataBufferByte)raster.getDataBuffer();
+
+        final int[] offsets = raster.getDataOffsets();
+        int offset = offsets[0];
+        for (int i = 1; i < offsets.length; i++)
+            offset = Math.min(offset, offsets[i]);
+
+        if ( bands == 4 /* CMYK */ ) {
+            //
+            // A long-standing Photoshop bug is that CMYK images are stored
+            // inverted.  To be compatible with Photoshop, we have to
+            // invert CMYK images too.
+            //
+            final byte[] data = db.getData();
+            for ( int i = 0; i < data.length; ++i )
+                data[i] = (byte)~data[i];
+        }
+
+        final int lineStride = raster.getScanlineStride();
+        final int written = writeScanLines( db.getData(), offset, stripHeight, lineStride );
+
+        if ( written != stripHeight )
+            throw new LCImageLibException(
+                "something is wrong: " + written + " != " + stripHeight
+            );
+    }
+
     /**
      * The height of the image as exported.
      */
@@ -522,62 +522,27 @@ public final class LCTIFFWriter extends LCTIFFCommon {
         else
             outBuffer = new ShortInterleavedRaster(sm, new Point(0, 0));
 
-        int stripIndex = 0;
-        for ( int y = 0; y < imageHeight; y += stripHeight ) {
-            if ( thread != null && thread.isCanceled() )
-                return;
-
-            final int currentStripHeight = Math.min( stripHeight, imageHeight - y );
-
-            // Create a child raster of the out buffer for the current strip
-            final WritableRaster raster = outBuffer.createWritableChild(0, 0, imageWidth, currentStripHeight, 0, y, null);
-
-            // Prefetch tiles, uses all CPUs
-            if (image instanceof PlanarImage)
-                ((PlanarImage) image).getTiles(((PlanarImage) image).getTileIndices(raster.getBounds()));
-
-            image.copyData(raster);
-
-            int offset;
-            if (raster instanceof ByteInterleavedRaster) {
-                final ByteInterleavedRaster interleaved =
-                    (ByteInterleavedRaster) raster;
-
-                final int[] offsets = interleaved.getDataOffsets();
-                offset = offsets[0];
-                for (int i = 1; i < offsets.length; i++)
-                    offset = Math.min(offset, offsets[i]);
-
-                final DataBufferByte db = (DataBufferByte)raster.getDataBuffer();
-
-                final int written = writeStripByte( stripIndex, db.getData(), offset, bands * imageWidth * currentStripHeight );
-
-                if ( written != bands * imageWidth * currentStripHeight )
-                    throw new LCImageLibException(
-                        "something is wrong: " + written + " != " +
-                        (bands * imageWidth * currentStripHeight)
-                    );
-            } else {
-                final ShortInterleavedRaster interleaved =
-                    (ShortInterleavedRaster) raster;
-
-                final int[] offsets = interleaved.getDataOffsets();
-                offset = offsets[0];
-                for (int i = 1; i < offsets.length; i++)
-                    offset = Math.min(offset, offsets[i]);
-
-                final DataBufferUShort db = (DataBufferUShort) raster.getDataBuffer();
-
-                final int written = writeStripShort( stripIndex, db.getData(), offset, 2 * bands * imageWidth * currentStripHeight );
+        //
+        // Strips are computed ahead on another thread while libtiff encodes
+        // the current one.
+        //
+        final StripPipeline pipeline =
+            new StripPipeline( image, stripHeight, outBuffer );
+        try {
+            int stripIndex = 0;
+            for ( int y = 0; y < imageHeight; y += stripHeight ) {
+                if ( thread != null && thread.isCanceled() )
+                    return;
+                final WritableRaster raster = pipeline.take();
+                writeStrip( stripIndex++, raster, bands );
+                pipeline.recycle( raster );
 
-                if ( written != 2 * bands * imageWidth * currentStripHeight )
-                    throw new LCImageLibException(
-                        "something is wrong: " + written + " != " + (2 * bands * imageWidth * currentStripHeight)
-                    );
+                if ( indicator != null )
+                    indicator.incrementBy( raster.getHeight() );
             }
-            stripIndex++;
-            if ( indicator != null )
-                indicator.incrementBy( currentStripHeight );
+        }
+        finally {
+            pipeline.dispose();
         }
 
         if ( indicator != null )
@@ -615,41 +580,156 @@ public final class LCTIFFWriter extends LCTIFFCommon {
         } else
             indicator = null;
 
-        for ( int tileX = 0; tileX < image.getNumXTiles(); tileX++ )
-            for ( int tileY = 0; tileY < image.getNumYTiles(); tileY++ ) {
-                if ( thread != null && thread.isCanceled() )
-                    return;
-                final int tileIndex = computeTile(tileX * image.getTileWidth(), tileY * image.getTileHeight(), 0, 0);
-                final Raster tile = image.getTile(tileX, tileY);
-
-                if (dataType == DataBuffer.TYPE_BYTE) {
-                    final byte[] buffer = ((DataBufferByte) tile.getDataBuffer()).getData();
-
-                    final int bytesWritten =  writeTileByte(
-                        tileIndex, buffer, 0, buffer.length
-                    );
-                    if ( bytesWritten != buffer.length )
-                        throw new LCImageLibException(
-                            "something is wrong: " + bytesWritten + " != " + buffer.length
-                        );
-                } else {
-                    final short[] buffer = ((DataBufferUShort) tile.getDataBuffer()).getData();
-
-                    final int bytesWritten = writeTileShort(
-                        tileIndex, buffer, 0, buffer.length * 2
-                    );
-                    if ( bytesWritten != buffer.length * 2 )
-                        throw new LCImageLibException(
-                            "something is wrong: " + bytesWritten + " != " + buffer.length * 2
-                        );
+        //
+        // Columns of tiles are computed ahead on another thread while libtiff
+        // encodes the current one.
+        //
+        final ImagePipeline<Raster[]> pipeline =
+            new TileColumnPipeline( image );
+        try {
+            for ( int tileX = 0; tileX < image.getNumXTiles(); tileX++ ) {
+                final Raster[] column = pipeline.take();
+                for ( int tileY = 0; tileY < image.getNumYTiles(); tileY++ ) {
+                    if ( thread != null && thread.isCanceled() )
+                        return;
+                    writeTile( tileX, tileY, column[ tileY ], image );
+                    if ( indicator != null )
+                        indicator.incrementBy( 1 );
                 }
-                if ( indicator != null )
-                    indicator.incrementBy( 1 );
+                pipeline.recycle( column );
             }
+        }
+        finally {
+            pipeline.dispose();
+        }
         if ( indicator != null )
             indicator.setIndeterminate( true );
     }
 
+    /**
+     * Encodes and writes a strip of the image.
+     *
+     * @param stripIndex The index of the strip.
+     * @param raster The strip.
+     * @param bands The number of bands of the image.
+     */
+    private void writeStrip( int stripIndex, WritableRaster raster,
+                             int bands )
+        throws LCImageLibException
+    {
+        final int stripSize = bands * raster.getWidth() * raster.getHeight();
+        if ( raster instanceof ByteInterleavedRaster ) {
+            final ByteInterleavedRaster interleaved =
+                (ByteInterleavedRaster)raster;
+
+            final int[] offsets = interleaved.getDataOffsets();
+            int offset = offsets[0];
+            for ( int i = 1; i < offsets.length; i++ )
+                offset = Math.min( offset, offsets[i] );
+
+            final DataBufferByte db = (DataBufferByte)raster.getDataBuffer();
+
+            final int written =
+                writeStripByte( stripIndex, db.getData(), offset, stripSize );
+
+            if ( written != stripSize )
+                throw new LCImageLibException(
+                    "something is wrong: " + written + " != " + stripSize
+                );
+        } else {
+            final ShortInterleavedRaster interleaved =
+                (ShortInterleavedRaster)raster;
+
+            final int[] offsets = interleaved.getDataOffsets();
+            int offset = offsets[0];
+            for ( int i = 1; i < offsets.length; i++ )
+                offset = Math.min( offset, offsets[i] );
+
+            final DataBufferUShort db =
+                (DataBufferUShort)raster.getDataBuffer();
+
+            final int written = writeStripShort(
+                stripIndex, db.getData(), offset, 2 * stripSize
+            );
+
+            if ( written != 2 * stripSize )
+                throw new LCImageLibException(
+                    "something is wrong: " + written + " != " + 2 * stripSize
+                );
+        }
+    }
+
+    /**
+     * Encodes and writes a tile of the image.
+     *
+     * @param tileX The X index of the tile.
+     * @param tileY The Y index of the tile.
+     * @param tile The tile.
+     * @param image The image.
+     */
+    private void writeTile( int tileX, int tileY, Raster tile,
+                            RenderedImage image )
+        throws LCImageLibException
+    {
+        final int dataType = tile.getSampleModel().getDataType();
+        final int tileIndex = computeTile(tileX * image.getTileWidth(), tileY * image.getTileHeight(), 0, 0);
+
+        if (dataType == DataBuffer.TYPE_BYTE) {
+            final byte[] buffer = ((DataBufferByte) tile.getDataBuffer()).getData();
+
+            final int bytesWritten =  writeTileByte(
+                tileIndex, buffer, 0, buffer.length
+            );
+            if ( bytesWritten != buffer.length )
+                throw new LCImageLibException(
+                    "something is wrong: " + bytesWritten + " != " + buffer.length
+                );
+        } else {
+            final short[] buffer = ((DataBufferUShort) tile.getDataBuffer()).getData();
+
+            final int bytesWritten = writeTileShort(
+                tileIndex, buffer, 0, buffer.length * 2
+            );
+            if ( bytesWritten != buffer.length * 2 )
+                throw new LCImageLibException(
+                    "something is wrong: " + bytesWritten + " != " + buffer.length * 2
+                );
+        }
+    }
+
+    /**
+     * A <code>TileColumnPipeline</code> is-an {@link ImagePipeline} that
+     * computes the columns of tiles of an image ahead of the writer, in the
+     * order they're written.  The tiles of a column are computed together
+     * (on all CPUs for a {@link PlanarImage}).
+     */
+    private static final class TileColumnPipeline
+        extends ImagePipeline<Raster[]> {
+
+        TileColumnPipeline( RenderedImage image ) {
+            super( image.getNumXTiles(), 2 );
+            m_image = image;
+        }
+
+        protected Raster[] compute( int index ) {
+            final int tileX = m_image.getMinTileX() + index;
+            final int minTileY = m_image.getMinTileY();
+            final int numYTiles = m_image.getNumYTiles();
+            if ( m_image instanceof PlanarImage ) {
+                final Point[] indices = new Point[ numYTiles ];
+                for ( int i = 0; i < numYTiles; ++i )
+                    indices[i] = new Point( tileX, minTileY + i );
+                return ((PlanarImage)m_image).getTiles( indices );
+            }
+            final Raster[] column = new Raster[ numYTiles ];
+            for ( int i = 0; i < numYTiles; ++i )
+                column[i] = m_image.getTile( tileX, minTileY + i );
+            return column;
+        }
+
+        private final RenderedImage m_image;
+    }
+
     /**
      * Encodes and writes a strip to the TIFF image.
      *
@@ -0,0 +1,138 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.libs;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.lightcrafts.mediax.jai.PlanarImage;
+
+/**
+ * A <code>StripPipeline</code> is-an {@link ImagePipeline} that computes
+ * horizontal strips of an image ahead of a writer that encodes strips.  It
+ * keeps enough strips in flight to span a row of the image's tiles, so that
+ * while the writer encodes the strips of one tile row, the next tile row is
+ * being computed (on all CPUs for a {@link PlanarImage}).
+ */
+final class StripPipeline extends ImagePipeline<WritableRaster> {
+
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Construct a <code>StripPipeline</code>.
+     *
+     * @param image The image to compute.  Its origin must be at (0,0).
+     * @param stripHeight The height of the strips.
+     * @param buffer A raster as wide as the image and as high as a strip to
+     * compute strips into.  More rasters compatible with it are created as
+     * needed to compute strips ahead.  The strips handed to the writer are
+     * children of these rasters translated to their positions in the image.
+     */
+    StripPipeline( RenderedImage image, int stripHeight,
+                   WritableRaster buffer ) {
+        super(
+            (image.getHeight() + stripHeight - 1) / stripHeight,
+            getDepthFor( image, stripHeight, buffer )
+        );
+        m_image = image;
+        m_stripHeight = stripHeight;
+        m_buffers = new LinkedBlockingQueue<WritableRaster>();
+        m_buffers.add( buffer );
+    }
+
+    ////////// protected //////////////////////////////////////////////////////
+
+    /**
+     * Computes the strip having the given index.
+     *
+     * @param index The index of the strip.
+     * @return Returns a raster of the strip.
+     */
+    protected WritableRaster compute( int index ) {
+        final int y = index * m_stripHeight;
+        final int height = Math.min( m_stripHeight, m_image.getHeight() - y );
+        WritableRaster buffer = m_buffers.poll();
+        if ( buffer == null ) {
+            //
+            // All the buffers are the same size as the first.
+            //
+            buffer = m_lastBuffer.createCompatibleWritableRaster();
+        }
+        m_lastBuffer = buffer;
+        final WritableRaster strip = buffer.createWritableChild(
+            0, 0, m_image.getWidth(), height, 0, y, null
+        );
+        if ( m_image instanceof PlanarImage ) {
+            //
+            // Prefetch the tiles, which uses all CPUs.
+            //
+            final PlanarImage planar = (PlanarImage)m_image;
+            planar.getTiles( planar.getTileIndices( strip.getBounds() ) );
+        }
+        m_image.copyData( strip );
+        return strip;
+    }
+
+    /**
+     * Reuses the raster of a strip that's been encoded.
+     *
+     * @param strip The strip.
+     */
+    protected void recycled( WritableRaster strip ) {
+        m_buffers.add( strip.getWritableParent() );
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * Gets the number of strips to compute ahead: enough to span a row of
+     * tiles plus one, but no more than {@link #MAX_BUFFER_BYTES}.
+     *
+     * @param image The image.
+     * @param stripHeight The height of the strips.
+     * @param buffer A raster of one strip.
+     * @return Returns said number.
+     */
+    private static int getDepthFor( RenderedImage image, int stripHeight,
+                                    WritableRaster buffer ) {
+        final DataBuffer db = buffer.getDataBuffer();
+        final long stripBytes = Math.max(
+            (long)db.getSize() * db.getNumBanks() *
+            DataBuffer.getDataTypeSize( db.getDataType() ) / 8, 1
+        );
+        final int tileRow =
+            (image.getTileHeight() + stripHeight - 1) / stripHeight + 1;
+        final int affordable = (int)Math.min( MAX_BUFFER_BYTES / stripBytes,
+                                              Integer.MAX_VALUE );
+        return Math.max( Math.min( tileRow, affordable ), 2 );
+    }
+
+    /**
+     * The most memory (in bytes) to spend on strips computed ahead.
+     */
+    private static final long MAX_BUFFER_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The rasters free to compute strips into.
+     */
+    private final BlockingQueue<WritableRaster> m_buffers;
+
+    /**
+     * The raster the last strip was computed into, to create more like it.
+     */
+    private WritableRaster m_lastBuffer;
+
+    /**
+     * The image being computed.
+     */
+    private final RenderedImage m_image;
+
+    /**
+     * The height of the strips.
+     */
+    private final int m_stripHeight;
+}
+/* vim:set et sw=4 ts=4: */
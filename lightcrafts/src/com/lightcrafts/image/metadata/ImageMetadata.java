@@ -653,6 +653,18 @@ public class ImageMetadata implements
         return path != null ? path.hashCode() : super.hashCode();
     }
 
+    /**
+     * Returns whether some values of this metadata, decoded lazily by
+     * {@link ImageMetadataCodec#decode(byte[])}, turned out to be corrupt.
+     * The directories holding them are empty; the metadata should be read
+     * from the image file again.
+     *
+     * @return Returns <code>true</code> only if some values were corrupt.
+     */
+    public boolean isCorrupt() {
+        return m_corrupt;
+    }
+
     /**
      * Returns whether there is some metadata.
      *
@@ -1362,6 +1374,17 @@ public class ImageMetadata implements
         }
     }
 
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Marks this metadata as having corrupt encoded values.
+     *
+     * @see #isCorrupt()
+     */
+    void setCorrupt() {
+        m_corrupt = true;
+    }
+
     ////////// private ////////////////////////////////////////////////////////
 
     /**
@@ -1471,6 +1494,11 @@ public class ImageMetadata implements
      */
     private ImageType m_imageType;
 
+    /**
+     * Whether some lazily decoded values were corrupt.
+     */
+    private volatile boolean m_corrupt;
+
     ////////// main (for testing) /////////////////////////////////////////////
 
     public static void main( String[] args ) throws Exception {
@@ -0,0 +1,514 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import com.lightcrafts.image.metadata.makernotes.*;
+import com.lightcrafts.image.metadata.values.*;
+import com.lightcrafts.utils.Rational;
+
+/**
+ * An <code>ImageMetadataCodec</code> encodes {@link ImageMetadata} into a
+ * compact binary form and decodes it back.  It's meant for caching metadata
+ * for many images, e.g., in the browser, where Java serialization through
+ * {@link ImageMetadata#writeExternal(java.io.ObjectOutput)} is both bulky
+ * (every tag ID is 4 bytes, every value carries a 6-byte header) and slow to
+ * read back.
+ * <p>
+ * The encoded form is:
+ * <ul>
+ *   <li>the format version;</li>
+ *   <li>the number of directories;</li>
+ *   <li>for each directory: its index in {@link #DIRECTORY_SCHEMA} (or 0
+ *       followed by its class name if it isn't in it), the length of its
+ *       encoded values, and its values.  The values are their number
+ *       followed by, in ascending tag ID order: the difference from the
+ *       previous tag ID, the {@link ImageMetaType} (as its TIFF constant),
+ *       the editable and displayable flags, the number of elements, and
+ *       the elements.</li>
+ * </ul>
+ * All counts, lengths, and tag IDs are unsigned variable-length integers
+ * (7 bits per byte, least significant first); integral and rational
+ * elements are zig-zag encoded variable-length integers.
+ * <p>
+ * Decoding is lazy: {@link #decode(byte[])} only creates the directories;
+ * each one decodes its values the first time it's accessed, so reading,
+ * say, just the orientation doesn't decode the EXIF or maker notes values.
+ */
+public final class ImageMetadataCodec {
+
+    ////////// public /////////////////////////////////////////////////////////
+
+    /**
+     * The version of the encoded form.  It must be incremented whenever the
+     * encoding or {@link #DIRECTORY_SCHEMA} changes other than by appending
+     * to it.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Decodes {@link ImageMetadata}.
+     *
+     * @param buf The encoded metadata.  The array is retained until all
+     * directories have been decoded, so it must not be modified.
+     * @return Returns a new {@link ImageMetadata}.
+     * @throws IOException if the version doesn't match or the data is
+     * corrupt.
+     * @see #encode(ImageMetadata)
+     */
+    public static ImageMetadata decode( byte[] buf ) throws IOException {
+        final ImageMetadata metadata = new ImageMetadata();
+        final Reader r = new Reader( buf, 0, buf.length );
+        try {
+            final int version = r.readVarint();
+            if ( version != FORMAT_VERSION )
+                throw new IOException(
+                    "unsupported metadata format version " + version
+                );
+            for ( int count = r.readVarint(); count > 0; --count ) {
+                final Class<? extends ImageMetadataDirectory> dirClass =
+                    readDirectoryClass( r );
+                final int length = r.readVarint();
+                if ( length > buf.length - r.m_pos )
+                    throw new IOException( "corrupt metadata" );
+                metadata.getDirectoryFor( dirClass, true )
+                    .setEncodedValues( buf, r.m_pos, length );
+                r.m_pos += length;
+            }
+        }
+        catch ( RuntimeException e ) {
+            final IOException ioe = new IOException( "corrupt metadata" );
+            ioe.initCause( e );
+            throw ioe;
+        }
+        return metadata;
+    }
+
+    /**
+     * Encodes {@link ImageMetadata}.
+     *
+     * @param metadata The {@link ImageMetadata} to encode.
+     * @return Returns the encoded metadata.
+     * @see #decode(byte[])
+     */
+    public static byte[] encode( ImageMetadata metadata ) {
+        final Writer w = new Writer();
+        final Writer dirWriter = new Writer();
+        final Collection<ImageMetadataDirectory> dirs =
+            metadata.getDirectories();
+        w.writeVarint( FORMAT_VERSION );
+        w.writeVarint( dirs.size() );
+        for ( ImageMetadataDirectory dir : dirs ) {
+            writeDirectoryClass( w, dir.getClass() );
+            dirWriter.reset();
+            encodeValues( dir, dirWriter );
+            w.writeVarint( dirWriter.size() );
+            dirWriter.writeTo( w );
+        }
+        return w.toByteArray();
+    }
+
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Decodes the values of a directory into it.  This is called by the
+     * directory when it's first accessed.
+     *
+     * @param dir The {@link ImageMetadataDirectory} to decode into.
+     * @param buf The buffer containing the encoded values.
+     * @param offset The offset of the encoded values.
+     * @param length The length of the encoded values.
+     * @throws IllegalStateException if the data is corrupt.
+     */
+    static void decodeValues( ImageMetadataDirectory dir, byte[] buf,
+                              int offset, int length ) {
+        final Reader r = new Reader( buf, offset, offset + length );
+        try {
+            int tagID = 0;
+            for ( int count = r.readVarint(); count > 0; --count ) {
+                tagID += r.readVarint();
+                final ImageMetaType type =
+                    ImageMetaType.getTypeFor( r.readByte() );
+                final int flags = r.readByte();
+                final ImageMetaValue value =
+                    readValue( r, type, r.readVarint() );
+                value.setIsChangeable( (flags & FLAG_EDITABLE) != 0 );
+                if ( (flags & FLAG_DISPLAYABLE) == 0 )
+                    value.setNonDisplayable();
+                dir.putValue( tagID, value );
+            }
+        }
+        catch ( RuntimeException e ) {
+            //
+            // Includes a read past the end of the values and an unknown
+            // type.
+            //
+            throw new IllegalStateException(
+                "corrupt " + dir.getName() + " metadata", e
+            );
+        }
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * A <code>Reader</code> reads from encoded metadata.
+     */
+    private static final class Reader {
+        Reader( byte[] buf, int pos, int end ) {
+            m_buf = buf;
+            m_pos = pos;
+            m_end = end;
+        }
+
+        int readByte() {
+            if ( m_pos >= m_end )
+                throw new ArrayIndexOutOfBoundsException( m_pos );
+            return m_buf[ m_pos++ ];
+        }
+
+        byte[] readBytes( int length ) {
+            if ( length < 0 || length > m_end - m_pos )
+                throw new ArrayIndexOutOfBoundsException( m_pos );
+            final byte[] bytes = new byte[ length ];
+            System.arraycopy( m_buf, m_pos, bytes, 0, length );
+            m_pos += length;
+            return bytes;
+        }
+
+        long readFixed( int size ) {
+            long n = 0;
+            for ( int i = 0; i < size; ++i )
+                n = n << 8 | readByte() & 0xFF;
+            return n;
+        }
+
+        String readString() {
+            final int length = readVarint() - 1;
+            if ( length < 0 )
+                return null;
+            if ( length > m_end - m_pos )
+                throw new ArrayIndexOutOfBoundsException( m_pos );
+            try {
+                final String s = new String( m_buf, m_pos, length, "UTF-8" );
+                m_pos += length;
+                return s;
+            }
+            catch ( UnsupportedEncodingException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+
+        int readVarint() {
+            return (int)readVarlong();
+        }
+
+        long readVarlong() {
+            long n = 0;
+            for ( int shift = 0; shift < 64; shift += 7 ) {
+                final int b = readByte();
+                n |= (long)(b & 0x7F) << shift;
+                if ( b >= 0 )
+                    return n;
+            }
+            throw new IllegalStateException( "varint too long" );
+        }
+
+        long readZigZag() {
+            final long n = readVarlong();
+            return n >>> 1 ^ -(n & 1);
+        }
+
+        final byte[] m_buf;
+        final int m_end;
+        int m_pos;
+    }
+
+    /**
+     * A <code>Writer</code> is-a {@link ByteArrayOutputStream} that writes
+     * encoded metadata.
+     */
+    private static final class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super( 256 );
+        }
+
+        void writeFixed( long n, int size ) {
+            for ( int shift = (size - 1) * 8; shift >= 0; shift -= 8 )
+                write( (int)(n >>> shift) );
+        }
+
+        void writeString( String s ) {
+            if ( s == null ) {
+                writeVarint( 0 );
+                return;
+            }
+            final byte[] bytes;
+            try {
+                bytes = s.getBytes( "UTF-8" );
+            }
+            catch ( UnsupportedEncodingException e ) {
+                throw new IllegalStateException( e );
+            }
+            writeVarint( bytes.length + 1 );
+            write( bytes, 0, bytes.length );
+        }
+
+        void writeVarint( int n ) {
+            writeVarlong( n & 0xFFFFFFFFL );
+        }
+
+        void writeVarlong( long n ) {
+            while ( (n & ~0x7FL) != 0 ) {
+                write( (int)(n & 0x7F) | 0x80 );
+                n >>>= 7;
+            }
+            write( (int)n );
+        }
+
+        void writeZigZag( long n ) {
+            writeVarlong( n << 1 ^ n >> 63 );
+        }
+
+        void writeTo( Writer w ) {
+            w.write( buf, 0, count );
+        }
+    }
+
+    /**
+     * Encodes the values of a directory in ascending tag ID order.
+     */
+    private static void encodeValues( ImageMetadataDirectory dir, Writer w ) {
+        final SortedMap<Integer,ImageMetaValue> values =
+            new TreeMap<Integer,ImageMetaValue>();
+        synchronized ( dir ) {
+            for ( Iterator<Map.Entry<Integer,ImageMetaValue>>
+                  i = dir.iterator(); i.hasNext(); ) {
+                final Map.Entry<Integer,ImageMetaValue> me = i.next();
+                values.put( me.getKey(), me.getValue() );
+            }
+        }
+        w.writeVarint( values.size() );
+        int prevTagID = 0;
+        for ( Map.Entry<Integer,ImageMetaValue> me : values.entrySet() ) {
+            final int tagID = me.getKey();
+            final ImageMetaValue value = me.getValue();
+            w.writeVarint( tagID - prevTagID );
+            prevTagID = tagID;
+            w.write( value.getType().getTIFFConstant() );
+            w.write(
+                (value.isEditable() ? FLAG_EDITABLE : 0) |
+                (value.isDisplayable() ? FLAG_DISPLAYABLE : 0)
+            );
+            writeValue( w, value );
+        }
+    }
+
+    /**
+     * Reads a directory's class.
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends ImageMetadataDirectory>
+    readDirectoryClass( Reader r ) throws IOException {
+        final int index = r.readVarint();
+        if ( index > 0 && index <= DIRECTORY_SCHEMA.length )
+            return DIRECTORY_SCHEMA[ index - 1 ];
+        if ( index != 0 )
+            throw new IOException( "unknown metadata directory " + index );
+        final String className = r.readString();
+        try {
+            final Class c = Class.forName( className );
+            if ( !ImageMetadataDirectory.class.isAssignableFrom( c ) )
+                throw new IOException( className + " isn't a directory" );
+            return c;
+        }
+        catch ( ClassNotFoundException e ) {
+            final IOException ioe = new IOException();
+            ioe.initCause( e );
+            throw ioe;
+        }
+    }
+
+    /**
+     * Reads a value of the given type having the given number of elements.
+     */
+    private static ImageMetaValue readValue( Reader r, ImageMetaType type,
+                                             int count ) {
+        if ( count < 0 || count > r.m_end - r.m_pos )
+            throw new IllegalStateException( "bad value count" );
+        switch ( type ) {
+            case META_DATE: {
+                final Date[] dates = new Date[ count ];
+                for ( int i = 0; i < count; ++i )
+                    dates[i] = new Date( r.readZigZag() );
+                return new DateMetaValue( dates );
+            }
+            case META_DOUBLE: {
+                final double[] doubles = new double[ count ];
+                for ( int i = 0; i < count; ++i )
+                    doubles[i] = Double.longBitsToDouble( r.readFixed( 8 ) );
+                return new DoubleMetaValue( doubles );
+            }
+            case META_FLOAT: {
+                final float[] floats = new float[ count ];
+                for ( int i = 0; i < count; ++i )
+                    floats[i] =
+                        Float.intBitsToFloat( (int)r.readFixed( 4 ) );
+                return new FloatMetaValue( floats );
+            }
+            case META_SRATIONAL:
+            case META_URATIONAL: {
+                final Rational[] rationals = new Rational[ count ];
+                for ( int i = 0; i < count; ++i )
+                    rationals[i] = new Rational(
+                        (int)r.readZigZag(), (int)r.readZigZag()
+                    );
+                return type == ImageMetaType.META_SRATIONAL ?
+                    new RationalMetaValue( rationals ) :
+                    new UnsignedRationalMetaValue( rationals );
+            }
+            case META_STRING: {
+                final String[] strings = new String[ count ];
+                for ( int i = 0; i < count; ++i )
+                    strings[i] = r.readString();
+                return new StringMetaValue( strings );
+            }
+            case META_UNDEFINED:
+                return new UndefinedMetaValue( r.readBytes( count ) );
+            default: {
+                final long[] longs = new long[ count ];
+                for ( int i = 0; i < count; ++i )
+                    longs[i] = r.readZigZag();
+                switch ( type ) {
+                    case META_SBYTE:
+                        return new ByteMetaValue( longs );
+                    case META_SLONG:
+                        return new LongMetaValue( longs );
+                    case META_SSHORT:
+                        return new ShortMetaValue( longs );
+                    case META_UBYTE:
+                        return new UnsignedByteMetaValue( longs );
+                    case META_ULONG:
+                        return new UnsignedLongMetaValue( longs );
+                    case META_USHORT:
+                        return new UnsignedShortMetaValue( longs );
+                    default:
+                        throw new IllegalStateException(
+                            "unsupported metadata type " + type
+                        );
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a directory's class.
+     */
+    private static void writeDirectoryClass( Writer w, Class dirClass ) {
+        for ( int i = 0; i < DIRECTORY_SCHEMA.length; ++i )
+            if ( DIRECTORY_SCHEMA[i] == dirClass ) {
+                w.writeVarint( i + 1 );
+                return;
+            }
+        w.writeVarint( 0 );
+        w.writeString( dirClass.getName() );
+    }
+
+    /**
+     * Writes a value's elements, preceded by their number.
+     */
+    private static void writeValue( Writer w, ImageMetaValue value ) {
+        switch ( value.getType() ) {
+            case META_DATE: {
+                final Date[] dates = ((DateMetaValue)value).getDateValues();
+                w.writeVarint( dates.length );
+                for ( Date date : dates )
+                    w.writeZigZag( date.getTime() );
+                break;
+            }
+            case META_DOUBLE: {
+                final double[] doubles =
+                    ((DoubleMetaValue)value).getDoubleValues();
+                w.writeVarint( doubles.length );
+                for ( double d : doubles )
+                    w.writeFixed( Double.doubleToLongBits( d ), 8 );
+                break;
+            }
+            case META_FLOAT: {
+                final float[] floats =
+                    ((FloatMetaValue)value).getFloatValues();
+                w.writeVarint( floats.length );
+                for ( float f : floats )
+                    w.writeFixed( Float.floatToIntBits( f ), 4 );
+                break;
+            }
+            case META_SRATIONAL:
+            case META_URATIONAL: {
+                final Rational[] rationals =
+                    ((RationalMetaValue)value).getRationalValues();
+                w.writeVarint( rationals.length );
+                for ( Rational r : rationals ) {
+                    w.writeZigZag( r.numerator() );
+                    w.writeZigZag( r.denominator() );
+                }
+                break;
+            }
+            case META_STRING: {
+                final int count = value.getValueCount();
+                final String[] strings = value.getValues();
+                w.writeVarint( count );
+                for ( int i = 0; i < count; ++i )
+                    w.writeString( strings[i] );
+                break;
+            }
+            case META_UNDEFINED: {
+                final byte[] bytes =
+                    ((UndefinedMetaValue)value).getUndefinedValue();
+                w.writeVarint( bytes.length );
+                w.write( bytes, 0, bytes.length );
+                break;
+            }
+            default: {
+                final long[] longs = ((LongMetaValue)value).getLongValues();
+                w.writeVarint( longs.length );
+                for ( long n : longs )
+                    w.writeZigZag( n );
+                break;
+            }
+        }
+    }
+
+    /**
+     * The directory classes that are encoded by index rather than by name,
+     * i.e., those that nearly every image has.  New classes must be added
+     * only at the end.
+     */
+    @SuppressWarnings("unchecked")
+    private static final Class<? extends ImageMetadataDirectory>[]
+        DIRECTORY_SCHEMA = new Class[] {
+            CoreDirectory.class,
+            TIFFDirectory.class,
+            EXIFDirectory.class,
+            SubEXIFDirectory.class,
+            IPTCDirectory.class,
+            GPSDirectory.class,
+            DNGDirectory.class,
+            CIFFDirectory.class,
+            CanonDirectory.class,
+            FujiDirectory.class,
+            KodakDirectory.class,
+            MinoltaDirectory.class,
+            NikonDirectory.class,
+            OlympusDirectory.class,
+            PanasonicDirectory.class,
+            PentaxDirectory.class
+        };
+
+    private static final int FLAG_EDITABLE      = 0x01;
+    private static final int FLAG_DISPLAYABLE   = 0x02;
+}
+/* vim:set et sw=4 ts=4: */
@@ -35,7 +35,7 @@ public abstract class ImageMetadataDirectory
      * Clears all metadata.
      */
     public synchronized void clear() {
-        m_tagIDToValueMap.clear();
+        getValueMap().clear();
     }
 
     /**
@@ -43,7 +43,7 @@ public abstract class ImageMetadataDirectory
      * {@link ImageMetaValue}s in it.
      */
     public synchronized void clearEdited() {
-        for ( ImageMetaValue value : m_tagIDToValueMap.values() )
+        for ( ImageMetaValue value : getValueMap().values() )
             value.clearEdited();
     }
 
@@ -73,7 +73,7 @@ public abstract class ImageMetadataDirectory
         // that don't rely on data, only behavior.
         //
         synchronized( this ) {
-            copy.m_tagIDToValueMap.putAll( m_tagIDToValueMap );
+            copy.getValueMap().putAll( getValueMap() );
         }
         return copy;
     }
@@ -130,7 +130,7 @@ public abstract class ImageMetadataDirectory
     public final Set<Integer> getTagIDSet( boolean all ) {
         if ( !all )
             synchronized ( this ) {
-                return m_tagIDToValueMap.keySet();
+                return getValueMap().keySet();
             }
 
         final Class<? extends ImageMetaTags> tagsInterface = getTagsInterface();
@@ -336,7 +336,7 @@ public abstract class ImageMetadataDirectory
     public final synchronized ImageMetaValue getValue( Integer tagID ) {
         ImageMetadataDirectory dir = this;
         while ( dir != null ) {
-            final ImageMetaValue value = dir.m_tagIDToValueMap.get( tagID );
+            final ImageMetaValue value = dir.getValueMap().get( tagID );
             if ( value != null )
                 return value;
             dir = dir.getStaticParent();
@@ -457,7 +457,7 @@ public abstract class ImageMetadataDirectory
      * @see ImageMetaValue#isEdited()
      */
     public final synchronized boolean isChanged() {
-        for ( ImageMetaValue value : m_tagIDToValueMap.values() )
+        for ( ImageMetaValue value : getValueMap().values() )
             if ( value.isEdited() )
                 return true;
         return false;
@@ -469,7 +469,7 @@ public abstract class ImageMetadataDirectory
      * @return Returns <code>true</code> only if the directory is empty.
      */
     public final synchronized boolean isEmpty() {
-        return m_tagIDToValueMap.isEmpty();
+        return getValueMap().isEmpty();
     }
 
     /**
@@ -502,7 +502,7 @@ public abstract class ImageMetadataDirectory
      */
     public final synchronized Iterator<Map.Entry<Integer,ImageMetaValue>>
     iterator() {
-        return m_tagIDToValueMap.entrySet().iterator();
+        return getValueMap().entrySet().iterator();
     }
 
     /**
@@ -600,7 +600,7 @@ public abstract class ImageMetadataDirectory
             value.setOwningTagID( tagID );
         }
         synchronized( this ) {
-            m_tagIDToValueMap.put( tagID, value );
+            getValueMap().put( tagID, value );
         }
     }
 
@@ -632,7 +632,7 @@ public abstract class ImageMetadataDirectory
     public final synchronized ImageMetaValue removeValue( Integer tagID ) {
         ImageMetadataDirectory dir = this;
         while ( dir != null ) {
-            final ImageMetaValue value = dir.m_tagIDToValueMap.remove( tagID );
+            final ImageMetaValue value = dir.getValueMap().remove( tagID );
             if ( value != null )
                 return value;
             dir = dir.getStaticParent();
@@ -657,7 +657,7 @@ public abstract class ImageMetadataDirectory
             throw new IllegalArgumentException( "unknown tag " + tagID );
 
         synchronized ( this ) {
-            ImageMetaValue value = m_tagIDToValueMap.get( tagID );
+            ImageMetaValue value = getValueMap().get( tagID );
             if ( value == null ) {
                 value = tag.createValue();
                 value.setOwningDirectory( this );
@@ -693,7 +693,7 @@ public abstract class ImageMetadataDirectory
 */
 
         synchronized ( this ) {
-            ImageMetaValue value = m_tagIDToValueMap.get( tagID );
+            ImageMetaValue value = getValueMap().get( tagID );
             if ( value == null ) {
                 value = tag.createValue();
                 value.setOwningDirectory( this );
@@ -725,7 +725,7 @@ public abstract class ImageMetadataDirectory
      * @return Returns said number.
      */
     public final synchronized int size() {
-        return m_tagIDToValueMap.size();
+        return getValueMap().size();
     }
 
     /**
@@ -866,6 +866,23 @@ public abstract class ImageMetadataDirectory
         m_owningMetadata = metadata;
     }
 
+    /**
+     * Sets the values of this directory as encoded by
+     * {@link ImageMetadataCodec}.  They are decoded the first time this
+     * directory is accessed.
+     *
+     * @param buf The buffer containing the encoded values.  It must not be
+     * modified afterwards.
+     * @param offset The offset of the encoded values.
+     * @param length The length of the encoded values.
+     */
+    final synchronized void setEncodedValues( byte[] buf, int offset,
+                                              int length ) {
+        m_encodedValues = buf;
+        m_encodedOffset = offset;
+        m_encodedLength = length;
+    }
+
     ////////// protected //////////////////////////////////////////////////////
 
     /**
@@ -1115,6 +1132,35 @@ public abstract class ImageMetadataDirectory
 
     ////////// private ////////////////////////////////////////////////////////
 
+    /**
+     * Gets the map of tag IDs to values, first decoding any values set by
+     * {@link #setEncodedValues(byte[],int,int)}.  If those turn out to be
+     * corrupt, the directory is left empty and the owning
+     * {@link ImageMetadata} is marked as such so that whoever cached it
+     * drops the record and parses the image file again.
+     *
+     * @return Returns said map.
+     * @see ImageMetadata#isCorrupt()
+     */
+    private synchronized HashMap<Integer,ImageMetaValue> getValueMap() {
+        if ( m_encodedValues != null ) {
+            final byte[] buf = m_encodedValues;
+            m_encodedValues = null;
+            try {
+                ImageMetadataCodec.decodeValues(
+                    this, buf, m_encodedOffset, m_encodedLength
+                );
+            }
+            catch ( IllegalStateException e ) {
+                System.err.println( e.getMessage() );
+                m_tagIDToValueMap.clear();
+                if ( m_owningMetadata != null )
+                    m_owningMetadata.setCorrupt();
+            }
+        }
+        return m_tagIDToValueMap;
+    }
+
     /**
      * Gets the static parent directory of this directory, if any.  The
      * <i>static parent</i> directory is an instance of a Java class that is a
@@ -1163,5 +1209,13 @@ public abstract class ImageMetadataDirectory
      */
     private final HashMap<Integer,ImageMetaValue> m_tagIDToValueMap =
         new HashMap<Integer,ImageMetaValue>();
+
+    /**
+     * The {@link ImageMetadataCodec}-encoded values not yet decoded into
+     * {@link #m_tagIDToValueMap}, if any.
+     */
+    private byte[] m_encodedValues;
+    private int m_encodedOffset;
+    private int m_encodedLength;
 }
 /* vim:set et sw=4 ts=4: */
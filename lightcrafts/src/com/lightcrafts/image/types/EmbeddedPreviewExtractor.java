@@ -0,0 +1,314 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.types;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.lightcrafts.image.BadImageFileException;
+import com.lightcrafts.image.ImageInfo;
+import com.lightcrafts.utils.bytebuffer.LCByteBuffer;
+
+import static com.lightcrafts.image.metadata.TIFFTags.*;
+import static com.lightcrafts.image.types.JPEGConstants.*;
+import static com.lightcrafts.image.types.TIFFConstants.*;
+
+/**
+ * An <code>EmbeddedPreviewExtractor</code> finds the JPEG previews that
+ * cameras embed in raw files and decodes them in-process so that browsing a
+ * folder of raw files doesn't start a dcraw process per file.
+ * <p>
+ * Candidates are found by walking the file's TIFF structure (every IFD of the
+ * main chain plus their SubIFDs and EXIF IFDs), which covers most TIFF-based
+ * raw formats and DNG, and through the fixed header of Fuji's RAF format.
+ * Each candidate's SOF marker is read to get its dimensions without decoding
+ * it; lossless JPEG, i.e., the raw data itself in CR2 and DNG files, is
+ * ignored.
+ */
+final class EmbeddedPreviewExtractor {
+
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Gets the best embedded JPEG preview of a raw image: the smallest one
+     * that is at least the given size or, if none is, the largest one.
+     *
+     * @param imageInfo The raw image.
+     * @param maxWidth The maximum width of the image to get, rescaling if
+     * necessary.  A value of 0 means don't scale.
+     * @param maxHeight The maximum height of the image to get, rescaling if
+     * necessary.  A value of 0 means don't scale.
+     * @param minSize The minimum length of the longer side of an acceptable
+     * preview.
+     * @return Returns said preview or <code>null</code> if there is no
+     * acceptable preview.
+     */
+    static RenderedImage getPreviewImage( ImageInfo imageInfo, int maxWidth,
+                                          int maxHeight, int minSize )
+        throws BadImageFileException, IOException
+    {
+        final LCByteBuffer buf = imageInfo.getByteBuffer();
+        final List<Preview> previews = findPreviews( buf );
+
+        final int wanted = Math.max( maxWidth, maxHeight );
+        Preview best = null;
+        for ( Preview p : previews ) {
+            final int size = Math.max( p.m_width, p.m_height );
+            if ( size < minSize )
+                continue;
+            if ( best == null ) {
+                best = p;
+                continue;
+            }
+            final int bestSize = Math.max( best.m_width, best.m_height );
+            if ( wanted > 0 && size >= wanted )
+                if ( bestSize < wanted || size < bestSize )
+                    best = p;
+            if ( (wanted <= 0 || bestSize < wanted) && size > bestSize )
+                best = p;
+        }
+        if ( best == null )
+            return null;
+        return JPEGImageType.getImageFromBuffer(
+            buf, best.m_offset, best.m_length, null, maxWidth, maxHeight
+        );
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * A <code>Preview</code> is the location and size of an embedded JPEG
+     * image.
+     */
+    private static final class Preview {
+        Preview( int offset, int length, int width, int height ) {
+            m_offset = offset;
+            m_length = length;
+            m_width = width;
+            m_height = height;
+        }
+
+        final int m_offset;
+        final int m_length;
+        final int m_width;
+        final int m_height;
+    }
+
+    /**
+     * Finds all the embedded baseline or progressive JPEG images.
+     *
+     * @param buf The {@link LCByteBuffer} of the raw image file.  Its
+     * position and byte order are not touched since the buffer is shared.
+     * @return Returns said images.
+     */
+    private static List<Preview> findPreviews( LCByteBuffer buf )
+        throws IOException
+    {
+        final List<Preview> previews = new ArrayList<Preview>();
+        if ( buf.capacity() < 16 )
+            return previews;
+
+        if ( buf.getString( 0, RAF_MAGIC.length(), "ASCII" ).equals( RAF_MAGIC ) ) {
+            addPreview(
+                buf, getInt( buf, RAF_JPEG_OFFSET, true ),
+                getInt( buf, RAF_JPEG_OFFSET + 4, true ), previews
+            );
+            return previews;
+        }
+
+        final int b0 = buf.get( 0 );
+        final int b1 = buf.get( 1 );
+        final boolean bigEndian;
+        if ( b0 == 'M' && b1 == 'M' )
+            bigEndian = true;
+        else if ( b0 == 'I' && b1 == 'I' )
+            bigEndian = false;
+        else
+            return previews;
+
+        //
+        // Don't check the TIFF magic number: ORF and RW2 files use their own.
+        //
+        final Set<Integer> visited = new HashSet<Integer>();
+        int ifd = getInt( buf, 4, bigEndian );
+        while ( ifd > 0 && visited.size() < MAX_IFDS )
+            ifd = readIFD( buf, ifd, bigEndian, 0, visited, previews );
+        return previews;
+    }
+
+    /**
+     * Reads an IFD looking for embedded JPEG images, recursing into its
+     * SubIFDs and EXIF IFD.
+     *
+     * @return Returns the offset of the next IFD or 0 if none.
+     */
+    private static int readIFD( LCByteBuffer buf, int ifd, boolean bigEndian,
+                                int depth, Set<Integer> visited,
+                                List<Preview> previews )
+        throws IOException
+    {
+        if ( ifd + 2 > buf.capacity() || !visited.add( ifd ) )
+            return 0;
+        final int numEntries = getShort( buf, ifd, bigEndian );
+        final int end = ifd + 2 + numEntries * 12;
+        if ( end + 4 > buf.capacity() )
+            return 0;
+
+        int compression = 0;
+        int stripOffset = 0, stripLength = 0, numStrips = 0;
+        int jpegOffset = 0, jpegLength = 0;
+        final List<Integer> subIFDs = new ArrayList<Integer>();
+
+        for ( int entry = ifd + 2; entry < end; entry += 12 ) {
+            final int tag = getShort( buf, entry, bigEndian );
+            final int type = getShort( buf, entry + 2, bigEndian );
+            final int count = getInt( buf, entry + 4, bigEndian );
+            final int value = type == TIFF_FIELD_TYPE_USHORT ?
+                getShort( buf, entry + 8, bigEndian ) :
+                getInt( buf, entry + 8, bigEndian );
+            switch ( tag ) {
+                case TIFF_COMPRESSION:
+                    compression = value;
+                    break;
+                case TIFF_STRIP_OFFSETS:
+                    stripOffset = value;
+                    numStrips = count;
+                    break;
+                case TIFF_STRIP_BYTE_COUNTS:
+                    stripLength = value;
+                    break;
+                case TIFF_JPEG_INTERCHANGE_FORMAT:
+                    jpegOffset = value;
+                    break;
+                case TIFF_JPEG_INTERCHANGE_FORMAT_LENGTH:
+                    jpegLength = value;
+                    break;
+                case TIFF_EXIF_IFD_POINTER:
+                    subIFDs.add( value );
+                    break;
+                case TIFF_SUB_IFDS:
+                    if ( count == 1 )
+                        subIFDs.add( value );
+                    else
+                        for ( int i = 0; i < count && i < MAX_IFDS; ++i )
+                            subIFDs.add(
+                                getInt( buf, value + 4 * i, bigEndian )
+                            );
+                    break;
+            }
+        }
+
+        if ( jpegOffset > 0 )
+            addPreview( buf, jpegOffset, jpegLength, previews );
+        if ( numStrips == 1 &&
+             (compression == TIFF_COMPRESSION_JPEG ||
+              compression == TIFF_COMPRESSION_JPEG_OLDSTYLE) )
+            addPreview( buf, stripOffset, stripLength, previews );
+
+        if ( depth < MAX_DEPTH )
+            for ( int subIFD : subIFDs )
+                readIFD( buf, subIFD, bigEndian, depth + 1, visited, previews );
+
+        return getInt( buf, end, bigEndian );
+    }
+
+    /**
+     * Adds an embedded image to the list if it's a baseline or progressive
+     * JPEG image.
+     */
+    private static void addPreview( LCByteBuffer buf, int offset, int length,
+                                    List<Preview> previews )
+        throws IOException
+    {
+        if ( offset <= 0 || length <= 0 || offset + length > buf.capacity() )
+            return;
+        if ( buf.get( offset ) != JPEG_MARKER_BYTE ||
+             buf.get( offset + 1 ) != JPEG_SOI_MARKER )
+            return;
+
+        int pos = offset + 2;
+        final int end = offset + length;
+        while ( pos + 4 <= end ) {
+            if ( buf.get( pos ) != JPEG_MARKER_BYTE )
+                return;
+            final int marker = buf.get( pos + 1 ) & 0xFF;
+            final int segmentLength = getShort( buf, pos + 2, true );
+            switch ( marker ) {
+                case JPEG_SOF0_MARKER:
+                case JPEG_SOF1_MARKER:
+                case JPEG_SOF2_MARKER:
+                    if ( pos + 9 > end )
+                        return;
+                    previews.add(
+                        new Preview(
+                            offset, length,
+                            getShort( buf, pos + 7, true ),
+                            getShort( buf, pos + 5, true )
+                        )
+                    );
+                    return;
+                case JPEG_SOS_MARKER & 0xFF:
+                case JPEG_EOI_MARKER & 0xFF:
+                    return;
+            }
+            if ( marker >= JPEG_SOF0_MARKER && marker <= JPEG_SOF15_MARKER &&
+                 marker != JPEG_DHT_MARKER && marker != JPEG_DAC_MARKER )
+                return;                 // lossless, hierarchical, etc.
+            pos += 2 + segmentLength;
+        }
+    }
+
+    private static int getInt( LCByteBuffer buf, int pos, boolean bigEndian )
+        throws IOException
+    {
+        if ( pos < 0 || pos + 4 > buf.capacity() )
+            return 0;
+        final int b0 = buf.get( pos     ) & 0xFF;
+        final int b1 = buf.get( pos + 1 ) & 0xFF;
+        final int b2 = buf.get( pos + 2 ) & 0xFF;
+        final int b3 = buf.get( pos + 3 ) & 0xFF;
+        return bigEndian ?
+            b0 << 24 | b1 << 16 | b2 << 8 | b3 :
+            b3 << 24 | b2 << 16 | b1 << 8 | b0;
+    }
+
+    private static int getShort( LCByteBuffer buf, int pos, boolean bigEndian )
+        throws IOException
+    {
+        if ( pos < 0 || pos + 2 > buf.capacity() )
+            return 0;
+        final int b0 = buf.get( pos     ) & 0xFF;
+        final int b1 = buf.get( pos + 1 ) & 0xFF;
+        return bigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+    }
+
+    private static final int JPEG_SOF0_MARKER  = 0xC0;
+    private static final int JPEG_SOF1_MARKER  = 0xC1;
+    private static final int JPEG_SOF2_MARKER  = 0xC2;
+    private static final int JPEG_DHT_MARKER   = 0xC4;
+    private static final int JPEG_DAC_MARKER   = 0xCC;
+    private static final int JPEG_SOF15_MARKER = 0xCF;
+
+    /**
+     * The maximum SubIFD nesting depth followed.
+     */
+    private static final int MAX_DEPTH = 2;
+
+    /**
+     * The maximum number of IFDs read, in case of loops in corrupt files.
+     */
+    private static final int MAX_IFDS = 32;
+
+    private static final String RAF_MAGIC = "FUJIFILMCCD-RAW";
+
+    /**
+     * The offset in an RAF header of the offset of the embedded JPEG,
+     * followed by its length.
+     */
+    private static final int RAF_JPEG_OFFSET = 84;
+}
+/* vim:set et sw=4 ts=4: */
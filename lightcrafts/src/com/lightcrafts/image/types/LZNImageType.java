@@ -72,6 +72,26 @@ public final class LZNImageType extends ImageType
      */
     public PlanarImage getImage( ImageInfo imageInfo, ProgressThread thread )
         throws BadImageFileException, IOException, UserCanceledException
+    {
+        return getImage( imageInfo, thread, 0, 0 );
+    }
+
+    /**
+     * Fetch the image from an LZN file, letting the JPEG decoder scale it
+     * down by a power of two so it's no smaller than necessary to fill the
+     * given size.
+     *
+     * @param imageInfo The {@link ImageInfo} to get the actual image from.
+     * @param thread The thread that will do the getting.
+     * @param maxWidth The maximum width of the image to get, rescaling if
+     * necessary.  A value of 0 means don't scale.
+     * @param maxHeight The maximum height of the image to get, rescaling if
+     * necessary.  A value of 0 means don't scale.
+     * @return Returns said image data.
+     */
+    public PlanarImage getImage( ImageInfo imageInfo, ProgressThread thread,
+                                 int maxWidth, int maxHeight )
+        throws BadImageFileException, IOException, UserCanceledException
     {
         final XmlDocument xml = getDocument( imageInfo );
         final XmlNode cache = getCacheNode( xml );
@@ -84,7 +104,8 @@ public final class LZNImageType extends ImageType
             final InputStream in = new ByteArrayInputStream( bytes );
             final LCImageDataProvider provider =
                 new InputStreamImageDataProvider( in );
-            final LCJPEGReader reader = new LCJPEGReader( provider );
+            final LCJPEGReader reader =
+                new LCJPEGReader( provider, maxWidth, maxHeight );
             return reader.getImage( thread, null );
         }
         catch ( LCImageLibException e ) {
@@ -59,7 +59,7 @@ public final class RAFImageType extends RawImageType {
         final int length = buf.getInt( 88 );
         buf.order( origOrder );
         return JPEGImageType.getImageFromBuffer(
-            buf, offset, length, null, 0, 0
+            buf, offset, length, null, maxWidth, maxHeight
         );
     }
 
@@ -42,6 +42,13 @@ public abstract class RawImageType extends ImageType {
 
     static final boolean USE_EMBEDDED_PREVIEW = false;
 
+    /**
+     * The minimum size of the longer side of an embedded JPEG for it to be
+     * used as a preview or thumbnail; smaller ones are left to dcraw.
+     */
+    private static final int MIN_EMBEDDED_PREVIEW_SIZE = 600;
+    private static final int MIN_EMBEDDED_THUMBNAIL_SIZE = 160;
+
     ////////// public /////////////////////////////////////////////////////////
 
     /**
@@ -430,6 +437,16 @@ public abstract class RawImageType extends ImageType {
                                           int maxHeight )
         throws BadImageFileException, IOException, UnknownImageTypeException
     {
+        //
+        // Try to find a large enough embedded JPEG ourselves first: that's
+        // what "dcraw -e" would get anyway, but without forking a process.
+        //
+        final RenderedImage image = EmbeddedPreviewExtractor.getPreviewImage(
+            imageInfo, maxWidth, maxHeight, MIN_EMBEDDED_PREVIEW_SIZE
+        );
+        if ( image != null )
+            return image;
+
         final RawImageInfo rawInfo = (RawImageInfo)imageInfo.getAuxiliaryInfo();
         final DCRaw dcRaw = rawInfo.getDCRaw();
 
@@ -442,6 +459,12 @@ public abstract class RawImageType extends ImageType {
     public RenderedImage getThumbnailImage( ImageInfo imageInfo )
         throws BadImageFileException, IOException, UnknownImageTypeException
     {
+        final RenderedImage image = EmbeddedPreviewExtractor.getPreviewImage(
+            imageInfo, 640, 480, MIN_EMBEDDED_THUMBNAIL_SIZE
+        );
+        if ( image != null )
+            return image;
+
         final RawImageInfo rawInfo = (RawImageInfo)imageInfo.getAuxiliaryInfo();
         final DCRaw dcRaw = rawInfo.getDCRaw();
         return dcRaw.runDCRaw(DCRaw.dcrawMode.thumb);
@@ -175,8 +175,8 @@ public class JAIContext {
 
         JAI jaiInstance = JAI.getDefaultInstance();
 
-        // Use our own Tile Scheduler -- TODO: Needs more testing
-        // jaiInstance.setTileScheduler(new LCTileScheduler());
+        // Use our own priority aware Tile Scheduler
+        jaiInstance.setTileScheduler(new LCTileScheduler());
 
         int processors = Runtime.getRuntime().availableProcessors();
 
@@ -226,6 +226,13 @@ public class JAIContext {
         RIFRegistry.register(or, desc.getName(), "com.lightcrafts", crif);
         CRIFRegistry.register(or, desc.getName(), crif);
 
+        // register LUTColorConvert
+        desc = new LUTColorConvertDescriptor();
+        or.registerDescriptor(desc);
+        crif = new LUTColorConvertCRIF();
+        RIFRegistry.register(or, desc.getName(), "com.lightcrafts", crif);
+        CRIFRegistry.register(or, desc.getName(), crif);
+
         // register BlendOp
         desc = new BlendDescriptor();
         or.registerDescriptor(desc);
@@ -0,0 +1,166 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.operator;
+
+import java.awt.RenderingHints;
+import java.awt.image.ColorModel;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import com.lightcrafts.mediax.jai.*;
+import com.lightcrafts.mediax.jai.registry.RenderableRegistryMode;
+import com.lightcrafts.mediax.jai.registry.RenderedRegistryMode;
+
+/**
+ * An <code>OperationDescriptor</code> describing the "LUTColorConvert"
+ * operation.
+ *
+ * <p> The "LUTColorConvert" operation performs the same RGB to RGB
+ * conversion as "LCMSColorConvert", but through a precomputed 3D lookup
+ * table interpolated in Java (see {@link com.lightcrafts.utils.ColorLUT3D}).
+ * When no accurate enough table exists for the pair of color spaces the
+ * conversion is done by LCMS.  Soft proofing is not supported.
+ *
+ * <p><table border=1>
+ * <caption>Resource List</caption>
+ * <tr><th>Name</th>        <th>Value</th></tr>
+ * <tr><td>GlobalName</td>  <td>LUTColorConvert</td></tr>
+ * <tr><td>LocalName</td>   <td>LUTColorConvert</td></tr>
+ * <tr><td>Vendor</td>      <td>com.lightcrafts</td></tr>
+ * <tr><td>Description</td> <td>Convert the color space of an image.<td></tr>
+ * <tr><td>DocURL</td>      <td>none</td></tr>
+ * <tr><td>Version</td>     <td>1.0</td></tr>
+ * <tr><td>arg0Desc</td>    <td>The destination <code>ColorModel</code>.</td></tr>
+ * </table></p>
+ *
+ * <p><table border=1>
+ * <caption>Parameter List</caption>
+ * <tr><th>Name</th>      <th>Class Type</th>
+ *                        <th>Default Value</th></tr>
+ * <tr><td>colorModel</td> <td>java.awt.image.ColorModel</td>
+ *                        <td>NO_PARAMETER_DEFAULT</td>
+ * </table></p>
+ *
+ * @see com.lightcrafts.mediax.jai.OperationDescriptor
+ * @see java.awt.color.ColorSpace
+ * @see java.awt.color.ICC_ColorSpace
+ * @see java.awt.image.ColorModel
+ * @see LCMSColorConvertDescriptor
+ */
+public class LUTColorConvertDescriptor extends OperationDescriptorImpl {
+
+    /**
+     * The resource strings that provide the general documentation
+     * and specify the parameter list for this operation.
+     */
+    private static final String[][] resources = {
+        {"GlobalName",  "LUTColorConvert"},
+        {"LocalName",   "LUTColorConvert"},
+        {"Vendor",      "com.lightcrafts"},
+        {"Description", LCJaiI18N.getString("LCColorConvertDescriptor0")},
+        {"DocURL",      "none"},
+        {"Version",     LCJaiI18N.getString("DescriptorVersion2")},
+        {"arg0Desc",    LCJaiI18N.getString("LCColorConvertDescriptor1")}
+    };
+
+    /**
+     * The parameter class list for this operation.
+     */
+    private static final Class[] paramClasses = {
+        java.awt.image.ColorModel.class,
+        LCMSColorConvertDescriptor.RenderingIntent.class
+    };
+
+    /** The parameter name list for this operation. */
+    private static final String[] paramNames = {
+        "colorModel",
+        "renderingIntent"
+    };
+
+    /** The parameter default value list for this operation. */
+    private static final Object[] paramDefaults = {
+        NO_PARAMETER_DEFAULT,
+        LCMSColorConvertDescriptor.PERCEPTUAL
+    };
+
+    /** Constructor. */
+    public LUTColorConvertDescriptor() {
+        super(resources, 1, paramClasses, paramNames, paramDefaults);
+    }
+
+    /** Returns <code>true</code> since renderable operation is supported. */
+    public boolean isRenderableSupported() {
+        return true;
+    }
+
+    /**
+     * Convert the color space of an image.
+     *
+     * <p>Creates a <code>ParameterBlockJAI</code> from all
+     * supplied arguments except <code>hints</code> and invokes
+     * {@link com.lightcrafts.mediax.jai.JAI#create(String,java.awt.image.renderable.ParameterBlock,java.awt.RenderingHints)}.
+     *
+     * @see com.lightcrafts.mediax.jai.JAI
+     * @see com.lightcrafts.mediax.jai.ParameterBlockJAI
+     * @see com.lightcrafts.mediax.jai.RenderedOp
+     *
+     * @param source0 <code>RenderedImage</code> source 0.
+     * @param colorModel The destination color space.
+     * @param renderingIntent The rendering intent.
+     * @param hints The <code>RenderingHints</code> to use.
+     * May be <code>null</code>.
+     * @return The <code>RenderedOp</code> destination.
+     * @throws IllegalArgumentException if <code>source0</code> is <code>null</code>.
+     * @throws IllegalArgumentException if <code>colorModel</code> is <code>null</code>.
+     */
+    public static RenderedOp create(RenderedImage source0,
+                                    ColorModel colorModel,
+                                    LCMSColorConvertDescriptor.RenderingIntent renderingIntent,
+                                    RenderingHints hints)  {
+        ParameterBlockJAI pb =
+            new ParameterBlockJAI("LUTColorConvert",
+                                  RenderedRegistryMode.MODE_NAME);
+
+        pb.setSource("source0", source0);
+
+        pb.setParameter("colorModel", colorModel);
+        pb.setParameter("renderingIntent", renderingIntent);
+
+        return JAI.create("LUTColorConvert", pb, hints);
+    }
+
+    /**
+     * Convert the color space of an image.
+     *
+     * <p>Creates a <code>ParameterBlockJAI</code> from all
+     * supplied arguments except <code>hints</code> and invokes
+     * {@link JAI#createRenderable(String,java.awt.image.renderable.ParameterBlock,RenderingHints)}.
+     *
+     * @see JAI
+     * @see ParameterBlockJAI
+     * @see com.lightcrafts.mediax.jai.RenderableOp
+     *
+     * @param source0 <code>RenderableImage</code> source 0.
+     * @param colorModel The destination color space.
+     * @param renderingIntent The rendering intent.
+     * @param hints The <code>RenderingHints</code> to use.
+     * May be <code>null</code>.
+     * @return The <code>RenderableOp</code> destination.
+     * @throws IllegalArgumentException if <code>source0</code> is <code>null</code>.
+     * @throws IllegalArgumentException if <code>colorModel</code> is <code>null</code>.
+     */
+    public static RenderableOp createRenderable(RenderableImage source0,
+                                                ColorModel colorModel,
+                                                LCMSColorConvertDescriptor.RenderingIntent renderingIntent,
+                                                RenderingHints hints)  {
+        ParameterBlockJAI pb =
+            new ParameterBlockJAI("LUTColorConvert",
+                                  RenderableRegistryMode.MODE_NAME);
+
+        pb.setSource("source0", source0);
+
+        pb.setParameter("colorModel", colorModel);
+        pb.setParameter("renderingIntent", renderingIntent);
+
+        return JAI.createRenderable("LUTColorConvert", pb, hints);
+    }
+}
@@ -0,0 +1,209 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import java.awt.*;
+import java.awt.image.*;
+
+import com.lightcrafts.mediax.jai.PointOpImage;
+import com.lightcrafts.mediax.jai.RasterAccessor;
+import com.lightcrafts.mediax.jai.RasterFormatTag;
+
+import java.util.Map;
+
+/**
+ * Interpolates a FastBilateralFilterOpImage mask computed at a low
+ * resolution up to the resolution of its source, by joint bilateral
+ * upsampling (Kopf et al. 2007): each pixel blends the four nearest low
+ * resolution mask samples, weighted by distance and by how close the low
+ * resolution source is to the pixel's own intensity, so that the edges of
+ * the mask stay on the edges of the image.
+ */
+public final class BilateralUpsampleOpImage extends PointOpImage {
+
+    /**
+     * A low resolution source and its mask, computed the first time a tile
+     * needs them rather than when the upsampling is set up, so that building
+     * the pipeline doesn't render the whole image.  A Grid may be shared by
+     * upsamplings of the same source, and is computed once for all of them.
+     */
+    public static final class Grid {
+        private RenderedImage lowSourceImage, lowMaskImage;
+
+        private int lowWidth, lowHeight;
+        private float lowProfile[];
+        private short lowMask[][];
+
+        /**
+         * @param lowSource the source downsampled by averaging blocks of pixels.
+         * @param lowMask a FastBilateralFilterOpImage mask of lowSource.
+         */
+        public Grid(RenderedImage lowSource, RenderedImage lowMask) {
+            lowSourceImage = lowSource;
+            lowMaskImage = lowMask;
+        }
+
+        private synchronized void compute() {
+            if (lowSourceImage == null)
+                return;
+
+            Raster lowSource = lowSourceImage.getData();
+            Raster lowMask = lowMaskImage.getData();
+
+            lowWidth = lowSource.getWidth();
+            lowHeight = lowSource.getHeight();
+
+            int samples[] = lowSource.getSamples(lowSource.getMinX(), lowSource.getMinY(),
+                                                 lowWidth, lowHeight, 0, (int[]) null);
+            lowProfile = new float[samples.length];
+            for (int i = 0; i < samples.length; i++)
+                lowProfile[i] = FastBilateralFilterOpImage.transform[samples[i]];
+
+            this.lowMask = new short[lowMask.getNumBands()][];
+            for (int b = 0; b < this.lowMask.length; b++) {
+                samples = lowMask.getSamples(lowMask.getMinX(), lowMask.getMinY(),
+                                             lowWidth, lowHeight, b, samples);
+                this.lowMask[b] = new short[samples.length];
+                for (int i = 0; i < samples.length; i++)
+                    this.lowMask[b][i] = (short) samples[i];
+            }
+
+            // Done, let go of the images
+            lowSourceImage = lowMaskImage = null;
+        }
+    }
+
+    private final Grid grid;
+    private final double scale;
+
+    // Range weights by difference of profile, quantized by RangeSteps
+    private final float rangeWeights[];
+    private static final int RangeSteps = 1024;
+
+    /**
+     * @param source the single banded, full resolution source.
+     * @param grid the low resolution source and mask.
+     * @param ratio the width and height of the blocks averaged into the grid.
+     * @param sigma_r the range sigma the mask was computed with.
+     */
+    public BilateralUpsampleOpImage(RenderedImage source, Grid grid,
+                                    int ratio, float sigma_r, Map config) {
+        super(source, FastBilateralFilterOpImage.fblLayout(source), config, true);
+
+        this.grid = grid;
+        scale = 1 / (double) ratio;
+
+        rangeWeights = new float[2 * RangeSteps + 1];
+        for (int i = 0; i < rangeWeights.length; i++) {
+            float d = i / (float) RangeSteps;
+            rangeWeights[i] = (float) Math.exp(-d * d / (2 * sigma_r * sigma_r));
+        }
+    }
+
+    protected void computeRect(Raster[] sources,
+                               WritableRaster dest,
+                               Rectangle destRect) {
+        // Retrieve format tags.
+        RasterFormatTag[] formatTags = getFormatTags();
+
+        Raster source = sources[0];
+
+        grid.compute();
+
+        RasterAccessor srcAccessor =
+                new RasterAccessor(source, destRect, formatTags[0],
+                                   getSource(0).getColorModel());
+        RasterAccessor dstAccessor =
+                new RasterAccessor(dest, destRect, formatTags[1],
+                                   this.getColorModel());
+
+        switch (dstAccessor.getDataType()) {
+        case DataBuffer.TYPE_USHORT:
+            ushortLoop(srcAccessor, dstAccessor, destRect);
+            break;
+        default:
+        }
+
+        // If the RasterAccessor object set up a temporary buffer for the
+        // op to write to, tell the RasterAccessor to write that data
+        // to the raster no that we're done with it.
+        if (dstAccessor.isDataCopy()) {
+            dstAccessor.clampDataArrays();
+            dstAccessor.copyDataToRaster();
+        }
+    }
+
+    protected void ushortLoop(RasterAccessor src, RasterAccessor dst, Rectangle destRect) {
+        int width = dst.getWidth();
+        int height = dst.getHeight();
+        int lowWidth = grid.lowWidth;
+        int lowHeight = grid.lowHeight;
+        float lowProfile[] = grid.lowProfile;
+        short lowMask[][] = grid.lowMask;
+        int bands = Math.min(dst.getNumBands(), lowMask.length);
+
+        short dstDataArrays[][] = dst.getShortDataArrays();
+        int dstBandOffsets[] = dst.getBandOffsets();
+        int dstPixelStride = dst.getPixelStride();
+        int dstScanlineStride = dst.getScanlineStride();
+
+        short srcData[] = src.getShortDataArrays()[0];
+        int srcOffset = src.getBandOffset(0);
+        int srcPixelStride = src.getPixelStride();
+        int srcScanlineStride = src.getScanlineStride();
+
+        float transform[] = FastBilateralFilterOpImage.transform;
+        int index[] = new int[4];
+        float weight[] = new float[4];
+
+        for (int y = 0; y < height; y++) {
+            // Position of the pixel's center on the low resolution grid
+            double ly = (destRect.y - getMinY() + y + 0.5) * scale - 0.5;
+            int y0 = (int) Math.floor(ly);
+            float fy = (float) (ly - y0);
+            int row0 = Math.min(Math.max(y0, 0), lowHeight - 1) * lowWidth;
+            int row1 = Math.min(Math.max(y0 + 1, 0), lowHeight - 1) * lowWidth;
+
+            for (int x = 0; x < width; x++) {
+                double lx = (destRect.x - getMinX() + x + 0.5) * scale - 0.5;
+                int x0 = (int) Math.floor(lx);
+                float fx = (float) (lx - x0);
+                int col0 = Math.min(Math.max(x0, 0), lowWidth - 1);
+                int col1 = Math.min(Math.max(x0 + 1, 0), lowWidth - 1);
+
+                index[0] = row0 + col0;
+                index[1] = row0 + col1;
+                index[2] = row1 + col0;
+                index[3] = row1 + col1;
+                weight[0] = (1 - fx) * (1 - fy);
+                weight[1] = fx * (1 - fy);
+                weight[2] = (1 - fx) * fy;
+                weight[3] = fx * fy;
+
+                float profile = transform[srcData[srcOffset + y * srcScanlineStride + x * srcPixelStride] & 0xffff];
+
+                float total = 0;
+                for (int i = 0; i < 4; i++) {
+                    int d = (int) (Math.abs(profile - lowProfile[index[i]]) * RangeSteps);
+                    total += weight[i] *= rangeWeights[Math.min(d, rangeWeights.length - 1)];
+                }
+                if (total < 1e-6f) {
+                    // Nothing nearby is alike, fall back to bilinear
+                    weight[0] = (1 - fx) * (1 - fy);
+                    weight[1] = fx * (1 - fy);
+                    weight[2] = (1 - fx) * fy;
+                    weight[3] = fx * fy;
+                    total = 1;
+                }
+
+                for (int b = 0; b < bands; b++) {
+                    float value = 0;
+                    for (int i = 0; i < 4; i++)
+                        value += weight[i] * (lowMask[b][index[i]] & 0xffff);
+                    dstDataArrays[b][dstBandOffsets[b] + y * dstScanlineStride + x * dstPixelStride] =
+                            (short) Math.min((int) (value / total + 0.5f), 0xffff);
+                }
+            }
+        }
+    }
+}
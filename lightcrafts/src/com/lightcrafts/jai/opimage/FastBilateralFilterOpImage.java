@@ -30,7 +30,7 @@ public final class FastBilateralFilterOpImage extends AreaOpImage {
         }        
     }
 
-    private static ImageLayout fblLayout(RenderedImage source) {
+    static ImageLayout fblLayout(RenderedImage source) {
         // SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_USHORT, source.getWidth(), source.getHeight(), 2, 2*source.getWidth(), new int[]{0, 2});
 
         ColorModel cm = new ComponentColorModel(new BogusColorSpace(2),
@@ -0,0 +1,200 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import com.lightcrafts.mediax.jai.ImageLayout;
+import com.lightcrafts.mediax.jai.PointOpImage;
+import com.lightcrafts.mediax.jai.RasterAccessor;
+import com.lightcrafts.mediax.jai.RasterFormatTag;
+import com.lightcrafts.utils.ColorScience;
+
+import java.awt.*;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a sequence of per pixel operations to a three banded 16 bit image
+ * in a single pass, each blended with its input at its own opacity like a
+ * BlendOpImage in Normal mode.  A chain of BandCombine, lookup and Blend
+ * operations allocates a tile for each step and walks it again; here every
+ * row of a tile is read once, transformed by all the stages while it is in
+ * the cache, and written once.
+ */
+public final class FusedPointOpImage extends PointOpImage {
+
+    /**
+     * A per pixel operation.  Samples are floats on the 16 bit scale, kept
+     * within [0, 0xffff] by each stage as the operation it stands for would.
+     */
+    public static abstract class Stage {
+        final float opacity;
+
+        Stage(float opacity) {
+            this.opacity = opacity;
+        }
+
+        /**
+         * Transform a row of interleaved RGB pixels in place.
+         */
+        abstract void apply(float row[], int width);
+    }
+
+    /**
+     * The equivalent of BandCombine with a 3x4 matrix.
+     */
+    public static final class Matrix extends Stage {
+        private final float m[] = new float[12];
+
+        public Matrix(double matrix[][], float opacity) {
+            super(opacity);
+            for (int i = 0; i < 3; i++)
+                for (int j = 0; j < 4; j++)
+                    m[4 * i + j] = (float) matrix[i][j];
+        }
+
+        void apply(float row[], int width) {
+            for (int i = 0; i < 3 * width; i += 3) {
+                float r = row[i], g = row[i + 1], b = row[i + 2];
+                row[i]     = clamp(m[0] * r + m[1] * g + m[2]  * b + m[3]);
+                row[i + 1] = clamp(m[4] * r + m[5] * g + m[6]  * b + m[7]);
+                row[i + 2] = clamp(m[8] * r + m[9] * g + m[10] * b + m[11]);
+            }
+        }
+    }
+
+    /**
+     * The equivalent of a lookup with the same unsigned 16 bit table on
+     * every band.
+     */
+    public static final class Lookup extends Stage {
+        private final short table[];
+
+        public Lookup(short table[], float opacity) {
+            super(opacity);
+            this.table = table.clone();
+        }
+
+        void apply(float row[], int width) {
+            for (int i = 0; i < 3 * width; i++)
+                row[i] = table[(int) (row[i] + 0.5f)] & 0xffff;
+        }
+    }
+
+    /**
+     * The equivalent of a lookup with a LightnessLookupTable: the table maps
+     * the luminance of each pixel and its color is scaled to match.
+     */
+    public static final class LightnessLookup extends Stage {
+        private final short table[];
+
+        public LightnessLookup(short table[], float opacity) {
+            super(opacity);
+            this.table = table.clone();
+        }
+
+        void apply(float row[], int width) {
+            for (int i = 0; i < 3 * width; i += 3) {
+                float lum = ColorScience.Wr * row[i] + ColorScience.Wg * row[i + 1] + ColorScience.Wb * row[i + 2];
+                if (lum > 0) {
+                    float mul = (table[Math.min((int) lum, 0xffff)] & 0xffff) / lum;
+                    row[i]     = Math.min(mul * row[i], 0xffff);
+                    row[i + 1] = Math.min(mul * row[i + 1], 0xffff);
+                    row[i + 2] = Math.min(mul * row[i + 2], 0xffff);
+                }
+            }
+        }
+    }
+
+    private static float clamp(float value) {
+        return value < 0 ? 0 : value > 0xffff ? 0xffff : value;
+    }
+
+    private final Stage stages[];
+
+    public FusedPointOpImage(RenderedImage source, List<Stage> stages, Map config) {
+        super(source, new ImageLayout(source), config, true);
+        permitInPlaceOperation();
+
+        if (source.getSampleModel().getDataType() != DataBuffer.TYPE_USHORT
+            || source.getSampleModel().getNumBands() != 3)
+            throw new IllegalArgumentException("Only three banded USHORT images are supported.");
+
+        this.stages = stages.toArray(new Stage[stages.size()]);
+    }
+
+    protected void computeRect(Raster[] sources,
+                               WritableRaster dest,
+                               Rectangle destRect) {
+        // Retrieve format tags.
+        RasterFormatTag[] formatTags = getFormatTags();
+
+        Raster source = sources[0];
+
+        RasterAccessor srcAccessor =
+                new RasterAccessor(source, destRect, formatTags[0],
+                                   getSource(0).getColorModel());
+        RasterAccessor dstAccessor =
+                new RasterAccessor(dest, destRect, formatTags[1],
+                                   this.getColorModel());
+
+        ushortLoop(srcAccessor, dstAccessor);
+
+        // If the RasterAccessor object set up a temporary buffer for the
+        // op to write to, tell the RasterAccessor to write that data
+        // to the raster no that we're done with it.
+        if (dstAccessor.isDataCopy()) {
+            dstAccessor.clampDataArrays();
+            dstAccessor.copyDataToRaster();
+        }
+    }
+
+    private void ushortLoop(RasterAccessor src, RasterAccessor dst) {
+        int width = dst.getWidth();
+        int height = dst.getHeight();
+
+        short srcData[][] = src.getShortDataArrays();
+        int srcBandOffsets[] = src.getBandOffsets();
+        int srcPixelStride = src.getPixelStride();
+        int srcScanlineStride = src.getScanlineStride();
+
+        short dstData[][] = dst.getShortDataArrays();
+        int dstBandOffsets[] = dst.getBandOffsets();
+        int dstPixelStride = dst.getPixelStride();
+        int dstScanlineStride = dst.getScanlineStride();
+
+        float row[] = new float[3 * width];
+        float input[] = new float[3 * width];
+
+        for (int y = 0; y < height; y++) {
+            for (int b = 0; b < 3; b++) {
+                short data[] = srcData[b];
+                int offset = srcBandOffsets[b] + y * srcScanlineStride;
+                for (int x = 0; x < width; x++)
+                    row[3 * x + b] = data[offset + x * srcPixelStride] & 0xffff;
+            }
+
+            for (Stage stage : stages) {
+                if (stage.opacity == 1) {
+                    stage.apply(row, width);
+                } else {
+                    System.arraycopy(row, 0, input, 0, row.length);
+                    stage.apply(row, width);
+                    float opacity = stage.opacity;
+                    for (int i = 0; i < row.length; i++)
+                        row[i] = input[i] + opacity * (row[i] - input[i]);
+                }
+            }
+
+            for (int b = 0; b < 3; b++) {
+                short data[] = dstData[b];
+                int offset = dstBandOffsets[b] + y * dstScanlineStride;
+                for (int x = 0; x < width; x++)
+                    data[offset + x * dstPixelStride] = (short) (int) (row[3 * x + b] + 0.5f);
+            }
+        }
+    }
+}
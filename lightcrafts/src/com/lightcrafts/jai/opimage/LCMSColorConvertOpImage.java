@@ -24,9 +24,18 @@ public class LCMSColorConvertOpImage extends PointOpImage {
     final LCMSColorConvertDescriptor.RenderingIntent proofIntent;
     final ColorModel targetColorModel;
     final ICC_Profile proof;
-    LCMS.Transform transform = null;
     final RenderedImage source;
 
+    // Transform parameters, lazily computed by initTransformParameters()
+    private volatile LCMS.Profile sourceProfile = null;
+    private LCMS.Profile targetProfile;
+    private LCMS.Profile proofProfile;
+    private int inType;
+    private int outType;
+    private int lcms_intent;
+    private int lcms_proofIntent;
+    private int lcms_flags;
+
     LCMSColorConvertOpImage(RenderedImage source,
                             Map config,
                             ImageLayout layout,
@@ -44,7 +53,7 @@ public class LCMSColorConvertOpImage extends PointOpImage {
         permitInPlaceOperation();
     }
 
-    static private int mapLCMSType(int csType, int transferType) {
+    static int mapLCMSType(int csType, int transferType) {
         if (transferType != DataBuffer.TYPE_BYTE && transferType != DataBuffer.TYPE_USHORT)
             throw new IllegalArgumentException( "Unsupported Data Type: " + transferType );
 
@@ -62,36 +71,53 @@ public class LCMSColorConvertOpImage extends PointOpImage {
         }
     }
 
+    static int mapLCMSIntent(LCMSColorConvertDescriptor.RenderingIntent intent) {
+        return intent.getValue() < 4 ? intent.getValue() : LCMS.INTENT_RELATIVE_COLORIMETRIC;
+    }
+
+    // RELATIVE_COLORIMETRIC_BP is relative colorimetric with black point compensation
+    static int mapLCMSFlags(LCMSColorConvertDescriptor.RenderingIntent intent) {
+        return intent.getValue() == 4 ? LCMS.cmsFLAGS_BLACKPOINTCOMPENSATION : 0;
+    }
+
+    private synchronized void initTransformParameters() {
+        if (sourceProfile != null)
+            return;
+
+        lcms_intent = mapLCMSIntent(intent);
+        lcms_proofIntent = mapLCMSIntent(proofIntent);
+        lcms_flags = mapLCMSFlags(intent) | mapLCMSFlags(proofIntent);
+
+        ColorSpace sourceCS = source.getColorModel().getColorSpace();
+        ColorSpace targetCS = targetColorModel.getColorSpace();
+
+        inType = mapLCMSType(sourceCS.getType(), source.getColorModel().getTransferType());
+        outType = mapLCMSType(targetCS.getType(), colorModel.getTransferType());
+
+        targetProfile = targetCS instanceof LCMS_ColorSpace
+                        ? ((LCMS_ColorSpace) targetCS).getProfile()
+                        : new LCMS.Profile(((ICC_ColorSpace)targetCS).getProfile());
+
+        proofProfile = proof != null ? new LCMS.Profile(proof) : null;
+
+        // sourceProfile is set last, it flags the parameters as initialized
+        sourceProfile = sourceCS instanceof LCMS_ColorSpace
+                        ? ((LCMS_ColorSpace) sourceCS).getProfile()
+                        : new LCMS.Profile(((ICC_ColorSpace)sourceCS).getProfile());
+    }
+
     protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
-        synchronized (this) {
-            if (transform == null) {
-                int lcms_intent = intent.getValue() < 4 ? intent.getValue() : LCMS.INTENT_RELATIVE_COLORIMETRIC;
-                int lcms_proofIntent = proofIntent.getValue() < 4 ? proofIntent.getValue() : LCMS.INTENT_RELATIVE_COLORIMETRIC;
-                int lcms_flags = intent.getValue() == 4 || proofIntent.getValue() == 4
-                                 ? LCMS.cmsFLAGS_BLACKPOINTCOMPENSATION
-                                 : 0;
-
-                ColorSpace sourceCS = source.getColorModel().getColorSpace();
-                LCMS.Profile sourceProfile = sourceCS instanceof LCMS_ColorSpace
-                                             ? ((LCMS_ColorSpace) sourceCS).getProfile()
-                                             : new LCMS.Profile(((ICC_ColorSpace)sourceCS).getProfile());
-
-                ColorSpace targetCS = targetColorModel.getColorSpace();
-                LCMS.Profile targetProfile = targetCS instanceof LCMS_ColorSpace
-                                             ? ((LCMS_ColorSpace) targetCS).getProfile()
-                                             : new LCMS.Profile(((ICC_ColorSpace)targetCS).getProfile());
-
-                LCMS.Profile proofProfile = proof != null ? new LCMS.Profile(proof) : null;
-
-                int inType = mapLCMSType(sourceCS.getType(), source.getColorModel().getTransferType());
-                int outType = mapLCMSType(targetCS.getType(), colorModel.getTransferType());
-
-                transform = proofProfile != null
-                            ? new LCMS.Transform(sourceProfile, inType, targetProfile, outType, proofProfile,
-                                                 lcms_proofIntent, lcms_intent, lcms_flags)
-                            : new LCMS.Transform(sourceProfile, inType, targetProfile, outType, lcms_intent, lcms_flags);
-            }
-        }
+        if (sourceProfile == null)
+            initTransformParameters();
+
+        // Each tile thread gets its own native transform, no need to lock
+        LCMS.Transform transform = proofProfile != null
+                                   ? LCMS.TransformPool.getTransform(sourceProfile, inType, targetProfile, outType,
+                                                                     proofProfile, lcms_proofIntent, lcms_intent,
+                                                                     lcms_flags)
+                                   : LCMS.TransformPool.getTransform(sourceProfile, inType, targetProfile, outType,
+                                                                     lcms_intent, lcms_flags);
+
         if (sources[0] instanceof ByteInterleavedRaster && dest instanceof ByteInterleavedRaster) {
             ByteInterleavedRaster source = (ByteInterleavedRaster) sources[0];
             ByteInterleavedRaster destination = (ByteInterleavedRaster) dest;
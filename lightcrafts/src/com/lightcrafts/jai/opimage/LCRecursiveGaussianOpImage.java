@@ -0,0 +1,218 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import com.lightcrafts.mediax.jai.AreaOpImage;
+import com.lightcrafts.mediax.jai.BorderExtender;
+import com.lightcrafts.mediax.jai.ImageLayout;
+import com.lightcrafts.mediax.jai.RasterAccessor;
+import com.lightcrafts.mediax.jai.RasterFormatTag;
+import java.util.Map;
+
+/**
+ * An OpImage class to blur a source image with a recursive Gaussian filter,
+ * used by LCSeparableConvolveRIF in place of LCSeparableConvolveOpImage for
+ * Gaussian kernels so large that convolving with them gets slow.  It runs in
+ * constant time per pixel whatever the size of the blur.
+ *
+ * @see RecursiveGaussian
+ */
+final class LCRecursiveGaussianOpImage extends AreaOpImage {
+
+    private final RecursiveGaussian filter;
+
+    /**
+     * Creates an LCRecursiveGaussianOpImage on the source.
+     *
+     * @param source a RenderedImage.
+     * @param extender a BorderExtender, or null.
+     * @param layout an ImageLayout optionally containing the tile grid layout,
+     *        SampleModel, and ColorModel, or null.
+     * @param sigma the standard deviation of the Gaussian.
+     */
+    LCRecursiveGaussianOpImage(RenderedImage source,
+                               BorderExtender extender,
+                               Map config,
+                               ImageLayout layout,
+                               double sigma) {
+        super(source,
+              layout,
+              config,
+              true,
+              extender,
+              getPadding(sigma),
+              getPadding(sigma),
+              getPadding(sigma),
+              getPadding(sigma));
+
+        filter = new RecursiveGaussian(sigma);
+    }
+
+    // The filter's response is infinite, so tiles need enough of their
+    // surroundings that what's cut off is too small to show as seams.
+    private static int getPadding(double sigma) {
+        return (int) Math.ceil(5 * sigma);
+    }
+
+    /**
+     * Performs the blur on a specified rectangle. The sources are cobbled.
+     *
+     * @param sources an array of source Rasters, guaranteed to provide all
+     *                necessary source data for computing the output.
+     * @param dest a WritableRaster tile containing the area to be computed.
+     * @param destRect the rectangle within dest to be processed.
+     */
+    protected void computeRect(Raster[] sources,
+                               WritableRaster dest,
+                               Rectangle destRect) {
+        // Retrieve format tags.
+        RasterFormatTag[] formatTags = getFormatTags();
+
+        Raster source = sources[0];
+        Rectangle srcRect = mapDestRect(destRect, 0);
+
+        RasterAccessor srcAccessor =
+            new RasterAccessor(source, srcRect, formatTags[0],
+                               getSource(0).getColorModel());
+        RasterAccessor dstAccessor =
+            new RasterAccessor(dest, destRect, formatTags[1],
+                               this.getColorModel());
+
+        int swidth = srcAccessor.getWidth();
+        int sheight = srcAccessor.getHeight();
+        double buffer[] = RecursiveGaussian.createBuffer(swidth, sheight);
+
+        for (int k = 0; k < dstAccessor.getNumBands(); k++) {
+            load(srcAccessor, k, buffer);
+            filter.blur(buffer, swidth, sheight);
+            store(buffer, swidth, dstAccessor, k);
+        }
+
+        // If the RasterAccessor object set up a temporary buffer for the
+        // op to write to, tell the RasterAccessor to write that data
+        // to the raster no that we're done with it.
+        if (dstAccessor.isDataCopy()) {
+            dstAccessor.clampDataArrays();
+            dstAccessor.copyDataToRaster();
+        }
+    }
+
+    // Copy a band of the source into the buffer.
+    private static void load(RasterAccessor src, int band, double buffer[]) {
+        int swidth = src.getWidth();
+        int sheight = src.getHeight();
+        int pixelStride = src.getPixelStride();
+        int scanlineStride = src.getScanlineStride();
+        int offset = src.getBandOffset(band);
+
+        for (int y = 0; y < sheight; y++) {
+            int i = offset + y * scanlineStride;
+            int j = RecursiveGaussian.index(0, y, swidth);
+
+            switch (src.getDataType()) {
+            case DataBuffer.TYPE_BYTE: {
+                byte data[] = src.getByteDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i] & 0xff;
+                break;
+            }
+            case DataBuffer.TYPE_USHORT: {
+                short data[] = src.getShortDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i] & 0xffff;
+                break;
+            }
+            case DataBuffer.TYPE_SHORT: {
+                short data[] = src.getShortDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i];
+                break;
+            }
+            case DataBuffer.TYPE_INT: {
+                int data[] = src.getIntDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i];
+                break;
+            }
+            case DataBuffer.TYPE_FLOAT: {
+                float data[] = src.getFloatDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i];
+                break;
+            }
+            case DataBuffer.TYPE_DOUBLE: {
+                double data[] = src.getDoubleDataArray(band);
+                for (int x = 0; x < swidth; x++, i += pixelStride)
+                    buffer[j++] = data[i];
+                break;
+            }
+            default:
+            }
+        }
+    }
+
+    // Copy the part of the buffer inside the padding into a band of the
+    // destination, rounding and clamping for integral types.
+    private void store(double buffer[], int swidth, RasterAccessor dst, int band) {
+        int dwidth = dst.getWidth();
+        int dheight = dst.getHeight();
+        int pixelStride = dst.getPixelStride();
+        int scanlineStride = dst.getScanlineStride();
+        int offset = dst.getBandOffset(band);
+
+        for (int y = 0; y < dheight; y++) {
+            int i = offset + y * scanlineStride;
+            int j = RecursiveGaussian.index(leftPadding, y + topPadding, swidth);
+
+            switch (dst.getDataType()) {
+            case DataBuffer.TYPE_BYTE: {
+                byte data[] = dst.getByteDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = (byte) clamp(buffer[j++], 0, 0xff);
+                break;
+            }
+            case DataBuffer.TYPE_USHORT: {
+                short data[] = dst.getShortDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = (short) clamp(buffer[j++], 0, 0xffff);
+                break;
+            }
+            case DataBuffer.TYPE_SHORT: {
+                short data[] = dst.getShortDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = (short) clamp(buffer[j++], Short.MIN_VALUE, Short.MAX_VALUE);
+                break;
+            }
+            case DataBuffer.TYPE_INT: {
+                int data[] = dst.getIntDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = (int) Math.round(buffer[j++]);
+                break;
+            }
+            case DataBuffer.TYPE_FLOAT: {
+                float data[] = dst.getFloatDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = (float) buffer[j++];
+                break;
+            }
+            case DataBuffer.TYPE_DOUBLE: {
+                double data[] = dst.getDoubleDataArray(band);
+                for (int x = 0; x < dwidth; x++, i += pixelStride)
+                    data[i] = buffer[j++];
+                break;
+            }
+            default:
+            }
+        }
+    }
+
+    private static int clamp(double value, int min, int max) {
+        int v = (int) Math.floor(value + 0.5);
+        return v < min ? min : v > max ? max : v;
+    }
+}
@@ -14,6 +14,7 @@
 package com.lightcrafts.jai.opimage;
 
 import com.lightcrafts.media.jai.opimage.RIFUtil;
+import com.lightcrafts.jai.utils.GaussianKernelJAI;
 
 import java.awt.RenderingHints;
 import java.awt.image.DataBuffer;
@@ -29,6 +30,11 @@ import com.lightcrafts.mediax.jai.KernelJAI;
  */
 public class LCSeparableConvolveRIF implements RenderedImageFactory {
 
+    // Gaussian kernels with a sigma at least this large are applied by a
+    // recursive filter, whose cost doesn't grow with the kernel.
+    private static final int RecursiveSigma =
+        Integer.getInteger("lightcrafts.blur.recursiveSigma", 8);
+
     /** Constructor. */
     public LCSeparableConvolveRIF() {}
 
@@ -49,6 +55,20 @@ public class LCSeparableConvolveRIF implements RenderedImageFactory {
 
         KernelJAI unRotatedKernel =
             (KernelJAI)paramBlock.getObjectParameter(0);
+
+        if (unRotatedKernel instanceof GaussianKernelJAI &&
+            ((GaussianKernelJAI) unRotatedKernel).getSigma() >= RecursiveSigma) {
+            // The recursive filter blurs as much as the kernel does, which
+            // is less than its sigma since the kernel is truncated.
+            double sigma = RecursiveGaussian.getSigma(
+                unRotatedKernel.getHorizontalKernelData()
+            );
+            return new LCRecursiveGaussianOpImage(paramBlock.getRenderedSource(0),
+                                                  extender,
+                                                  renderHints,
+                                                  layout,
+                                                  sigma);
+        }
         KernelJAI kJAI = unRotatedKernel.getRotatedKernel();
 
         int dataType =
@@ -0,0 +1,89 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import com.lightcrafts.mediax.jai.CRIFImpl;
+import com.lightcrafts.mediax.jai.ImageLayout;
+import com.lightcrafts.media.jai.opimage.RIFUtil;
+import com.lightcrafts.jai.operator.LCMSColorConvertDescriptor;
+import com.lightcrafts.utils.ColorLUT3D;
+
+/**
+ * A <code>CRIF</code> supporting the "LUTColorConvert" operation in the
+ * rendered and renderable image layers.
+ *
+ * @see com.lightcrafts.jai.operator.LUTColorConvertDescriptor
+ * @see LUTColorConvertOpImage
+ */
+public class LUTColorConvertCRIF extends CRIFImpl {
+
+    /** Constructor. */
+    public LUTColorConvertCRIF() {
+        super("LUTColorConvert");
+    }
+
+    /**
+     * Gets the lookup table converting between two color models.
+     *
+     * @return Returns said table or <code>null</code> if the conversion
+     * can't be done with a table, or if the table is still being built in the
+     * background, and should go through LCMS instead.
+     */
+    public static ColorLUT3D getLUT(ColorModel sourceCM, ColorModel targetCM,
+                                    LCMSColorConvertDescriptor.RenderingIntent intent) {
+        ColorSpace sourceCS = sourceCM.getColorSpace();
+        ColorSpace targetCS = targetCM.getColorSpace();
+        if (!(sourceCS instanceof ICC_ColorSpace) || !(targetCS instanceof ICC_ColorSpace)
+            || sourceCS.getType() != ColorSpace.TYPE_RGB || targetCS.getType() != ColorSpace.TYPE_RGB
+            || sourceCM.hasAlpha() || targetCM.hasAlpha()
+            || !isSupportedType(sourceCM.getTransferType()) || !isSupportedType(targetCM.getTransferType()))
+            return null;
+
+        if (intent == null)
+            intent = LCMSColorConvertDescriptor.PERCEPTUAL;
+
+        return ColorLUT3D.get(((ICC_ColorSpace) sourceCS).getProfile(),
+                              ((ICC_ColorSpace) targetCS).getProfile(),
+                              LCMSColorConvertOpImage.mapLCMSIntent(intent),
+                              LCMSColorConvertOpImage.mapLCMSFlags(intent));
+    }
+
+    private static boolean isSupportedType(int transferType) {
+        return transferType == DataBuffer.TYPE_BYTE || transferType == DataBuffer.TYPE_USHORT;
+    }
+
+    /**
+     * Creates a new instance of <code>LUTColorConvertOpImage</code> in the
+     * rendered layer, or of <code>LCMSColorConvertOpImage</code> if there is
+     * no suitable lookup table.
+     *
+     * @param args   The source image, the destination ColorModel and the
+     *               rendering intent.
+     * @param renderHints  Optionally contains destination image layout.
+     */
+    public RenderedImage create(ParameterBlock args,
+                                RenderingHints renderHints) {
+        // Get ImageLayout from renderHints if any.
+        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
+
+        RenderedImage source = args.getRenderedSource(0);
+        ColorModel colorModel = (ColorModel) args.getObjectParameter(0);
+        LCMSColorConvertDescriptor.RenderingIntent intent =
+            (LCMSColorConvertDescriptor.RenderingIntent) args.getObjectParameter(1);
+
+        ColorLUT3D lut = getLUT(source.getColorModel(), colorModel, intent);
+
+        if (lut != null)
+            return new LUTColorConvertOpImage(source, renderHints, layout, lut);
+        else
+            return new LCMSColorConvertOpImage(source, renderHints, layout, colorModel,
+                                               intent, null, LCMSColorConvertDescriptor.PERCEPTUAL);
+    }
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import com.lightcrafts.mediax.jai.ImageLayout;
+import com.lightcrafts.mediax.jai.PointOpImage;
+import com.lightcrafts.utils.ColorLUT3D;
+
+import java.awt.*;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+
+import sun.awt.image.ByteInterleavedRaster;
+import sun.awt.image.ShortInterleavedRaster;
+
+/**
+ * An RGB to RGB color conversion through a precomputed {@link ColorLUT3D},
+ * the pure Java counterpart of {@link LCMSColorConvertOpImage}.  Source and
+ * destination can each be either 8 or 16 bit interleaved rasters.
+ */
+public class LUTColorConvertOpImage extends PointOpImage {
+    private final ColorLUT3D lut;
+
+    LUTColorConvertOpImage(RenderedImage source,
+                           Map config,
+                           ImageLayout layout,
+                           ColorLUT3D lut) {
+        super(source, layout, config, true);
+        this.lut = lut;
+
+        permitInPlaceOperation();
+    }
+
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final Raster src = sources[0];
+        final int width = destRect.width;
+        final int height = destRect.height;
+
+        final short srcShortData[];
+        final byte srcByteData[];
+        final int srcBandOffsets[];
+        final int srcLineStride;
+        final int srcPixelStride;
+        if (src instanceof ShortInterleavedRaster) {
+            final ShortInterleavedRaster raster = (ShortInterleavedRaster) src;
+            srcShortData = raster.getDataStorage();
+            srcByteData = null;
+            srcBandOffsets = raster.getDataOffsets();
+            srcLineStride = raster.getScanlineStride();
+            srcPixelStride = raster.getPixelStride();
+        } else if (src instanceof ByteInterleavedRaster) {
+            final ByteInterleavedRaster raster = (ByteInterleavedRaster) src;
+            srcShortData = null;
+            srcByteData = raster.getDataStorage();
+            srcBandOffsets = raster.getDataOffsets();
+            srcLineStride = raster.getScanlineStride();
+            srcPixelStride = raster.getPixelStride();
+        } else
+            throw new IllegalArgumentException( "Unsupported source raster: " + src.getClass() );
+
+        final short dstShortData[];
+        final byte dstByteData[];
+        final int dstBandOffsets[];
+        final int dstLineStride;
+        final int dstPixelStride;
+        if (dest instanceof ShortInterleavedRaster) {
+            final ShortInterleavedRaster raster = (ShortInterleavedRaster) dest;
+            dstShortData = raster.getDataStorage();
+            dstByteData = null;
+            dstBandOffsets = raster.getDataOffsets();
+            dstLineStride = raster.getScanlineStride();
+            dstPixelStride = raster.getPixelStride();
+        } else if (dest instanceof ByteInterleavedRaster) {
+            final ByteInterleavedRaster raster = (ByteInterleavedRaster) dest;
+            dstShortData = null;
+            dstByteData = raster.getDataStorage();
+            dstBandOffsets = raster.getDataOffsets();
+            dstLineStride = raster.getScanlineStride();
+            dstPixelStride = raster.getPixelStride();
+        } else
+            throw new IllegalArgumentException( "Unsupported destination raster: " + dest.getClass() );
+
+        // The data offsets are relative to the rasters' origins
+        final int srcOffset = (destRect.x - src.getMinX()) * srcPixelStride
+                              + (destRect.y - src.getMinY()) * srcLineStride;
+        final int srcROffset = srcOffset + srcBandOffsets[0];
+        final int srcGOffset = srcOffset + srcBandOffsets[1];
+        final int srcBOffset = srcOffset + srcBandOffsets[2];
+
+        final int dstOffset = (destRect.x - dest.getMinX()) * dstPixelStride
+                              + (destRect.y - dest.getMinY()) * dstLineStride;
+        final int dstROffset = dstOffset + dstBandOffsets[0];
+        final int dstGOffset = dstOffset + dstBandOffsets[1];
+        final int dstBOffset = dstOffset + dstBandOffsets[2];
+
+        final float rgb[] = new float[3];
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                final int srcPixOffset = srcPixelStride * col + row * srcLineStride;
+                final int r, g, b;
+                if (srcShortData != null) {
+                    r = 0xffff & srcShortData[srcPixOffset + srcROffset];
+                    g = 0xffff & srcShortData[srcPixOffset + srcGOffset];
+                    b = 0xffff & srcShortData[srcPixOffset + srcBOffset];
+                } else {
+                    r = 0x101 * (0xff & srcByteData[srcPixOffset + srcROffset]);
+                    g = 0x101 * (0xff & srcByteData[srcPixOffset + srcGOffset]);
+                    b = 0x101 * (0xff & srcByteData[srcPixOffset + srcBOffset]);
+                }
+
+                lut.interpolate(r, g, b, rgb);
+
+                final int dstPixOffset = dstPixelStride * col + row * dstLineStride;
+                if (dstShortData != null) {
+                    dstShortData[dstPixOffset + dstROffset] = (short) clampUShort(rgb[0]);
+                    dstShortData[dstPixOffset + dstGOffset] = (short) clampUShort(rgb[1]);
+                    dstShortData[dstPixOffset + dstBOffset] = (short) clampUShort(rgb[2]);
+                } else {
+                    dstByteData[dstPixOffset + dstROffset] = (byte) clampUByte(rgb[0]);
+                    dstByteData[dstPixOffset + dstGOffset] = (byte) clampUByte(rgb[1]);
+                    dstByteData[dstPixOffset + dstBOffset] = (byte) clampUByte(rgb[2]);
+                }
+            }
+        }
+    }
+
+    private static int clampUShort(float v) {
+        final int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : i > 0xffff ? 0xffff : i;
+    }
+
+    private static int clampUByte(float v) {
+        final int i = (int) (v / 0x101 + 0.5f);
+        return i < 0 ? 0 : i > 0xff ? 0xff : i;
+    }
+}
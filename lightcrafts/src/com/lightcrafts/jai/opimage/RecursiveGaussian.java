@@ -0,0 +1,209 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+/**
+ * A recursive (IIR) approximation of a Gaussian blur after Young and van
+ * Vliet, "Recursive implementation of the Gaussian filter" (1995).  Each
+ * dimension is filtered by a third order causal pass followed by a third
+ * order anti-causal pass, so the cost per pixel doesn't depend on sigma,
+ * unlike convolving with a kernel that grows with sigma.
+ * <p>
+ * Images are filtered in place in a buffer of doubles that holds the image
+ * inside a margin of {@link #MARGIN} pixels on every side, which the filter
+ * uses for its boundary conditions.  Edges are treated as if the edge pixels
+ * were replicated, like {@link com.lightcrafts.mediax.jai.BorderExtender#BORDER_COPY},
+ * following Triggs and Sdika, "Boundary conditions for Young - van Vliet
+ * recursive filtering" (2006).
+ */
+final class RecursiveGaussian {
+
+    /**
+     * The width of the margin around the image in a buffer given to
+     * {@link #blur(double[], int, int)}.
+     */
+    static final int MARGIN = 3;
+
+    final double sigma;
+
+    // The normalized feedback coefficients and the feed forward gain.
+    private final double b1, b2, b3, B;
+
+    // Maps the last three outputs of a causal pass, relative to the last
+    // input, to the three outputs of the anti-causal pass just past the edge.
+    private final double M[][];
+
+    RecursiveGaussian(double sigma) {
+        if (sigma < 0.5)
+            sigma = 0.5;
+        this.sigma = sigma;
+
+        // Young and van Vliet's estimate of q overshoots sigma by about ten
+        // percent, so solve for the q that gives exactly the right variance.
+        double lo = 0;
+        double hi = 2 * sigma + 1;
+        for (int i = 0; i < 60; i++) {
+            double q = (lo + hi) / 2;
+            if (getSigma(getCoefficients(q)) < sigma)
+                lo = q;
+            else
+                hi = q;
+        }
+        double c[] = getCoefficients((lo + hi) / 2);
+        b1 = c[0];
+        b2 = c[1];
+        b3 = c[2];
+        B = 1 - (b1 + b2 + b3);
+
+        M = getBoundaryMatrix();
+    }
+
+    // The normalized feedback coefficients for a given q.
+    private static double[] getCoefficients(double q) {
+        double q2 = q * q;
+        double q3 = q2 * q;
+
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        return new double[] {
+            (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0,
+            -(1.4281 * q2 + 1.26661 * q3) / b0,
+            0.422205 * q3 / b0
+        };
+    }
+
+    // The standard deviation of the impulse response of the causal and
+    // anti-causal passes together, which is twice the variance of the
+    // causal pass's response B / (1 - b1 z^-1 - b2 z^-2 - b3 z^-3).
+    private static double getSigma(double c[]) {
+        double B = 1 - (c[0] + c[1] + c[2]);
+        double mean = (c[0] + 2 * c[1] + 3 * c[2]) / B;
+        double variance = (c[0] + 4 * c[1] + 9 * c[2]) / B + mean * mean;
+        return Math.sqrt(2 * variance);
+    }
+
+    // Past the edge the input is constant, so the causal pass just decays
+    // towards it from where it left off, and the anti-causal pass starts
+    // from where that decay takes it.  Both are linear in the last three
+    // causal outputs, so run them once for each of those and tabulate.
+    private double[][] getBoundaryMatrix() {
+        int length = (int) Math.ceil(20 * sigma) + 20;
+        double m[][] = new double[3][3];
+        for (int k = 0; k < 3; k++) {
+            double w[] = new double[length + 6];
+            w[2 - k] = 1;
+            for (int i = 3; i < length + 3; i++)
+                w[i] = b1 * w[i - 1] + b2 * w[i - 2] + b3 * w[i - 3];
+            for (int i = length + 2; i >= 3; i--)
+                w[i] = B * w[i] + b1 * w[i + 1] + b2 * w[i + 2] + b3 * w[i + 3];
+            for (int j = 0; j < 3; j++)
+                m[j][k] = w[3 + j];
+        }
+        return m;
+    }
+
+    /**
+     * The standard deviation of a symmetric, normalized convolution kernel,
+     * which is the sigma of the Gaussian that blurs as much as the kernel.
+     */
+    static double getSigma(float kernel[]) {
+        int center = kernel.length / 2;
+        double variance = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            int x = i - center;
+            variance += x * x * kernel[i];
+        }
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * Allocate a buffer for an image of the given size.
+     */
+    static double[] createBuffer(int width, int height) {
+        return new double[(width + 2 * MARGIN) * (height + 2 * MARGIN)];
+    }
+
+    /**
+     * The index in a buffer of the given pixel of an image of the given
+     * width.
+     */
+    static int index(int x, int y, int width) {
+        return (y + MARGIN) * (width + 2 * MARGIN) + x + MARGIN;
+    }
+
+    /**
+     * Blur an image in place.  The margin of the buffer is overwritten.
+     *
+     * @param buffer a buffer from {@link #createBuffer(int, int)}.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     */
+    void blur(double buffer[], int width, int height) {
+        blurRows(buffer, width, height);
+        blurColumns(buffer, width, height);
+    }
+
+    private void blurRows(double buffer[], int width, int height) {
+        for (int y = 0; y < height; y++) {
+            final int first = index(0, y, width);
+            final int last = first + width - 1;
+            final double edge = buffer[last];
+
+            // Causal pass, starting from the steady state for the left edge
+            buffer[first - 1] = buffer[first - 2] = buffer[first - 3] = buffer[first];
+            for (int i = first; i <= last; i++)
+                buffer[i] = B * buffer[i]
+                            + b1 * buffer[i - 1] + b2 * buffer[i - 2] + b3 * buffer[i - 3];
+
+            // Anti-causal pass, starting from the right edge
+            setBoundary(buffer, last, 1, edge);
+            for (int i = last; i >= first; i--)
+                buffer[i] = B * buffer[i]
+                            + b1 * buffer[i + 1] + b2 * buffer[i + 2] + b3 * buffer[i + 3];
+        }
+    }
+
+    // Filter all the columns together a row at a time, which keeps the
+    // memory accesses sequential.
+    private void blurColumns(double buffer[], int width, int height) {
+        final int stride = width + 2 * MARGIN;
+        final int first = index(0, 0, width);
+        final int last = index(0, height - 1, width);
+        final double edge[] = new double[width];
+        System.arraycopy(buffer, last, edge, 0, width);
+
+        // Causal pass, starting from the steady state for the top edge
+        for (int k = 1; k <= MARGIN; k++)
+            System.arraycopy(buffer, first, buffer, first - k * stride, width);
+        for (int row = first; row <= last; row += stride) {
+            final int end = row + width;
+            for (int i = row; i < end; i++)
+                buffer[i] = B * buffer[i]
+                            + b1 * buffer[i - stride]
+                            + b2 * buffer[i - 2 * stride]
+                            + b3 * buffer[i - 3 * stride];
+        }
+
+        // Anti-causal pass, starting from the bottom edge
+        for (int x = 0; x < width; x++)
+            setBoundary(buffer, last + x, stride, edge[x]);
+        for (int row = last; row >= first; row -= stride) {
+            final int end = row + width;
+            for (int i = row; i < end; i++)
+                buffer[i] = B * buffer[i]
+                            + b1 * buffer[i + stride]
+                            + b2 * buffer[i + 2 * stride]
+                            + b3 * buffer[i + 3 * stride];
+        }
+    }
+
+    // Fill in the three anti-causal outputs past the edge at the given
+    // index, where the input before the causal pass was the given value.
+    private void setBoundary(double buffer[], int last, int step, double edge) {
+        double e0 = buffer[last] - edge;
+        double e1 = buffer[last - step] - edge;
+        double e2 = buffer[last - 2 * step] - edge;
+        for (int j = 0; j < 3; j++)
+            buffer[last + (j + 1) * step] =
+                edge + M[j][0] * e0 + M[j][1] * e1 + M[j][2] * e2;
+    }
+}
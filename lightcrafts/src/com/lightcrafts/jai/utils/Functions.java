@@ -15,6 +15,7 @@ import java.text.DecimalFormat;
 
 import com.lightcrafts.jai.JAIContext;
 import com.lightcrafts.jai.operator.LCMSColorConvertDescriptor;
+import com.lightcrafts.jai.opimage.LUTColorConvertCRIF;
 import com.lightcrafts.utils.ColorProfileInfo;
 import com.lightcrafts.model.ImageEditor.Rendering;
 import com.lightcrafts.model.ImageEditor.ImageProcessor;
@@ -325,7 +326,7 @@ public class Functions {
         for (int i = 0; i < data.length; i++)
             data[i] /= scale;
 
-        return new KernelJAI(size, size, size/2, size/2, data, data);
+        return new GaussianKernelJAI(sigma, data);
     }
 
     static public KernelJAI getSincKernel(double sigma) {
@@ -618,6 +619,12 @@ public class Functions {
             pb.add(intent);
         else
             pb.add(LCMSColorConvertDescriptor.PERCEPTUAL);
+
+        // Use a precomputed lookup table when one is accurate enough and
+        // ready, this doesn't wait for it to be built
+        if (proof == null && LUTColorConvertCRIF.getLUT(source.getColorModel(), cm, intent) != null)
+            return JAI.create("LUTColorConvert", pb, formatHints);
+
         if (proof != null) {
             pb.add(proof);
             if (proofIntent != null)
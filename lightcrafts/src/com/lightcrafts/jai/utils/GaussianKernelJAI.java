@@ -0,0 +1,26 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.utils;
+
+import com.lightcrafts.mediax.jai.KernelJAI;
+
+/**
+ * A separable, symmetric Gaussian KernelJAI that remembers its sigma, so that
+ * LCSeparableConvolve can blur with a recursive filter instead of convolving
+ * when the kernel is large.
+ *
+ * @see Functions#getGaussKernel(double)
+ */
+public class GaussianKernelJAI extends KernelJAI {
+
+    private final double sigma;
+
+    public GaussianKernelJAI(double sigma, float data[]) {
+        super(data.length, data.length, data.length / 2, data.length / 2, data, data);
+        this.sigma = sigma;
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+}
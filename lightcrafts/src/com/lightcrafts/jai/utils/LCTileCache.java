@@ -30,6 +30,8 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.lang.ref.Reference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import com.lightcrafts.mediax.jai.EnumeratedParameter;
 import com.lightcrafts.mediax.jai.TileCache;
 import com.lightcrafts.mediax.jai.util.ImagingListener;
@@ -49,6 +51,12 @@ import com.lightcrafts.mediax.jai.util.ImagingListener;
  * greatly depends on the type of images involved.  In fact, the tile
  * capacity is rather meaningless.
  *
+ * <p> Unlike <code>SunTileCache</code>, tiles are spread over a fixed number
+ * of independently locked segments, each one with its own hash map and LRU
+ * list, so that tile lookups from concurrent scheduler threads don't contend
+ * on a single monitor.  Memory control merges the segment LRU lists by tile
+ * time stamp, which approximates a global LRU policy.
+ *
  * @see com.lightcrafts.mediax.jai.TileCache
  *
  */
@@ -66,62 +74,65 @@ public final class LCTileCache extends Observable
     /** The hashtable load factor */
     private static final float LOAD_FACTOR = 0.5F;
 
+    /** The number of cache segments, must be a power of two */
+    private static final int SEGMENT_COUNT = 32;
+
     /** Listener for the flush() method, to detect low memory situations. */
     private static LCTileCacheListener Listener;
 
     /**
      * The tile cache.
-     * A Hashtable is used to cache the tiles.  The "key" is a
-     * <code>Object</code> determined based on tile owner's UID if any or
-     * hashCode if the UID doesn't exist, and tile index.  The
-     * "value" is a LCCachedTile.
+     * The tiles are spread over the segments according to the hash of their
+     * key.  The "key" is a <code>Object</code> determined based on tile
+     * owner's UID if any or hashCode if the UID doesn't exist, and tile
+     * index.  The "value" is a LCCachedTile.
      */
-    private Hashtable cache;
+    private final Segment[] segments;
 
     /**
      * Sorted (Tree) Set used with tile metrics.
      * Adds another level of metrics used to determine
      * which tiles are removed during memoryControl().
      */
-    private SortedSet cacheSortedSet;
+    private volatile SortedSet cacheSortedSet;
 
     /** The memory capacity of the cache. */
-    private long memoryCapacity;
+    private volatile long memoryCapacity;
 
     /** The amount of memory currently being used by the cache. */
-    private long memoryUsage = 0;
+    private final AtomicLong memoryUsage = new AtomicLong();
 
     /** The amount of memory to keep after memory control */
-    private float memoryThreshold = 0.75F;
+    private volatile float memoryThreshold = 0.75F;
 
     /** A indicator for tile access time. */
-    private long timeStamp = 0;
+    private final AtomicLong timeStamp = new AtomicLong();
 
     /** Custom comparator used to determine tile cost or
      *  priority ordering in the tile cache.
      */
     private Comparator comparator = null;
 
-    /** Pointer to the first (newest) tile of the linked LCCachedTile list. */
-    private LCCachedTile first = null;
-
-    /** Pointer to the last (oldest) tile of the linked LCCachedTile list. */
-    private LCCachedTile last = null;
-
     /** Tile count used for diagnostics */
-    private long tileCount = 0;
+    private final AtomicLong tileCount = new AtomicLong();
 
     /** Cache hit count */
-    private long hitCount = 0;
+    private final AtomicLong hitCount = new AtomicLong();
 
     /** Cache miss count */
-    private long missCount = 0;
+    private final AtomicLong missCount = new AtomicLong();
 
     /** Diagnostics enable/disable */
-    private boolean diagnostics;
+    private volatile boolean diagnostics;
+
+    /** Serializes memory control, the segments are locked one at a time */
+    private final Object memoryControlLock = new Object();
 
     private Cache m_objectCache;
 
+    /** Encodes the tiles spilled to m_objectCache */
+    private TileCacheCacheObjectBroker m_objectBroker;
+
     // diagnostic actions
     // !!! If actions are changed in any way (removal, modification, addition)
     // then the getCachedTileActions() method below should be changed to match.
@@ -185,9 +196,9 @@ public final class LCTileCache extends Observable
 
         this.memoryCapacity = memoryCapacity;
 
-        // try to get a prime number (more efficient?)
-        // lower values of LOAD_FACTOR increase speed, decrease space efficiency
-        cache = new Hashtable(DEFAULT_HASHTABLE_CAPACITY, LOAD_FACTOR);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment();
 
         if (useDisk) {
             m_objectCache = createDiskCache();
@@ -232,11 +243,11 @@ public final class LCTileCache extends Observable
      * @param tile             The tile to be cached.
      * @param tileCacheMetric  Metric for prioritizing tiles
      */
-    public synchronized void add(RenderedImage owner,
-                                 int tileX,
-                                 int tileY,
-                                 Raster tile,
-                                 Object tileCacheMetric) {
+    public void add(RenderedImage owner,
+                    int tileX,
+                    int tileY,
+                    Raster tile,
+                    Object tileCacheMetric) {
 
         if ( memoryCapacity == 0 ) {
             return;
@@ -245,29 +256,67 @@ public final class LCTileCache extends Observable
         // This tile is not in the cache; create a new LCCachedTile.
         // else just update.
         Object key = LCCachedTile.hashKey(owner, tileX, tileY);
-        LCCachedTile ct = (LCCachedTile) cache.get(key);
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            addToSegment(segment, owner, tileX, tileY, tile, tileCacheMetric, key);
+        }
+
+        // Bring memory usage down to memoryThreshold % of memory capacity.
+        if (memoryUsage.get() > memoryCapacity) {
+            memoryControl();
+        }
+
+        if (m_tileReaper != null) {
+            // Look the owner up by identity, a probe without a queue is
+            // enough since it never outlives this call
+            Set<Object> hashKeys = m_imageMap.get(new OwnerRef(owner, null));
+
+            if (hashKeys == null) {
+                final Set<Object> newKeys =
+                    Collections.synchronizedSet(new HashSet<Object>());
+                hashKeys = m_imageMap.putIfAbsent(
+                    new OwnerRef(owner, m_tileReaper.getRefQ()), newKeys
+                );
+                if (hashKeys == null)
+                    hashKeys = newKeys;
+            }
+
+            hashKeys.add(key);
+        }
+    }
+
+    // must be called with the segment lock held
+    private void addToSegment(Segment segment,
+                              RenderedImage owner,
+                              int tileX,
+                              int tileY,
+                              Raster tile,
+                              Object tileCacheMetric,
+                              Object key) {
+        LCCachedTile ct = segment.tiles.get(key);
 
         if ( ct != null ) {
-            updateTileList(ct, UPDATE_FROM_ADD);
+            updateTileList(segment, ct, UPDATE_FROM_ADD);
         } else {
             // create a new tile
             ct = new LCCachedTile(owner, tileX, tileY, tile, tileCacheMetric);
-            ct.timeStamp = timeStamp++;
+            ct.timeStamp = timeStamp.getAndIncrement();
             ct.previous = null;
-            ct.next = first;
+            ct.next = segment.first;
 
-            if (first == null && last == null) {
-                first = ct;
-                last  = ct;
+            if (segment.first == null && segment.last == null) {
+                segment.first = ct;
+                segment.last  = ct;
             } else {
-                first.previous = ct;
-                first = ct;        // put this tile at the top of the list
+                segment.first.previous = ct;
+                segment.first = ct;        // put this tile at the top of the list
             }
 
             // add to tile cache
-            if ( cache.put(ct.key, ct) == null ) {
-                memoryUsage += ct.memorySize;
-                tileCount++;
+            if ( segment.tiles.put(ct.key, ct) == null ) {
+                memoryUsage.addAndGet(ct.memorySize);
+                tileCount.incrementAndGet();
                 //missCount++;  Not necessary?
 
                 if ( cacheSortedSet != null ) {
@@ -280,70 +329,51 @@ public final class LCTileCache extends Observable
                     notifyObservers(ct);
                 }
             }
-
-            // Bring memory usage down to memoryThreshold % of memory capacity.
-            if (memoryUsage > memoryCapacity) {
-                memoryControl();
-            }
         }
+    }
 
-        if (m_tileReaper != null) {
-            // TODO: do we need this?
-            synchronized ( this ) {
-                WeakReference weakKey = null;
-
-                Set keySet = m_imageMap.keySet();
-                Iterator it = keySet.iterator();
-                while (it.hasNext()) {
-                    WeakReference ref = (WeakReference) it.next();
-
-                    if (ref.get() == owner) {
-                        weakKey = ref;
-                        break;
-                    }
-                }
-
-                // weakKey = (WeakReference) m_weakRefMap.get(owner);
-
-                if (weakKey == null) {
-                    weakKey = new WeakReference( owner, m_tileReaper.getRefQ() );
-                    // m_weakRefMap.put(owner, weakKey);
-                }
-
-                Set hashKeys = (HashSet) m_imageMap.get(weakKey);
-
-                if (hashKeys == null) {
-                    hashKeys = new HashSet();
-                    m_imageMap.put(weakKey, hashKeys);
-                }
+    /**
+     * Returns the segment responsible for the given key.  The key hash code
+     * is spread so that keys differing only in their high bits (the owner
+     * part of the key) don't all end up in the same segment.
+     */
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
 
-                hashKeys.add(key);
-            }
+    private boolean removeFromTileList(Object key, int action) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return removeFromTileList(segment, key, action);
         }
     }
 
-    private boolean removeFromTileList(Object key, int action) {
-        LCCachedTile ct = (LCCachedTile) cache.remove(key);
+    // must be called with the segment lock held
+    private boolean removeFromTileList(Segment segment, Object key, int action) {
+        LCCachedTile ct = segment.tiles.remove(key);
 
         if (ct != null) {
-            memoryUsage -= ct.memorySize;
-            tileCount--;
+            memoryUsage.addAndGet(-ct.memorySize);
+            tileCount.decrementAndGet();
 
             if ( cacheSortedSet != null ) {
                 cacheSortedSet.remove(ct);
             }
 
-            if ( ct == first ) {
-                if ( ct == last ) {
-                    first = null;  // only one tile in the list
-                    last  = null;
+            if ( ct == segment.first ) {
+                if ( ct == segment.last ) {
+                    segment.first = null;  // only one tile in the list
+                    segment.last  = null;
                 } else {
-                    first = ct.next;
-                    first.previous = null;
+                    segment.first = ct.next;
+                    segment.first.previous = null;
                 }
-            } else if ( ct == last ) {
-                last = ct.previous;
-                last.next = null;
+            } else if ( ct == segment.last ) {
+                segment.last = ct.previous;
+                segment.last.next = null;
             } else {
                 ct.previous.next = ct.next;
                 ct.next.previous = ct.previous;
@@ -365,27 +395,28 @@ public final class LCTileCache extends Observable
         return false;
     }
 
-    private void updateTileList(LCCachedTile ct, int action) {
-        ct.timeStamp = timeStamp++;
+    // must be called with the segment lock held
+    private void updateTileList(Segment segment, LCCachedTile ct, int action) {
+        ct.timeStamp = timeStamp.getAndIncrement();
 
-        if (ct != first) {
+        if (ct != segment.first) {
             // Bring this tile to the beginning of the list.
-            if (ct == last) {
-                last = ct.previous;
-                last.next = null;
+            if (ct == segment.last) {
+                segment.last = ct.previous;
+                segment.last.next = null;
             } else {
                 ct.previous.next = ct.next;
                 ct.next.previous = ct.previous;
             }
 
             ct.previous = null;
-            ct.next = first;
+            ct.next = segment.first;
 
-            first.previous = ct;
-            first = ct;
+            segment.first.previous = ct;
+            segment.first = ct;
         }
 
-        hitCount++;
+        hitCount.incrementAndGet();
 
         if ( diagnostics ) {
             ct.action = action;
@@ -400,34 +431,38 @@ public final class LCTileCache extends Observable
      * <p> If the specified tile is not in the cache, this method
      * does nothing.
      */
-    public synchronized void remove(RenderedImage owner,
-                                    int tileX,
-                                    int tileY) {
+    public void remove(RenderedImage owner,
+                       int tileX,
+                       int tileY) {
 
         if ( memoryCapacity == 0 ) {
             return;
         }
 
         Object key = LCCachedTile.hashKey(owner, tileX, tileY);
-        LCCachedTile ct = (LCCachedTile) cache.get(key);
+        Segment segment = segmentFor(key);
 
-        if ( ct != null ) {
-            // Notify observers that a tile is about to be removed.
-            // It is possible that the tile will be removed from the
-            // cache before the observers get notified.  This should
-            // be ok, since a hard reference to the tile will be
-            // kept for the observers, so the garbage collector won't
-            // remove the tile until the observers release it.
-            ct.action = ABOUT_TO_REMOVE;
-            setChanged();
-            notifyObservers(ct);
+        synchronized (segment) {
+            LCCachedTile ct = segment.tiles.get(key);
 
-            removeFromTileList(key, REMOVE);
-        } else {
-            // if the tile is not in the memory cache than it might be on disk...
-            if (m_objectCache != null && m_objectCache.contains(key)) {
-                m_objectCache.remove(key);
-                tilesOnDisk--;
+            if ( ct != null ) {
+                // Notify observers that a tile is about to be removed.
+                // It is possible that the tile will be removed from the
+                // cache before the observers get notified.  This should
+                // be ok, since a hard reference to the tile will be
+                // kept for the observers, so the garbage collector won't
+                // remove the tile until the observers release it.
+                ct.action = ABOUT_TO_REMOVE;
+                setChanged();
+                notifyObservers(ct);
+
+                removeFromTileList(segment, key, REMOVE);
+            } else {
+                // if the tile is not in the memory cache than it might be on disk...
+                if (m_objectCache != null && m_objectCache.contains(key)) {
+                    m_objectCache.remove(key);
+                    tilesOnDisk.decrementAndGet();
+                }
             }
         }
     }
@@ -443,32 +478,44 @@ public final class LCTileCache extends Observable
      * @param tileX  The tile's X index within the image.
      * @param tileY  The tile's Y index within the image.
      */
-    public synchronized Raster getTile(RenderedImage owner,
-                                       int tileX,
-                                       int tileY) {
+    public Raster getTile(RenderedImage owner,
+                          int tileX,
+                          int tileY) {
         if ( memoryCapacity == 0 )
             return null;
 
         Object key = LCCachedTile.hashKey(owner, tileX, tileY);
-        LCCachedTile ct = (LCCachedTile) cache.get(key);
-
-        if (m_objectCache != null && ct == null) {
-            Raster raster = readTileFromDisk(owner, tileX, tileY, key);
-            if (raster != null) {
-                add(owner, tileX, tileY, raster, null);
-                ct = (LCCachedTile) cache.get(key);
-                assert ct != null;
-            }
-        }
+        Segment segment = segmentFor(key);
 
         Raster tile = null;
+        boolean reloaded = false;
+
+        synchronized (segment) {
+            LCCachedTile ct = segment.tiles.get(key);
+
+            // Reading back from disk happens with the segment lock held, so
+            // that a tile can't be concurrently spilled and reloaded
+            if (m_objectCache != null && ct == null) {
+                Raster raster = readTileFromDisk(owner, tileX, tileY, key);
+                if (raster != null) {
+                    addToSegment(segment, owner, tileX, tileY, raster, null, key);
+                    ct = segment.tiles.get(key);
+                    assert ct != null;
+                    reloaded = true;
+                }
+            }
+
+            if ( ct == null ) {
+                missCount.incrementAndGet();
+            } else {    // found tile in cache
+                tile = (Raster) ct.getTile();
 
-        if ( ct == null ) {
-            missCount++;
-        } else {    // found tile in cache
-            tile = (Raster) ct.getTile();
+                updateTileList(segment, ct, UPDATE_FROM_GETTILE);
+            }
+        }
 
-            updateTileList(ct, UPDATE_FROM_GETTILE);
+        if (reloaded && memoryUsage.get() > memoryCapacity) {
+            memoryControl();
         }
 
         return tile;
@@ -483,15 +530,15 @@ public final class LCTileCache extends Observable
      * @return An array of all tiles owned by the specified image or
      *         <code>null</code> if there are none currently in the cache.
      */
-    public synchronized Raster[] getTiles(RenderedImage owner) {
+    public Raster[] getTiles(RenderedImage owner) {
         Raster[] tiles = null;
 
         if ( memoryCapacity == 0 ) {
             return null;
         }
 
-        int size = Math.min(owner.getNumXTiles() * owner.getNumYTiles(),
-                            (int)tileCount);
+        int size = (int) Math.min(owner.getNumXTiles() * owner.getNumYTiles(),
+                                  tileCount.get());
 
         if ( size > 0 ) {
             int minTx = owner.getMinTileX();
@@ -553,10 +600,10 @@ public final class LCTileCache extends Observable
      *        associated with the <code>RenderedImage</code> owner.
      * @since 1.1
      */
-    public synchronized void addTiles(RenderedImage owner,
-                                      Point[] tileIndices,
-                                      Raster[] tiles,
-                                      Object tileCacheMetric) {
+    public void addTiles(RenderedImage owner,
+                         Point[] tileIndices,
+                         Raster[] tiles,
+                         Object tileCacheMetric) {
 
         if ( memoryCapacity == 0 ) {
             return;
@@ -581,7 +628,7 @@ public final class LCTileCache extends Observable
      *        <code>tileX</code> and <code>tileY</code> indices for each tile.
      * @since 1.1
      */
-    public synchronized Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
+    public Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
 
         if ( memoryCapacity == 0 ) {
             return null;
@@ -600,7 +647,7 @@ public final class LCTileCache extends Observable
     }
 
     /** Removes -ALL- tiles from the cache. */
-    public synchronized void flush() {
+    public void flush() {
         // Call the LCTileCacheListener, if one is defined.  This helps detect
         // low memory conditions.
         if (Listener != null) {
@@ -609,49 +656,39 @@ public final class LCTileCache extends Observable
         // NOTE: we don't do flushing for disk caches, it wipes the persistent cache, rather spill half of the cache out
         if (m_objectCache != null) {
             System.err.println("flushing the cache");
-            float mt = memoryThreshold;
-            memoryThreshold = 0.1f;
-            memoryControl();
-            memoryThreshold = mt;
+            memoryControl(0.1f);
             return;
         }
 
-        //
-        // It is necessary to clear all the elements
-        // from the old cache in order to remove dangling
-        // references, due to the linked list.  In other
-        // words, it is possible to reache the object
-        // through 2 paths so the object does not
-        // become weakly reachable until the reference
-        // to it in the hash map is null. It is not enough
-        // to just set the object to null.
-        //
-        Enumeration keys = cache.keys();    // all keys in Hashtable
-
-        // reset counters before diagnostics
-        hitCount  = 0;
-        missCount = 0;
-
-        while (keys.hasMoreElements()) {
-            Object key = keys.nextElement();
-
-            removeFromTileList(key, REMOVE_FROM_FLUSH);
-        }
-
-        if ( memoryCapacity > 0 ) {
-            cache = new Hashtable(DEFAULT_HASHTABLE_CAPACITY, LOAD_FACTOR);
-        }
+        synchronized (memoryControlLock) {
+            // reset counters before diagnostics
+            hitCount.set(0);
+            missCount.set(0);
+
+            //
+            // It is necessary to clear all the elements
+            // from the old cache in order to remove dangling
+            // references, due to the linked list.  In other
+            // words, it is possible to reache the object
+            // through 2 paths so the object does not
+            // become weakly reachable until the reference
+            // to it in the hash map is null. It is not enough
+            // to just set the object to null.
+            //
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Object[] keys = segment.tiles.keySet().toArray();
+
+                    for (Object key : keys)
+                        removeFromTileList(segment, key, REMOVE_FROM_FLUSH);
+                }
+            }
 
-        if ( cacheSortedSet != null ) {
-            cacheSortedSet.clear();
-            cacheSortedSet = Collections.synchronizedSortedSet( new TreeSet(comparator) );
+            if ( cacheSortedSet != null ) {
+                cacheSortedSet.clear();
+            }
         }
 
-        // force reset after diagnostics
-        tileCount   = 0;
-        timeStamp   = 0;
-        memoryUsage = 0;
-
         // no System.gc() here, it's too slow and may occur anyway.
     }
 
@@ -703,7 +740,7 @@ public final class LCTileCache extends Observable
 
         this.memoryCapacity = memoryCapacity;
 
-        if ( memoryUsage > memoryCapacity ) {
+        if ( memoryUsage.get() > memoryCapacity ) {
             memoryControl();
         }
     }
@@ -719,19 +756,19 @@ public final class LCTileCache extends Observable
     }
 
     public long getCacheTileCount() {
-        return tileCount;
+        return tileCount.get();
     }
 
     public long getCacheMemoryUsed() {
-        return memoryUsage;
+        return memoryUsage.get();
     }
 
     public long getCacheHitCount() {
-        return hitCount;
+        return hitCount.get();
     }
 
     public long getCacheMissCount() {
-        return missCount;
+        return missCount.get();
     }
 
     /**
@@ -740,8 +777,8 @@ public final class LCTileCache extends Observable
      * @since 1.1
      */
     public void resetCounts() {
-        hitCount  = 0;
-        missCount = 0;
+        hitCount.set(0);
+        missCount.set(0);
     }
 
     /**
@@ -771,13 +808,23 @@ public final class LCTileCache extends Observable
     public String toString() {
         return getClass().getName() + "@" + Integer.toHexString(hashCode()) +
                ": memoryCapacity = " + Long.toHexString(memoryCapacity) +
-               " memoryUsage = " + Long.toHexString(memoryUsage) +
-               " #tilesInCache = " + Integer.toString(cache.size());
+               " memoryUsage = " + Long.toHexString(memoryUsage.get()) +
+               " #tilesInCache = " + Long.toString(tileCount.get());
     }
 
-    /** Returns the <code>Object</code> that represents the actual cache. */
+    /**
+     * Returns the <code>Object</code> that represents the actual cache.
+     * Since the tiles are spread over several segments this is a snapshot
+     * of the cache content.
+     */
     public Object getCachedObject() {
-        return cache;
+        Map<Object, LCCachedTile> snapshot = new HashMap<Object, LCCachedTile>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                snapshot.putAll(segment.tiles);
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
     }
 
     /**
@@ -785,83 +832,63 @@ public final class LCTileCache extends Observable
      * (old to new) until the memory usage is memoryThreshold % of that of the
      * memory capacity.
      */
-    public synchronized void memoryControl() {
-        if ( cacheSortedSet == null ) {
-            standard_memory_control();
-        } else {
-            custom_memory_control();
-        }
+    public void memoryControl() {
+        memoryControl(memoryThreshold);
     }
 
-    // time stamp based memory control (LRU)
-    private final void standard_memory_control() {
-        long limit = (long)(memoryCapacity * memoryThreshold);
-
-        while( memoryUsage > limit && last != null ) {
-            LCCachedTile ct = (LCCachedTile) cache.get(last.key);
-
-            if ( ct != null ) {
-                RenderedImage owner = ct.getOwner();
-                if (owner != null && owner.getProperty(JAIContext.PERSISTENT_CACHE_TAG) == Boolean.TRUE)
-                    if (m_objectCache != null)
-                        writeTileToDisk(ct, last.key);
+    private void memoryControl(float threshold) {
+        synchronized (memoryControlLock) {
+            long limit = (long)(memoryCapacity * threshold);
 
-                removeFromTileList(last.key, REMOVE_FROM_MEMCON);
+            if ( cacheSortedSet == null ) {
+                standard_memory_control(limit);
+            } else {
+                custom_memory_control(limit);
             }
         }
     }
 
-    private static class TileCacheCacheObjectBroker implements CacheObjectBroker {
-
-        public int getEncodedSizeOf( Object obj ) {
-            if ( obj instanceof byte[] ) {
-                final byte[] ba = (byte[])obj;
-                return ba.length;
-            } else if ( obj instanceof short[] ) {
-                final short[] sa = (short[])obj;
-                return sa.length * 2;
-            } else if ( obj instanceof int[] ) {
-                final int[] ia = (int[])obj;
-                return ia.length * 4;
-            } else
-                throw new IllegalArgumentException(
-                    "can't get size of " + obj.getClass()
-                );
-        }
+    // time stamp based memory control (LRU)
+    private void standard_memory_control(long limit) {
+        while ( memoryUsage.get() > limit ) {
+            // Find the segments holding the oldest and the second oldest
+            // tails, the segment LRU lists are then merged by time stamp.
+            Segment oldest = null;
+            long oldestStamp = Long.MAX_VALUE;
+            long nextStamp = Long.MAX_VALUE;
+
+            for (Segment segment : segments) {
+                long stamp;
+                synchronized (segment) {
+                    if (segment.last == null)
+                        continue;
+                    stamp = segment.last.timeStamp;
+                }
+                if (stamp < oldestStamp) {
+                    nextStamp = oldestStamp;
+                    oldestStamp = stamp;
+                    oldest = segment;
+                } else if (stamp < nextStamp) {
+                    nextStamp = stamp;
+                }
+            }
 
-        // TODO: cache the ByteBuffer with a soft reference
-
-        public Object decodeFromByteBuffer( ByteBuffer buf, Object obj ) {
-            if ( obj instanceof byte[] )
-                //buf.get( (byte[])obj );
-                LCArrays.copy( buf.array(), 0, (byte[])obj, 0, buf.capacity() );
-            else if ( obj instanceof short[] )
-                //buf.asShortBuffer().get( (short[])obj );
-                LCArrays.copy( buf.array(), 0, (short[])obj, 0, buf.capacity() );
-            else if ( obj instanceof int[] )
-                //buf.asIntBuffer().get( (int[])obj );
-                LCArrays.copy( buf.array(), 0, (int[])obj, 0, buf.capacity() );
-            else
-                throw new IllegalArgumentException(
-                    "can't decode " + obj.getClass()
-                );
-            return obj;
-        }
+            if (oldest == null)
+                break;
 
-        public void encodeToByteBuffer( ByteBuffer buf, Object obj ) {
-            if ( obj instanceof byte[] )
-                //buf.put( (byte[])obj );
-                LCArrays.copy( (byte[])obj, 0, buf.array(), 0, buf.capacity() );
-            else if ( obj instanceof short[] )
-                //buf.asShortBuffer().put( (short[])obj );
-                LCArrays.copy( (short[])obj, 0, buf.array(), 0, buf.capacity() );
-            else if ( obj instanceof int[] )
-                //buf.asIntBuffer().put( (int[])obj );
-                LCArrays.copy( (int[])obj, 0, buf.array(), 0, buf.capacity() );
-            else
-                throw new IllegalArgumentException(
-                    "can't encode " + obj.getClass()
-                );
+            synchronized (oldest) {
+                while ( memoryUsage.get() > limit && oldest.last != null &&
+                        oldest.last.timeStamp <= nextStamp ) {
+                    LCCachedTile ct = oldest.last;
+
+                    RenderedImage owner = ct.getOwner();
+                    if (owner != null && owner.getProperty(JAIContext.PERSISTENT_CACHE_TAG) == Boolean.TRUE)
+                        if (m_objectCache != null)
+                            writeTileToDisk(ct, ct.key);
+
+                    removeFromTileList(oldest, ct.key, REMOVE_FROM_MEMCON);
+                }
+            }
         }
     }
 
@@ -917,14 +944,16 @@ public final class LCTileCache extends Observable
 
             System.out.println("Allocating " + extraCaheSize + "MB for the image cache.");
 
+            m_objectBroker = new TileCacheCacheObjectBroker(new LZCacheObjectCodec());
+
             return new Cache(
-                new TileCacheCacheObjectBroker(),
+                m_objectBroker,
                 extraCaheSize < 128 * 1024 * 1024 ?
                     new WriteThroughCacheObjectMap() :
                     new LRUCacheObjectMap(
                         new NativeByteBufferAllocator( CHUNK_SIZE ), extraCaheSize
                     ),
-                new DirectFileCacheStore( tmpFile ),
+                new FileChannelCacheStore( tmpFile ),
                 new CoalescingFreeBlockManager()
             );
         }
@@ -938,7 +967,8 @@ public final class LCTileCache extends Observable
     private static final int CHUNK_SIZE = 16 * 1024 * 1024;
 
     public synchronized void dispose() throws IOException {
-        m_objectCache.dispose();
+        if (m_objectCache != null)
+            m_objectCache.dispose();
 
         // Close and delete the old cache file
         if (m_tileReaper != null)
@@ -956,20 +986,40 @@ public final class LCTileCache extends Observable
         super.finalize();
     }
 
-    private long tilesWritten = 0;
-    private long tilesRead = 0;
-    private long tilesOnDisk = 0;
+    private final AtomicLong tilesWritten = new AtomicLong();
+    private final AtomicLong tilesRead = new AtomicLong();
+    private final AtomicLong tilesOnDisk = new AtomicLong();
 
     public long tilesWritten() {
-        return tilesWritten;
+        return tilesWritten.get();
     }
 
     public long tilesRead() {
-        return tilesRead;
+        return tilesRead.get();
     }
 
     public long tilesOnDisk() {
-        return tilesOnDisk;
+        return tilesOnDisk.get();
+    }
+
+    /**
+     * The ratio between the raw and the compressed size of the tiles
+     * spilled to disk so far, 1 if nothing was compressed.
+     */
+    public float spillCompressionRatio() {
+        if (m_objectBroker == null || m_objectBroker.getEncodedBytes() == 0)
+            return 1;
+        return m_objectBroker.getRawBytes() / (float) m_objectBroker.getEncodedBytes();
+    }
+
+    /** Time spent compressing spilled tiles, in milliseconds */
+    public long spillEncodeTime() {
+        return m_objectBroker != null ? m_objectBroker.getEncodeTime() / 1000000 : 0;
+    }
+
+    /** Time spent decompressing spilled tiles, in milliseconds */
+    public long spillDecodeTime() {
+        return m_objectBroker != null ? m_objectBroker.getDecodeTime() / 1000000 : 0;
     }
 
     private Raster readTileFromDisk(RenderedImage owner, int tileX, int tileY, Object key) {
@@ -978,25 +1028,26 @@ public final class LCTileCache extends Observable
             DataBuffer db = sm.createDataBuffer();
 
             try {
+                Object data;
                 switch (db.getDataType()) {
                     case DataBuffer.TYPE_BYTE:
-                        m_objectCache.getOnce(key, ((DataBufferByte) db).getData());
+                        data = m_objectCache.getOnce(key, ((DataBufferByte) db).getData());
                         break;
 
                     case DataBuffer.TYPE_USHORT:
-                        m_objectCache.getOnce(key, ((DataBufferUShort) db).getData());
+                        data = m_objectCache.getOnce(key, ((DataBufferUShort) db).getData());
                         break;
 
                     case DataBuffer.TYPE_INT:
-                        m_objectCache.getOnce(key, ((DataBufferInt) db).getData());
+                        data = m_objectCache.getOnce(key, ((DataBufferInt) db).getData());
                         break;
 
                     default:
                         throw new IllegalArgumentException("unsupported image type " + db.getClass());
                 }
-                synchronized (this) {
-                    tilesOnDisk--;
-                }
+                if (data == null)
+                    return null;
+                tilesOnDisk.decrementAndGet();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -1015,9 +1066,7 @@ public final class LCTileCache extends Observable
                                                         new Point(tileX * owner.getTileWidth(),
                                                                   tileY * owner.getTileHeight()));
             }
-            synchronized (this) {
-                tilesRead++;
-            }
+            tilesRead.incrementAndGet();
             return raster;
         } else
             return null;
@@ -1044,100 +1093,32 @@ public final class LCTileCache extends Observable
                 default:
                     throw new IllegalArgumentException("unsupported image type " + db.getClass());
             }
-            synchronized (this) {
-                tilesOnDisk++;
-            }
+            tilesOnDisk.incrementAndGet();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        synchronized (this) {
-            tilesWritten++;
-        }
+        tilesWritten.incrementAndGet();
     }
 
     // comparator based memory control (TreeSet)
-    private final void custom_memory_control() {
-        long limit = (long)(memoryCapacity * memoryThreshold);
-        Iterator iter = cacheSortedSet.iterator();
-        LCCachedTile ct;
-
-        while( iter.hasNext() && (memoryUsage > limit) ) {
-            ct = (LCCachedTile) iter.next();
-
-            memoryUsage -= ct.memorySize;
-            synchronized (this) {
-                tileCount--;
-            }
-
-            // remove from sorted set
-            try {
-                iter.remove();
-            } catch(ConcurrentModificationException e) {
-                ImagingListener listener =
-                    ImageUtil.getImagingListener((RenderingHints)null);
-                listener.errorOccurred("something wrong with the TileCache",
-                                       e, this, false);
-//                e.printStackTrace();
-            }
-
-            // remove tile from the linked list
-            if ( ct == first ) {
-                if ( ct == last ) {
-                    first = null;
-                    last  = null;
-                } else {
-                    first = ct.next;
-
-                    if ( first != null ) {
-                        first.previous = null;
-                        first.next = ct.next.next;
-                    }
-                }
-            } else if ( ct == last ) {
-                last = ct.previous;
-
-                if ( last != null ) {
-                    last.next = null;
-                    last.previous = ct.previous.previous;
-                }
-            } else {
-                LCCachedTile ptr = first.next;
+    private void custom_memory_control(long limit) {
+        // Take a snapshot of the sorted set: the segment locks are always
+        // acquired before the set lock, never after it.
+        Object[] sorted = cacheSortedSet.toArray();
 
-                while( ptr != null ) {
+        for (int i = 0; i < sorted.length && memoryUsage.get() > limit; i++) {
+            LCCachedTile ct = (LCCachedTile) sorted[i];
 
-                    if ( ptr == ct ) {
-                        if ( ptr.previous != null ) {
-                            ptr.previous.next = ptr.next;
-                        }
-
-                        if ( ptr.next != null ) {
-                            ptr.next.previous = ptr.previous;
-                        }
-
-                        break;
-                    }
-
-                    ptr = ptr.next;
-                }
-            }
-
-            // remove reference in the hashtable
-            cache.remove(ct.key);
-
-            // diagnostics
-            if ( diagnostics ) {
-                ct.action = REMOVE_FROM_MEMCON;
-                setChanged();
-                notifyObservers(ct);
-            }
+            // removes the tile from the sorted set as well
+            removeFromTileList(ct.key, REMOVE_FROM_MEMCON);
         }
 
         // If the custom memory control didn't release sufficient
         // number of tiles to satisfy the memory limit, fallback
         // to the standard memory controller.
-        if ( memoryUsage > limit ) {
-            standard_memory_control();
+        if ( memoryUsage.get() > limit ) {
+            standard_memory_control(limit);
         }
     }
 
@@ -1163,15 +1144,13 @@ public final class LCTileCache extends Observable
                 cacheSortedSet = null;
             }
         } else {
-            // copy tiles from hashtable to sorted tree set
+            // copy tiles from the segments to sorted tree set
             cacheSortedSet = Collections.synchronizedSortedSet( new TreeSet(comparator) );
 
-            Enumeration keys = cache.keys();
-
-            while( keys.hasMoreElements() ) {
-                Object key = keys.nextElement();
-                Object ct = cache.get(key);
-                cacheSortedSet.add(ct);
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    cacheSortedSet.addAll(segment.tiles.values());
+                }
             }
         }
     }
@@ -1188,8 +1167,15 @@ public final class LCTileCache extends Observable
     // test
     public void dump() {
 
-        System.out.println("first = " + first);
-        System.out.println("last  = " + last);
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                System.out.println("segment " + i + " first = " + segments[i].first);
+                System.out.println("segment " + i + " last  = " + segments[i].last);
+            }
+        }
+
+        if (cacheSortedSet == null)
+            return;
 
         Iterator iter = cacheSortedSet.iterator();
         int k = 0;
@@ -1234,24 +1220,30 @@ public final class LCTileCache extends Observable
                     if ( tileCache == null )
                         break;
 
-                    synchronized ( tileCache ) {
-                        // System.out.println( "Removing tiles from caches" );
+                    // System.out.println( "Removing tiles from caches" );
 
-                        Set hashKeys = (Set) tileCache.m_imageMap.remove(weakKey);
+                    final Set<Object> hashKeys =
+                        tileCache.m_imageMap.remove(weakKey);
 
-                        assert hashKeys != null;
+                    // A reference that lost the race to be put in the map
+                    if ( hashKeys == null )
+                        continue;
 
-                        for ( Iterator i = hashKeys.iterator(); i.hasNext(); ) {
-                            Object o = i.next();
+                    final Object[] keys;
+                    synchronized ( hashKeys ) {
+                        keys = hashKeys.toArray();
+                    }
+
+                    for ( Object o : keys ) {
+                        Segment segment = tileCache.segmentFor(o);
 
-                            if (tileCache.removeFromTileList(o, REMOVE_FROM_GCEVENT)) {
+                        synchronized ( segment ) {
+                            if (tileCache.removeFromTileList(segment, o, REMOVE_FROM_GCEVENT)) {
                                 // System.out.println("removed entry from memory cache");
                             }
 
                             if (tileCache.m_objectCache.remove(o)) {
-                                synchronized (tileCache) {
-                                    tileCache.tilesOnDisk--;
-                                }
+                                tileCache.tilesOnDisk.decrementAndGet();
                                 // System.out.println("removed entry from disk cache");
                             }
                         }
@@ -1313,9 +1305,60 @@ public final class LCTileCache extends Observable
     }
 
     /**
-     * This is a set of {@link WeakReference}s to {@link RenderedImage}s.
+     * A <code>Segment</code> is an independently locked slice of the cache:
+     * a hash map of the tiles whose key hashes to it, and the LRU linked list
+     * of those tiles.  All fields are guarded by the segment's monitor.
+     */
+    private static final class Segment {
+
+        /** The tiles of this segment keyed by their hash key. */
+        final Map<Object, LCCachedTile> tiles =
+            new HashMap<Object, LCCachedTile>(DEFAULT_HASHTABLE_CAPACITY / SEGMENT_COUNT,
+                                              LOAD_FACTOR);
+
+        /** Pointer to the first (newest) tile of the linked LCCachedTile list. */
+        LCCachedTile first;
+
+        /** Pointer to the last (oldest) tile of the linked LCCachedTile list. */
+        LCCachedTile last;
+    }
+
+    /**
+     * An <code>OwnerRef</code> is-a {@link WeakReference} to a
+     * {@link RenderedImage} that owns tiles.  It hashes and compares by the
+     * identity of the image so that the image's entry in
+     * {@link #m_imageMap} is found without scanning the map.  Once cleared,
+     * it only equals itself.
+     */
+    private static final class OwnerRef extends WeakReference<RenderedImage> {
+
+        OwnerRef( RenderedImage owner, ReferenceQueue<? super RenderedImage> queue ) {
+            super( owner, queue );
+            m_hash = System.identityHashCode( owner );
+        }
+
+        public int hashCode() {
+            return m_hash;
+        }
+
+        public boolean equals( Object o ) {
+            if ( o == this )
+                return true;
+            if ( !(o instanceof OwnerRef) )
+                return false;
+            final RenderedImage owner = get();
+            return owner != null && owner == ((OwnerRef)o).get();
+        }
+
+        private final int m_hash;
+    }
+
+    /**
+     * The hash keys of the tiles of each {@link RenderedImage}, keyed by
+     * {@link OwnerRef}s to the images.  Each set is synchronized.
      */
-    private final Map m_imageMap = new HashMap();
+    private final ConcurrentHashMap<OwnerRef,Set<Object>> m_imageMap =
+        new ConcurrentHashMap<OwnerRef,Set<Object>>();
 
     /**
      * The {@link TileReaper} associated with this  <code>LCTileCache</code>.
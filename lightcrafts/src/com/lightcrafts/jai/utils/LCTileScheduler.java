@@ -25,11 +25,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import com.lightcrafts.mediax.jai.OpImage;
 import com.lightcrafts.mediax.jai.PlanarImage;
 import com.lightcrafts.mediax.jai.TileCache;
@@ -175,6 +177,15 @@ interface Job {
 
     /** Returns the first exception encountered or <code>null</code>. */
     Exception getException();
+
+    /** Returns the priority class of this job. */
+    LCTileScheduler.Priority getPriority();
+
+    /**
+     * Returns the sequence number of this job, jobs of the same priority
+     * class are processed in sequence order.
+     */
+    long getSequence();
 }
 
 /**
@@ -195,20 +206,26 @@ final class RequestJob implements Job {
     final Raster[] tiles;        // the computed tiles
     final int offset;            // offset into arrays
 
-    boolean done = false;        // flag indicating completion status
+    final LCTileScheduler.Priority priority; // the job's priority class
+    final long sequence;         // the job's sequence number
+
+    volatile boolean done = false; // flag indicating completion status
     Exception exception = null;	 // Any exception that might have occured
 				 // during computeTile
 
     /** Constructor. */
     RequestJob(LCTileScheduler scheduler,
                PlanarImage owner, int tileX, int tileY,
-               Raster[] tiles, int offset) {
+               Raster[] tiles, int offset,
+               LCTileScheduler.Priority priority) {
         this.scheduler = scheduler;
         this.owner = owner;
         this.tileX = tileX;
         this.tileY = tileY;
         this.tiles = tiles;
         this.offset = offset;
+        this.priority = priority;
+        this.sequence = scheduler.nextSequence();
     }
 
     /**
@@ -310,10 +327,9 @@ final class RequestJob implements Job {
         return owner;
     }
 
-    /** Always returns <code>true</code>. */
+    /** Always returns <code>false</code>, nobody waits on a request. */
     public boolean isBlocking() {
-        // Big Change: this should prevent enqueueing of new tiles while an image is being processed
-        return true;
+        return false;
     }
 
     /** Returns any encountered exception or <code>null</code>. */
@@ -321,6 +337,14 @@ final class RequestJob implements Job {
         return exception;
     }
 
+    public LCTileScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
     /** Returns a string representation of the class object. */
     public String toString() {
         String tString = "null";
@@ -350,6 +374,9 @@ final class TileJob implements Job {
     final int offset;          // offset into arrays
     final int numTiles;        // number of elements to use in indices array
 
+    final LCTileScheduler.Priority priority; // the job's priority class
+    final long sequence;        // the job's sequence number
+
     boolean done = false;       // flag indicating completion status
     Exception exception = null;	// The first exception that might have
 				// occured during computeTile
@@ -357,7 +384,8 @@ final class TileJob implements Job {
     /** Constructor. */
     TileJob(LCTileScheduler scheduler, boolean isBlocking,
             PlanarImage owner, Point[] tileIndices,
-            Raster[] tiles, int offset, int numTiles) {
+            Raster[] tiles, int offset, int numTiles,
+            LCTileScheduler.Priority priority) {
         this.scheduler = scheduler;
         this.isBlocking = isBlocking;
         this.owner = owner;
@@ -365,22 +393,41 @@ final class TileJob implements Job {
         this.tiles = tiles;
         this.offset = offset;
         this.numTiles = numTiles;
+        this.priority = priority;
+        this.sequence = scheduler.nextSequence();
     }
 
     /**
      * Tile computation. Does the actual calls to getTile().
      */
     public void compute() {
-        exception = scheduler.compute(owner, tileIndices, tiles,
-                                      offset, numTiles, null);
-        done = true;
+        Exception e = scheduler.compute(owner, tileIndices, tiles,
+                                        offset, numTiles, null);
+        synchronized (this) {
+            exception = e;
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the job to be computed by a worker thread.
+     */
+    synchronized void waitDone() {
+        while (!done) {
+            try {
+                wait();
+            } catch(InterruptedException ie) {
+                // Ignore: should never happen.
+            }
+        }
     }
 
     /**
      * Returns <code>true</code> if the job is not done; that is,
      * the tile is not computed and no exceptions have occurred.
      */
-    public boolean notDone() {
+    public synchronized boolean notDone() {
         return !done;
     }
 
@@ -395,33 +442,74 @@ final class TileJob implements Job {
     }
 
     /** Returns any encountered exception or <code>null</code>. */
-    public Exception getException() {
+    public synchronized Exception getException() {
         return exception;
     }
+
+    public LCTileScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+}
+
+/**
+ * A <code>Job</code> which causes the worker thread processing it to exit.
+ */
+final class TerminateJob implements Job {
+
+    final long sequence;
+
+    TerminateJob(LCTileScheduler scheduler) {
+        sequence = scheduler.nextSequence();
+    }
+
+    public void compute() { }
+
+    public boolean notDone() {
+        return false;
+    }
+
+    public PlanarImage getOwner() {
+        return null;
+    }
+
+    public boolean isBlocking() {
+        return false;
+    }
+
+    public Exception getException() {
+        return null;
+    }
+
+    /** Terminations are processed ahead of any tile computation. */
+    public LCTileScheduler.Priority getPriority() {
+        return LCTileScheduler.Priority.TERMINATE;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
 }
 
 /**
  * Worker thread that takes jobs from the tile computation queue and does
- * the actual computation.
+ * the actual computation.  All the workers share a single queue ordered by
+ * job priority, so that an idle worker always picks up the most urgent job
+ * available, whatever kind of request it was queued by.
  */
 class WorkerThread extends Thread {
 
-    /** <code>Object</code> indicating the the thread should exit. */
-    public static final Object TERMINATE = new Object();
-
     /** The scheduler that spawned this thread. */
     LCTileScheduler scheduler;
 
-    /** Whether this is a prefetch thread. */
-    boolean isPrefetch;
-
     /** Constructor. */
     public WorkerThread(ThreadGroup group,
-			LCTileScheduler scheduler,
-			boolean isPrefetch) {
+			LCTileScheduler scheduler) {
 	super(group, group.getName() + group.activeCount());
         this.scheduler = scheduler;
-        this.isPrefetch = isPrefetch;
 
         setDaemon(true);
         start();
@@ -429,32 +517,24 @@ class WorkerThread extends Thread {
 
     /** Does the tile computation. */
     public void run() {
-        LinkedList jobQueue = scheduler.getQueue(isPrefetch);
+        PriorityBlockingQueue<Job> jobQueue = scheduler.getQueue();
 
         while(true) {
-            Object dequeuedObject = null;
+            Job job;
 
-            // Check the job queue.
-            synchronized(jobQueue) {
-                if(jobQueue.size() > 0) {
-                    // Remove the first job.
-                    dequeuedObject = jobQueue.removeFirst();
-                } else {
-                    try {
-                        // Wait for a notify() on the queue.
-                        jobQueue.wait();
-                        continue;
-                    } catch(InterruptedException ie) {
-                        // Ignore: should never happen.
-                    }
-                }
+            try {
+                // Wait for the most urgent job.
+                job = jobQueue.take();
+            } catch(InterruptedException ie) {
+                // Ignore: should never happen.
+                continue;
             }
 
-            if(dequeuedObject == TERMINATE ||
+            if(job instanceof TerminateJob ||
 		getThreadGroup() == null || getThreadGroup().isDestroyed()) {
-                // Remove WorkerThread from appropriate Vector.
+                // Remove WorkerThread from the worker Vector.
                 Vector threads;
-                synchronized(threads = scheduler.getWorkers(isPrefetch)) {
+                synchronized(threads = scheduler.getWorkers()) {
                     threads.remove(this);
                 }
 
@@ -462,19 +542,8 @@ class WorkerThread extends Thread {
                 return;
             }
 
-            Job job = (Job)dequeuedObject;
-
             // Execute tile job.
-            if (job != null) {
-		job.compute();
-
-		// Notify the scheduler only if the Job is blocking.
-		if(job.isBlocking()) {
-		    synchronized(scheduler) {
-			scheduler.notify();
-		    }
-		}
-	    }
+            scheduler.runJob(job);
         } // infinite loop
     }
 }
@@ -485,10 +554,75 @@ class WorkerThread extends Thread {
  * a mechanism for scheduling tile calculation.  Multi-threading is
  * used whenever possible.
  *
+ * <p> Unlike <code>SunTileScheduler</code>, standard and prefetch jobs are
+ * processed by a single pool of worker threads sharing one priority queue.
+ * Jobs belong to a {@link Priority} class: tiles queued for the visible
+ * viewport are computed before export tiles, which are computed before
+ * prefetch tiles.  A thread blocking on <code>scheduleTiles()</code> runs
+ * those of its own jobs that no worker has picked up yet rather than idling.
+ *
  * @see com.lightcrafts.mediax.jai.TileScheduler
  */
 public final class LCTileScheduler implements TileScheduler {
 
+    /**
+     * The priority classes of tile computation jobs, from the most to the
+     * least urgent.
+     */
+    public enum Priority {
+        /** Reserved for worker thread termination. */
+        TERMINATE,
+        /** Tiles for the visible part of the image. */
+        INTERACTIVE,
+        /** Tiles somebody is blocking on, e.g.: export. */
+        EXPORT,
+        /** Speculative tile computation. */
+        PREFETCH
+    }
+
+    /**
+     * Queues tiles for computation at the given priority.  This is like
+     * <code>image.queueTiles(tileIndices)</code>, but the priority is used
+     * for the queued jobs if the image's scheduler is an
+     * <code>LCTileScheduler</code>.
+     *
+     * @param image The image the tiles belong to.
+     * @param tileIndices The indices of the tiles to be computed.
+     * @param priority The priority class for the tile computation.
+     * @return The <code>TileRequest</code> for the queued tiles.
+     */
+    public static TileRequest queueTiles(PlanarImage image,
+                                         Point[] tileIndices,
+                                         Priority priority) {
+        Priority oldPriority = currentPriority.get();
+        currentPriority.set(priority);
+        try {
+            return image.queueTiles(tileIndices);
+        } finally {
+            currentPriority.set(oldPriority);
+        }
+    }
+
+    /**
+     * The priority of the job currently being processed by a thread, or the
+     * priority requested through <code>queueTiles()</code>.  Jobs spawned by
+     * a tile computation inherit the priority of their parent.
+     */
+    private static final ThreadLocal<Priority> currentPriority =
+        new ThreadLocal<Priority>();
+
+    /** Orders jobs by priority class first and then by sequence number. */
+    private static final Comparator<Job> jobOrder = new Comparator<Job>() {
+        public int compare(Job a, Job b) {
+            int c = a.getPriority().compareTo(b.getPriority());
+            if (c != 0)
+                return c;
+            long sa = a.getSequence();
+            long sb = b.getSequence();
+            return sa < sb ? -1 : (sa == sb ? 0 : 1);
+        }
+    };
+
     /** The default number of worker threads. */
     private static final int NUM_THREADS_DEFAULT = 2;
 
@@ -511,12 +645,9 @@ public final class LCTileScheduler implements TileScheduler {
      */
     private ThreadGroup rootGroup;
 
-    /** The ThreadGroup contains all the standard jobs. */
+    /** The ThreadGroup contains all the worker threads. */
     private ThreadGroup standardGroup;
 
-    /** The ThreadGroup contains all the prefetch jobs. */
-    private ThreadGroup prefetchGroup;
-
     /** The worker thread parallelism. */
     private int parallelism = NUM_THREADS_DEFAULT;
 
@@ -529,42 +660,31 @@ public final class LCTileScheduler implements TileScheduler {
     /** The prefetch thread priority. */
     private int prefetchPriority = Thread.MIN_PRIORITY;
 
-    /** A job queue for tiles waiting to be computed by the worker threads. */
-    private LinkedList queue = null;
-
-    /** A job queue for tiles waiting to be computed by prefetch workers. */
-    private LinkedList prefetchQueue = null;
-
     /**
-     * A <code>Vector</code> of <code>WorkerThread</code>s that persist
-     * to do the actual tile computation for normal processing.  This
-     * variable should never be set to <code>null</code>.
+     * The job queue for tiles waiting to be computed by the worker threads,
+     * ordered by job priority.
      */
-    private Vector workers = new Vector();
+    private final PriorityBlockingQueue<Job> queue =
+        new PriorityBlockingQueue<Job>(64, jobOrder);
+
+    /** The job sequence number generator. */
+    private final AtomicLong sequence = new AtomicLong();
 
     /**
      * A <code>Vector</code> of <code>WorkerThread</code>s that persist
-     * to do the actual tile computation for prefetch processing.  This
-     * variable should never be set to <code>null</code>.
+     * to do the actual tile computation.  This variable should never be
+     * set to <code>null</code>.
      */
-    private Vector prefetchWorkers = new Vector();
+    private Vector workers = new Vector();
 
     /**
      * The effective number of worker threads; may differ from
      * <code>workers.size()</code> due to latency.  This value should
      * equal the size of <code>workers</code> less the number of
-     * <code>WorkerThread.TERMINATE</code>s in <code>queue</code>.
+     * <code>TerminateJob</code>s in <code>queue</code>.
      */
     private int numWorkerThreads = 0;
 
-    /**
-     * The effective number of prefetch worker threads; may differ from
-     * <code>prefetchWorkers.size()</code> due to latency.  This value should
-     * equal the size of <code>prefetchWorkers</code> less the number of
-     * <code>WorkerThread.TERMINATE</code>s in <code>prefetchQueue</code>.
-     */
-    private int numPrefetchThreads = 0;
-
     /**
      * <code>Map</code> of tiles currently being computed.  The key is
      * created from the image and tile indices by the <code>tileKey()</code>
@@ -683,9 +803,6 @@ public final class LCTileScheduler implements TileScheduler {
      * parallelism and priority values are set to default values.
      */
     public LCTileScheduler() {
-        queue = new LinkedList();
-        prefetchQueue = new LinkedList();
-
 	nameOfThisInstance = name + numInstances;
 	rootGroup = new ThreadGroup(nameOfThisInstance);
 	rootGroup.setDaemon(true);
@@ -694,13 +811,38 @@ public final class LCTileScheduler implements TileScheduler {
 	                                nameOfThisInstance + "Standard");
 	standardGroup.setDaemon(true);
 
-	prefetchGroup = new ThreadGroup(rootGroup,
-	                                nameOfThisInstance + "Prefetch");
-	prefetchGroup.setDaemon(true);
-
 	numInstances++;
     }
 
+    /** Returns the next job sequence number. */
+    long nextSequence() {
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Runs a job in the current thread, with the job's priority as the
+     * current priority so that any job spawned by the computation inherits
+     * it.  Prefetch jobs run at the prefetch thread priority.
+     */
+    void runJob(Job job) {
+        Thread thread = Thread.currentThread();
+        int threadPriority = thread.getPriority();
+        Priority oldPriority = currentPriority.get();
+
+        boolean isPrefetch = job.getPriority() == Priority.PREFETCH;
+        if (isPrefetch && threadPriority != prefetchPriority)
+            thread.setPriority(prefetchPriority);
+        currentPriority.set(job.getPriority());
+
+        try {
+            job.compute();
+        } finally {
+            currentPriority.set(oldPriority);
+            if (isPrefetch && threadPriority != prefetchPriority)
+                thread.setPriority(threadPriority);
+        }
+    }
+
     /**
      * Tile computation. Does the actual calls to getTile().
      */
@@ -1010,16 +1152,24 @@ public final class LCTileScheduler implements TileScheduler {
         Raster[] tiles = new Raster[numTiles];
         Object returnValue = tiles;
 
+        // Jobs spawned while computing a tile inherit the priority of the
+        // job being computed.
+        Priority priority = currentPriority.get();
+        if (isPrefetch)
+            priority = Priority.PREFETCH;
+        else if (priority == null)
+            priority = isBlocking ? Priority.EXPORT : Priority.INTERACTIVE;
+
         int numThreads = 0;
         Job[] jobs = null;
         int numJobs = 0;
 
-        synchronized(getWorkers(isPrefetch)) {
-            numThreads = getNumThreads(isPrefetch);
+        synchronized(getWorkers()) {
+            numThreads = getNumThreads();
 
             if(numThreads > 0) { // worker threads exist
                 if(numTiles <= numThreads ||       // no more tiles than threads
-                   (!isBlocking && !isPrefetch)) { // non-blocking, non-prefetch
+                   !isBlocking) {                  // non-blocking
 
                     jobs = new Job[numTiles];
 
@@ -1053,15 +1203,19 @@ public final class LCTileScheduler implements TileScheduler {
                                     jobs[numJobs] =
                                         new RequestJob(this,
                                                        owner, p.x, p.y,
-                                                       tiles, numJobs);
+                                                       tiles, numJobs,
+                                                       priority);
 
                                     tileJobs.put(tileID, jobs[numJobs]);
 
-                                    addJob(jobs[numJobs++], false);
+                                    addJob(jobs[numJobs++]);
                                 }
                             }
                         }
-                    } else { // numTiles <= numThreads
+                    } else { // numTiles <= numThreads or prefetch
+                        // Prefetch tiles are queued as single-tile jobs, so
+                        // that a worker picking one up never keeps more
+                        // urgent jobs waiting for long.
                         while(numJobs < numTiles) {
                             jobs[numJobs] = new TileJob(this,
                                                         isBlocking,
@@ -1069,8 +1223,9 @@ public final class LCTileScheduler implements TileScheduler {
                                                         tileIndices,
                                                         tiles,
                                                         numJobs,
-                                                        1);
-                            addJob(jobs[numJobs++], isPrefetch);
+                                                        1,
+                                                        priority);
+                            addJob(jobs[numJobs++]);
                         }
                     }
                 } else { // more tiles than worker threads
@@ -1138,10 +1293,11 @@ public final class LCTileScheduler implements TileScheduler {
                                                     tileIndices,
                                                     tiles,
                                                     numTilesQueued,
-                                                    numTilesInThread);
+                                                    numTilesInThread,
+                                                    priority);
 
                         // Queue the job and increment the job count.
-                        addJob(jobs[numJobs++], isPrefetch);
+                        addJob(jobs[numJobs++]);
 
                         // Increment the count of tiles queued.
                         numTilesQueued += numTilesInThread;
@@ -1155,18 +1311,16 @@ public final class LCTileScheduler implements TileScheduler {
             // There is no 'else' block for non-blocking as in that
             // case we just want to continue.
             if(isBlocking) {
-                LinkedList jobQueue = getQueue(isPrefetch);
+                // Rather than idling, compute the jobs that no worker has
+                // picked up yet.  This also prevents deadlocks when all the
+                // workers are blocking on tiles they have scheduled.
+                for (int i = numJobs - 1; i >= 0; i--) {
+                    if (queue.remove(jobs[i]))
+                        runJob(jobs[i]);
+                }
 
                 for (int i = 0; i < numJobs; i++) {
-                    synchronized(this) {
-                        while (jobs[i].notDone()) {
-                            try {
-                                wait();
-                            } catch(InterruptedException ie) {
-                                // Ignore: should never happen.
-                            }
-                        }
-                    }
+                    ((TileJob) jobs[i]).waitDone();
 
                     // XXX: should we re-throw the exception or
                     //      should we reschedule this job ?? krishnag
@@ -1313,13 +1467,13 @@ public final class LCTileScheduler implements TileScheduler {
                 reqList.remove(req);
 
                 // If the request list is now empty, dequeue the job and
-                // remove the tile from the hashes.
+                // remove the tile from the hashes.  If a worker has already
+                // dequeued the job it will find no request for the tile and
+                // skip the computation.
                 if(reqList.isEmpty()) {
-                    synchronized(queue) {
-                        Object job = tileJobs.remove(tileID);
-                        if(job != null) {
-                            queue.remove(job);
-                        }
+                    Object job = tileJobs.remove(tileID);
+                    if(job != null) {
+                        queue.remove(job);
                     }
                     tileRequests.remove(tileID);
                 }
@@ -1395,6 +1549,10 @@ public final class LCTileScheduler implements TileScheduler {
     /**
      * Identical to <code>setParallelism()</code> but applies only to
      * <code>prefetchTiles()</code>.
+     *
+     * <p> In this implementation prefetch jobs are processed by the same
+     * worker threads as the other jobs, at the lowest priority, this value
+     * is only recorded.
      */
     public void setPrefetchParallelism(int parallelism) {
         if (parallelism < 0) {
@@ -1466,28 +1624,19 @@ public final class LCTileScheduler implements TileScheduler {
      * Thus, the old workers should be terminated and new i
      * <code>ThreadGroup</code> and workers should be created.
      */
-//    private synchronized void createThreadGroup(boolean isPrefetch) {
-    private void createThreadGroup(boolean isPrefetch) {
+    private void createThreadGroup() {
         if (rootGroup == null || rootGroup.isDestroyed()) {
             rootGroup = new ThreadGroup(nameOfThisInstance);
             rootGroup.setDaemon(true);
         }
 
-	if (isPrefetch &&
-	    (prefetchGroup == null || prefetchGroup.isDestroyed())) {
-            prefetchGroup = new ThreadGroup(rootGroup,
-                                        nameOfThisInstance + "Prefetch");
-            prefetchGroup.setDaemon(true);
-	}
-
-	if (!isPrefetch &&
-	    (standardGroup == null || standardGroup.isDestroyed())) {
+	if (standardGroup == null || standardGroup.isDestroyed()) {
             standardGroup = new ThreadGroup(rootGroup,
                                         nameOfThisInstance + "Standard");
             standardGroup.setDaemon(true);
 	}
 
-	Vector thr = getWorkers(isPrefetch);
+	Vector thr = getWorkers();
         int size = thr.size();
 
         for(int i = size - 1; i >= 0; i--) {
@@ -1496,39 +1645,23 @@ public final class LCTileScheduler implements TileScheduler {
 		thr.remove(t);
 	}
 
-	if (isPrefetch)
-	    numPrefetchThreads = thr.size();
-	else
-	    numWorkerThreads = thr.size();
-
+	numWorkerThreads = thr.size();
     }
 
     /**
-     * Returns the effective number of threads of the specified type.
-     * This method also updates the number and priority of threads of
-     * the specified type according to the global settings. This method
-     * may add <code>WorkerThread.TERMINATE</code>s to the appropriate
-     * queue if there are too many effective threads.
+     * Returns the effective number of worker threads.  This method also
+     * updates the number and priority of the threads according to the
+     * global settings. This method may add <code>TerminateJob</code>s to
+     * the queue if there are too many effective threads.
      */
-    private int getNumThreads(boolean isPrefetch) {
-	createThreadGroup(isPrefetch);
+    private int getNumThreads() {
+	createThreadGroup();
 
         // Local variables.
-        Vector thr = getWorkers(isPrefetch);
-        int nthr;
-        int prll;
-        int prty;
-
-        // Set local variables depending on the thread type.
-        if(isPrefetch) {
-            nthr = numPrefetchThreads;
-            prll = prefetchParallelism;
-            prty = prefetchPriority;
-        } else {
-            nthr = numWorkerThreads;
-            prll = parallelism;
-            prty = priority;
-        }
+        Vector thr = getWorkers();
+        int nthr = numWorkerThreads;
+        int prll = parallelism;
+        int prty = priority;
 
         // Update priority if it has changed.
         if(nthr > 0 &&
@@ -1546,97 +1679,59 @@ public final class LCTileScheduler implements TileScheduler {
             // Not enough processing threads.
             // Add more threads at current priority.
             while(nthr < prll) {
-                Thread t =
-		    new WorkerThread(isPrefetch ? prefetchGroup : standardGroup,
-				     this, isPrefetch);
+                Thread t = new WorkerThread(standardGroup, this);
 
                 t.setPriority(prty);
                 thr.add(t);
                 nthr++;
             }
         } else {
-            // Too many processing threads: queue WorkerThread.TERMINATEs.
-            // WorkerThread will remove itself later from the appropriate
-            // Vector.
+            // Too many processing threads: queue TerminateJobs.
+            // WorkerThread will remove itself later from the Vector.
             while(nthr > prll) {
-                addJob(WorkerThread.TERMINATE, isPrefetch);
+                addJob(new TerminateJob(this));
                 nthr--;
             }
         }
 
         // Update the number of effective threads.
-        if(isPrefetch) {
-            numPrefetchThreads = nthr;
-        } else {
-            numWorkerThreads = nthr;
-        }
+        numWorkerThreads = nthr;
 
         return nthr;
     }
 
-    /** Returns the appropriate worker list. */
-    Vector getWorkers(boolean isPrefetch) {
-        return isPrefetch ? workers : prefetchWorkers;
+    /** Returns the worker list. */
+    Vector getWorkers() {
+        return workers;
     }
 
-    /** Returns the appropriate queue. */
-    LinkedList getQueue(boolean isPrefetch) {
-        return isPrefetch ? prefetchQueue : queue;
+    /** Returns the job queue. */
+    PriorityBlockingQueue<Job> getQueue() {
+        return queue;
     }
 
-    /** Append a job to the appropriate queue. */
-    private void addJob(Object job, boolean isPrefetch) {
-        if(job == null ||
-           (job != WorkerThread.TERMINATE && !(job instanceof Job))) {
+    /** Adds a job to the queue. */
+    private void addJob(Job job) {
+        if(job == null) {
             // Programming error: deliberately no message.
             throw new IllegalArgumentException();
         }
-
-        LinkedList jobQueue;
-        synchronized(jobQueue = getQueue(isPrefetch)) {
-            if(isPrefetch ||
-               jobQueue.isEmpty() ||
-               job instanceof RequestJob) {
-                // Append job to queue.
-                jobQueue.addLast(job);
-            } else {
-                // If the queue is non-empty or the job is a TileJob
-                // insert the job after the last TileJob in the queue.
-                boolean inserted = false;
-                for(int idx = jobQueue.size() - 1; idx >= 0; idx--) {
-                    if(jobQueue.get(idx) instanceof TileJob) {
-                        jobQueue.add(idx+1, job);
-                        inserted = true;
-                        break;
-                    }
-                }
-                if(!inserted) {
-                    jobQueue.addFirst(job);
-                }
-            }
-            jobQueue.notify();
-        }
+        queue.add(job);
     }
 
-    /** Queue WorkerThread.TERMINATEs to all workers. */
+    /** Queue TerminateJobs to all workers. */
     protected void finalize() throws Throwable {
-        terminateAll(false);
-        terminateAll(true);
+        terminateAll();
         super.finalize();
     }
 
-    /** Queue WorkerThread.TERMINATEs to all appropriate workers. */
-    private void terminateAll(boolean isPrefetch) {
-        synchronized(getWorkers(isPrefetch)) {
-            int numThreads = isPrefetch ?
-                numPrefetchThreads : numWorkerThreads;
+    /** Queue TerminateJobs to all workers. */
+    private void terminateAll() {
+        synchronized(getWorkers()) {
+            int numThreads = numWorkerThreads;
             for(int i = 0; i < numThreads; i++) {
-                addJob(WorkerThread.TERMINATE, isPrefetch);
-                if(isPrefetch) {
-                    numPrefetchThreads--;
-                } else {
-                    numWorkerThreads--;
-                }
+                addJob(new TerminateJob(this));
+                numWorkerThreads--;
             }
         }
     }
@@ -0,0 +1,360 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.utils;
+
+import com.lightcrafts.utils.LCArrays;
+import com.lightcrafts.utils.cache.CacheObjectBroker;
+import com.lightcrafts.utils.cache.CacheObjectCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link CacheObjectBroker} used by {@link LCTileCache} to spill tile
+ * data arrays (<code>byte[]</code>, <code>short[]</code> or
+ * <code>int[]</code>) to disk.
+ * <p>
+ * Without a codec the arrays are stored as-is.  With a
+ * {@link CacheObjectCodec} the samples are first delta coded (with the
+ * pixel stride that works best on the tile) and split into byte planes, so
+ * that the mostly small differences of neighboring pixels leave long runs
+ * of equal bytes for the codec to squeeze.  Each encoded tile starts with
+ * a two byte header: whether the codec output was kept and the delta
+ * stride.
+ */
+final class TileCacheCacheObjectBroker implements CacheObjectBroker {
+
+    /**
+     * Construct a <code>TileCacheCacheObjectBroker</code>.
+     *
+     * @param codec The {@link CacheObjectCodec} to compress tiles with or
+     * <code>null</code> to store them uncompressed.
+     */
+    TileCacheCacheObjectBroker( CacheObjectCodec codec ) {
+        m_codec = codec;
+    }
+
+    public int getEncodedSizeOf( Object obj ) {
+        final int size = getRawSizeOf( obj );
+        return m_codec != null ?
+            HEADER_SIZE + Math.max( size, m_codec.getMaxEncodedSize( size ) ) :
+            size;
+    }
+
+    // Heap buffers are copied natively, direct buffers (from a
+    // FileChannelCacheStore or a NativeByteBufferAllocator) are read
+    // straight into the raster's array through a bulk view.
+
+    public Object decodeFromByteBuffer( ByteBuffer buf, Object obj ) {
+        if ( m_codec != null ) {
+            decompress( buf, obj );
+            return obj;
+        }
+        if ( obj instanceof byte[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( buf.array(), 0, (byte[])obj, 0, buf.capacity() );
+            else
+                buf.get( (byte[])obj, 0, buf.capacity() );
+        } else if ( obj instanceof short[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( buf.array(), 0, (short[])obj, 0, buf.capacity() );
+            else
+                buf.asShortBuffer().get( (short[])obj, 0, buf.capacity() / 2 );
+        } else if ( obj instanceof int[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( buf.array(), 0, (int[])obj, 0, buf.capacity() );
+            else
+                buf.asIntBuffer().get( (int[])obj, 0, buf.capacity() / 4 );
+        } else
+            throw new IllegalArgumentException(
+                "can't decode " + obj.getClass()
+            );
+        return obj;
+    }
+
+    public void encodeToByteBuffer( ByteBuffer buf, Object obj ) {
+        if ( m_codec != null ) {
+            compress( buf, obj );
+            return;
+        }
+        if ( obj instanceof byte[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( (byte[])obj, 0, buf.array(), 0, buf.capacity() );
+            else
+                buf.put( (byte[])obj, 0, buf.capacity() );
+        } else if ( obj instanceof short[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( (short[])obj, 0, buf.array(), 0, buf.capacity() );
+            else
+                buf.asShortBuffer().put( (short[])obj, 0, buf.capacity() / 2 );
+        } else if ( obj instanceof int[] ) {
+            if ( buf.hasArray() )
+                LCArrays.copy( (int[])obj, 0, buf.array(), 0, buf.capacity() );
+            else
+                buf.asIntBuffer().put( (int[])obj, 0, buf.capacity() / 4 );
+        } else
+            throw new IllegalArgumentException(
+                "can't encode " + obj.getClass()
+            );
+        buf.position( 0 );
+    }
+
+    /**
+     * Gets the total size of the tiles given to the codec.
+     *
+     * @return Returns said size (in bytes).
+     */
+    long getRawBytes() {
+        return m_rawBytes.get();
+    }
+
+    /**
+     * Gets the total size of the tiles once encoded.
+     *
+     * @return Returns said size (in bytes).
+     */
+    long getEncodedBytes() {
+        return m_encodedBytes.get();
+    }
+
+    /**
+     * Gets the total time spent encoding tiles.
+     *
+     * @return Returns said time (in nanoseconds).
+     */
+    long getEncodeTime() {
+        return m_encodeTime.get();
+    }
+
+    /**
+     * Gets the total time spent decoding tiles.
+     *
+     * @return Returns said time (in nanoseconds).
+     */
+    long getDecodeTime() {
+        return m_decodeTime.get();
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    private static int getRawSizeOf( Object obj ) {
+        if ( obj instanceof byte[] )
+            return ((byte[])obj).length;
+        else if ( obj instanceof short[] )
+            return ((short[])obj).length * 2;
+        else if ( obj instanceof int[] )
+            return ((int[])obj).length * 4;
+        else
+            throw new IllegalArgumentException(
+                "can't get size of " + obj.getClass()
+            );
+    }
+
+    private void compress( ByteBuffer buf, Object obj ) {
+        final long start = System.nanoTime();
+        final int rawSize = getRawSizeOf( obj );
+        final byte[] filtered = getScratch( 0, rawSize );
+        final int stride;
+        if ( obj instanceof byte[] ) {
+            stride = bestStride( (byte[])obj );
+            filter( (byte[])obj, stride, filtered );
+        } else if ( obj instanceof short[] ) {
+            stride = bestStride( (short[])obj );
+            filter( (short[])obj, stride, filtered );
+        } else {
+            stride = 1;
+            filter( (int[])obj, filtered );
+        }
+
+        final byte[] encoded =
+            getScratch( 1, m_codec.getMaxEncodedSize( rawSize ) );
+        final int encodedSize = m_codec.encode( filtered, rawSize, encoded );
+
+        buf.position( 0 );
+        if ( encodedSize < rawSize ) {
+            buf.put( COMPRESSED );
+            buf.put( (byte)stride );
+            buf.put( encoded, 0, encodedSize );
+        } else {
+            buf.put( STORED );
+            buf.put( (byte)stride );
+            buf.put( filtered, 0, rawSize );
+        }
+        buf.limit( buf.position() );
+        buf.position( 0 );
+
+        m_rawBytes.addAndGet( rawSize );
+        m_encodedBytes.addAndGet( buf.limit() );
+        m_encodeTime.addAndGet( System.nanoTime() - start );
+    }
+
+    private void decompress( ByteBuffer buf, Object obj ) {
+        final long start = System.nanoTime();
+        final int rawSize = getRawSizeOf( obj );
+        buf.position( 0 );
+        final byte method = buf.get();
+        final int stride = buf.get();
+        final int payloadSize = buf.limit() - HEADER_SIZE;
+
+        final byte[] filtered = getScratch( 0, rawSize );
+        if ( method == COMPRESSED ) {
+            final byte[] encoded = getScratch( 1, payloadSize );
+            buf.get( encoded, 0, payloadSize );
+            m_codec.decode( encoded, payloadSize, filtered, rawSize );
+        } else
+            buf.get( filtered, 0, rawSize );
+        buf.position( 0 );
+
+        if ( obj instanceof byte[] )
+            unfilter( filtered, stride, (byte[])obj );
+        else if ( obj instanceof short[] )
+            unfilter( filtered, stride, (short[])obj );
+        else
+            unfilter( filtered, (int[])obj );
+
+        m_decodeTime.addAndGet( System.nanoTime() - start );
+    }
+
+    /**
+     * Pick the delta stride, i.e., the number of interleaved bands, that
+     * gives the smallest differences over the beginning of the tile.
+     */
+    private static int bestStride( byte[] data ) {
+        final int n = Math.min( data.length, STRIDE_SAMPLES );
+        int best = 1;
+        long bestSum = Long.MAX_VALUE;
+        for ( int stride = 1; stride <= MAX_STRIDE; ++stride ) {
+            long sum = 0;
+            for ( int i = stride; i < n; ++i )
+                sum += Math.abs( (byte)(data[ i ] - data[ i - stride ]) );
+            if ( sum < bestSum ) {
+                bestSum = sum;
+                best = stride;
+            }
+        }
+        return best;
+    }
+
+    private static int bestStride( short[] data ) {
+        final int n = Math.min( data.length, STRIDE_SAMPLES );
+        int best = 1;
+        long bestSum = Long.MAX_VALUE;
+        for ( int stride = 1; stride <= MAX_STRIDE; ++stride ) {
+            long sum = 0;
+            for ( int i = stride; i < n; ++i )
+                sum += Math.abs( (short)(data[ i ] - data[ i - stride ]) );
+            if ( sum < bestSum ) {
+                bestSum = sum;
+                best = stride;
+            }
+        }
+        return best;
+    }
+
+    private static void filter( byte[] data, int stride, byte[] out ) {
+        for ( int i = 0; i < stride && i < data.length; ++i )
+            out[ i ] = data[ i ];
+        for ( int i = stride; i < data.length; ++i )
+            out[ i ] = (byte)(data[ i ] - data[ i - stride ]);
+    }
+
+    private static void unfilter( byte[] in, int stride, byte[] data ) {
+        for ( int i = 0; i < stride && i < data.length; ++i )
+            data[ i ] = in[ i ];
+        for ( int i = stride; i < data.length; ++i )
+            data[ i ] = (byte)(in[ i ] + data[ i - stride ]);
+    }
+
+    /**
+     * The deltas are zig-zag coded so that small negative values have a
+     * zero high byte, then the low and high bytes go to separate planes.
+     */
+    private static void filter( short[] data, int stride, byte[] out ) {
+        final int n = data.length;
+        for ( int i = 0; i < n; ++i ) {
+            final int delta =
+                (short)(i < stride ? data[ i ] : data[ i ] - data[ i - stride ]);
+            final int zigzag = (delta << 1) ^ (delta >> 31);
+            out[ i ] = (byte)zigzag;
+            out[ n + i ] = (byte)(zigzag >>> 8);
+        }
+    }
+
+    private static void unfilter( byte[] in, int stride, short[] data ) {
+        final int n = data.length;
+        for ( int i = 0; i < n; ++i ) {
+            final int zigzag = (in[ i ] & 0xFF) | (in[ n + i ] & 0xFF) << 8;
+            final int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+            data[ i ] = (short)(i < stride ? delta : data[ i - stride ] + delta);
+        }
+    }
+
+    /**
+     * Packed pixels: split the four bytes into planes and delta code each
+     * plane.
+     */
+    private static void filter( int[] data, byte[] out ) {
+        final int n = data.length;
+        for ( int plane = 0; plane < 4; ++plane ) {
+            final int shift = plane * 8;
+            final int base = plane * n;
+            int prev = 0;
+            for ( int i = 0; i < n; ++i ) {
+                final int b = data[ i ] >>> shift;
+                out[ base + i ] = (byte)(b - prev);
+                prev = b;
+            }
+        }
+    }
+
+    private static void unfilter( byte[] in, int[] data ) {
+        final int n = data.length;
+        for ( int i = 0; i < n; ++i )
+            data[ i ] = 0;
+        for ( int plane = 0; plane < 4; ++plane ) {
+            final int shift = plane * 8;
+            final int base = plane * n;
+            int prev = 0;
+            for ( int i = 0; i < n; ++i ) {
+                prev = (prev + in[ base + i ]) & 0xFF;
+                data[ i ] |= prev << shift;
+            }
+        }
+    }
+
+    /**
+     * Gets one of the per-thread scratch arrays, growing it as needed.
+     */
+    private byte[] getScratch( int which, int size ) {
+        final byte[][] scratch = m_scratch.get();
+        if ( scratch[ which ] == null || scratch[ which ].length < size )
+            scratch[ which ] = new byte[ size ];
+        return scratch[ which ];
+    }
+
+    private static final byte STORED = 0;
+    private static final byte COMPRESSED = 1;
+
+    private static final int HEADER_SIZE = 2;
+
+    /** Candidate delta strides, up to the number of bands of RGBA data. */
+    private static final int MAX_STRIDE = 4;
+
+    /** How many samples are looked at to choose the delta stride. */
+    private static final int STRIDE_SAMPLES = 4096;
+
+    private final CacheObjectCodec m_codec;
+
+    private final AtomicLong m_rawBytes = new AtomicLong();
+    private final AtomicLong m_encodedBytes = new AtomicLong();
+    private final AtomicLong m_encodeTime = new AtomicLong();
+    private final AtomicLong m_decodeTime = new AtomicLong();
+
+    private final ThreadLocal<byte[][]> m_scratch =
+        new ThreadLocal<byte[][]>() {
+            protected byte[][] initialValue() {
+                return new byte[ 2 ][];
+            }
+        };
+}
+/* vim:set et sw=4 ts=4: */
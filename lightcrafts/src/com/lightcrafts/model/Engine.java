@@ -259,6 +259,14 @@ public interface Engine {
      */
     List getDebugItems();
 
+    /**
+     * Tell this Engine that its Component is shown for interactive editing,
+     * so it can start background work that only pays off there, like caching
+     * smaller versions of the image for zoomed out views.  Engines that only
+     * render or export, for batch processing or previews, never get this.
+     */
+    void setInteractive();
+
     /**
      * Clean up whatever resources this Engine is holding.  Call this only
      * after this Engine's Component has been removed from any display.
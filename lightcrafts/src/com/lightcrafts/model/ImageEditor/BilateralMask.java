@@ -0,0 +1,115 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.model.ImageEditor;
+
+import com.lightcrafts.jai.JAIContext;
+import com.lightcrafts.jai.opimage.BilateralUpsampleOpImage;
+import com.lightcrafts.jai.opimage.FastBilateralFilterOpImage;
+import com.lightcrafts.mediax.jai.*;
+import com.lightcrafts.utils.ColorScience;
+
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Bilateral filter masks for the tone mapper.  FastBilateralFilterOpImage
+ * pads every tile by twice the spatial sigma, so at large sigmas most of
+ * its work is redone for every tile.  Instead, large masks are computed once
+ * for the whole image on a downsampled grid, where the sigma is small, and
+ * tiles of the full resolution mask are upsampled from it on demand by
+ * BilateralUpsampleOpImage.  The grids are computed by the first tile that
+ * needs them, and are cached by source image and mask parameters, so they
+ * survive the slider changes that don't affect them.
+ */
+class BilateralMask {
+
+    // Masks with a spatial sigma up to this are computed at full resolution,
+    // larger ones on a grid downsampled by powers of two to about this sigma.
+    // The filter itself samples space at about sigma, so this loses little.
+    private final static float MaxSigma = 8;
+
+    // The downsampled source and its mask, by source and mask parameters
+    private final static Map<RenderedImage, Map<List<Float>, SoftReference<BilateralUpsampleOpImage.Grid>>> Grids =
+        new WeakHashMap<RenderedImage, Map<List<Float>, SoftReference<BilateralUpsampleOpImage.Grid>>>();
+
+    /**
+     * Create the mask for the given image, the two banded result of
+     * FastBilateralFilterOpImage on its luminance.
+     */
+    static PlanarImage create(PlanarImage source, float sigma_d, float sigma_r) {
+        RenderedImage singleChannel = getLuminance(source);
+
+        if (sigma_d <= MaxSigma)
+            return new FastBilateralFilterOpImage(singleChannel,
+                                                  JAIContext.fileCacheHint,
+                                                  sigma_d, sigma_r);
+
+        BilateralUpsampleOpImage.Grid grid = getGrid(source, singleChannel, sigma_d, sigma_r);
+
+        return new BilateralUpsampleOpImage(singleChannel, grid,
+                                            getRatio(sigma_d), sigma_r,
+                                            JAIContext.fileCacheHint);
+    }
+
+    private static RenderedImage getLuminance(PlanarImage source) {
+        if (source.getColorModel().getNumComponents() == 3) {
+            double[][] yChannel = new double[][]{{ColorScience.Wr, ColorScience.Wg, ColorScience.Wb, 0}};
+
+            ParameterBlock pb = new ParameterBlock();
+            pb.addSource( source );
+            pb.add( yChannel );
+            return JAI.create("BandCombine", pb, null);
+        } else
+            return source;
+    }
+
+    private static int getRatio(float sigma_d) {
+        int ratio = 1;
+        while (sigma_d / ratio > MaxSigma)
+            ratio *= 2;
+        return ratio;
+    }
+
+    // Only looks the grid up, the computation is left to the grid itself
+    private static BilateralUpsampleOpImage.Grid getGrid(PlanarImage source, RenderedImage singleChannel,
+                                                         float sigma_d, float sigma_r) {
+        List<Float> key = Arrays.asList(sigma_d, sigma_r);
+
+        synchronized (Grids) {
+            Map<List<Float>, SoftReference<BilateralUpsampleOpImage.Grid>> grids = Grids.get(source);
+            if (grids == null) {
+                grids = new HashMap<List<Float>, SoftReference<BilateralUpsampleOpImage.Grid>>();
+                Grids.put(source, grids);
+            }
+            SoftReference<BilateralUpsampleOpImage.Grid> ref = grids.get(key);
+            BilateralUpsampleOpImage.Grid grid = ref != null ? ref.get() : null;
+
+            if (grid == null) {
+                int ratio = getRatio(sigma_d);
+                RenderedImage lowSource = downScale(singleChannel, ratio);
+                PlanarImage lowMask = new FastBilateralFilterOpImage(lowSource,
+                                                                     JAIContext.noCacheHint,
+                                                                     sigma_d / ratio, sigma_r);
+                grid = new BilateralUpsampleOpImage.Grid(lowSource, lowMask);
+                grids.put(key, new SoftReference<BilateralUpsampleOpImage.Grid>(grid));
+            }
+            return grid;
+        }
+    }
+
+    // Average blocks of ratio by ratio pixels, which is how
+    // BilateralUpsampleOpImage expects the grid to line up with the image.
+    private static RenderedImage downScale(RenderedImage src, int ratio) {
+        ParameterBlock params = new ParameterBlock();
+        params.addSource(src);
+        params.add(1 / (double) ratio);
+        params.add(1 / (double) ratio);
+        return JAI.create("SubsampleAverage", params, JAIContext.noCacheHint);
+    }
+}
@@ -6,6 +6,7 @@ import com.lightcrafts.jai.JAIContext;
 import com.lightcrafts.jai.LCROIShape;
 import com.lightcrafts.jai.operator.LCMSColorConvertDescriptor;
 import com.lightcrafts.jai.opimage.BlendOpImage;
+import com.lightcrafts.jai.opimage.FusedPointOpImage;
 import com.lightcrafts.jai.opimage.RGBColorSelectionMaskOpImage;
 import com.lightcrafts.jai.utils.Functions;
 import com.lightcrafts.jai.utils.Transform;
@@ -22,7 +23,9 @@ import java.awt.image.Raster;
 import java.awt.image.renderable.ParameterBlock;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class BlendedOperation extends GenericOperationImpl implements Cloneable {
     private double opacity = 1.0;
@@ -275,6 +278,7 @@ public abstract class BlendedOperation extends GenericOperationImpl implements C
         public class CachedImage extends PlanarImage {
             private final TileCache cache = JAIContext.fileCache;
             private SoftReference<PlanarImage> softRendering = new SoftReference<PlanarImage>(null);
+            private PlanarImage pinnedRendering = null;
             final float scale;
 
             public CachedImage(PlanarImage rendering, float scale) {
@@ -289,6 +293,17 @@ public abstract class BlendedOperation extends GenericOperationImpl implements C
                 return softRendering != null ? softRendering.get() : null;
             }
 
+            /*
+                Hold on to the rendering for good, for when this is reused from
+                the Results after the operation has moved on and its update()
+                wouldn't make the same image anymore. False if it's too late.
+            */
+            synchronized boolean pin() {
+                if (pinnedRendering == null)
+                    pinnedRendering = getRendering();
+                return pinnedRendering != null;
+            }
+
             public Raster getTile(int tileX, int tileY) {
                 Raster tile = cache.getTile(this, tileX, tileY);
 
@@ -424,6 +439,91 @@ public abstract class BlendedOperation extends GenericOperationImpl implements C
 
     abstract protected BlendedTransform createBlendedOp(PlanarImage source);
 
+    /**
+     * This operation as a stage of a FusedPointOpImage, for Rendering to run
+     * it in one pass with the point operations next to it, or null if it
+     * isn't a plain per pixel operation as currently set up.
+     *
+     * @param source the three banded USHORT image the run of operations
+     *        starts from.
+     */
+    FusedPointOpImage.Stage getPointStage(PlanarImage source) {
+        // A pending color pick is answered by BlendedTransform.update(), which
+        // only runs when the operation is rendered on its own
+        if (clickPoint != null)
+            return null;
+
+        RGBColorSelection colorSelection = getColorSelection();
+
+        if (blendingMode != "Normal" || invertedRegion || validRegion(getRegion())
+            || (colorSelection != null && !colorSelection.isAllSelected()))
+            return null;
+
+        return createPointStage(source, (float) opacity);
+    }
+
+    /**
+     * Subclasses whose front is a per pixel function of its back return it
+     * as a FusedPointOpImage.Stage blended at the given opacity.
+     */
+    protected FusedPointOpImage.Stage createPointStage(PlanarImage source, float opacity) {
+        return null;
+    }
+
+    /*
+        Results by content key, see OperationImpl.getContentKey(). The tiles of
+        a result are kept in the file cache for as long as the result lives, so
+        when a result comes up again, e.g. going back to a zoom level or
+        rendering a clone of the pipeline, the operations below the first one
+        that changed are served from there and not recomputed.
+
+        A result reaches its operation, and through it the Rendering and the
+        engine, so a Rendering purges the results of its image when it goes
+        away, see purgeResults().
+
+        A hit doesn't go through render(source, scale): until its next miss,
+        the operation keeps the back image and scale of its last render, which
+        may be another zoom level or clone. The next miss sets both again. The
+        tiles of the result come from its pinned rendering and don't depend
+        on them.
+    */
+
+    private static final int MaxResults = 128;
+
+    private static final Map<Object, SoftReference<BlendedTransform.CachedImage>> Results =
+        new LinkedHashMap<Object, SoftReference<BlendedTransform.CachedImage>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Object, SoftReference<BlendedTransform.CachedImage>> eldest) {
+                return size() > MaxResults;
+            }
+        };
+
+    PlanarImage render(PlanarImage source, Object key, float scale) {
+        synchronized (Results) {
+            SoftReference<BlendedTransform.CachedImage> ref = Results.get(key);
+            BlendedTransform.CachedImage result = ref != null ? ref.get() : null;
+            if (result != null && result.pin())
+                return result;
+        }
+
+        PlanarImage result = render(source, scale);
+
+        if (result instanceof BlendedTransform.CachedImage)
+            synchronized (Results) {
+                Results.put(key, new SoftReference<BlendedTransform.CachedImage>((BlendedTransform.CachedImage) result));
+            }
+        return result;
+    }
+
+    /**
+     * Drop the results computed from the source image with the given
+     * identifier.
+     */
+    static void purgeResults(Object sourceId) {
+        synchronized (Results) {
+            removeResultsOf(Results, sourceId);
+        }
+    }
+
     protected Transform createOp(PlanarImage source) {
         return createBlendedOp(source);
     }
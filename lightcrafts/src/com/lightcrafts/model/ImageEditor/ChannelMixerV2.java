@@ -7,6 +7,7 @@ import com.lightcrafts.model.SliderConfig;
 import com.lightcrafts.jai.utils.Transform;
 import com.lightcrafts.jai.utils.Functions;
 import com.lightcrafts.jai.JAIContext;
+import com.lightcrafts.jai.opimage.FusedPointOpImage;
 
 import com.lightcrafts.mediax.jai.JAI;
 import com.lightcrafts.mediax.jai.PlanarImage;
@@ -67,6 +68,47 @@ public class ChannelMixerV2 extends BlendedOperation implements com.lightcrafts.
         return color;
     }
 
+    private double[][] computeTransformV4() {
+        float filter[] = {color.getRed() / 255f, color.getGreen() / 255f, color.getBlue() / 255f};
+        filter = JAIContext.linearColorSpace.fromRGB(filter);
+
+        float red = 1 - filter[0];
+        float green = 1 - filter[1];
+        float blue = 1 - filter[2];
+
+        double tred = ColorScience.Wr, tgreen = ColorScience.Wg, tblue = ColorScience.Wb;
+
+        if (red != 0) {
+            tred -= strenght * red/2;
+            tgreen += strenght * red/4;
+            tblue += strenght * red/4;
+        }
+        if (blue != 0) {
+            tblue -= strenght * blue/2;
+            tgreen += strenght * blue/4;
+            tred += strenght * blue/4;
+        }
+        if (green != 0) {
+            tgreen -= strenght * green/2;
+            tblue += strenght * green/4;
+            tred += strenght * green/4;
+        }
+
+        return new double[][] {
+            { tred, tgreen, tblue, 0 },
+            { tred, tgreen, tblue, 0 },
+            { tred, tgreen, tblue, 0 }
+        };
+    }
+
+    protected FusedPointOpImage.Stage createPointStage(PlanarImage source, float opacity) {
+        // V3 mixes in the old linear color space
+        if (type == typeV4)
+            return new FusedPointOpImage.Matrix(computeTransformV4(), opacity);
+        else
+            return null;
+    }
+
     private class ChannelMixerTransform extends BlendedTransform {
         ChannelMixerTransform(PlanarImage source) {
             super(source);
@@ -85,40 +127,9 @@ public class ChannelMixerV2 extends BlendedOperation implements com.lightcrafts.
 //        }
 
         public PlanarImage setFrontV4() {
-            float filter[] = {color.getRed() / 255f, color.getGreen() / 255f, color.getBlue() / 255f};
-            filter = JAIContext.linearColorSpace.fromRGB(filter);
-
-            float red = 1 - filter[0];
-            float green = 1 - filter[1];
-            float blue = 1 - filter[2];
-
-            double tred = ColorScience.Wr, tgreen = ColorScience.Wg, tblue = ColorScience.Wb;
-
-            if (red != 0) {
-                tred -= strenght * red/2;
-                tgreen += strenght * red/4;
-                tblue += strenght * red/4;
-            }
-            if (blue != 0) {
-                tblue -= strenght * blue/2;
-                tgreen += strenght * blue/4;
-                tred += strenght * blue/4;
-            }
-            if (green != 0) {
-                tgreen -= strenght * green/2;
-                tblue += strenght * green/4;
-                tred += strenght * green/4;
-            }
-
-            double[][] transform = new double[][] {
-                { tred, tgreen, tblue, 0 },
-                { tred, tgreen, tblue, 0 },
-                { tred, tgreen, tblue, 0 }
-            };
-
             ParameterBlock pb = new ParameterBlock();
             pb.addSource(back);
-            pb.add(transform);
+            pb.add(computeTransformV4());
             return JAI.create("BandCombine", pb, null);
         }
         
@@ -5,16 +5,12 @@ package com.lightcrafts.model.ImageEditor;
 import com.lightcrafts.mediax.jai.*;
 import com.lightcrafts.model.OperationType;
 import com.lightcrafts.model.SliderConfig;
-import com.lightcrafts.jai.opimage.FastBilateralFilterOpImage;
 import com.lightcrafts.jai.opimage.HDROpImage;
 import com.lightcrafts.jai.opimage.HDROpImage2;
 import com.lightcrafts.jai.utils.Transform;
 import com.lightcrafts.jai.utils.Functions;
-import com.lightcrafts.jai.JAIContext;
-import com.lightcrafts.utils.ColorScience;
 
 import java.text.DecimalFormat;
-import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
 import java.awt.*;
 import java.lang.ref.SoftReference;
@@ -96,26 +92,15 @@ public class HDROperationV3 extends BlendedOperation {
 
         private double last_radius = 0;
         private double last_fuzz = 0;
+        private double last_scale = 0;
 
         public PlanarImage setFront() {
-            if (lastBack.get() != back || mask.get() == null || depth != last_radius || fuzz != last_fuzz) {
-                RenderedImage singleChannel;
-                if (back.getColorModel().getNumComponents() == 3) {
-                    double[][] yChannel = new double[][]{{ColorScience.Wr, ColorScience.Wg, ColorScience.Wb, 0}};
-
-                    ParameterBlock pb = new ParameterBlock();
-                    pb.addSource( back );
-                    pb.add( yChannel );
-                    singleChannel = JAI.create("BandCombine", pb, null);
-                } else
-                    singleChannel = back;
-
+            if (lastBack.get() != back || mask.get() == null
+                || depth != last_radius || fuzz != last_fuzz || scale != last_scale) {
                 BorderExtender copyExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
                 RenderingHints extenderHints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, copyExtender);
 
-                PlanarImage maskImage = new FastBilateralFilterOpImage(singleChannel,
-                                                                       JAIContext.fileCacheHint,
-                                                                       (float) (depth * scale), 0.1f);
+                PlanarImage maskImage = BilateralMask.create(back, (float) (depth * scale), 0.1f);
 
 //                ParameterBlock pb = new ParameterBlock();
 //                pb.addSource(maskImage);
@@ -151,8 +136,9 @@ public class HDROperationV3 extends BlendedOperation {
                     maskImage = JAI.create("LCSeparableConvolve", pb, extenderHints);
                 }
 
-                last_radius = fuzz;
-                last_fuzz = detail;
+                last_radius = depth;
+                last_fuzz = fuzz;
+                last_scale = scale;
 
                 mask = new SoftReference<PlanarImage>(maskImage);
                 lastBack = new SoftReference<PlanarImage>(back);
@@ -9,6 +9,7 @@ import com.lightcrafts.jai.utils.Transform;
 import com.lightcrafts.jai.JAIContext;
 import com.lightcrafts.jai.opimage.IntVibranceOpImage;
 import com.lightcrafts.jai.opimage.HueRotateOpImage;
+import com.lightcrafts.jai.opimage.FusedPointOpImage;
 
 import com.lightcrafts.mediax.jai.*;
 import java.awt.image.renderable.ParameterBlock;
@@ -128,6 +129,13 @@ public class HueSaturationOperation extends BlendedOperation {
         return transform;
     }
 
+    protected FusedPointOpImage.Stage createPointStage(PlanarImage source, float opacity) {
+        if (vibrance == 0.0 && hue == 0.0)
+            return new FusedPointOpImage.Matrix(computeTransform(), opacity);
+        else
+            return null;
+    }
+
     private class HueSaturation extends BlendedTransform {
         HueSaturation(PlanarImage source) {
             super(source);
@@ -54,6 +54,9 @@ public class ImageEditorEngine implements Engine {
 
     private Rendering rendering;
 
+    // The PyramidCache key of the image, used once the engine is interactive
+    private String pyramidCacheKey;
+
     private ImageEditorDisplay canvas = null;
 
     private boolean engineActive = true;
@@ -146,6 +149,11 @@ public class ImageEditorEngine implements Engine {
         return previews;
     }
 
+    public void setInteractive() {
+        if (!disposed && pyramidCacheKey != null)
+            rendering.cachePyramid(pyramidCacheKey);
+    }
+
     public List getLayerModes() {
         return BlendedOperation.blendingModes;
     }
@@ -229,6 +237,7 @@ public class ImageEditorEngine implements Engine {
         }
 
         rendering = new Rendering(sourceImage, this);
+        pyramidCacheKey = PyramidCache.getCacheKeyFor(imageFile, transposeAngle);
 
         addFirstPaintLatency = true;
     }
@@ -564,7 +573,9 @@ public class ImageEditorEngine implements Engine {
                     tilesRead = tc.tilesRead();
                     tilesWritten = tc.tilesWritten();
                     tilesOnDisk = tc.tilesOnDisk();
-                    System.out.println("Tile Cache Statistics r: " + tilesRead + ", w: " + tilesWritten + ", on disk: " + tilesOnDisk);
+                    System.out.println("Tile Cache Statistics r: " + tilesRead + ", w: " + tilesWritten + ", on disk: " + tilesOnDisk
+                                       + ", compression: " + tc.spillCompressionRatio()
+                                       + ", encode: " + tc.spillEncodeTime() + "ms, decode: " + tc.spillDecodeTime() + "ms");
                 }
             }
 
@@ -8,6 +8,10 @@ import com.lightcrafts.model.*;
 import com.lightcrafts.mediax.jai.PlanarImage;
 import com.lightcrafts.ui.editor.EditorMode;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.Preferences;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.PreferenceChangeEvent;
@@ -67,6 +71,16 @@ abstract class OperationImpl implements Operation {
 
     protected float scale = 1;
 
+    // Identifies the settings of this operation in content keys, renewed
+    // whenever they change and unique across all operations
+    private long version = newVersion();
+
+    private static long lastVersion = 0;
+
+    private static synchronized long newVersion() {
+        return ++lastVersion;
+    }
+
     OperationImpl(Rendering engine, String name) {
         this.rendering = engine;
         this.name = name;
@@ -146,6 +160,7 @@ abstract class OperationImpl implements Operation {
 
     // Whenever Operation parameters change, the Engine must update:
     void settingsChanged() {
+        version = newVersion();
         changed = true;
         rendering.update(this, batch != 0);
     }
@@ -153,6 +168,7 @@ abstract class OperationImpl implements Operation {
     public void setRegion(Region newRegion) {
         region = newRegion;
         regionChanged = true;
+        version = newVersion();
 
         // System.out.println("batch: " + batch + ", interactiveRegionUpdates: " + interactiveRegionUpdates);
 
@@ -208,6 +224,39 @@ abstract class OperationImpl implements Operation {
         return operation.render();
     }
 
+    /**
+     * A key identifying the result of this operation, as currently set up,
+     * on the source identified by sourceKey at the given scale.  Results with
+     * equal keys are the same image.
+     */
+    Object getContentKey(Object sourceKey, float scale) {
+        return Arrays.asList(sourceKey, version, scale);
+    }
+
+    /**
+     * Remove the entries of a map of results whose content key derives from
+     * the source image with the given identifier, the first element of the
+     * innermost key.  The caller holds the map's lock.
+     */
+    static void removeResultsOf(Map<Object, ?> results, Object sourceId) {
+        Iterator<Object> keys = results.keySet().iterator();
+        while (keys.hasNext()) {
+            Object key = keys.next();
+            while (key instanceof List)
+                key = ((List) key).get(0);
+            if (sourceId.equals(key))
+                keys.remove();
+        }
+    }
+
+    /**
+     * Render the operation on a source whose result has the given content
+     * key, so that subclasses can reuse results computed earlier.
+     */
+    PlanarImage render(PlanarImage source, Object key, float scale) {
+        return render(source, scale);
+    }
+
     public Preview getPreview() {
         return null;
     }
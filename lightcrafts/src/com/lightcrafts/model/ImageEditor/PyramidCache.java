@@ -0,0 +1,251 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.model.ImageEditor;
+
+import com.lightcrafts.image.libs.LCImageLibException;
+import com.lightcrafts.image.libs.LCTIFFReader;
+import com.lightcrafts.image.libs.LCTIFFWriter;
+import com.lightcrafts.jai.JAIContext;
+import com.lightcrafts.mediax.jai.ImageLayout;
+import com.lightcrafts.mediax.jai.JAI;
+import com.lightcrafts.mediax.jai.PlanarImage;
+import com.lightcrafts.mediax.jai.RenderedOp;
+import com.lightcrafts.mediax.jai.operator.TransposeType;
+import com.lightcrafts.utils.filecache.FileCache;
+import com.lightcrafts.utils.filecache.FileCacheFactory;
+import com.lightcrafts.utils.thread.ProgressThread;
+
+import java.awt.*;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds the levels of a Rendering's image pyramid in the background as soon
+ * as an image is shown in an editor, and keeps them as tiled TIFF files in
+ * the global FileCache, keyed by the image file.  Zoomed out views then render from a
+ * small level instead of scaling down the full resolution image through the
+ * tile cache, and the next time the image is opened the levels are there
+ * right away.
+ * <p>
+ * Like RawImageCache, there is one thread and one job: opening another image
+ * supersedes building the levels of the last one.
+ */
+class PyramidCache extends Thread {
+    private static String version = "V1";
+
+    // Levels are built and cached down to this size, smaller ones are cheap
+    // enough to compute on the fly.
+    private static final int MinLevelSize = 256;
+
+    private static final PyramidCache INSTANCE;
+
+    static {
+        INSTANCE = new PyramidCache();
+        INSTANCE.start();
+    }
+
+    private Rendering.ImagePyramid currentJob;
+
+    // Stops the level being written when currentJob changes
+    private ProgressThread currentWrite;
+
+    private PyramidCache() {
+        super( "PyramidCache" );
+        setPriority( Thread.NORM_PRIORITY - 1 );
+        setDaemon( true );
+    }
+
+    /**
+     * The key for the pyramid of the given image file, as oriented.
+     */
+    static String getCacheKeyFor(File file, TransposeType orientation) {
+        return file.getAbsolutePath() + file.length() + file.lastModified()
+               + (orientation != null ? orientation.getValue() : -1) + version;
+    }
+
+    /**
+     * Read a level of a pyramid back from the cache, in the same format as
+     * the given image that computes it.
+     *
+     * @return the level, or null if it isn't in the cache.
+     */
+    static PlanarImage getLevel(String cacheKey, int level, RenderedImage like) {
+        final FileCache fileCache = FileCacheFactory.getGlobalCache();
+        if (fileCache == null)
+            return null;
+        final File file = fileCache.getFileFor(cacheKey + '_' + level);
+        if (file == null)
+            return null;
+        try {
+            PlanarImage tiffImage = new LCTIFFReader.TIFFImage(file.getAbsolutePath());
+            if (tiffImage.getWidth() != like.getWidth() ||
+                tiffImage.getHeight() != like.getHeight()) {
+                tiffImage.dispose();
+                return null;
+            }
+
+            // Match the tiling and the color model of the computed level
+            final RenderingHints formatHints = new RenderingHints(
+                JAI.KEY_IMAGE_LAYOUT,
+                new ImageLayout(
+                    0, 0, like.getTileWidth(), like.getTileHeight(),
+                    like.getSampleModel(), like.getColorModel()
+                )
+            );
+            final ParameterBlock pb = new ParameterBlock();
+            pb.addSource(tiffImage);
+            pb.add(like.getSampleModel().getDataType());
+            RenderedOp image = JAI.create("Format", pb, formatHints);
+            image.setProperty(JAIContext.PERSISTENT_CACHE_TAG, Boolean.TRUE);
+            return image;
+        }
+        catch ( LCImageLibException e ) {
+            // never mind, don't use the cache
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Release a level returned by getLevel(), and the TIFF reader under it.
+     */
+    static void dispose(RenderedImage level) {
+        if (level instanceof RenderedOp) {
+            RenderedOp op = (RenderedOp) level;
+            Object source = op.getNumSources() > 0 ? op.getSourceObject(0) : null;
+            op.dispose();
+            if (source instanceof PlanarImage)
+                ((PlanarImage) source).dispose();
+        }
+    }
+
+    /**
+     * Start building the levels of the given pyramid that aren't cached.
+     */
+    static void build(Rendering.ImagePyramid pyramid) {
+        synchronized ( INSTANCE ) {
+            INSTANCE.setJob(pyramid);
+            INSTANCE.notify();
+        }
+    }
+
+    /**
+     * Stop building the given pyramid, if it's being built.
+     */
+    static void cancel(Rendering.ImagePyramid pyramid) {
+        synchronized ( INSTANCE ) {
+            if (INSTANCE.currentJob == pyramid)
+                INSTANCE.setJob(null);
+        }
+    }
+
+    // Must be called with the lock held
+    private void setJob(Rendering.ImagePyramid job) {
+        if (job != currentJob && currentWrite != null)
+            currentWrite.requestCancel();
+        currentJob = job;
+    }
+
+    private synchronized boolean isCurrent(Rendering.ImagePyramid pyramid) {
+        return currentJob == pyramid;
+    }
+
+    public void run() {
+        while (true) {
+            Rendering.ImagePyramid job;
+            synchronized (this) {
+                try {
+                    while (currentJob == null)
+                        wait();
+                } catch (InterruptedException e) {
+
+                }
+                job = currentJob;
+            }
+
+            long t1 = System.currentTimeMillis();
+
+            int level = 1;
+            try {
+                for (; isCurrent(job); level++) {
+                    RenderedImage image = job.createLevel(level);
+                    if (Math.max(image.getWidth(), image.getHeight()) < MinLevelSize)
+                        break;
+                    if (job.isCached(level))
+                        continue;
+
+                    // Stored the last time around, or to be built now
+                    PlanarImage cached = getLevel(job.getCacheKey(), level, image);
+                    if (cached == null)
+                        cached = putLevel(job, level, image);
+                    if (cached == null)
+                        break;
+                    job.setLevel(level, cached);
+                }
+            } catch (RuntimeException e) {
+                // Give up on this pyramid, but keep the thread for the next
+                e.printStackTrace();
+            }
+
+            synchronized (this) {
+                if (currentJob == job)
+                    setJob(null);
+            }
+
+            long t2 = System.currentTimeMillis();
+            System.out.println("Image pyramid cached to level " + (level - 1) + " in " + (t2 - t1) + "ms");
+        }
+    }
+
+    // Compute a level into the cache and read it back, unless the pyramid
+    // stops being the current job meanwhile.
+    private PlanarImage putLevel(Rendering.ImagePyramid job, int level, RenderedImage image) {
+        final FileCache fileCache = FileCacheFactory.getGlobalCache();
+        if (fileCache == null)
+            return null;
+        final ProgressThread write = new ProgressThread(null) {
+            public void run() { }
+        };
+        synchronized (this) {
+            if (currentJob != job)
+                return null;
+            currentWrite = write;
+        }
+        final String cacheKey = job.getCacheKey();
+        final String key = cacheKey + '_' + level;
+        try {
+            final File cacheFile = fileCache.putToFile(key);
+            // Write aside and rename, so a partial file is never read
+            final File tempFile = new File(cacheFile.getPath() + ".tmp");
+            try {
+                LCTIFFWriter writer = new LCTIFFWriter(tempFile.getAbsolutePath(),
+                                                       image.getWidth(),
+                                                       image.getHeight());
+                if (image.getColorModel().getColorSpace() instanceof ICC_ColorSpace)
+                    writer.setICCProfile(((ICC_ColorSpace) image.getColorModel().getColorSpace()).getProfile());
+                writer.putImageTiled(image, write);
+                if (write.isCanceled() || !tempFile.renameTo(cacheFile))
+                    return null;
+            } catch ( LCImageLibException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                tempFile.delete();
+                fileCache.notifyAboutCloseOf(cacheFile);
+            }
+        } catch ( IOException e ) {
+            // nevermind, do without cache...
+            e.printStackTrace();
+            return null;
+        } finally {
+            synchronized (this) {
+                currentWrite = null;
+            }
+        }
+        return getLevel(cacheKey, level, image);
+    }
+}
+/* vim:set et sw=4 ts=4: */
@@ -6,7 +6,7 @@ import com.lightcrafts.model.CropBounds;
 import com.lightcrafts.model.Operation;
 import com.lightcrafts.jai.utils.Functions;
 import com.lightcrafts.jai.JAIContext;
-import com.lightcrafts.jai.opimage.CachedImage;
+import com.lightcrafts.jai.opimage.FusedPointOpImage;
 import com.lightcrafts.jai.opimage.UnlicensedOpImage;
 
 import com.lightcrafts.mediax.jai.*;
@@ -18,7 +18,14 @@ import java.awt.geom.Point2D;
 import java.awt.*;
 import java.awt.image.renderable.ParameterBlock;
 import java.awt.image.*;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 public class Rendering implements Cloneable {
@@ -32,6 +39,15 @@ public class Rendering implements Cloneable {
     private LinkedList<OperationImpl> pipeline = new LinkedList<OperationImpl>();
     private ImagePyramid pyramid;
 
+    // Identifies the source image in content keys, shared with clones
+    private final long sourceId = newSourceId();
+
+    private static long lastSourceId = 0;
+
+    private static synchronized long newSourceId() {
+        return ++lastSourceId;
+    }
+
     public boolean cheapScale = false;
 
     private boolean licenseExpired = LicenseChecker.hasExpiredTrialLicense();
@@ -59,6 +75,15 @@ public class Rendering implements Cloneable {
     }
 
     void dispose() {
+        // Clones share the pyramid and the cached results of the engine's
+        // Rendering, the results reach the operations and the engine
+        if (engine != null) {
+            pyramid.dispose();
+            BlendedOperation.purgeResults(sourceId);
+            synchronized (FusedResults) {
+                OperationImpl.removeResultsOf(FusedResults, sourceId);
+            }
+        }
         if (pipeline != null) {
             while (!pipeline.isEmpty())
                 pipeline.removeLast().dispose();
@@ -108,12 +133,93 @@ public class Rendering implements Cloneable {
 
         Vector<RenderedImage> renderings = new Vector<RenderedImage>();
 
+        // The key of the levels in the PyramidCache, and the levels that are
+        // read from it rather than computed
+        private String cacheKey;
+        private final BitSet cached = new BitSet();
+
         ImagePyramid(RenderedImage image) {
             currentImage = image;
             renderings.addElement(currentImage);
         }
 
-        public RenderedImage getUpImage() {
+        /**
+         * Keep the levels in the PyramidCache under the given key: read the
+         * ones stored the last time around and build the others, all on the
+         * PyramidCache thread.
+         */
+        synchronized void startCaching(String cacheKey) {
+            if (this.cacheKey != null || disposed)
+                return;
+            this.cacheKey = cacheKey;
+            PyramidCache.build(this);
+        }
+
+        synchronized String getCacheKey() {
+            return cacheKey;
+        }
+
+        synchronized boolean isCached(int level) {
+            return cached.get(level);
+        }
+
+        /**
+         * The given level as computed from the level above it, for
+         * PyramidCache to store.
+         */
+        synchronized RenderedImage createLevel(int level) {
+            while (renderings.size() <= level) {
+                RenderedOp smaller = createDownScaleOp(renderings.lastElement(), MIP_SCALE_RATIO);
+                smaller.setProperty(JAIContext.PERSISTENT_CACHE_TAG, Boolean.TRUE);
+                renderings.addElement(smaller);
+            }
+            if (!cached.get(level) && cached.get(level - 1)) {
+                // Compute from the stored level rather than from the one it
+                // replaced, which would go all the way back to the source
+                RenderedOp smaller = createDownScaleOp(renderings.get(level - 1), MIP_SCALE_RATIO);
+                smaller.setProperty(JAIContext.PERSISTENT_CACHE_TAG, Boolean.TRUE);
+                renderings.set(level, smaller);
+                if (currentLevel == level)
+                    currentImage = smaller;
+            }
+            return renderings.get(level);
+        }
+
+        /**
+         * Replace a level with its stored copy from PyramidCache.  Images
+         * already transformed from the computed level keep using it until
+         * the Rendering rebuilds its transformed source, on the next change
+         * of scale or crop.
+         */
+        synchronized void setLevel(int level, RenderedImage image) {
+            if (disposed) {
+                // Finished by PyramidCache after the Rendering went away
+                PyramidCache.dispose(image);
+                return;
+            }
+            createLevel(level);
+            if (cached.get(level))
+                PyramidCache.dispose(renderings.get(level));
+            renderings.set(level, image);
+            cached.set(level);
+            if (currentLevel == level)
+                currentImage = image;
+        }
+
+        private boolean disposed = false;
+
+        /**
+         * Release the levels read from PyramidCache.
+         */
+        synchronized void dispose() {
+            PyramidCache.cancel(this);
+            for (int level = cached.nextSetBit(0); level >= 0; level = cached.nextSetBit(level + 1))
+                PyramidCache.dispose(renderings.get(level));
+            cached.clear();
+            disposed = true;
+        }
+
+        public synchronized RenderedImage getUpImage() {
             if (currentLevel > 0) {
                 currentLevel--;
 
@@ -123,7 +229,7 @@ public class Rendering implements Cloneable {
             return currentImage;
         }
 
-        public RenderedImage getDownImage() {
+        public synchronized RenderedImage getDownImage() {
             currentLevel++;
             if (renderings.size() <= currentLevel) {
                 RenderedOp smaller = createDownScaleOp(currentImage, MIP_SCALE_RATIO);
@@ -135,7 +241,7 @@ public class Rendering implements Cloneable {
             }
         }
 
-        public RenderedImage getImage(int level) {
+        public synchronized RenderedImage getImage(int level) {
             if (level < 0)
                 return null;
 
@@ -170,6 +276,15 @@ public class Rendering implements Cloneable {
         return engine;
     }
 
+    /**
+     * Keep the image pyramid in the PyramidCache under the given key, see
+     * PyramidCache.getCacheKeyFor().  Only worth it for interactive editing,
+     * where the view zooms out.
+     */
+    void cachePyramid(String cacheKey) {
+        pyramid.startCaching(cacheKey);
+    }
+
     public void update(OperationImpl op, boolean isLive) {
         if (engine != null)
             engine.update(op, isLive);
@@ -234,61 +349,113 @@ public class Rendering implements Cloneable {
         return xformedSourceImage;
     }
 
+    // The content key of the transformed source image
+    private Object getSourceKey() {
+        return Arrays.asList(sourceId, inputTransform, cropBounds, cheapScale);
+    }
+
     public PlanarImage getRendering(boolean inactive, int stopBefore) {
         PlanarImage processedImage = getXformedSourceImage();
 
         if (pipeline != null) {
+            Object key = getSourceKey();
+            float scale = scaleFactor < 1 ? scaleFactor : 1;
+
+            // A run of consecutive point operations waiting to be rendered
+            List<OperationImpl> run = new ArrayList<OperationImpl>();
+            List<Object> runKeys = new ArrayList<Object>();
+            List<FusedPointOpImage.Stage> stages = new ArrayList<FusedPointOpImage.Stage>();
+
             int index = 0;
             for (OperationImpl operation : pipeline) {
                 if (index == stopBefore)
                     break;
 
                 if (operation.isActive() && !(inactive && operation.isDeactivatable())) {
-                    PlanarImage result = operation.render(processedImage, scaleFactor < 1 ? scaleFactor : 1);
-                    if (result != null)
-                        processedImage = result;
+                    key = operation.getContentKey(key, scale);
+
+                    FusedPointOpImage.Stage stage = null;
+                    if (operation instanceof BlendedOperation && isFusible(processedImage))
+                        stage = ((BlendedOperation) operation).getPointStage(processedImage);
+
+                    if (stage != null) {
+                        run.add(operation);
+                        runKeys.add(key);
+                        stages.add(stage);
+                    } else {
+                        processedImage = renderRun(processedImage, run, runKeys, stages, scale);
+
+                        PlanarImage result = operation.render(processedImage, key, scale);
+                        if (result != null)
+                            processedImage = result;
+                    }
                 }
 
                 index++;
             }
+            processedImage = renderRun(processedImage, run, runKeys, stages, scale);
         } else
             System.out.println("Rendering.renderPipeline: null pipeline?");
 
         return licenseExpired ? new UnlicensedOpImage(processedImage, null) : processedImage;
     }
 
-    public void prefetch(Rectangle area) {
-        PlanarImage processedImage = getXformedSourceImage();
+    private static boolean isFusible(PlanarImage image) {
+        return image.getSampleModel().getDataType() == DataBuffer.TYPE_USHORT
+               && image.getSampleModel().getNumBands() == 3;
+    }
 
-        if (pipeline != null) {
-            int index = 0;
-            for (OperationImpl operation : pipeline) {
-                if (operation.isActive() /* && !(inactive && operation.isDeactivatable()) */) {
-                    PlanarImage result = operation.render(processedImage, scaleFactor < 1 ? scaleFactor : 1);
-                    if (result != null) {
-                        Point[] indices = result.getTileIndices(area);
-                        if (indices != null) {
-                            CachedImage cachedResult = new CachedImage(new ImageLayout(result), JAIContext.fileCache);
-
-                            result.prefetchTiles(indices);
-                            for (Point tile : indices) {
-                                Raster newTile = result.getTile(tile.x, tile.y);
-                                WritableRaster cachedTile = cachedResult.getWritableTile(tile.x, tile.y);
-                                Functions.copyData(cachedTile, newTile);
-                            }
-
-                            result = cachedResult;
-                        }
-                        System.out.println("Rendered layer " + index);
-
-                        processedImage = result;
-                    }
-                }
+    /*
+        Render a run of point operations, and empty it. Two or more are fused
+        into a single FusedPointOpImage that makes one pass over the tiles of
+        their source, rather than each of them making a tile of its own.
+    */
 
-                index++;
+    private static final int MaxFusedResults = 32;
+
+    // Fused runs by the content key of their last operation
+    private static final Map<Object, SoftReference<PlanarImage>> FusedResults =
+        new LinkedHashMap<Object, SoftReference<PlanarImage>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Object, SoftReference<PlanarImage>> eldest) {
+                return size() > MaxFusedResults;
             }
-        } else
-            System.out.println("Rendering.renderPipeline: null pipeline?");
+        };
+
+    private static PlanarImage renderRun(PlanarImage source, List<OperationImpl> run, List<Object> keys,
+                                         List<FusedPointOpImage.Stage> stages, float scale) {
+        if (run.size() > 1) {
+            Object key = keys.get(keys.size() - 1);
+            synchronized (FusedResults) {
+                SoftReference<PlanarImage> ref = FusedResults.get(key);
+                PlanarImage fused = ref != null ? ref.get() : null;
+                if (fused == null) {
+                    fused = new FusedPointOpImage(source, stages, JAIContext.fileCacheHint);
+                    fused.setProperty(JAIContext.PERSISTENT_CACHE_TAG, Boolean.TRUE);
+                    FusedResults.put(key, new SoftReference<PlanarImage>(fused));
+                }
+                source = fused;
+            }
+        } else {
+            for (int i = 0; i < run.size(); i++) {
+                PlanarImage result = run.get(i).render(source, keys.get(i), scale);
+                if (result != null)
+                    source = result;
+            }
+        }
+        run.clear();
+        keys.clear();
+        stages.clear();
+        return source;
+    }
+
+    public void prefetch(Rectangle area) {
+        // Operation results and fused runs of point operations keep their
+        // tiles in the file cache, so computing the tiles of the rendering
+        // warms exactly the chain that the view is going to use
+        PlanarImage rendering = getRendering();
+        Point[] indices = rendering.getTileIndices(area);
+        if (indices != null)
+            rendering.prefetchTiles(indices);
     }
 
     public PlanarImage getRendering() {
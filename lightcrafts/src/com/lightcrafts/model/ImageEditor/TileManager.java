@@ -2,6 +2,7 @@
 
 package com.lightcrafts.model.ImageEditor;
 
+import com.lightcrafts.jai.utils.LCTileScheduler;
 import com.lightcrafts.mediax.jai.TileComputationListener;
 import com.lightcrafts.mediax.jai.TileRequest;
 import com.lightcrafts.mediax.jai.PlanarImage;
@@ -38,7 +39,12 @@ class PaintRequest implements PaintContext {
         this.tileHandler = handler;
         this.pendingTiles = tileIndices.length;
 
-        this.tileRequest = image.queueTiles(tileIndices);
+        // Prefetch requests must never delay tiles for the visible area
+        this.tileRequest = LCTileScheduler.queueTiles(
+            image, tileIndices,
+            prefetch ? LCTileScheduler.Priority.PREFETCH
+                     : LCTileScheduler.Priority.INTERACTIVE
+        );
         for (int i = 0; i < tileIndices.length; i++)
             tiles.add(new Point(tileIndices[i].x, tileIndices[i].y));
     }
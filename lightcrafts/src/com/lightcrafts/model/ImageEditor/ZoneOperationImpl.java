@@ -7,6 +7,7 @@ import com.lightcrafts.model.OperationType;
 import com.lightcrafts.utils.splines;
 import com.lightcrafts.jai.utils.Transform;
 import com.lightcrafts.jai.LightnessLookupTable;
+import com.lightcrafts.jai.opimage.FusedPointOpImage;
 
 import com.lightcrafts.mediax.jai.*;
 import java.awt.*;
@@ -200,6 +201,14 @@ class ZoneOperationImpl extends BlendedOperation implements ZoneOperation {
         }
     }
 
+    protected FusedPointOpImage.Stage createPointStage(PlanarImage source, float opacity) {
+        LookupTableJAI table = computeTable(source);
+        if (table instanceof LightnessLookupTable)
+            return new FusedPointOpImage.LightnessLookup(table.getShortData()[0], opacity);
+        else
+            return new FusedPointOpImage.Lookup(table.getShortData()[0], opacity);
+    }
+
     private class ZoneMapper extends BlendedTransform {
         ZoneMapper(PlanarImage source) {
             super(source);
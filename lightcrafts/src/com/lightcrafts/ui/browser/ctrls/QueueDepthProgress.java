@@ -3,6 +3,7 @@
 package com.lightcrafts.ui.browser.ctrls;
 
 import com.lightcrafts.ui.browser.model.ImageList;
+import com.lightcrafts.ui.browser.model.ImageTaskQueue;
 import com.lightcrafts.ui.browser.model.ImageTaskQueueListener;
 
 import static com.lightcrafts.ui.browser.ctrls.Locale.LOCALE;
@@ -39,6 +40,12 @@ public class QueueDepthProgress
         }
     }
 
+    public void throughputChanged(
+        ImageTaskQueue.Stage stage, float tasksPerSecond
+    ) {
+        // The progress bar only tracks the queue depth.
+    }
+
     private void addProgressBar() {
         progress = new JProgressBar(0, 10);
         progress.setToolTipText(LOCALE.get("ProgressToolTip"));
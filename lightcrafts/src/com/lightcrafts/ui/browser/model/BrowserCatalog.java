@@ -0,0 +1,400 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.ui.browser.model;
+
+import com.lightcrafts.utils.filecache.FileCache;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single file holding the cached metadata and thumbnails for all the
+ * images in one folder, so that reopening a folder reads one memory-mapped
+ * file sequentially instead of opening a FileCache entry per image per
+ * datum.
+ * <p>
+ * The file is an append-only log of records, each one a length, a record
+ * type, the image file name, and a payload.  Replacing an entry appends a
+ * new record, and removing one appends a tombstone.  The index of live
+ * records is rebuilt in memory by scanning the record headers when the
+ * catalog is opened, and the file is rewritten without its dead records
+ * when they make up most of it.  A torn record at the end of the file, left
+ * by a crash, is truncated away.
+ * <p>
+ * The catalog file is itself an entry in the folder's FileCache, so the
+ * cache may evict it like any other entry.  Catalogs are shared and
+ * reference counted: every open() must be balanced by a close().
+ */
+public class BrowserCatalog {
+
+    // The record type for ImageDatum metadata
+    public final static int Metadata = 1;
+
+    // The record type for ImageTask thumbnail images
+    public final static int Thumbnail = 2;
+
+    // Flags a record that removes the entry of its type and name
+    private final static int Removed = 0x80;
+
+    private final static int Magic = 0x4C5A4243;   // "LZBC"
+    private final static int Version = 1;
+    private final static int HeaderSize = 8;
+
+    // Size of the record length, type and name length fields
+    private final static int RecordHeaderSize = 7;
+
+    // Don't bother compacting catalogs smaller than this
+    private final static long MinCompactSize = 1024 * 1024;
+
+    // Open catalogs, by catalog file
+    private final static Map<File, BrowserCatalog> Catalogs =
+        new HashMap<File, BrowserCatalog>();
+
+    private final File file;
+    private final FileCache cache;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    // A read-only mapping of the file, remapped when it falls behind
+    private MappedByteBuffer map;
+
+    // Live records, by type and name
+    private final Map<String, Entry> index;
+
+    // The file offset where the next record goes
+    private long end;
+
+    // The number of bytes in superseded and tombstone records
+    private long garbage;
+
+    private int refCount;
+
+    // The location of a live record's payload
+    private static class Entry {
+        final long offset;
+        final int length;
+        final int recordSize;
+
+        Entry(long offset, int length, int recordSize) {
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    /**
+     * Get the catalog for the images in the given directory, stored in the
+     * given FileCache.  Returns null if the cache is null or if the catalog
+     * can't be opened, in which case nothing will be cached.
+     */
+    public static BrowserCatalog open(File directory, FileCache cache) {
+        if (cache == null) {
+            return null;
+        }
+        String key = new File(directory, CatalogName).getAbsolutePath();
+        synchronized(Catalogs) {
+            try {
+                File file = cache.getFileFor(key);
+                if (file == null) {
+                    file = cache.putToFile(key);
+                }
+                BrowserCatalog catalog = Catalogs.get(file);
+                if (catalog == null) {
+                    catalog = new BrowserCatalog(file, cache);
+                    Catalogs.put(file, catalog);
+                }
+                catalog.refCount++;
+                return catalog;
+            }
+            catch (IOException e) {
+                System.err.println("browser catalog error: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Release a catalog obtained from open().  The file is closed when the
+     * last holder releases it, and its new size reported to the FileCache.
+     */
+    public void close() {
+        synchronized(Catalogs) {
+            if (--refCount > 0) {
+                return;
+            }
+            Catalogs.remove(file);
+        }
+        synchronized(this) {
+            closeFile();
+        }
+        try {
+            cache.notifyAboutCloseOf(file);
+        }
+        catch (IOException e) {
+            System.err.println("browser catalog error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the payload of the record of the given type for the image with
+     * the given name, or null if there is none.
+     */
+    public synchronized byte[] get(String name, int type) {
+        Entry entry = index.get(getIndexKey(name, type));
+        if ((entry == null) || (channel == null)) {
+            return null;
+        }
+        try {
+            if (entry.offset + entry.length > map.capacity()) {
+                remap();
+            }
+            byte[] data = new byte[entry.length];
+            ByteBuffer buf = map.duplicate();
+            buf.position((int) entry.offset);
+            buf.get(data);
+            return data;
+        }
+        catch (IOException e) {
+            System.err.println("browser catalog error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Replace the payload of the record of the given type for the image with
+     * the given name.
+     */
+    public synchronized void put(
+        String name, int type, byte[] data, int length
+    ) throws IOException {
+        if (channel == null) {
+            throw new IOException("browser catalog is closed");
+        }
+        byte[] nameBytes = getNameBytes(name);
+        int recordSize = RecordHeaderSize + nameBytes.length + length;
+        ByteBuffer buf = ByteBuffer.allocate(recordSize);
+        buf.putInt(recordSize - 4);
+        buf.put((byte) type);
+        buf.putShort((short) nameBytes.length);
+        buf.put(nameBytes);
+        buf.put(data, 0, length);
+        buf.flip();
+        append(buf);
+
+        long offset = end - length;
+        Entry old = index.put(
+            getIndexKey(name, type), new Entry(offset, length, recordSize)
+        );
+        if (old != null) {
+            garbage += old.recordSize;
+        }
+    }
+
+    /**
+     * Remove the record of the given type for the image with the given
+     * name, if there is one.
+     */
+    public synchronized void remove(String name, int type)
+        throws IOException
+    {
+        Entry old = index.remove(getIndexKey(name, type));
+        if ((old == null) || (channel == null)) {
+            return;
+        }
+        byte[] nameBytes = getNameBytes(name);
+        int recordSize = RecordHeaderSize + nameBytes.length;
+        ByteBuffer buf = ByteBuffer.allocate(recordSize);
+        buf.putInt(recordSize - 4);
+        buf.put((byte) (type | Removed));
+        buf.putShort((short) nameBytes.length);
+        buf.put(nameBytes);
+        buf.flip();
+        append(buf);
+
+        garbage += old.recordSize + recordSize;
+    }
+
+    private BrowserCatalog(File file, FileCache cache) throws IOException {
+        this.file = file;
+        this.cache = cache;
+        index = new HashMap<String, Entry>();
+        openFile();
+        if ((end > MinCompactSize) && (garbage > end / 2)) {
+            compact();
+        }
+    }
+
+    // Open and map the file, rebuilding the index from its record headers.
+    private void openFile() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if ((channel.size() < HeaderSize) ||
+            (channel.size() > Integer.MAX_VALUE)) {
+            initFile();
+        }
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if ((map.getInt(0) != Magic) || (map.getInt(4) != Version)) {
+            unmap();
+            initFile();
+            map = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size()
+            );
+        }
+        index.clear();
+        garbage = 0;
+        end = scan();
+        if (end < channel.size()) {
+            // Drop a torn record left by a crash.
+            unmap();
+            channel.truncate(end);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+    }
+
+    // Reset the file to an empty catalog.
+    private void initFile() throws IOException {
+        channel.truncate(0);
+        ByteBuffer buf = ByteBuffer.allocate(HeaderSize);
+        buf.putInt(Magic);
+        buf.putInt(Version);
+        buf.flip();
+        channel.write(buf, 0);
+    }
+
+    // Read the record headers, filling in the index and the garbage count,
+    // and return the offset after the last whole record.
+    private long scan() throws UnsupportedEncodingException {
+        ByteBuffer buf = map.duplicate();
+        int pos = HeaderSize;
+        int limit = buf.capacity();
+        while (pos + RecordHeaderSize <= limit) {
+            int recordSize = buf.getInt(pos) + 4;
+            int type = buf.get(pos + 4) & 0xFF;
+            int nameLength = buf.getShort(pos + 5) & 0xFFFF;
+            int payload = recordSize - RecordHeaderSize - nameLength;
+            if ((payload < 0) || (recordSize > limit - pos)) {
+                break;
+            }
+            byte[] nameBytes = new byte[nameLength];
+            buf.position(pos + RecordHeaderSize);
+            buf.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8");
+
+            Entry old;
+            if ((type & Removed) != 0) {
+                old = index.remove(getIndexKey(name, type & ~Removed));
+                garbage += recordSize;
+            }
+            else {
+                old = index.put(
+                    getIndexKey(name, type),
+                    new Entry(pos + recordSize - payload, payload, recordSize)
+                );
+            }
+            if (old != null) {
+                garbage += old.recordSize;
+            }
+            pos += recordSize;
+        }
+        return pos;
+    }
+
+    // Copy the live records to a new file and replace the catalog with it.
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HeaderSize);
+            header.putInt(Magic);
+            header.putInt(Version);
+            header.flip();
+            outChannel.write(header);
+            for (Entry entry : index.values()) {
+                ByteBuffer buf = map.duplicate();
+                int start = (int) (entry.offset + entry.length) -
+                    entry.recordSize;
+                buf.limit(start + entry.recordSize);
+                buf.position(start);
+                while (buf.hasRemaining()) {
+                    outChannel.write(buf);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        long before = end;
+        closeFile();
+        if ((! file.delete()) || (! temp.renameTo(file))) {
+            temp.delete();
+        }
+        openFile();
+        System.out.println(
+            "Compacted browser catalog " + file.getName() + " from " +
+            before + " to " + end + " bytes"
+        );
+    }
+
+    private void append(ByteBuffer buf) throws IOException {
+        long pos = end;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        end = pos;
+    }
+
+    private void remap() throws IOException {
+        unmap();
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+    }
+
+    // Release the mapping now, rather than whenever it gets collected, so
+    // the file can be replaced or deleted.  This is safe because get()
+    // copies the data out and never hands out a view of the mapping.
+    private void unmap() {
+        if (map instanceof DirectBuffer) {
+            ((DirectBuffer) map).cleaner().clean();
+        }
+        map = null;
+    }
+
+    private void closeFile() {
+        unmap();
+        try {
+            raf.close();
+        }
+        catch (IOException e) {
+            System.err.println("browser catalog error: " + e.getMessage());
+        }
+        raf = null;
+        channel = null;
+    }
+
+    private static String getIndexKey(String name, int type) {
+        return type + name;
+    }
+
+    private static byte[] getNameBytes(String name)
+        throws UnsupportedEncodingException
+    {
+        byte[] bytes = name.getBytes("UTF-8");
+        if (bytes.length > 0xFFFF) {
+            throw new UnsupportedEncodingException("name too long: " + name);
+        }
+        return bytes;
+    }
+
+    // The pseudo file name whose FileCache key locates a folder's catalog
+    private final static String CatalogName = "_browser_catalog";
+}
+/* vim:set et sw=4 ts=4: */
@@ -0,0 +1,391 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.ui.browser.model;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.util.*;
+
+/**
+ * An in-memory cache for the images the browser computes, in three levels
+ * with their own byte budgets: the decoded thumbnails painted by the
+ * browser, the encoded 320 pixel JPEGs they are scaled from, and the decoded
+ * 1536 pixel previews.  Entries are keyed by image file, and thumbnails
+ * also by their size, since browsers may show the same file at different
+ * sizes.
+ * <p>
+ * When a level goes over its budget, entries are evicted by their distance
+ * from the ranges of images the browsers report as visible, farthest first
+ * and least recently used among equals, until the level is a little under
+ * budget.  Entries visible in any browser are never evicted, so that
+ * painting can't thrash.  Entries for files that aren't in any browser at
+ * all go first.
+ * <p>
+ * The budgets, in megabytes, may be set with the
+ * lightcrafts.browser.thumbnailCache, lightcrafts.browser.cachedImageCache,
+ * and lightcrafts.browser.previewCache system properties.  By default they
+ * are fractions of the maximum heap size.
+ */
+public class BrowserImageCache {
+
+    /**
+     * The cache levels, from the cheapest to recompute to the most costly.
+     */
+    public enum Level {
+        Thumbnail("thumbnailCache", 16),
+        CachedImage("cachedImageCache", 32),
+        Preview("previewCache", 8);
+
+        private final String property;
+
+        // The default budget, as a fraction of the maximum heap
+        private final int heapDivisor;
+
+        Level(String property, int heapDivisor) {
+            this.property = property;
+            this.heapDivisor = heapDivisor;
+        }
+    }
+
+    private final static BrowserImageCache Instance = new BrowserImageCache();
+
+    // Evictions stop when a level is down to this percentage of its budget,
+    // so a full cache isn't re-sorted for every new entry.
+    private final static int LowWaterPercent = 90;
+
+    private final Map<Level, LevelCache> levels;
+
+    // The files and the visible range of each browser, for eviction by
+    // proximity
+    private final Map<Object, VisibleRange> ranges =
+        new WeakHashMap<Object, VisibleRange>();
+
+    public static BrowserImageCache getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Report the files in a browser in display order, and the range of them
+     * that is visible.  Entries for files closer to a visible range are kept
+     * longer.  Each browser's range is kept until it reports a new one or is
+     * garbage collected.
+     */
+    public synchronized void setVisibleRange(
+        Object browser, List<File> files, int first, int last
+    ) {
+        ranges.put(browser, new VisibleRange(files, first, last));
+    }
+
+    public synchronized long getBudget(Level level) {
+        return levels.get(level).budget;
+    }
+
+    public synchronized long getByteCount(Level level) {
+        return levels.get(level).bytes;
+    }
+
+    public synchronized int getEntryCount(Level level) {
+        return levels.get(level).entries.size();
+    }
+
+    public synchronized long getHitCount(Level level) {
+        return levels.get(level).hits;
+    }
+
+    public synchronized long getMissCount(Level level) {
+        return levels.get(level).misses;
+    }
+
+    public synchronized long getEvictionCount(Level level) {
+        return levels.get(level).evictions;
+    }
+
+    public synchronized String toString() {
+        StringBuilder buffer = new StringBuilder();
+        for (Level level : Level.values()) {
+            LevelCache cache = levels.get(level);
+            if (buffer.length() > 0) {
+                buffer.append("; ");
+            }
+            buffer.append(level);
+            buffer.append(": ");
+            buffer.append(cache.entries.size());
+            buffer.append(" entries, ");
+            buffer.append(cache.bytes / 1024);
+            buffer.append("/");
+            buffer.append(cache.budget / 1024);
+            buffer.append(" KB, ");
+            buffer.append(cache.hits);
+            buffer.append(" hits, ");
+            buffer.append(cache.misses);
+            buffer.append(" misses, ");
+            buffer.append(cache.evictions);
+            buffer.append(" evictions");
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Get the entry for the given file and size at the given level, or null
+     * if there is none.
+     */
+    synchronized Object get(Level level, File file, int size) {
+        LevelCache cache = levels.get(level);
+        Entry entry = cache.entries.get(new Key(file, size));
+        if (entry == null) {
+            cache.misses++;
+            return null;
+        }
+        cache.hits++;
+        return entry.value;
+    }
+
+    /**
+     * Tell whether there is an entry for the given file at the given level,
+     * without counting a hit or a miss or making it more recently used.
+     */
+    synchronized boolean contains(Level level, File file, int size) {
+        return levels.get(level).entries.containsKey(new Key(file, size));
+    }
+
+    /**
+     * Get the thumbnail of the given file at the given size.
+     */
+    RenderedImage getImage(Level level, File file, int size) {
+        return (RenderedImage) get(level, file, size);
+    }
+
+    RenderedImage getImage(Level level, File file) {
+        return getImage(level, file, 0);
+    }
+
+    byte[] getBytes(Level level, File file) {
+        return (byte[]) get(level, file, 0);
+    }
+
+    /**
+     * Keep the thumbnail of the given file at the given size.
+     */
+    void putImage(Level level, File file, int size, RenderedImage image) {
+        put(level, new Key(file, size), image, getByteCount(image));
+    }
+
+    void putImage(Level level, File file, RenderedImage image) {
+        putImage(level, file, 0, image);
+    }
+
+    void putBytes(Level level, File file, byte[] bytes) {
+        put(level, new Key(file, 0), bytes, bytes.length);
+    }
+
+    /**
+     * Remove the entries for the given file at the given level, whatever
+     * their size.
+     */
+    synchronized void remove(Level level, File file) {
+        LevelCache cache = levels.get(level);
+        Iterator<Map.Entry<Key, Entry>> i = cache.entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Entry> entry = i.next();
+            if (entry.getKey().file.equals(file)) {
+                cache.bytes -= entry.getValue().bytes;
+                i.remove();
+            }
+        }
+    }
+
+    private synchronized void remove(Level level, Key key) {
+        LevelCache cache = levels.get(level);
+        Entry old = cache.entries.remove(key);
+        if (old != null) {
+            cache.bytes -= old.bytes;
+        }
+    }
+
+    /**
+     * Replace the entry for the given key at the given level, then evict
+     * entries if the level is over its budget.  An entry bigger than the
+     * whole budget is not kept.
+     */
+    private synchronized void put(
+        Level level, Key key, Object value, long bytes
+    ) {
+        remove(level, key);
+        LevelCache cache = levels.get(level);
+        if (bytes > cache.budget) {
+            return;
+        }
+        cache.entries.put(key, new Entry(value, bytes));
+        cache.bytes += bytes;
+        if (cache.bytes > cache.budget) {
+            evict(cache);
+        }
+    }
+
+    // Evict entries farthest from the visible range until the level is down
+    // to its low water mark.
+    private void evict(LevelCache cache) {
+        // The entries in least recently used order, stably sorted by
+        // decreasing distance from the visible range
+        List<Map.Entry<Key, Entry>> candidates =
+            new ArrayList<Map.Entry<Key, Entry>>(cache.entries.entrySet());
+        final Map<Key, Integer> distances = new HashMap<Key, Integer>();
+        for (Map.Entry<Key, Entry> candidate : candidates) {
+            Key key = candidate.getKey();
+            distances.put(key, getDistance(key.file));
+        }
+        Collections.sort(
+            candidates,
+            new Comparator<Map.Entry<Key, Entry>>() {
+                public int compare(
+                    Map.Entry<Key, Entry> e1, Map.Entry<Key, Entry> e2
+                ) {
+                    int d1 = distances.get(e1.getKey());
+                    int d2 = distances.get(e2.getKey());
+                    return (d1 > d2) ? -1 : ((d1 < d2) ? 1 : 0);
+                }
+            }
+        );
+        long lowWater = cache.budget / 100 * LowWaterPercent;
+        for (Map.Entry<Key, Entry> candidate : candidates) {
+            if (cache.bytes <= lowWater) {
+                break;
+            }
+            Key key = candidate.getKey();
+            if (distances.get(key) == 0) {
+                break;
+            }
+            Entry old = cache.entries.remove(key);
+            cache.bytes -= old.bytes;
+            cache.evictions++;
+        }
+    }
+
+    // How many positions the given file is from the nearest visible range:
+    // zero if it's visible, and the maximum if it's not in any browser.
+    private int getDistance(File file) {
+        int distance = Integer.MAX_VALUE;
+        for (VisibleRange range : ranges.values()) {
+            distance = Math.min(distance, range.getDistance(file));
+        }
+        return distance;
+    }
+
+    private BrowserImageCache() {
+        levels = new EnumMap<Level, LevelCache>(Level.class);
+        for (Level level : Level.values()) {
+            levels.put(level, new LevelCache(getDefaultBudget(level)));
+        }
+    }
+
+    private static long getDefaultBudget(Level level) {
+        String value =
+            System.getProperty("lightcrafts.browser." + level.property);
+        if (value != null) {
+            try {
+                return Math.max(Long.parseLong(value), 0) * 1024 * 1024;
+            }
+            catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / level.heapDivisor;
+    }
+
+    // Estimate the memory held by an image's pixels.
+    static long getByteCount(RenderedImage image) {
+        if (image instanceof BufferedImage) {
+            DataBuffer buffer =
+                ((BufferedImage) image).getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() *
+                DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        }
+        SampleModel model = image.getSampleModel();
+        return (long) image.getWidth() * image.getHeight() *
+            model.getNumDataElements() *
+            DataBuffer.getDataTypeSize(model.getDataType()) / 8;
+    }
+
+    // A browser's files by position, and the range of visible positions,
+    // inclusive
+    private static class VisibleRange {
+        final Map<File, Integer> positions = new HashMap<File, Integer>();
+        final int first;
+        final int last;
+
+        VisibleRange(List<File> files, int first, int last) {
+            int n = 0;
+            for (File file : files) {
+                positions.put(file, n++);
+            }
+            this.first = first;
+            this.last = last;
+        }
+
+        int getDistance(File file) {
+            Integer position = positions.get(file);
+            if (position == null) {
+                return Integer.MAX_VALUE;
+            }
+            if (position < first) {
+                return first - position;
+            }
+            if (position > last) {
+                return position - last;
+            }
+            return 0;
+        }
+    }
+
+    // An entry's file, and its size for thumbnails or zero
+    private static class Key {
+        final File file;
+        final int size;
+
+        Key(File file, int size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        public boolean equals(Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return (size == key.size) && file.equals(key.file);
+        }
+
+        public int hashCode() {
+            return 31 * file.hashCode() + size;
+        }
+    }
+
+    // One level's entries, in least recently used order, with its budget
+    // and counters
+    private static class LevelCache {
+        final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        final long budget;
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+
+        LevelCache(long budget) {
+            this.budget = budget;
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -9,13 +9,13 @@ import static com.lightcrafts.image.metadata.CoreTags.*;
 import com.lightcrafts.image.metadata.*;
 import static com.lightcrafts.image.metadata.TIFFTags.TIFF_XMP_PACKET;
 import com.lightcrafts.image.metadata.values.ImageMetaValue;
+import com.lightcrafts.ui.browser.model.BrowserImageCache.Level;
 import static com.lightcrafts.ui.browser.model.Locale.LOCALE;
 import com.lightcrafts.utils.filecache.FileCache;
 
 import java.awt.*;
 import java.awt.image.RenderedImage;
 import java.io.*;
-import java.lang.ref.SoftReference;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -25,6 +25,10 @@ import java.util.LinkedList;
  */
 public class ImageDatum {
 
+    // Holds the thumbnail images, within a memory budget
+    private final static BrowserImageCache Cache =
+        BrowserImageCache.getInstance();
+
     // The File defining the image
     private File file;
 
@@ -40,9 +44,6 @@ public class ImageDatum {
     // Selected metadata, updated asynchronously
     private ImageMetadata meta;
 
-    // Thumbnail image, updated asynchronously
-    private SoftReference<RenderedImage> image;
-
     // This ImageDatum's LZN encoding info, computed lazily
     private ImageDatumType type;
 
@@ -55,9 +56,12 @@ public class ImageDatum {
     // The Thread container for the ImageTask
     private ImageTaskQueue queue;
 
-    // The cache used by the ImageTask
+    // The cache used for previews
     private FileCache cache;
 
+    // The folder catalog holding cached metadata and thumbnails
+    private BrowserCatalog catalog;
+
     // The size for thumbnails, given to ImageTasks
     private int size;
 
@@ -73,12 +77,17 @@ public class ImageDatum {
     private boolean badFile = false;
 
     public ImageDatum(
-        File file, int size, ImageTaskQueue queue, FileCache cache
+        File file,
+        int size,
+        ImageTaskQueue queue,
+        FileCache cache,
+        BrowserCatalog catalog
     ) {
         this.file = file;
         this.size = size;
         this.queue = queue;
         this.cache = cache;
+        this.catalog = catalog;
 
         markDirty();
 
@@ -187,7 +196,7 @@ public class ImageDatum {
         }
         meta = null;
         type = null;
-        image = null;
+        Cache.remove(Level.Thumbnail, file);
         clearMetadataCache();
         restartTask(useImageCache);
     }
@@ -202,6 +211,35 @@ public class ImageDatum {
         }
     }
 
+    /**
+     * Queue the ImageTask to compute this ImageDatum's thumbnail, if it has
+     * none and its task isn't already queued.  The task goes behind those
+     * already queued, so images being painted still come first.  This lets
+     * the browser compute thumbnails just ahead of scrolling.
+     */
+    public synchronized void prefetch() {
+        if (badFile) {
+            return;
+        }
+        boolean queued = (task != null) && isDirty && ! task.isCancelled();
+        if (queued) {
+            return;
+        }
+        if (isDirty || ! Cache.contains(Level.Thumbnail, file, size)) {
+            restartTask(true);
+        }
+    }
+
+    /**
+     * Move this ImageDatum's ImageTask, if it is waiting, behind all the
+     * other waiting tasks.
+     */
+    public void lowerPriority() {
+        if (task != null) {
+            queue.lowerTask(task);
+        }
+    }
+
     // Called from ImageList.
     void setSize(int size) {
         if ((size != this.size) && (size > 0)) {
@@ -215,7 +253,7 @@ public class ImageDatum {
         if ((observer != null) && ! observers.contains(observer)) {
             observers.add(observer);
         }
-        RenderedImage image = (this.image != null) ? this.image.get() : null;
+        RenderedImage image = Cache.getImage(Level.Thumbnail, file, size);
 
         if (! badFile) {
             if ((task == null) || (image == null) || isDirty) {
@@ -253,9 +291,9 @@ public class ImageDatum {
         previews.clear();
     }
 
-    // Called from ImageTask when a thumbnail is ready
-    synchronized void setImage(RenderedImage image) {
-        this.image = new SoftReference<RenderedImage>(image);
+    // Called from ImageTask when a thumbnail of the given size is ready
+    synchronized void setImage(RenderedImage image, int size) {
+        Cache.putImage(Level.Thumbnail, file, size, image);
     }
 
     long getFileCacheTime() {
@@ -274,6 +312,13 @@ public class ImageDatum {
             migrateRotateCacheToXmp();
             useCache = false;
         }
+        if ((meta != null) && meta.isCorrupt()) {
+            // The cached record failed to decode when a value was first
+            // read: drop it and parse the file again.
+            meta = null;
+            clearMetadataCache();
+            useCache = false;
+        }
         if ((meta == null) && useCache) {
             readMetadataCache();
         }
@@ -294,7 +339,7 @@ public class ImageDatum {
             }
             // Limit the metadata to data used for sorting and display.
             updateMetadata(meta);
-            // Note file modification times, used for metadata cache keys.
+            // Note file modification times, used to validate cached metadata.
             updateFileTimes();
             // Write limited, timestamped metadata to the cache.
             writeMetadataCache();
@@ -422,10 +467,10 @@ public class ImageDatum {
     // commitRotate() to update the painted image quickly, until the polling
     // can catch up with an authoritative image.
     private void rotateInMemory(int multiple) {
-        RenderedImage image = (this.image != null) ? this.image.get() : null;
+        RenderedImage image = Cache.getImage(Level.Thumbnail, file, size);
         if (image != null) {
             image = Thumbnailer.rotateNinetyTimes(image, multiple);
-            this.image = new SoftReference<RenderedImage>(image);
+            Cache.putImage(Level.Thumbnail, file, size, image);
             EventQueue.invokeLater(
                 new Runnable() {
                     public void run() {
@@ -457,11 +502,11 @@ public class ImageDatum {
         }
     }
 
-    private void restartTask(boolean useCache) {
+    private synchronized void restartTask(boolean useCache) {
         if (task != null) {
             queue.removeTask(task);
         }
-        task = new ImageTask(this, cache, size, useCache);
+        task = new ImageTask(this, catalog, size, useCache);
         markDirty();
         queue.addTask(task);
     }
@@ -469,11 +514,11 @@ public class ImageDatum {
     private void updatePreviews() {
         // Push a rotation change out to all running PreviewUpdaters.
         LinkedList<PreviewUpdater> newRefs = new LinkedList<PreviewUpdater>();
+        RenderedImage image = previews.isEmpty() ?
+            null : Cache.getImage(Level.Thumbnail, file, size);
         for (Iterator<PreviewUpdater> i=previews.iterator(); i.hasNext(); ) {
             PreviewUpdater updater = i.next();
             if (updater != null) {
-                RenderedImage image =
-                    (this.image != null) ? this.image.get() : null;
                 if (image != null) {
                     i.remove();
                     updater = new PreviewUpdater(updater, image, meta);
@@ -574,266 +619,84 @@ public class ImageDatum {
         }
     }
 
+    // Write the limited metadata, together with the file times and XMP file
+    // that tell when it goes stale, as this image's catalog record.
     private void writeMetadataCache() {
-        if (cache == null) {
+        if (catalog == null) {
             return;
         }
-        String metaKey = getMetadataKey();
-        ObjectOutputStream out = null;
         try {
-            out = new ObjectOutputStream(cache.putToStream(metaKey));
-            out.writeObject(meta);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(fileCacheTime);
+            out.writeBoolean(xmpFile != null);
+            if (xmpFile != null) {
+                out.writeUTF(xmpFile.getAbsolutePath());
+                out.writeLong(xmpFileCacheTime);
+            }
+            byte[] encoded = ImageMetadataCodec.encode(meta);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            out.close();
+            catalog.put(
+                file.getName(), BrowserCatalog.Metadata,
+                bytes.toByteArray(), bytes.size()
+            );
         }
         catch (IOException e) {
             // metadata will be reread next time
             System.err.println("metadata cache error: " + e.getMessage());
         }
-        finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }
-                catch (IOException e) {
-                    System.err.println(
-                        "metadata cache error: " + e.getMessage()
-                    );
-                }
-            }
-        }
-        String fileTimeKey = getFileTimeCacheKey();
-        try {
-            out = new ObjectOutputStream(cache.putToStream(fileTimeKey));
-            out.writeObject(fileCacheTime);
-        }
-        catch (IOException e) {
-            System.err.println("file time cache error: " + e.getMessage());
-        }
-        finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }
-                catch (IOException e) {
-                    System.err.println(
-                        "file time cache error: " + e.getMessage()
-                    );
-                }
-            }
-        }
-        if (xmpFile == null) {
-            return;
-        }
-        String xmpFileKey = getXmpKey();
-        try {
-            out = new ObjectOutputStream(cache.putToStream(xmpFileKey));
-            out.writeObject(xmpFile);
-        }
-        catch (IOException e) {
-            System.err.println("file time cache error: " + e.getMessage());
-        }
-        finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }
-                catch (IOException e) {
-                    System.err.println(
-                        "file time cache error: " + e.getMessage()
-                    );
-                }
-            }
-        }
-        String xmpFileTimeKey = getXmpFileTimeCacheKey();
-        try {
-            out = new ObjectOutputStream(cache.putToStream(xmpFileTimeKey));
-            out.writeObject(xmpFileCacheTime);
-        }
-        catch (IOException e) {
-            System.err.println("XMP file time cache error: " + e.getMessage());
-        }
-        finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }
-                catch (IOException e) {
-                    System.err.println(
-                        "XMP file time cache error: " + e.getMessage()
-                    );
-                }
-            }
-        }
     }
 
     private void readMetadataCache() {
-        if (cache == null) {
+        if (catalog == null) {
             return;
         }
-        String fileTimeKey = getFileTimeCacheKey();
-        if (cache.contains(fileTimeKey)) {
-            ObjectInputStream oin = null;
-            try {
-                InputStream in = cache.getStreamFor(fileTimeKey);
-                if (in != null) {
-                    oin = new ObjectInputStream(in);
-                    fileCacheTime = (Long) oin.readObject();
-                }
-            }
-            catch (IOException e) {
-                fileCacheTime = 0;
-            }
-            catch (ClassNotFoundException e) {
-                fileCacheTime = 0;
-            }
-            finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    }
-                    catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        }
-        String xmpFileKey = getXmpKey();
-        if (cache.contains(xmpFileKey)) {
-            ObjectInputStream oin = null;
-            try {
-                InputStream in = cache.getStreamFor(xmpFileKey);
-                if (in != null) {
-                    oin = new ObjectInputStream(in);
-                    xmpFile = (File) oin.readObject();
-                }
-            }
-            catch (IOException e) {
-                xmpFile = null;
-            }
-            catch (ClassNotFoundException e) {
-                xmpFile = null;
-            }
-            finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    }
-                    catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
-        }
-        if (xmpFile != null) {
-            String xmpFileTimeKey = getXmpFileTimeCacheKey();
-            if (cache.contains(xmpFileTimeKey)) {
-                ObjectInputStream oin = null;
-                try {
-                    InputStream in = cache.getStreamFor(xmpFileTimeKey);
-                    if (in != null) {
-                        oin = new ObjectInputStream(in);
-                        xmpFileCacheTime = (Long) oin.readObject();
-                    }
-                }
-                catch (IOException e) {
-                    xmpFileCacheTime = 0;
-                }
-                catch (ClassNotFoundException e) {
-                    xmpFileCacheTime = 0;
-                }
-                finally {
-                    if (oin != null) {
-                        try {
-                            oin.close();
-                        }
-                        catch (IOException e) {
-                            // ignore
-                        }
-                    }
-                }
-            }
+        byte[] data = catalog.get(file.getName(), BrowserCatalog.Metadata);
+        if (data == null) {
+            return;
         }
-        else {
-            xmpFileCacheTime = 0;
+        try {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(data));
+            long fileTime = in.readLong();
+            File xmp = null;
+            long xmpTime = 0;
+            if (in.readBoolean()) {
+                xmp = new File(in.readUTF());
+                xmpTime = in.readLong();
+            }
+            int length = in.readInt();
+            if ((length < 0) || (length > in.available())) {
+                // E.g., a record written before metadata was encoded
+                throw new IOException("bad metadata length " + length);
+            }
+            byte[] encoded = new byte[length];
+            in.readFully(encoded);
+            // Directories are decoded only when they are first accessed.
+            meta = ImageMetadataCodec.decode(encoded);
+            fileCacheTime = fileTime;
+            xmpFile = xmp;
+            xmpFileCacheTime = xmpTime;
         }
-        String metaKey = getMetadataKey();
-        if (cache.contains(metaKey)) {
-            ObjectInputStream oin = null;
-            try {
-                InputStream in = cache.getStreamFor(metaKey);
-                if (in != null) {
-                    oin = new ObjectInputStream(in);
-                    meta = (ImageMetadata) oin.readObject();
-                }
-            }
-            catch (IOException e) {
-                // getMetadata() will fall back to parsing out metadata
-            }
-            catch (ClassNotFoundException e) {
-                // getMetadata() will fall back to parsing out metadata
-            }
-            finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    }
-                    catch (IOException e) {
-                        // ignore
-                    }
-                }
-            }
+        catch (IOException e) {
+            // getMetadata() will fall back to parsing out metadata
+            meta = null;
         }
     }
 
     private void clearMetadataCache() {
-        if (cache == null) {
+        if (catalog == null) {
             return;
         }
-        String key = getMetadataKey();
-        if (cache.contains(key)) {
-            try {
-                cache.remove(key);
-            }
-            catch (IOException e) {
-                System.err.println(
-                    "metadata cache clear error: " + e.getMessage()
-                );
-            }
-        }
-        String fileTimeKey = getFileTimeCacheKey();
-        if (cache.contains(fileTimeKey)) {
-            try {
-                cache.remove(fileTimeKey);
-            }
-            catch (IOException e) {
-                System.err.println(
-                    "metadata cache clear error: " + e.getMessage()
-                );
-            }
-        }
-        String xmpFileKey = getXmpKey();
-        if (cache.contains(xmpFileKey)) {
-            try {
-                cache.remove(xmpFileKey);
-            }
-            catch (IOException e) {
-                System.err.println(
-                    "metadata cache clear error: " + e.getMessage()
-                );
-            }
-        }
-        if (xmpFile == null) {
-            return;
+        try {
+            catalog.remove(file.getName(), BrowserCatalog.Metadata);
         }
-        String xmpFileTimeKey = getXmpFileTimeCacheKey();
-        if (cache.contains(xmpFileTimeKey)) {
-            try {
-                cache.remove(xmpFileTimeKey);
-            }
-            catch (IOException e) {
-                System.err.println(
-                    "metadata cache clear error: " + e.getMessage()
-                );
-            }
+        catch (IOException e) {
+            System.err.println(
+                "metadata cache clear error: " + e.getMessage()
+            );
         }
     }
 
@@ -845,16 +708,6 @@ public class ImageDatum {
         return buffer.toString();
     }
 
-    // The cache key for metadata.
-    private String getMetadataKey() {
-        long time = Math.max(fileCacheTime, xmpFileCacheTime);
-        return file.getAbsolutePath() + "_" + time;
-    }
-
-    private String getXmpKey() {
-        return file.getAbsolutePath() + "_xmp_file";
-    }
-
     // Observe modification times for file and xmpFile.  These times are used
     // for modification polling in ImageListPoller and also to timestamp
     // cached metadata.
@@ -871,14 +724,6 @@ public class ImageDatum {
         }
     }
 
-    private String getFileTimeCacheKey() {
-        return file.getAbsolutePath() + "_cache_time";
-    }
-
-    private String getXmpFileTimeCacheKey() {
-        return xmpFile.getAbsolutePath() + "_cache_time";
-    }
-
     private void clearPreview() {
         PreviewUpdater.clearCachedPreviewForImage(meta, cache);
     }
@@ -5,6 +5,7 @@ package com.lightcrafts.ui.browser.model;
 import com.lightcrafts.image.ImageInfo;
 import com.lightcrafts.image.types.ImageType;
 import com.lightcrafts.image.types.JPEGImageType;
+import com.lightcrafts.image.types.LZNImageType;
 
 import java.awt.image.RenderedImage;
 import java.io.File;
@@ -12,6 +13,11 @@ import java.io.File;
 /**
  * There are many different ways of deriving a browser thumbnail from an
  * image file.  Each is statically implemented in this class.
+ * <p>
+ * Wherever the image is JPEG data, the requested size is passed down to
+ * LCJPEGReader, which lets libjpeg scale by 1/2, 1/4 or 1/8 during the
+ * inverse DCT, so big images are never decoded at full resolution just to
+ * be scaled down.
  */
 abstract class ImageFileStrategy {
 
@@ -21,16 +27,13 @@ abstract class ImageFileStrategy {
                 throws Exception
             {
                 ImageType imageType = info.getImageType();
+                // Decoding at scale bounds the memory, however big the file.
                 if (imageType instanceof JPEGImageType) {
-                    File file = info.getFile();
-                    long length = file.length();
-                    if (length < 50 * 1024 * 1024) {
-                        JPEGImageType jpeg = (JPEGImageType) imageType;
-                        return jpeg.getImage(
-                            info, null,
-                            maxImageSize, maxImageSize
-                        );
-                    }
+                    JPEGImageType jpeg = (JPEGImageType) imageType;
+                    return jpeg.getImage(
+                        info, null,
+                        maxImageSize, maxImageSize
+                    );
                 }
                 return null;
             }
@@ -64,6 +67,12 @@ abstract class ImageFileStrategy {
             RenderedImage maybeGetImage(ImageInfo info, int maxImageSize)
                 throws Exception
             {
+                // LZN files hold a JPEG, so they can be decoded at scale.
+                if (info.getImageType() == LZNImageType.INSTANCE) {
+                    return LZNImageType.INSTANCE.getImage(
+                        info, null, maxImageSize, maxImageSize
+                    );
+                }
                 File file = info.getFile();
                 long length = file.length();
                 if (length < 200 * 1024 * 1024) {
@@ -44,6 +44,9 @@ public class ImageList {
     // A cache for costly image data, used in the ImageDatums
     private FileCache cache;
 
+    // The folder's catalog of cached metadata and thumbnails, in the cache
+    private BrowserCatalog catalog;
+
     // A thread that monitors for files added, removed, and modified
     private ImageListPoller poller;
 
@@ -97,6 +100,8 @@ public class ImageList {
         this.cache = cache;
         this.comp = comp;
 
+        catalog = BrowserCatalog.open(directory, cache);
+
         list = Collections.synchronizedList(new LinkedList<ImageDatum>());
 
         queue = new ImageTaskQueue();
@@ -115,7 +120,8 @@ public class ImageList {
                 progress.setMaximum(files.length);
                 for (int n=0; n<files.length && !cancel; n++) {
                     File file = files[n];
-                    ImageDatum datum = new ImageDatum(file, size, queue, cache);
+                    ImageDatum datum =
+                        new ImageDatum(file, size, queue, cache, catalog);
                     // Just get metadata, let painting pull out thumbnails:
                     datum.getMetadata(useCache);
                     list.add(datum);
@@ -202,6 +208,10 @@ public class ImageList {
             queue.stop();
             poller.stop();
         }
+        if (catalog != null) {
+            catalog.close();
+            catalog = null;
+        }
     }
 
     /**
@@ -296,7 +306,8 @@ public class ImageList {
 
     // Used in ImageListPoller when a new File is discovered.
     void addFile(File file) {
-        final ImageDatum datum = new ImageDatum(file, size, queue, cache);
+        final ImageDatum datum =
+            new ImageDatum(file, size, queue, cache, catalog);
         datum.refresh(false); // reads metadata, enqueues thumbnailing
         synchronized(list) {
             list.add(datum);
@@ -3,23 +3,36 @@
 package com.lightcrafts.ui.browser.model;
 
 import com.lightcrafts.image.ImageFileFilter;
+import com.lightcrafts.platform.Platform;
+import com.lightcrafts.utils.file.DirectoryWatcher;
 import com.lightcrafts.utils.file.FileUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 /**
- * Given a directory, this Thread polls image Files for changes in their
+ * Given a directory, this Thread watches image Files for changes in their
  * modification times and triggers appropriate refreshes on ImageDatums.
+ * <p>
+ * Where the Java runtime supports it, the operating system notifies changes
+ * in the directory and only the changed Files are checked, so an idle
+ * browser does no I/O at all.  Otherwise, or if the directory can't be
+ * watched, all the Files are polled periodically.
  */
 class ImageListPoller implements Runnable {
 
     // The wait between scans for modifications, in milliseconds
     private final static long Interval = 3000;
 
+    // How long the directory must be quiet before a batch of changes is
+    // handled, in milliseconds
+    private final static long Debounce = 300;
+
     private ImageList list;
 
     private File directory;
@@ -38,6 +51,17 @@ class ImageListPoller implements Runnable {
     }
 
     public void run() {
+        DirectoryWatcher watcher = DirectoryWatcher.create(
+            Platform.getPlatform().isSpecialFile(directory)
+        );
+        if (watcher != null) {
+            try {
+                watch(watcher);
+            }
+            finally {
+                watcher.close();
+            }
+        }
         while (! stop) {
             synchronized (this) {
                 try {
@@ -60,6 +84,61 @@ class ImageListPoller implements Runnable {
         }
     }
 
+    // Handles change notifications until stop() or until the directory can
+    // no longer be watched, in which case the caller goes back to polling.
+    private void watch(DirectoryWatcher watcher) {
+        // Files of ImageDatums that were still initializing when they
+        // changed, to check again since no event will come for them.
+        Set<File> deferred = new HashSet<File>();
+
+        // Catch up with changes since the directory was listed.
+        try {
+            deferred = poll();
+        }
+        catch (Throwable e) {
+            System.err.println("Error in ImageListPoller:");
+            e.printStackTrace();
+        }
+        while (! stop) {
+            try {
+                Set<File> changes = watcher.waitForChanges(
+                    Debounce, deferred.isEmpty() ? -1 : Interval
+                );
+                synchronized (this) {
+                    while (pause && ! stop) {
+                        wait();
+                    }
+                }
+                if (stop) {
+                    return;
+                }
+                if (changes != null) {
+                    changes.addAll(deferred);
+                    deferred = poll(changes);
+                }
+                else {
+                    // Events were dropped
+                    deferred = poll();
+                }
+            }
+            catch (InterruptedException e) {
+                // Probably a call to stop()
+            }
+            catch (IOException e) {
+                System.err.println(
+                    "ImageListPoller can't watch " + directory + ": " +
+                    e.getMessage()
+                );
+                return;
+            }
+            catch (Throwable e) {
+                System.err.println("Error in ImageListPoller:");
+                e.printStackTrace();
+                // Keep going anyway
+            }
+        }
+    }
+
     void start() {
         if (! thread.isAlive()) {
             stop = false;
@@ -86,44 +165,16 @@ class ImageListPoller implements Runnable {
         }
     }
 
-    private void poll() {
+    // Returns the Files of the ImageDatums that couldn't be checked yet.
+    private Set<File> poll() {
+        Set<File> deferred = new HashSet<File>();
         List<ImageDatum> data = list.getAllImageData();
         Set<File> listFiles = new HashSet<File>();
         for (Iterator<ImageDatum> i=data.iterator(); i.hasNext() && !stop; )  {
             ImageDatum datum = i.next();
-            long oldTime = datum.getFileCacheTime();
-            // If oldTime == 0, the datum is still initializing
-            File file = datum.getFile();
-            listFiles.add(file);
-            if (oldTime > 0) {
-                if (! file.isFile()) {
-                    log("file disappeared", file);
-                    list.removeImageData(datum);
-                }
-                else {
-                    long newTime = file.lastModified();
-                    if (newTime > oldTime) {
-                        log("modification detected", file);
-                        datum.refresh(false);
-                        list.metadataChanged(datum);
-                    }
-                }
-                File xmpFile = datum.getXmpFile();
-                if (xmpFile == null) {
-                    // XMP couldn't be determined, probably a metadata error
-                    continue;
-                }
-                long oldXmpTime = datum.getXmpFileCacheTime();
-                if (! xmpFile.isFile() && (oldXmpTime > 0)) {
-                    log("XMP file disappeared", file);
-                    datum.refresh(true);
-                    list.metadataChanged(datum);
-                }
-                else if (xmpFile.lastModified() > oldXmpTime) {
-                    log("XMP modification detected", file);
-                    datum.refresh(true);
-                    list.metadataChanged(datum);
-                }
+            listFiles.add(datum.getFile());
+            if (! checkDatum(datum)) {
+                deferred.add(datum.getFile());
             }
         }
         File[] dirFiles =
@@ -137,6 +188,76 @@ class ImageListPoller implements Runnable {
                 }
             }
         }
+        return deferred;
+    }
+
+    // Like poll(), but only looks at the given image and XMP Files.
+    private Set<File> poll(Collection<File> changes) {
+        Set<File> deferred = new HashSet<File>();
+        List<ImageDatum> data = list.getAllImageData();
+        Set<File> newFiles = new HashSet<File>(changes);
+        for (Iterator<ImageDatum> i=data.iterator(); i.hasNext() && !stop; )  {
+            ImageDatum datum = i.next();
+            File file = datum.getFile();
+            File xmpFile = datum.getXmpFile();
+            boolean changed = changes.contains(file) ||
+                ((xmpFile != null) && changes.contains(xmpFile));
+            newFiles.remove(file);
+            if (changed && ! checkDatum(datum)) {
+                deferred.add(file);
+            }
+        }
+        for (File file : newFiles) {
+            if (stop) {
+                return deferred;
+            }
+            File file2 = Platform.getPlatform().isSpecialFile(file);
+            if (file2.isFile() && ImageFileFilter.INSTANCE.accept(file2)) {
+                log("file appeared", file);
+                list.addFile(file);
+            }
+        }
+        return deferred;
+    }
+
+    // Returns false if the datum is still initializing and so can't be
+    // checked yet.
+    private boolean checkDatum(ImageDatum datum) {
+        long oldTime = datum.getFileCacheTime();
+        // If oldTime == 0, the datum is still initializing
+        if (oldTime == 0) {
+            return false;
+        }
+        File file = datum.getFile();
+        if (! file.isFile()) {
+            log("file disappeared", file);
+            list.removeImageData(datum);
+        }
+        else {
+            long newTime = file.lastModified();
+            if (newTime > oldTime) {
+                log("modification detected", file);
+                datum.refresh(false);
+                list.metadataChanged(datum);
+            }
+        }
+        File xmpFile = datum.getXmpFile();
+        if (xmpFile == null) {
+            // XMP couldn't be determined, probably a metadata error
+            return true;
+        }
+        long oldXmpTime = datum.getXmpFileCacheTime();
+        if (! xmpFile.isFile() && (oldXmpTime > 0)) {
+            log("XMP file disappeared", file);
+            datum.refresh(true);
+            list.metadataChanged(datum);
+        }
+        else if (xmpFile.lastModified() > oldXmpTime) {
+            log("XMP modification detected", file);
+            datum.refresh(true);
+            list.metadataChanged(datum);
+        }
+        return true;
     }
 
     private static void log(String message, File file) {
@@ -4,22 +4,22 @@ package com.lightcrafts.ui.browser.model;
 
 import com.lightcrafts.image.libs.*;
 import com.lightcrafts.image.metadata.ImageMetadata;
-import com.lightcrafts.utils.filecache.FileCache;
+import com.lightcrafts.ui.browser.model.BrowserImageCache.Level;
 
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 /**
  * This ImageTask handles everything expensive about reading image data:
  * preview extraction, preview caching, thumbnail scaling, and thumbnail
  * rotation.
  * <p>
- * A high resolution preview gets cached in the BrowserCache and also the
- * weakly referenced in-memory ImageDatum cache.  The final scaling and
- * rotation results are never cached and are recomputed every time.
+ * A high resolution preview gets cached as a JPEG in the BrowserCatalog and
+ * in the BrowserImageCache, and the final scaled and rotated result is kept
+ * in the BrowserImageCache by the ImageDatum.
  */
 public class ImageTask implements Runnable {
 
@@ -29,20 +29,24 @@ public class ImageTask implements Runnable {
     // The ImageDatum whose data are computed by this task
     private ImageDatum datum;
 
-    // A cache for fallback if the weak reference cache in datum is lost
-    private FileCache cache;
+    // A cache for fallback if the in-memory caches lost the image
+    private BrowserCatalog catalog;
+
+    // Holds the encoded preview images, within a memory budget
+    private final static BrowserImageCache Cache =
+        BrowserImageCache.getInstance();
 
     // The size for final stage thumbnails
     private int size;
 
     ImageTask(
         ImageDatum datum,
-        FileCache cache,
+        BrowserCatalog catalog,
         int size,
         boolean useCache
     ) {
         this.datum = datum;
-        this.cache = cache;
+        this.catalog = catalog;
         this.size = size;
 
         // If this is a refresh task, then flush all cached results.
@@ -51,14 +55,33 @@ public class ImageTask implements Runnable {
         }
     }
 
+    // Set when this task is taken off the ImageTaskQueue
+    private volatile boolean cancelled;
+
     public void run() {
-        // First initialize metadata, if it's not already read.
+        readMetadata();
+        readImage();
+    }
+
+    // The first stage: initialize metadata, if it's not already read.
+    void readMetadata() {
+        datum.getMetadata(true);
+    }
+
+    // The second stage: get, cache, rotate and scale the thumbnail image.
+    // A task cancelled on the way, e.g. replaced by ImageDatum.restartTask()
+    // while it runs, stops without publishing anything, so it can't finish
+    // after its replacement and overwrite its results.
+    void readImage() {
+        if (cancelled) {
+            return;
+        }
         ImageMetadata meta = datum.getMetadata(true);
 
         RenderedImage image = null;
 
-        // If there's a file cache entry, use that.
-        if (!datum.isBadFile() && cache != null) {
+        // If there's a cache entry, in memory or in the catalog, use that.
+        if (!datum.isBadFile()) {
             image = readImageCache();
             if (image != null) {
                 // Fix the orientation.
@@ -67,11 +90,17 @@ public class ImageTask implements Runnable {
         }
         // If the file cache didn't answer, try to read the File.
         if (!datum.isBadFile() && image == null) {
+            if (cancelled) {
+                return;
+            }
             File file = datum.getFile();
             image = Thumbnailer.getImage(file, CacheImageSize);
+            if (cancelled) {
+                return;
+            }
             if (image != null) {
                 // If there's an image and a cache, then cache the image.
-                if (cache != null) {
+                if (catalog != null) {
                     writeImageCache(image);
                 }
                 // Fix the orientation.
@@ -84,9 +113,25 @@ public class ImageTask implements Runnable {
         // If anything worked, scale and optimize for the ImageDatum.
         if (image != null) {
             image = fixSizeAndColors(image);
-            datum.setImage(image);
         }
-        datum.markClean();
+        // ImageDatum cancels its task while holding its own lock
+        synchronized (datum) {
+            if (cancelled) {
+                return;
+            }
+            if (image != null) {
+                datum.setImage(image, size);
+            }
+            datum.markClean();
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
     }
 
     private RenderedImage fixSizeAndColors(RenderedImage image) {
@@ -111,42 +156,42 @@ public class ImageTask implements Runnable {
     }
 
     private RenderedImage readImageCache() {
-        String key = getImageKey(CacheImageSize);
-        if ((cache == null) || ! cache.contains(key)) {
+        File file = datum.getFile();
+        byte[] data = Cache.getBytes(Level.CachedImage, file);
+        if ((data == null) && (catalog != null)) {
+            data = catalog.get(file.getName(), BrowserCatalog.Thumbnail);
+            if (data != null) {
+                Cache.putBytes(Level.CachedImage, file, data);
+            }
+        }
+        if (data == null) {
             return null;
         }
         try {
-            InputStream in = cache.getStreamFor( key );
-            try {
-                ImageProviderReceiver provRecv = new ImageProviderReceiver();
-                provRecv.fill(in);
-                LCJPEGReader jpeg = new LCJPEGReader(
-                    provRecv, CacheImageSize, CacheImageSize
-                );
-                return jpeg.getImage();
-            }
-            finally {
-                in.close();
-            }
+            ImageProviderReceiver provRecv = new ImageProviderReceiver();
+            provRecv.fill(new ByteArrayInputStream(data));
+            LCJPEGReader jpeg = new LCJPEGReader(
+                provRecv, CacheImageSize, CacheImageSize
+            );
+            return jpeg.getImage();
         }
         catch (Throwable t1) {
             logNonFatal(t1, "reading cached image");
-            removeCacheSilent(key, false);
+            removeCacheSilent(false);
             return null;
         }
     }
 
     private void writeImageCache(RenderedImage image) {
-        String key = getImageKey(CacheImageSize);
-        if (cache == null) {
+        if (catalog == null) {
             return;
         }
         if (image == null) {
             return;
         }
-        // Write the image to the cache
+        // Encode the image in memory, then append it to the catalog
         try {
-            OutputStream out = cache.putToStream(key);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
             OutputStreamImageDataReceiver receiver =
                 new OutputStreamImageDataReceiver(out);
             try {
@@ -161,45 +206,36 @@ public class ImageTask implements Runnable {
             }
             catch (LCImageLibException e) {
                 logNonFatal(e, "caching image");
-                cache.remove(key);
+                return;
             }
-            out.flush();
-            out.close();
-            receiver.dispose();
+            finally {
+                receiver.dispose();
+            }
+            File file = datum.getFile();
+            byte[] data = out.toByteArray();
+            catalog.put(
+                file.getName(), BrowserCatalog.Thumbnail, data, data.length
+            );
+            Cache.putBytes(Level.CachedImage, file, data);
         }
         catch (IOException e) {
             logNonFatal(e, "caching image");
-            removeCacheSilent(key, false);
+            removeCacheSilent(false);
         }
     }
 
-    private String getImageKey(int size) {
-        File file = datum.getFile();
-        return getImageKey(file, size);
-    }
-
-    public static String getImageKey(File file) {
-        return getImageKey(file, CacheImageSize);
-    }
-
-    public static String getImageKey(File file, int size) {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append(file.getAbsolutePath());
-        buffer.append("_thumbnail_image_");
-        buffer.append(size);
-        return buffer.toString();
-    }
-
     private void clearImageCache() {
-        String key = getImageKey(CacheImageSize);
-        if ((cache != null) && cache.contains(key)) {
-            removeCacheSilent(key, false);
-        }
+        removeCacheSilent(false);
     }
 
-    private void removeCacheSilent(String key, boolean log) {
+    private void removeCacheSilent(boolean log) {
+        File file = datum.getFile();
+        Cache.remove(Level.CachedImage, file);
+        if (catalog == null) {
+            return;
+        }
         try {
-            cache.remove(key);
+            catalog.remove(file.getName(), BrowserCatalog.Thumbnail);
         }
         catch (Throwable t) {
             if (log) {
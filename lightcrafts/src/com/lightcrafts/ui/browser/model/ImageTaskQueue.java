@@ -5,127 +5,268 @@ package com.lightcrafts.ui.browser.model;
 import java.util.LinkedList;
 import java.awt.*;
 
-public class ImageTaskQueue implements Runnable {
+/**
+ * Runs ImageTasks in two stages, each with its own pool of worker threads:
+ * first the metadata is read (mostly waiting on the disk), then the
+ * thumbnail is extracted and scaled (mostly computing).  Each stage has its
+ * own ordered list of pending tasks, and raiseTask() and lowerTask() move a
+ * task to the front or back of whichever stage it is waiting for, so
+ * visible thumbnails still come first.
+ * <p>
+ * The number of workers per stage may be set with the
+ * lightcrafts.browser.metadataThreads and lightcrafts.browser.imageThreads
+ * system properties.
+ */
+public class ImageTaskQueue {
 
-    private LinkedList<ImageTask> queue;
+    /**
+     * The processing stages of an ImageTask, used to report throughput to
+     * ImageTaskQueueListeners.
+     */
+    public enum Stage { Metadata, Image }
 
-    private Thread thread;
-    private boolean pause;
-    private boolean stop;
+    private StageQueue metadata;
+    private StageQueue images;
+
+    private boolean started;
+    private volatile boolean pause;
+    private volatile boolean stop;
+
+    // Guards the pause flag for the workers waiting on it
+    private final Object pauseLock = new Object();
 
     private LinkedList<ImageTaskQueueListener> listeners;
 
     public ImageTaskQueue() {
-        thread = new Thread(this, "Image Task Queue");
-        thread.setPriority(Thread.MIN_PRIORITY);
-        queue = new LinkedList<ImageTask>();
+        metadata = new StageQueue(
+            Stage.Metadata, getThreadCount("metadataThreads", 2)
+        );
+        images = new StageQueue(
+            Stage.Image,
+            getThreadCount(
+                "imageThreads", Runtime.getRuntime().availableProcessors()
+            )
+        );
         listeners = new LinkedList<ImageTaskQueueListener>();
     }
 
     void addTask(ImageTask task) {
-        synchronized(queue) {
-            queue.add(task);
-            queue.notifyAll();
-        }
+        metadata.add(task);
     }
 
     void removeTask(ImageTask task) {
-        synchronized(queue) {
-            queue.remove(task);
-        }
+        task.cancel();
+        metadata.remove(task);
+        images.remove(task);
     }
 
     void removeAllTasks() {
-        synchronized(queue) {
-            queue.clear();
-        }
+        metadata.clear();
+        images.clear();
     }
 
     public void start() {
-        if (! thread.isAlive()) {
-            pause = false;
-            stop = false;
-            thread.start();
+        synchronized(this) {
+            if (started) {
+                return;
+            }
+            started = true;
         }
+        pause = false;
+        stop = false;
+        metadata.start();
+        images.start();
     }
 
     public void stop() {
         pause = false;
         stop = true;
-        synchronized(queue) {
-            queue.notifyAll();
-        }
-        synchronized(thread) {
-            thread.notifyAll();
+        metadata.wakeAll();
+        images.wakeAll();
+        synchronized(pauseLock) {
+            pauseLock.notifyAll();
         }
     }
 
     public void pause() {
-        synchronized(thread) {
+        synchronized(pauseLock) {
             pause = true;
         }
     }
 
     public void resume() {
-        synchronized(thread) {
+        synchronized(pauseLock) {
             if (pause) {
                 pause = false;
-                thread.notifyAll();
+                pauseLock.notifyAll();
             }
         }
     }
 
     public void raiseTask(ImageTask task) {
-        synchronized(queue) {
-            if (queue.contains(task)) {
-                queue.remove(task);
-                queue.addFirst(task);
-            }
+        if (! metadata.raise(task)) {
+            images.raise(task);
         }
     }
 
     public void lowerTask(ImageTask task) {
-        synchronized(queue) {
-            if (queue.contains(task)) {
-                queue.remove(task);
+        if (! metadata.lower(task)) {
+            images.lower(task);
+        }
+    }
+
+    void addListener(ImageTaskQueueListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(ImageTaskQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The pending tasks and worker threads for one Stage.
+     */
+    private class StageQueue implements Runnable {
+
+        private final Stage stage;
+        private final LinkedList<ImageTask> queue;
+        private final Thread[] threads;
+
+        // Tasks completed since the last throughput report
+        private int completed;
+        private long reportTime;
+
+        StageQueue(Stage stage, int threadCount) {
+            this.stage = stage;
+            queue = new LinkedList<ImageTask>();
+            threads = new Thread[threadCount];
+            for (int n=0; n<threadCount; n++) {
+                threads[n] = new Thread(
+                    this, "Image Task Queue (" + stage + " " + n + ")"
+                );
+                threads[n].setPriority(Thread.MIN_PRIORITY);
+            }
+        }
+
+        void start() {
+            reportTime = System.currentTimeMillis();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        synchronized void add(ImageTask task) {
+            queue.add(task);
+            notify();
+        }
+
+        synchronized void remove(ImageTask task) {
+            queue.remove(task);
+        }
+
+        synchronized void clear() {
+            for (ImageTask task : queue) {
+                task.cancel();
+            }
+            queue.clear();
+        }
+
+        synchronized int size() {
+            return queue.size();
+        }
+
+        synchronized boolean raise(ImageTask task) {
+            if (queue.remove(task)) {
+                queue.addFirst(task);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean lower(ImageTask task) {
+            if (queue.remove(task)) {
                 queue.addLast(task);
+                return true;
             }
+            return false;
+        }
+
+        synchronized void wakeAll() {
+            notifyAll();
+        }
+
+        private synchronized ImageTask take() {
+            while (queue.isEmpty() && (! stop)) {
+                waitForNotify(this);
+            }
+            return stop ? null : queue.removeFirst();
         }
-    }
 
-    public void run() {
-        while (! stop) {
-            Runnable task;
-            synchronized(queue) {
-                while (queue.isEmpty() && (! stop)) {
-                    waitForNotify(queue);
-                    if (stop) {
-                        return;
+        public void run() {
+            while (! stop) {
+                ImageTask task = take();
+                if (task == null) {
+                    return;
+                }
+                try {
+                    if (stage == Stage.Metadata) {
+                        task.readMetadata();
+                        if (! task.isCancelled()) {
+                            images.add(task);
+                        }
+                    }
+                    else {
+                        task.readImage();
+                    }
+                }
+                catch (Throwable t) {
+                    logTaskError(t);
+                }
+                taskDone();
+                synchronized(pauseLock) {
+                    while (pause && (! stop)) {
+                        waitForNotify(pauseLock);
                     }
                 }
-                task = queue.removeFirst();
-                logQueueSize();
-            }
-            try {
-                task.run();
-            }
-            catch (Throwable t) {
-                logTaskError(t);
             }
-            synchronized(thread) {
-                while (pause && (! stop)) {
-                    waitForNotify(thread);
+        }
+
+        private void taskDone() {
+            final float rate;
+            synchronized(this) {
+                completed++;
+                long now = System.currentTimeMillis();
+                long elapsed = now - reportTime;
+                if ((elapsed < ReportInterval) && ! queue.isEmpty()) {
+                    rate = -1;
+                }
+                else {
+                    rate = 1000f * completed / Math.max(elapsed, 1);
+                    completed = 0;
+                    reportTime = now;
                 }
             }
+            logQueueSize();
+            if (rate >= 0) {
+                logThroughput(stage, rate);
+            }
         }
     }
 
-    void addListener(ImageTaskQueueListener listener) {
-        listeners.add(listener);
-    }
+    // How often, in milliseconds, each stage reports its throughput
+    private final static long ReportInterval = 1000;
 
-    void removeListener(ImageTaskQueueListener listener) {
-        listeners.remove(listener);
+    private static int getThreadCount(String name, int defaultCount) {
+        String value = System.getProperty("lightcrafts.browser." + name);
+        if (value != null) {
+            try {
+                return Math.max(Integer.parseInt(value), 1);
+            }
+            catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return Math.max(defaultCount, 1);
     }
 
     private static void waitForNotify(Object monitor) {
@@ -144,7 +285,7 @@ public class ImageTaskQueue implements Runnable {
     }
 
     private void logQueueSize() {
-        final int depth = queue.size();
+        final int depth = metadata.size() + images.size();
         EventQueue.invokeLater(
             new Runnable() {
                 public void run() {
@@ -156,6 +297,18 @@ public class ImageTaskQueue implements Runnable {
         );
     }
 
+    private void logThroughput(final Stage stage, final float tasksPerSecond) {
+        EventQueue.invokeLater(
+            new Runnable() {
+                public void run() {
+                    for (ImageTaskQueueListener listener : listeners) {
+                        listener.throughputChanged(stage, tasksPerSecond);
+                    }
+                }
+            }
+        );
+    }
+
     private void logTaskError(Throwable t) {
         StringBuffer buffer = new StringBuffer();
         buffer.append("Abort ImageTask--");
@@ -5,4 +5,10 @@ package com.lightcrafts.ui.browser.model;
 public interface ImageTaskQueueListener {
 
     void queueDepthChanged(int depth);
+
+    /**
+     * Called about once a second while a stage of the ImageTaskQueue is
+     * busy, and again when it runs out of work.
+     */
+    void throughputChanged(ImageTaskQueue.Stage stage, float tasksPerSecond);
 }
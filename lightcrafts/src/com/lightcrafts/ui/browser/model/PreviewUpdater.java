@@ -8,9 +8,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.lightcrafts.image.libs.LCImageLibException;
 import com.lightcrafts.image.libs.LCJPEGReader;
@@ -20,6 +23,7 @@ import com.lightcrafts.image.metadata.ImageMetadata;
 import com.lightcrafts.image.types.ImageType;
 import com.lightcrafts.image.types.LZNImageType;
 import com.lightcrafts.image.types.RawImageType;
+import com.lightcrafts.ui.browser.model.BrowserImageCache.Level;
 import com.lightcrafts.utils.filecache.FileCache;
 import com.lightcrafts.utils.filecache.FileCacheFactory;
 
@@ -30,9 +34,16 @@ import static com.lightcrafts.image.libs.LCJPEGConstants.CS_RGB;
  * RenderedImages that can be generated incrementally.  See
  * ImageDatum.getPreview().
  * <p>
+ * Previews are rendered on a shared pool of threads, a few at a time, the
+ * most recent requests first.  Requests for a file whose preview is already
+ * being rendered share that render.  A request is cancelled if it's disposed,
+ * or if all its Observers are given to requests for other files, before its
+ * render starts.  The number of threads may be set with the
+ * lightcrafts.browser.previewThreads system property.
+ * <p>
  * Be sure to call dispose().
  */
-public class PreviewUpdater extends Thread {
+public class PreviewUpdater {
 
     /**
      * PreviewUpdater may optionally be initialized with an externally
@@ -46,11 +57,11 @@ public class PreviewUpdater extends Thread {
          */
         RenderedImage getPreviewImage(File file, int size);
         /**
-         * The preview updater thread has started work.
+         * The preview updater has started work.
          */
         void previewStarted();
         /**
-         * The preview updater thread has finished work.
+         * The preview updater has finished work.
          */
         void previewEnded();
     }
@@ -65,12 +76,31 @@ public class PreviewUpdater extends Thread {
         void imageChanged(PreviewUpdater updater, RenderedImage image);
     }
 
-    // A global lock, so only one PreviewUpdater runs at a time.
-    private final static Object Monitor = new Object();
+    // Renders previews, a few at a time, the newest requests first
+    private final static ThreadPoolExecutor Executor = createExecutor();
+
+    // Renders queued or running, by file, so requests can share them
+    private final static Map<File, Render> Renders =
+        new HashMap<File, Render>();
+
+    // The PreviewUpdater each Observer was last given to, so earlier
+    // requests can be cancelled when all their Observers have moved on
+    private final static Map<Observer, PreviewUpdater> ObserverUpdaters =
+        new WeakHashMap<Observer, PreviewUpdater>();
+
+    // Provider renders go through the engine, so they're done one at a time
+    private final static Object ProviderLock = new Object();
+
+    // Orders Renders by request, for the executor's queue
+    private static long RenderCount;
 
     // A bounding size for preview images.
     public final static int PreviewSize = 1536;
 
+    // Holds unrotated preview images, within a memory budget
+    private final static BrowserImageCache Cache =
+        BrowserImageCache.getInstance();
+
     // For debugging, a counter to ensure previews get disposed.
     private static int DebugPreviewCount;
     private static boolean Debug;
@@ -80,8 +110,11 @@ public class PreviewUpdater extends Thread {
     private ImageMetadata meta;
     private Set<Observer> observers;
     private Provider provider;
-    private boolean stillInterested;
-    private boolean done;
+    private volatile boolean stillInterested;
+    private volatile boolean done;
+
+    // The Render computing our preview, once one is requested
+    private Render render;
 
     // PreviewUpdaters can be chained.
     //
@@ -89,9 +122,10 @@ public class PreviewUpdater extends Thread {
     // messages Observers while the the original PreviewUpdater is still sent
     // in the Observer callbacks.
     //
-    // When PreviewUpdaters are chained, each must wait for its predecessor to
-    // complete, so that Observer callbacks happen in the correct order and no
-    // collisions happen in the preview cache.
+    // Chained PreviewUpdaters are for the same file, so a follow-on requested
+    // while its predecessor is rendering joins the same Render, and Observer
+    // callbacks happen in the correct order with no collisions in the preview
+    // cache.
 
     private PreviewUpdater prevUpdater;
 
@@ -106,6 +140,8 @@ public class PreviewUpdater extends Thread {
         }
         // Write the given preview to the cache
         final String key = getImageKey(file);
+        Render.invalidate(file);
+        Cache.remove(Level.Preview, file);
         try {
             final OutputStream out = cache.putToStream(key);
             final OutputStreamImageDataReceiver receiver =
@@ -137,10 +173,11 @@ public class PreviewUpdater extends Thread {
         ImageMetadata meta, FileCache cache
     ) {
         final PreviewUpdater updater = new PreviewUpdater(cache, null, meta);
+        Render.invalidate(meta.getFile());
         updater.removeCacheSilent();
         updater.dispose();
-        // GC the Thread without starting it.  This is just a simple way
-        // to access the writeCache() instance method.
+        // The updater is never requested.  This is just a simple way
+        // to access the removeCacheSilent() instance method.
     }
 
     // Report the modification time for the cached preview corresponding to
@@ -205,7 +242,6 @@ public class PreviewUpdater extends Thread {
         this.meta = meta;
         observers = new HashSet<Observer>();
         stillInterested = true;
-        setName("Preview Image " + meta.getFile().getName());
     }
 
     /**
@@ -217,17 +253,26 @@ public class PreviewUpdater extends Thread {
         return meta.getFile();
     }
 
-    public synchronized RenderedImage getImage(Observer observer) {
-        if ( !done && !isAlive() ) {
+    public RenderedImage getImage(Observer observer) {
+        if (observer != null) {
+            supersede(observer);
+        }
+        return getImageAndObserve(observer);
+    }
+
+    private synchronized RenderedImage getImageAndObserve(Observer observer) {
+        if ( !done && render == null ) {
             // Try for the cached result synchronously, and maybe avoid
-            // spawning the thread:
+            // queueing a render:
 
-            RenderedImage cachedImage = null;
+            final File file = meta.getFile();
+            RenderedImage cachedImage = Cache.getImage( Level.Preview, file );
             final ImageType t = meta.getImageType();
 
-            if ( t != null && t.hasFastPreview() ) {
-                cachedImage =
-                    Thumbnailer.getImage( meta.getFile(), PreviewSize, false );
+            if ( cachedImage == null && t != null && t.hasFastPreview() ) {
+                cachedImage = Thumbnailer.getImage( file, PreviewSize, false );
+                if ( cachedImage != null )
+                    Cache.putImage( Level.Preview, file, cachedImage );
             }
             if ( cachedImage == null )
                 cachedImage = readCache();
@@ -236,7 +281,7 @@ public class PreviewUpdater extends Thread {
                 image = FastImageFactory.systemColorSpaceImage( image );
                 done = true;
             } else {
-                start();
+                Render.request(this);
             }
         }
         if ( observer != null ) {
@@ -265,90 +310,85 @@ public class PreviewUpdater extends Thread {
         );
     }
 
-    public void run() {
-        // If there is a preceding updater, make sure it has finished so that
-        // updates to Observers arrive in the right order and we don't collide
-        // in the cache.
-        if (prevUpdater != null) {
-            // Test for "done", but also "isAlive()" to avoid leaks,
-            // just in case a thread dies without calling dispose().
-            while (! prevUpdater.done && prevUpdater.isAlive()) {
-                synchronized(Monitor) {
-                    try {
-                        // Just wait long enough to let another job get ahead.
-                        Monitor.wait(100);
-                    }
-                    catch (InterruptedException e) {
-                        // loop around
-                    }
+    // Give the Observer to this PreviewUpdater, and cancel the one it was
+    // given to before if that one has no other Observers left.
+    private void supersede(Observer observer) {
+        PreviewUpdater old;
+        synchronized(ObserverUpdaters) {
+            old = ObserverUpdaters.put(observer, this);
+        }
+        if ((old != null) &&
+            (old.getOriginalUpdater() != getOriginalUpdater()) &&
+            old.removeObserver(observer)) {
+            old.cancel();
+        }
+    }
+
+    // Remove an Observer, and tell whether none are left.
+    private synchronized boolean removeObserver(Observer observer) {
+        observers.remove(observer);
+        return observers.isEmpty();
+    }
+
+    // Compute the unrotated preview, from the memory cache, the file cache,
+    // the Provider, or the Thumbnailer, and put it in the caches.  Called
+    // from a Render on the Executor.
+    private RenderedImage renderPreview() {
+        File file = meta.getFile();
+        if (Debug) {
+            System.out.println(file.getName() + " PreviewUpdater running");
+        }
+        RenderedImage preview = Cache.getImage(Level.Preview, file);
+        if (preview == null) {
+            preview = readCache();
+        }
+        if (preview == null) {
+            if (provider != null) {
+                synchronized(ProviderLock) {
+                    preview = provider.getPreviewImage(file, PreviewSize);
                 }
             }
+            if (preview == null) {
+                preview = Thumbnailer.getImage(file, PreviewSize);
+            }
+            if (preview == null) {
+                // Some image files just can't be previewed.
+                System.out.println("All preview methods fail for " + file);
+                return null;
+            }
+            if (cache != null) {
+                writeCache(preview);
+            }
+            Cache.putImage(Level.Preview, file, preview);
         }
-        // Now compute the preview, notify Observers, and write to the cache:
-
-        notifyStart();
+        return preview;
+    }
 
+    // Rotate the unrotated preview from a Render for our metadata, and
+    // notify Observers.  The preview may be null if the render failed.
+    private void finish(RenderedImage preview) {
         try {
-            File file = meta.getFile();
-            RenderedImage preview;
-            synchronized(Monitor) {
-                if (stillInterested) {
-                    if (Debug) {
-                        System.out.println(
-                            meta.getFile().getName() + " PreviewUpdater running"
-                        );
-                    }
-                    preview = readCache();
-                    if (preview == null) {
-                        if (provider != null) {
-                            preview = provider.getPreviewImage(
-                                file, PreviewSize
-                            );
-                        }
-                        if (preview == null) {
-                            if (meta.getImageType() instanceof RawImageType) {
-                                preview = Thumbnailer.getImage(
-                                    file, PreviewSize
-                                );
-                            }
-                            else if (
-                                meta.getImageType() == LZNImageType.INSTANCE
-                            ) {
-                                preview = Thumbnailer.getImage(
-                                    file, PreviewSize
-                                );
-                            }
-                            else {
-                                preview = Thumbnailer.getImage(
-                                    file, PreviewSize
-                                );
-                            }
-                        }
-                        if (preview == null) {
-                            // Some image files just can't be previewed.
-                            System.out.println(
-                                "All preview methods fail for " + file
-                            );
-                            notifyEnd();
-                            done = true;
-                            return;
-                        }
-                        if (cache != null) {
-                            writeCache(preview);
-                        }
-                    }
-                    preview = Thumbnailer.rotate(preview, meta);
-                    preview = FastImageFactory.systemColorSpaceImage(preview);
-                    updateImage(preview);
-                }
+            if ((preview != null) && stillInterested) {
+                preview = Thumbnailer.rotate(preview, meta);
+                preview = FastImageFactory.systemColorSpaceImage(preview);
+                updateImage(preview);
             }
         }
+        catch (RuntimeException e) {
+            logNonFatal(e, "rotating preview");
+        }
         finally {
             notifyEnd();
             done = true;
         }
     }
 
+    // Drop out of our Render, if it hasn't started.
+    private void cancel() {
+        stillInterested = false;
+        Render.cancel(this);
+    }
+
     void dispose() {
         if (Debug) {
             System.out.println(
@@ -360,7 +400,7 @@ public class PreviewUpdater extends Thread {
         if (prevUpdater != null) {
             prevUpdater.dispose();
         }
-        stillInterested = false;
+        cancel();
         done = true;
         image = null;
     }
@@ -423,7 +463,9 @@ public class PreviewUpdater extends Thread {
                 final LCJPEGReader jpeg = new LCJPEGReader(
                     provRecv, PreviewSize, PreviewSize
                 );
-                return jpeg.getImage();
+                final RenderedImage image = jpeg.getImage();
+                Cache.putImage( Level.Preview, meta.getFile(), image );
+                return image;
             }
             finally {
                 in.close();
@@ -482,6 +524,7 @@ public class PreviewUpdater extends Thread {
 
     private static void removeCacheSilentStatic(FileCache cache, File file) {
         final String key = getImageKey(file);
+        Cache.remove(Level.Preview, file);
         try {
             cache.remove(key);
         }
@@ -489,5 +532,140 @@ public class PreviewUpdater extends Thread {
             logNonFatalStatic(file, t, "removing cached preview");
         }
     }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threads = Math.min(
+            Runtime.getRuntime().availableProcessors(), 2
+        );
+        String value = System.getProperty("lightcrafts.browser.previewThreads");
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        threads = Math.max(threads, 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Preview Image");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * One render of the unrotated preview for a file, shared by all the
+     * PreviewUpdaters requesting it, each of which rotates the result for
+     * its own metadata.  Renders are queued newest first.
+     */
+    private static class Render implements Runnable, Comparable<Render> {
+
+        private final File file;
+
+        private final long sequence;
+
+        // PreviewUpdaters waiting on this Render, in request order
+        private final List<PreviewUpdater> updaters;
+
+        private boolean started;
+
+        private Render(File file) {
+            this.file = file;
+            sequence = RenderCount++;
+            updaters = new ArrayList<PreviewUpdater>();
+        }
+
+        // Queue a render for the PreviewUpdater's file, or join the one
+        // that's already queued or running.
+        static void request(PreviewUpdater updater) {
+            File file = updater.meta.getFile();
+            boolean joinedStarted;
+            synchronized(Renders) {
+                Render render = Renders.get(file);
+                if (render == null) {
+                    render = new Render(file);
+                    Renders.put(file, render);
+                    Executor.execute(render);
+                }
+                render.updaters.add(updater);
+                updater.render = render;
+                joinedStarted = render.started;
+            }
+            if (joinedStarted) {
+                updater.notifyStart();
+            }
+        }
+
+        // Take the PreviewUpdater out of its Render if the Render hasn't
+        // started, and dequeue the Render if no one else is waiting on it.
+        static void cancel(PreviewUpdater updater) {
+            synchronized(Renders) {
+                Render render = updater.render;
+                if ((render == null) || render.started) {
+                    return;
+                }
+                render.updaters.remove(updater);
+                if (render.updaters.isEmpty()) {
+                    if (Renders.get(render.file) == render) {
+                        Renders.remove(render.file);
+                    }
+                    Executor.remove(render);
+                }
+            }
+        }
+
+        // The file's cached preview is changing, so later requests must
+        // not share a Render that's already queued or running.
+        static void invalidate(File file) {
+            synchronized(Renders) {
+                Renders.remove(file);
+            }
+        }
+
+        public void run() {
+            List<PreviewUpdater> current;
+            synchronized(Renders) {
+                started = true;
+                current = new ArrayList<PreviewUpdater>(updaters);
+            }
+            for (PreviewUpdater updater : current) {
+                updater.notifyStart();
+            }
+            RenderedImage preview = null;
+            try {
+                for (PreviewUpdater updater : current) {
+                    if (updater.stillInterested) {
+                        preview = updater.renderPreview();
+                        break;
+                    }
+                }
+            }
+            finally {
+                synchronized(Renders) {
+                    if (Renders.get(file) == this) {
+                        Renders.remove(file);
+                    }
+                    current = new ArrayList<PreviewUpdater>(updaters);
+                }
+                for (PreviewUpdater updater : current) {
+                    updater.finish(preview);
+                }
+            }
+        }
+
+        public int compareTo(Render other) {
+            return (sequence > other.sequence) ? -1 :
+                ((sequence < other.sequence) ? 1 : 0);
+        }
+    }
 }
 /* vim:set et sw=4 ts=4: */
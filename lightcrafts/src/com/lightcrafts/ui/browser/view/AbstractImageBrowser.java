@@ -38,8 +38,6 @@ public abstract class AbstractImageBrowser
 
     ImageBrowserSelectionModel selection;
 
-    ImagePreservationQueue recentImages; // Prevent some image GC
-
     ImageDatumControl controller;
 
     // Our preferred height depends on our width; this tells whether the width
@@ -64,6 +62,8 @@ public abstract class AbstractImageBrowser
 
     private int across; // The number of images in a row.
 
+    private ImageBrowserPrefetcher prefetcher;  // Thumbnails ahead of scrolling
+
     // Keep track of background task pauses due to characteristic size
     // adjustments, so each pause may be balanced with a resume.
     private boolean sizePausedFlag;
@@ -121,7 +121,7 @@ public abstract class AbstractImageBrowser
 
         actions = new ImageBrowserActions(this);
 
-        recentImages = new ImagePreservationQueue();
+        prefetcher = new ImageBrowserPrefetcher(this);
 
         setBackground(Background);
 
@@ -221,6 +221,16 @@ public abstract class AbstractImageBrowser
         return indices;
     }
 
+    // The number of images in a row.
+    int getColumnCount() {
+        return across;
+    }
+
+    // The ImageList index of the given ImageDatum, or null if it's gone.
+    Integer getIndexOf(ImageDatum datum) {
+        return datumIndex.get(datum);
+    }
+
     /**
      * Get the index of the ImageDatum which lies below the ImageDatum at
      * the given index.  This is used for arrow key bindings.
@@ -580,6 +590,9 @@ public abstract class AbstractImageBrowser
         ArrayList<ImageDatum> datums = getAllImageData();
         int[] indices = getIndices(datums.size(), rect);
 
+        // Let the image cache keep what's near the viewport.
+        updateVisibleRange(datums, indices);
+
         // Make a hash set of the excluded ImageDatums, for quick lookup:
         HashSet<ImageDatum> excluded = new HashSet<ImageDatum>();
         for (int index : indices) {
@@ -589,12 +602,42 @@ public abstract class AbstractImageBrowser
             }
         }
         for (ImageDatum datum : datums) {
-            if (! excluded.contains(datum)) {
+            if (! excluded.contains(datum) &&
+                ! prefetcher.isPrefetched(datum)) {
                 datum.cancel();
             }
         }
     }
 
+    // This method informs the AbstractImageBrowser that the visible part of
+    // it has moved, so thumbnails can be computed ahead of scrolling.
+    public void viewportChanged(Rectangle rect) {
+        prefetcher.viewportChanged(rect);
+    }
+
+    // Tell the BrowserImageCache which images are visible, so it evicts the
+    // ones farthest from the viewport first.
+    private void updateVisibleRange(List<ImageDatum> datums, int[] indices) {
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int index : indices) {
+            if (index >= 0) {
+                first = Math.min(first, index);
+                last = Math.max(last, index);
+            }
+        }
+        if (last < 0) {
+            first = -1;     // nothing is visible
+        }
+        List<File> files = new ArrayList<File>(datums.size());
+        for (ImageDatum datum : datums) {
+            files.add(datum.getFile());
+        }
+        BrowserImageCache.getInstance().setVisibleRange(
+            this, files, first, last
+        );
+    }
+
     // Used by ImageBrowserActions for the "external" actions
     List<ExternalBrowserAction> getExternalBrowserActions() {
         return externalActions;
@@ -1131,5 +1174,6 @@ public abstract class AbstractImageBrowser
     public void dispose() {
         DragSource src = DragSource.getDefaultDragSource();
         src.removeDragSourceListener(dragSrcAdapter);        
+        prefetcher.clear();
     }
 }
@@ -64,9 +64,6 @@ public class CollapsedImageBrowser extends AbstractImageBrowser {
             }
             RenderedImage image = datum.getImage(this);
 
-            // This queue prevents GC of recently painted images:
-            recentImages.add(image);
-
             Rectangle rect = getBounds(index);
             g.setClip(clip.intersection(rect));
 
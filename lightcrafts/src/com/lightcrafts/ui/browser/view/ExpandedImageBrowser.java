@@ -90,9 +90,6 @@ public class ExpandedImageBrowser extends AbstractImageBrowser {
             }
             RenderedImage image = datum.getImage(this);
 
-            // This queue prevents GC of recently painted images:
-            recentImages.add(image);
-
             Rectangle rect = getBounds(index);
             g.setClip(clip.intersection(rect));
 
@@ -0,0 +1,167 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.ui.browser.view;
+
+import com.lightcrafts.ui.browser.model.ImageDatum;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Plans thumbnail work around the viewport of an AbstractImageBrowser as it
+ * scrolls.  It tracks the scroll velocity and queues ImageDatum tasks for the
+ * rows about to scroll into view, more rows the faster the scrolling, so
+ * thumbnails are ready by the time they're painted.  Rows that have
+ * scrolled a little way out of view have their tasks lowered behind the
+ * others, and rows that have scrolled far away have their tasks cancelled.
+ * When scrolling stops, a few rows on both sides are prefetched.
+ * <p>
+ * All methods are called on the event thread.
+ */
+class ImageBrowserPrefetcher {
+
+    // Rows to prefetch beyond the viewport, even when idle
+    private final static int MinRowsAhead = 1;
+
+    // The most rows to prefetch ahead of fast scrolling
+    private final static int MaxRowsAhead = 12;
+
+    // How far ahead to prefetch, in seconds of scrolling at the current
+    // velocity
+    private final static double LookAheadSeconds = 1.5;
+
+    // Tasks for rows this many rows beyond the prefetch window get cancelled
+    private final static int CancelRows = 4;
+
+    // Below this speed, in rows per second, scrolling counts as stopped
+    private final static double IdleRowsPerSecond = 0.5;
+
+    // Velocity samples further apart than this, in milliseconds, start over
+    private final static long IdleTime = 250;
+
+    // Weight of the newest sample in the smoothed velocity
+    private final static double Smoothing = 0.5;
+
+    private AbstractImageBrowser browser;
+
+    private int lastY;
+    private long lastTime;
+
+    // Smoothed scroll velocity, in pixels per millisecond, positive down
+    private double velocity;
+
+    // ImageDatums prefetched and not yet lowered or cancelled
+    private Set<ImageDatum> prefetched;
+
+    ImageBrowserPrefetcher(AbstractImageBrowser browser) {
+        this.browser = browser;
+        prefetched = new HashSet<ImageDatum>();
+    }
+
+    /**
+     * The browser's visible rectangle changed.  Update the scroll velocity,
+     * prefetch ahead, and lower or cancel tasks for rows left behind.
+     */
+    void viewportChanged(Rectangle view) {
+        int size = browser.getCharacteristicSize();
+        int across = browser.getColumnCount();
+        if ((size <= 0) || (across <= 0)) {
+            return;
+        }
+        updateVelocity(view.y);
+
+        int top = view.y / size;
+        int bottom = (view.y + view.height - 1) / size;
+
+        double rowsPerSecond = velocity * 1000 / size;
+        int ahead = MinRowsAhead + (int) Math.min(
+            MaxRowsAhead - MinRowsAhead,
+            Math.abs(rowsPerSecond) * LookAheadSeconds
+        );
+        // The prefetch window, in rows, and the rows to prefetch in order
+        int first, last;
+        List<Integer> rows = new ArrayList<Integer>();
+        if (Math.abs(rowsPerSecond) < IdleRowsPerSecond) {
+            first = top - MinRowsAhead;
+            last = bottom + MinRowsAhead;
+            for (int n=1; n<=MinRowsAhead; n++) {
+                rows.add(bottom + n);
+                rows.add(top - n);
+            }
+        }
+        else if (rowsPerSecond > 0) {
+            first = top;
+            last = bottom + ahead;
+            for (int row=bottom+1; row<=last; row++) {
+                rows.add(row);
+            }
+        }
+        else {
+            first = top - ahead;
+            last = bottom;
+            for (int row=top-1; row>=first; row--) {
+                rows.add(row);
+            }
+        }
+        List<ImageDatum> datums = browser.getAllImageData();
+        int count = datums.size();
+
+        // Lower or cancel what fell out of the window.
+        for (Iterator<ImageDatum> i=prefetched.iterator(); i.hasNext(); ) {
+            ImageDatum datum = i.next();
+            Integer index = browser.getIndexOf(datum);
+            int row = (index != null) ? index / across : -1;
+            if ((index == null) ||
+                (row < first - CancelRows) || (row > last + CancelRows)) {
+                datum.cancel();
+                i.remove();
+            }
+            else if ((row < first) || (row > last)) {
+                datum.lowerPriority();
+                i.remove();
+            }
+        }
+        // Queue the rows ahead, nearest first.
+        for (int row : rows) {
+            for (int col=0; col<across; col++) {
+                int index = row * across + col;
+                if ((index < 0) || (index >= count)) {
+                    continue;
+                }
+                ImageDatum datum = datums.get(index);
+                if (prefetched.add(datum)) {
+                    datum.prefetch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell whether the given ImageDatum was prefetched and is still near the
+     * viewport, so its task shouldn't be cancelled.
+     */
+    boolean isPrefetched(ImageDatum datum) {
+        return prefetched.contains(datum);
+    }
+
+    void clear() {
+        prefetched.clear();
+        lastTime = 0;
+        velocity = 0;
+    }
+
+    private void updateVelocity(int y) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastTime;
+        if ((lastTime == 0) || (elapsed > IdleTime)) {
+            velocity = 0;
+        }
+        else if (elapsed > 0) {
+            double sample = (y - lastY) / (double) elapsed;
+            velocity = Smoothing * sample + (1 - Smoothing) * velocity;
+        }
+        lastY = y;
+        lastTime = now;
+    }
+}
@@ -6,6 +6,8 @@ import com.lightcrafts.ui.LightZoneSkin;
 import com.lightcrafts.ui.scroll.CenteringScrollPane;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
@@ -20,6 +22,8 @@ import java.awt.event.MouseEvent;
  * <li>A specialized scroll pane UI for standardizing mouse wheel behavior.</li>
  * <li>A call to cancel background browser thumbnail tasks for off-viewport
  * thumbnails when scrollbar adjustment ends.
+ * <li>Notice to the browser whenever the viewport moves, so it can compute
+ * thumbnails ahead of scrolling.</li>
  * <li>Repaint trickery to reorder thumbnail tasks so refreshes happen in order
  * in the viewport (hopefully).</li>
  * <li>Snap-to-grid behavior when scrollbar adjustment ends.
@@ -53,6 +57,17 @@ public class ImageBrowserScrollPane extends CenteringScrollPane {
                 }
             }
         );
+        // Let the browser prefetch thumbnails in the scrolling direction.
+        getViewport().addChangeListener(
+            new ChangeListener() {
+                public void stateChanged(ChangeEvent e) {
+                    // May be run after dispose().
+                    if (browser != null) {
+                        browser.viewportChanged(getViewport().getViewRect());
+                    }
+                }
+            }
+        );
         // This is a trick to reorder the thumbnail tasks
         // so refreshes happen in order in the viewport.
         getVerticalScrollBar().addAdjustmentListener(
@@ -0,0 +1,480 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils;
+
+import com.lightcrafts.utils.filecache.FileCache;
+import com.lightcrafts.utils.filecache.FileCacheFactory;
+
+import java.awt.color.ICC_Profile;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>ColorLUT3D</code> is a precomputed RGB to RGB color conversion:
+ * an LCMS transform is sampled once on a cubic grid and pixels are then
+ * converted in pure Java by tetrahedral interpolation, which is a lot
+ * cheaper than going through LCMS for every pixel.
+ * <p>
+ * The grid is indexed through a per channel power law shaper so that linear
+ * sources get enough grid points in the shadows.
+ * <p>
+ * LUTs are built from a profile pair in the background on first use, checked
+ * against LCMS and kept in the global {@link FileCache} for later sessions.
+ * Until a LUT is ready, and for LUTs whose error exceeds the configured
+ * tolerance, callers go through LCMS.
+ * <p>
+ * Configuration is through system properties:
+ * <ul>
+ *   <li><code>lightcrafts.colorlut.disable</code>: if set, always use LCMS;</li>
+ *   <li><code>lightcrafts.colorlut.size</code>: grid points per channel
+ *       (default 33);</li>
+ *   <li><code>lightcrafts.colorlut.tolerance</code>: maximum error allowed
+ *       with respect to LCMS, in 16 bit code values (default 192).</li>
+ * </ul>
+ */
+public final class ColorLUT3D {
+
+    public static final boolean ENABLED =
+        System.getProperty("lightcrafts.colorlut.disable") == null;
+
+    public static final int SIZE =
+        Math.max(2, Math.min(129, Integer.getInteger("lightcrafts.colorlut.size", 33)));
+
+    public static final int TOLERANCE =
+        Integer.getInteger("lightcrafts.colorlut.tolerance", 192);
+
+    // Number of random colors checked against LCMS
+    private static final int ACCURACY_SAMPLES = 8192;
+
+    // Shaper exponents tried when building a LUT, the most accurate wins
+    private static final float SHAPERS[] = {1f / 2.4f, 1f / 1.8f, 1f};
+
+    private static final int FILE_MAGIC = 0x4c43334c; // "LC3L"
+
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Where the samples of a {@link ColorLUT3D} come from: converts
+     * interleaved 16 bit RGB pixels.
+     */
+    interface Sampler {
+        void transform(short[] input, short[] output, int pixels);
+    }
+
+    private final int size;
+    private final float shaperExponent;
+    private final short lut[];
+    private final float shaper[];
+    private int maxError;
+
+    private ColorLUT3D(int size, float shaperExponent, short lut[]) {
+        this.size = size;
+        this.shaperExponent = shaperExponent;
+        this.lut = lut;
+
+        shaper = new float[0x10000];
+        for (int i = 0; i < shaper.length; i++)
+            shaper[i] = (float) (Math.pow(i / (double) 0xffff, shaperExponent) * (size - 1));
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The largest difference with LCMS found while validating this LUT,
+     * in 16 bit code values.
+     */
+    public int getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Converts one 16 bit RGB color.
+     *
+     * @param r The red component, in [0, 0xffff].
+     * @param g The green component, in [0, 0xffff].
+     * @param b The blue component, in [0, 0xffff].
+     * @param out Receives the converted color, in [0, 0xffff] but not
+     * rounded nor clamped.
+     */
+    public void interpolate(int r, int g, int b, float out[]) {
+        final float pr = shaper[r];
+        final float pg = shaper[g];
+        final float pb = shaper[b];
+
+        int ir = (int) pr;
+        int ig = (int) pg;
+        int ib = (int) pb;
+        if (ir == size - 1)
+            ir--;
+        if (ig == size - 1)
+            ig--;
+        if (ib == size - 1)
+            ib--;
+
+        final float fr = pr - ir;
+        final float fg = pg - ig;
+        final float fb = pb - ib;
+
+        final int dr = size * size * 3;
+        final int dg = size * 3;
+        final int db = 3;
+
+        final int c000 = ((ir * size + ig) * size + ib) * 3;
+        final int c111 = c000 + dr + dg + db;
+
+        // Pick the tetrahedron containing the point and its two inner vertices
+        final int c1, c2;
+        final float f0, f1, f2;
+        if (fr >= fg) {
+            if (fg >= fb) {
+                c1 = c000 + dr; c2 = c000 + dr + dg; f0 = fr; f1 = fg; f2 = fb;
+            } else if (fr >= fb) {
+                c1 = c000 + dr; c2 = c000 + dr + db; f0 = fr; f1 = fb; f2 = fg;
+            } else {
+                c1 = c000 + db; c2 = c000 + dr + db; f0 = fb; f1 = fr; f2 = fg;
+            }
+        } else {
+            if (fr >= fb) {
+                c1 = c000 + dg; c2 = c000 + dr + dg; f0 = fg; f1 = fr; f2 = fb;
+            } else if (fg >= fb) {
+                c1 = c000 + dg; c2 = c000 + dg + db; f0 = fg; f1 = fb; f2 = fr;
+            } else {
+                c1 = c000 + db; c2 = c000 + dg + db; f0 = fb; f1 = fg; f2 = fr;
+            }
+        }
+
+        for (int c = 0; c < 3; c++) {
+            final int v000 = lut[c000 + c] & 0xffff;
+            final int v1 = lut[c1 + c] & 0xffff;
+            final int v2 = lut[c2 + c] & 0xffff;
+            final int v111 = lut[c111 + c] & 0xffff;
+            out[c] = v000 + f0 * (v1 - v000) + f1 * (v2 - v1) + f2 * (v111 - v2);
+        }
+    }
+
+    ////////// LUT construction ///////////////////////////////////////////////
+
+    static ColorLUT3D build(Sampler sampler, int size, float shaperExponent) {
+        final int points = size * size * size;
+        final short grid[] = new short[size];
+        for (int i = 0; i < size; i++)
+            grid[i] = (short) Math.round(0xffff * Math.pow(i / (double) (size - 1), 1 / shaperExponent));
+
+        final short input[] = new short[3 * points];
+        int n = 0;
+        for (int r = 0; r < size; r++)
+            for (int g = 0; g < size; g++)
+                for (int b = 0; b < size; b++) {
+                    input[n++] = grid[r];
+                    input[n++] = grid[g];
+                    input[n++] = grid[b];
+                }
+
+        final short lut[] = new short[3 * points];
+        sampler.transform(input, lut, points);
+        return new ColorLUT3D(size, shaperExponent, lut);
+    }
+
+    /**
+     * Compares this LUT with the given sampler on a fixed set of random
+     * colors, half of them biased towards the shadows.
+     *
+     * @return Returns the largest difference, in 16 bit code values.
+     */
+    int measureError(Sampler sampler, int samples) {
+        final Random random = new Random(samples);
+        final short input[] = new short[3 * samples];
+        for (int i = 0; i < input.length; i++) {
+            final double x = random.nextDouble();
+            input[i] = (short) Math.round(0xffff * ((i / 3) % 2 == 0 ? x : Math.pow(x, 2.4)));
+        }
+
+        final short output[] = new short[3 * samples];
+        sampler.transform(input, output, samples);
+
+        final float rgb[] = new float[3];
+        int error = 0;
+        for (int i = 0; i < input.length; i += 3) {
+            interpolate(input[i] & 0xffff, input[i + 1] & 0xffff, input[i + 2] & 0xffff, rgb);
+            for (int c = 0; c < 3; c++) {
+                int v = (int) (rgb[c] + 0.5f);
+                v = v < 0 ? 0 : v > 0xffff ? 0xffff : v;
+                error = Math.max(error, Math.abs(v - (output[i + c] & 0xffff)));
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Builds a LUT with each of the candidate shapers and keeps the one
+     * closest to the sampler.
+     */
+    static ColorLUT3D buildBest(Sampler sampler, int size) {
+        ColorLUT3D best = null;
+        for (float shaperExponent : SHAPERS) {
+            final ColorLUT3D lut = build(sampler, size, shaperExponent);
+            lut.maxError = lut.measureError(sampler, ACCURACY_SAMPLES);
+            if (best == null || lut.maxError < best.maxError)
+                best = lut;
+        }
+        return best;
+    }
+
+    ////////// persistence ////////////////////////////////////////////////////
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(size);
+        out.writeFloat(shaperExponent);
+        out.writeInt(maxError);
+        for (short v : lut)
+            out.writeShort(v);
+    }
+
+    static ColorLUT3D read(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+            throw new IOException("Not a color LUT");
+        final int size = in.readInt();
+        final float shaperExponent = in.readFloat();
+        final int maxError = in.readInt();
+        if (size < 2 || size > 129 || !(shaperExponent > 0))
+            throw new IOException("Corrupt color LUT");
+        final short lut[] = new short[3 * size * size * size];
+        for (int i = 0; i < lut.length; i++)
+            lut[i] = in.readShort();
+        final ColorLUT3D result = new ColorLUT3D(size, shaperExponent, lut);
+        result.maxError = maxError;
+        return result;
+    }
+
+    ////////// cache //////////////////////////////////////////////////////////
+
+    // At most this many LUTs are kept in memory, each one is about 200KB for
+    // the grid plus 256KB for the shaper
+    private static final int MAX_CACHED_LUTS = 8;
+
+    // LUTs by cache key, null values record profile pairs that failed validation
+    private static final Map<String, ColorLUT3D> lutCache =
+        new LinkedHashMap<String, ColorLUT3D>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ColorLUT3D> eldest) {
+                return size() > MAX_CACHED_LUTS;
+            }
+        };
+
+    // Cache keys by profile pair, intent and flags, so the profile data is
+    // only digested once: ICC_Profile compares by identity and the profiles
+    // of the working spaces are shared
+    private static final Map<List<Object>, String> keyCache =
+        new LinkedHashMap<List<Object>, String>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, String> eldest) {
+                return size() > 4 * MAX_CACHED_LUTS;
+            }
+        };
+
+    // Keys of the LUTs being built
+    private static final Set<String> pending = new HashSet<String>();
+
+    private static final ThreadPoolExecutor builder = createBuilder();
+
+    private static ThreadPoolExecutor createBuilder() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Color LUT Builder");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Gets the LUT converting between two RGB profiles.
+     *
+     * @param source The source profile.
+     * @param target The destination profile.
+     * @param intent The LCMS rendering intent.
+     * @param flags The LCMS transform flags.
+     * @return Returns said LUT or <code>null</code> if LUTs are disabled, if
+     * it isn't accurate enough for this profile pair or if it isn't ready yet:
+     * this never waits for a LUT to be read or built, it starts doing so in
+     * the background and later calls get the LUT.
+     */
+    public static ColorLUT3D get(final ICC_Profile source, final ICC_Profile target,
+                                 final int intent, final int flags) {
+        if (!ENABLED
+            || source.getColorSpaceType() != ICC_Profile.icSigRgbData
+            || target.getColorSpaceType() != ICC_Profile.icSigRgbData)
+            return null;
+
+        final String key = getMemoizedCacheKey(source, target, intent, flags);
+        if (key == null)
+            return null;
+
+        synchronized (lutCache) {
+            if (lutCache.containsKey(key) || !pending.add(key))
+                return lutCache.get(key);
+        }
+
+        builder.execute(
+            new Runnable() {
+                public void run() {
+                    try {
+                        load(key, source, target, intent, flags);
+                    }
+                    finally {
+                        synchronized (lutCache) {
+                            pending.remove(key);
+                        }
+                    }
+                }
+            }
+        );
+        return null;
+    }
+
+    // Read or build a LUT and make it available to get()
+    private static void load(String key, ICC_Profile source, ICC_Profile target, int intent, int flags) {
+        ColorLUT3D lut = readFromFileCache(key);
+        if (lut == null || lut.size != SIZE) {
+            lut = buildFromProfiles(source, target, intent, flags);
+            writeToFileCache(key, lut);
+        }
+        if (lut.maxError > TOLERANCE) {
+            System.out.println("Color LUT error too large (" + lut.maxError + "), using LCMS");
+            lut = null;
+        }
+
+        synchronized (lutCache) {
+            lutCache.put(key, lut);
+        }
+    }
+
+    static ColorLUT3D buildFromProfiles(ICC_Profile source, ICC_Profile target, int intent, int flags) {
+        final LCMS.Profile sourceProfile = new LCMS.Profile(source);
+        final LCMS.Profile targetProfile = new LCMS.Profile(target);
+        final LCMS.Transform transform = new LCMS.Transform(sourceProfile, LCMS.TYPE_RGB_16,
+                                                            targetProfile, LCMS.TYPE_RGB_16,
+                                                            intent, flags);
+        try {
+            return buildBest(
+                new Sampler() {
+                    public void transform(short[] input, short[] output, int pixels) {
+                        transform.doTransform(input, output, pixels);
+                    }
+                },
+                SIZE
+            );
+        }
+        finally {
+            transform.dispose();
+            targetProfile.dispose();
+            sourceProfile.dispose();
+        }
+    }
+
+    private static String getMemoizedCacheKey(ICC_Profile source, ICC_Profile target, int intent, int flags) {
+        final List<Object> profiles = Arrays.<Object>asList(source, target, intent, flags);
+        synchronized (keyCache) {
+            final String key = keyCache.get(profiles);
+            if (key != null)
+                return key;
+        }
+        final String key = getCacheKey(source, target, intent, flags);
+        if (key != null) {
+            synchronized (keyCache) {
+                keyCache.put(profiles, key);
+            }
+        }
+        return key;
+    }
+
+    private static String getCacheKey(ICC_Profile source, ICC_Profile target, int intent, int flags) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(source.getData());
+            digest.update(target.getData());
+            digest.update(new byte[] {(byte) intent, (byte) (flags >> 24), (byte) (flags >> 16),
+                                      (byte) (flags >> 8), (byte) flags, (byte) SIZE});
+            final StringBuilder key = new StringBuilder("ColorLUT3D/");
+            for (byte b : digest.digest())
+                key.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static ColorLUT3D readFromFileCache(String key) {
+        final FileCache cache = FileCacheFactory.getGlobalCache();
+        if (cache == null)
+            return null;
+        final InputStream stream = cache.getStreamFor(key);
+        if (stream == null)
+            return null;
+        try {
+            return read(new DataInputStream(new BufferedInputStream(stream)));
+        }
+        catch (IOException e) {
+            // never mind, rebuild it
+            return null;
+        }
+        finally {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void writeToFileCache(String key, ColorLUT3D lut) {
+        final FileCache cache = FileCacheFactory.getGlobalCache();
+        if (cache == null)
+            return;
+        try {
+            final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(cache.putToStream(key)));
+            try {
+                lut.write(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        final ICC_Profile source = ICC_Profile.getInstance(args[0]);
+        final ICC_Profile target = ICC_Profile.getInstance(args[1]);
+        final ColorLUT3D lut = buildFromProfiles(source, target, LCMS.INTENT_PERCEPTUAL, 0);
+        System.out.println("size: " + lut.size + ", shaper: " + lut.shaperExponent
+                           + ", max error: " + lut.maxError);
+    }
+}
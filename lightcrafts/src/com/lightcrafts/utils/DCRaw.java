@@ -16,6 +16,7 @@ import java.awt.image.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.Map;
@@ -45,10 +46,20 @@ public final class DCRaw implements
     static private Map<String,DCRaw> dcrawCache =
         new LRUHashMap<String,DCRaw>(100);
 
-    public static synchronized DCRaw getInstanceFor( String fileName ) {
-        DCRaw instance = dcrawCache.get(fileName);
-        if (instance == null) {
-            instance = new DCRaw(fileName);
+    public static DCRaw getInstanceFor( String fileName ) {
+        synchronized (dcrawCache) {
+            final DCRaw instance = dcrawCache.get(fileName);
+            if (instance != null)
+                return instance;
+        }
+        // Run "dcraw -i" outside of the lock so that several files can be
+        // identified at once; if two threads race for the same file, the
+        // first one to finish wins.
+        final DCRaw instance = new DCRaw(fileName);
+        synchronized (dcrawCache) {
+            final DCRaw other = dcrawCache.get(fileName);
+            if (other != null)
+                return other;
             dcrawCache.put(fileName, instance);
         }
         return instance;
@@ -254,6 +265,14 @@ public final class DCRaw implements
     private final static String CAMERA_RGB_PROFILE = "Camera RGB Profile: ";
     private final static String CAMERA_XYZ_PROFILE = "Camera XYZ Profile: ";
 
+    /**
+     * Set the <code>lightcrafts.dcraw.tempfiles</code> system property to
+     * have dcraw write decoded images to temporary files rather than
+     * reading them from its standard output.
+     */
+    private static final boolean DCRAW_TEMP_FILES =
+        System.getProperty("lightcrafts.dcraw.tempfiles") != null;
+
     private static String DCRAW_PATH = "./dcraw";
     static {
         String appDir = System.getProperty("install4j.appDir");
@@ -275,23 +294,15 @@ public final class DCRaw implements
         return null;
     }
 
-    private void runDCRawInfo(boolean secondary) throws IOException {
+    private synchronized void runDCRawInfo(boolean secondary) throws IOException {
         String info[] = { DCRAW_PATH, "-v", "-i", "-t", "0", m_fileName };
         String secondaryInfo[] = { DCRAW_PATH, "-v", "-i", "-s", "1", "-t", "0", m_fileName };
 
-        synchronized (DCRaw.class) {
-            Process p = null;
-            InputStream dcrawStdOut;
-            InputStream dcrawStdErr;
-            if (ForkDaemon.INSTANCE != null) {
-                ForkDaemon.INSTANCE.invoke(secondary ? secondaryInfo : info);
-                dcrawStdOut = ForkDaemon.INSTANCE.getStdOut();
-                dcrawStdErr = ForkDaemon.INSTANCE.getStdErr();
-            } else {
-                p = Runtime.getRuntime().exec(secondary ? secondaryInfo : info);
-                dcrawStdOut = p.getInputStream();
-                dcrawStdErr = new BufferedInputStream(p.getErrorStream());
-            }
+        final DCRawProcessPool.Invocation dcraw =
+            DCRawProcessPool.execute(secondary ? secondaryInfo : info);
+        try {
+            InputStream dcrawStdOut = dcraw.getStdOut();
+            InputStream dcrawStdErr = dcraw.getStdErr();
 
             // output expected on stdout
             String line, args;
@@ -409,17 +420,9 @@ public final class DCRaw implements
             while ((line = readln(dcrawStdErr)) != null)
                 ; // System.out.println(line);
 
-            if (p != null) {
-                dcrawStdOut.close();
-                try {
-                    p.waitFor();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                m_error = p.exitValue();
-                p.destroy();
-            } else
-                m_error = 0;
+            dcraw.waitFor();
+        } finally {
+            dcraw.release();
         }
     }
 
@@ -438,53 +441,69 @@ public final class DCRaw implements
         }
     }
 
+    /**
+     * Reads a PNM/PAM header as written by dcraw.
+     *
+     * @param s The {@link InputStream} to read from.  On return, it is
+     * positioned at the first byte of pixel data.
+     * @return Returns a new {@link ImageData} to read the pixels into or
+     * <code>null</code> if the header isn't recognized.
+     */
+    private static ImageData readPPMHeader(InputStream s) {
+        String S1 = readln(s);
+        if (S1 == null)
+            return null;
+
+        int width;
+        int height;
+        int bands;
+        int dataType;
+        if (S1.equals("P5") || S1.equals("P6")) {
+            bands = S1.equals("P5") ? 1 : 3;
+            String S2 = readln(s);
+            String S3 = readln(s);
+
+            String dimensions[] = S2.split("\\s");
+            width = Integer.parseInt(dimensions[0]);
+            height = Integer.parseInt(dimensions[1]);
+
+            dataType = S3.equals("255") ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+        } else if (S1.equals("P7")) {
+            String WIDTH = "WIDTH ";
+            String HEIGHT = "HEIGHT ";
+            String DEPTH = "DEPTH ";
+            String MAXVAL = "MAXVAL ";
+            String TUPLTYPE = "TUPLTYPE ";
+            String ENDHDR = "ENDHDR";
+            String SWIDTH = readln(s);
+            width = Integer.parseInt(SWIDTH.substring(WIDTH.length()));
+            String SHEIGHT = readln(s);
+            height = Integer.parseInt(SHEIGHT.substring(HEIGHT.length()));
+            String SDEPTH = readln(s);
+            bands = Integer.parseInt(SDEPTH.substring(DEPTH.length()));
+            String SMAXVAL = readln(s);
+            dataType = SMAXVAL.substring(MAXVAL.length()).equals("65535")
+                       ? DataBuffer.TYPE_USHORT
+                       : DataBuffer.TYPE_BYTE;
+            String STUPLTYPE = readln(s);
+            String SENDHDR = readln(s);
+        } else
+            return null;
+
+        return new ImageData(width, height, bands, dataType);
+    }
+
     private static ImageData readPPM(File file) throws IOException, BadImageFileException {
         FileInputStream s = new FileInputStream(file);
 
         ImageData imageData;
         try {
-            String S1 = readln(s);
-
-            int width;
-            int height;
-            int bands;
-            int dataType;
-            if (S1.equals("P5") || S1.equals("P6")) {
-                bands = S1.equals("P5") ? 1 : 3;
-                String S2 = readln(s);
-                String S3 = readln(s);
-
-                String dimensions[] = S2.split("\\s");
-                width = Integer.parseInt(dimensions[0]);
-                height = Integer.parseInt(dimensions[1]);
-
-                dataType = S3.equals("255") ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
-
-                imageData = new ImageData(width, height, bands, dataType);
-            } else if (S1.equals("P7")) {
-                String WIDTH = "WIDTH ";
-                String HEIGHT = "HEIGHT ";
-                String DEPTH = "DEPTH ";
-                String MAXVAL = "MAXVAL ";
-                String TUPLTYPE = "TUPLTYPE ";
-                String ENDHDR = "ENDHDR";
-                String SWIDTH = readln(s);
-                width = Integer.parseInt(SWIDTH.substring(WIDTH.length()));
-                String SHEIGHT = readln(s);
-                height = Integer.parseInt(SHEIGHT.substring(HEIGHT.length()));
-                String SDEPTH = readln(s);
-                bands = Integer.parseInt(SDEPTH.substring(DEPTH.length()));
-                String SMAXVAL = readln(s);
-                dataType = SMAXVAL.substring(MAXVAL.length()).equals("65535")
-                           ? DataBuffer.TYPE_USHORT
-                           : DataBuffer.TYPE_BYTE;
-                String STUPLTYPE = readln(s);
-                String SENDHDR = readln(s);
-                imageData = new ImageData(width, height, bands, dataType);
-            } else
+            imageData = readPPMHeader(s);
+            if (imageData == null)
                 return null;
 
-            int totalData = width * height * bands * (dataType == DataBuffer.TYPE_BYTE ? 1 : 2);
+            int totalData = imageData.width * imageData.height * imageData.bands
+                            * (imageData.dataType == DataBuffer.TYPE_BYTE ? 1 : 2);
 
             FileChannel c = s.getChannel();
 
@@ -495,7 +514,7 @@ public final class DCRaw implements
 
             ByteBuffer bb = c.map(FileChannel.MapMode.READ_ONLY, c.position(), totalData);
 
-            if (dataType == DataBuffer.TYPE_USHORT) {
+            if (imageData.dataType == DataBuffer.TYPE_USHORT) {
                 bb.order(ByteOrder.BIG_ENDIAN);
                 bb.asShortBuffer().get((short[]) imageData.data);
             } else
@@ -516,6 +535,61 @@ public final class DCRaw implements
         return imageData;
     }
 
+    /**
+     * Reads a PNM/PAM image straight from dcraw's standard output, a band
+     * of rows at a time, into the final pixel array.
+     *
+     * @param s The {@link InputStream} to read from.
+     * @return Returns the image or <code>null</code> if the header isn't
+     * recognized.
+     */
+    private static ImageData readPPM(InputStream s) throws IOException {
+        final ImageData imageData = readPPMHeader(s);
+        if (imageData == null)
+            return null;
+
+        final int rowSamples = imageData.width * imageData.bands;
+        final int totalSamples = rowSamples * imageData.height;
+
+        if (imageData.dataType == DataBuffer.TYPE_BYTE) {
+            readFully(s, (byte[]) imageData.data, 0, totalSamples);
+            return imageData;
+        }
+
+        final short data[] = (short[]) imageData.data;
+        final int bandRows = Math.max(1, PPM_BAND_SIZE / (2 * rowSamples));
+        final byte band[] = new byte[2 * rowSamples * Math.min(bandRows, imageData.height)];
+        final ShortBuffer bandShorts =
+            ByteBuffer.wrap(band).order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+
+        for (int offset = 0; offset < totalSamples; ) {
+            final int samples = Math.min(band.length / 2, totalSamples - offset);
+            readFully(s, band, 0, 2 * samples);
+            bandShorts.clear();
+            bandShorts.get(data, offset, samples);
+            offset += samples;
+        }
+        return imageData;
+    }
+
+    private static void readFully(InputStream s, byte buf[], int offset, int length)
+        throws IOException
+    {
+        while (length > 0) {
+            final int n = s.read(buf, offset, length);
+            if (n < 0)
+                throw new EOFException();
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * The number of bytes of 16-bit pixel data converted at a time when
+     * reading from a pipe.
+     */
+    private static final int PPM_BAND_SIZE = 1 << 20;
+
     private static final String DCRAW_OUTPUT = "Writing data to ";
 
     public enum dcrawMode {full, preview, thumb}
@@ -524,7 +598,7 @@ public final class DCRaw implements
         return runDCRaw(mode, false);
     }
 
-    public synchronized RenderedImage runDCRaw(dcrawMode mode, boolean secondaryPixels)
+    public RenderedImage runDCRaw(dcrawMode mode, boolean secondaryPixels)
             throws IOException, UnknownImageTypeException, BadImageFileException
     {
         if (!m_decodable || (mode == dcrawMode.full && m_rawColors != 3))
@@ -543,7 +617,18 @@ public final class DCRaw implements
 
             long t1 = System.currentTimeMillis();
 
-            of = File.createTempFile("LZRAWTMP", ".ppm");
+            // Decoded images are always PNM and are read straight from
+            // dcraw's standard output; embedded thumbnails can be in any
+            // format so they still go through a temporary file.
+            final boolean streaming = mode != dcrawMode.thumb && !DCRAW_TEMP_FILES;
+
+            final String output[];
+            if (streaming)
+                output = new String[] { "-c" };
+            else {
+                of = File.createTempFile("LZRAWTMP", ".ppm");
+                output = new String[] { "-F", of.getAbsolutePath() };
+            }
 
             boolean four_colors = false;
             final String makeModel = m_make + ' ' + m_model;
@@ -556,42 +641,58 @@ public final class DCRaw implements
             if (secondaryPixels)
                 runDCRawInfo(true);
 
-            String cmd[];
+            String options[];
             switch (mode) {
                 case full:
                     if (four_colors)
-                        cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-f", "-H", "1", "-t", "0", "-o", "0", "-4", m_fileName };
+                        options = new String[] { "-v", "-f", "-H", "1", "-t", "0", "-o", "0", "-4", m_fileName };
                     else if (m_filters == -1 || (m_make != null && m_make.equalsIgnoreCase("SIGMA")))
-                        cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-H", "1", "-t", "0", "-o", "0", "-4", m_fileName };
+                        options = new String[] { "-v", "-H", "1", "-t", "0", "-o", "0", "-4", m_fileName };
                     else if (secondaryPixels)
-                        cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-j", "-H", "1", "-t", "0", "-s", "1", "-d", "-4", m_fileName };
+                        options = new String[] { "-v", "-j", "-H", "1", "-t", "0", "-s", "1", "-d", "-4", m_fileName };
                     else
-                        cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-j", "-H", "1", "-t", "0", "-d", "-4", m_fileName };
+                        options = new String[] { "-v", "-j", "-H", "1", "-t", "0", "-d", "-4", m_fileName };
                     break;
                 case preview:
-                    cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-t", "0", "-o", "1", "-w", "-h", m_fileName };
+                    options = new String[] { "-v", "-t", "0", "-o", "1", "-w", "-h", m_fileName };
                     break;
                 case thumb:
-                    cmd = new String[] { DCRAW_PATH, "-F", of.getAbsolutePath(), "-v", "-e", m_fileName };
+                    options = new String[] { "-v", "-e", m_fileName };
                     break;
                 default:
                     throw new IllegalArgumentException("Unknown mode " + mode);
             }
 
-            String ofName = null;
+            final String cmd[] = new String[1 + output.length + options.length];
+            cmd[0] = DCRAW_PATH;
+            System.arraycopy(output, 0, cmd, 1, output.length);
+            System.arraycopy(options, 0, cmd, 1 + output.length, options.length);
 
-            synchronized (DCRaw.class) {
-                Process p = null;
-                InputStream dcrawStdErr;
-                InputStream dcrawStdOut;
-                if (ForkDaemon.INSTANCE != null) {
-                    ForkDaemon.INSTANCE.invoke(cmd);
-                    dcrawStdErr = ForkDaemon.INSTANCE.getStdErr();
-                    dcrawStdOut = ForkDaemon.INSTANCE.getStdOut();
-                } else {
-                    p = Runtime.getRuntime().exec(cmd);
-                    dcrawStdErr = new BufferedInputStream(p.getErrorStream());
-                    dcrawStdOut = p.getInputStream();
+            String ofName = null;
+            ImageData imageData = null;
+            IOException readError = null;
+            final int error;
+
+            final DCRawProcessPool.Invocation dcraw =
+                DCRawProcessPool.execute(cmd, streaming);
+            try {
+                InputStream dcrawStdErr = dcraw.getStdErr();
+                InputStream dcrawStdOut = dcraw.getStdOut();
+
+                if (streaming) {
+                    // dcraw's few lines of progress on stderr fit in the
+                    // pipe, so it can't block while we read stdout first.
+                    try {
+                        imageData = readPPM(new BufferedInputStream(dcrawStdOut, 1 << 16));
+                    } catch (IOException e) {
+                        readError = e;
+                    } catch (RuntimeException e) {
+                        readError = new IOException(e.toString());
+                    }
+                    // Let dcraw run to completion whatever happened
+                    final byte skip[] = new byte[8192];
+                    while (dcrawStdOut.read(skip) >= 0)
+                        ;
                 }
 
                 String line, args;
@@ -603,37 +704,43 @@ public final class DCRaw implements
                         ofName = args.substring(0, args.indexOf(" ..."));
                 }
 
-                // Flush stdout just in case...
-                while ((line = readln(dcrawStdOut)) != null)
-                    ; // System.out.println(line);
-
-                if (p != null) {
-                    dcrawStdErr.close();
+                if (!streaming) {
+                    // Flush stdout just in case...
+                    while ((line = readln(dcrawStdOut)) != null)
+                        ; // System.out.println(line);
+                }
 
-                    try {
-                        p.waitFor();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    m_error = p.exitValue();
-                    p.destroy();
-                } else
-                    m_error = 0;
+                error = dcraw.waitFor();
+            } finally {
+                dcraw.release();
             }
 
-            System.out.println("dcraw value: " + m_error);
-
-            if (m_error > 0) {
-                of.delete();
-                throw new BadImageFileException(of);
-            }
+            System.out.println("dcraw value: " + error
+                               + " (" + DCRawProcessPool.getActiveCount() + " running, "
+                               + DCRawProcessPool.getQueueLength() + " queued, "
+                               + DCRawProcessPool.getAverageLatency() + "ms average)");
+
+            if (streaming) {
+                final File rawFile = new File(m_fileName);
+                if (error > 0)
+                    throw new BadImageFileException(rawFile);
+                if (readError != null)
+                    throw new BadImageFileException(rawFile, readError);
+                if (imageData == null)
+                    throw new BadImageFileException(rawFile, "Unrecognized dcraw output");
+            } else {
+                if (error > 0) {
+                    of.delete();
+                    throw new BadImageFileException(of);
+                }
 
-            if (!ofName.equals(of.getPath())) {
-                of.delete();
-                of = new File(ofName);
+                if (!ofName.equals(of.getPath())) {
+                    of.delete();
+                    of = new File(ofName);
+                }
             }
 
-            if (of.getName().endsWith(".jpg") || of.getName().endsWith(".tiff")) {
+            if (!streaming && (of.getName().endsWith(".jpg") || of.getName().endsWith(".tiff"))) {
                 if (of.getName().endsWith(".jpg")) {
                     try {
                         LCJPEGReader jpegReader = new LCJPEGReader(of.getPath());
@@ -658,12 +765,13 @@ public final class DCRaw implements
 
                 System.out.println("Read " + totalData + " bytes in " + (t2 - t1) + "ms");
             } else {
-                ImageData imageData;
-                try {
-                    imageData = readPPM(of);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new BadImageFileException(of, e);
+                if (!streaming) {
+                    try {
+                        imageData = readPPM(of);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        throw new BadImageFileException(of, e);
+                    }
                 }
 
                 // do not change the initial image geometry
@@ -750,8 +858,6 @@ public final class DCRaw implements
 
     ////////// private ////////////////////////////////////////////////////////
 
-    private int m_error;
-
     private boolean m_decodable = true;
 
     private final String m_fileName;
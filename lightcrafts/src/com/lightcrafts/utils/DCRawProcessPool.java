@@ -0,0 +1,292 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>DCRawProcessPool</code> runs dcraw invocations concurrently, up to
+ * a fixed number at a time.  Each invocation gets a coprocess of its own:
+ * either a {@link ForkDaemon} that nobody else is using or, when there is no
+ * fork daemon, a freshly started {@link Process}.  Further invocations wait
+ * for a free slot.
+ * <p>
+ * The number of slots defaults to the number of processors and can be set
+ * with the <code>lightcrafts.dcraw.processes</code> system property.
+ */
+public final class DCRawProcessPool {
+
+    ////////// public /////////////////////////////////////////////////////////
+
+    /**
+     * An <code>Invocation</code> is a single run of dcraw.  Its output must
+     * be read through {@link #getStdErr()} and {@link #getStdOut()}, then
+     * {@link #release()} must always be called, typically in a
+     * <code>finally</code> block.
+     */
+    public static final class Invocation {
+
+        /**
+         * Gets dcraw's standard error.
+         *
+         * @return Returns said {@link InputStream}.
+         */
+        public InputStream getStdErr() {
+            return m_stdErr;
+        }
+
+        /**
+         * Gets dcraw's standard output.
+         *
+         * @return Returns said {@link InputStream}.
+         */
+        public InputStream getStdOut() {
+            return m_stdOut;
+        }
+
+        /**
+         * Waits for dcraw to exit.  This must be called only once both of
+         * its output streams have been read to the end.
+         *
+         * @return Returns dcraw's exit value.
+         */
+        public int waitFor() throws IOException {
+            if ( m_daemon != null ) {
+                // The fork daemon doesn't report exit values.
+                m_completed = true;
+                return 0;
+            }
+            m_stdErr.close();
+            m_stdOut.close();
+            try {
+                m_process.waitFor();
+            }
+            catch ( InterruptedException e ) {
+                e.printStackTrace();
+            }
+            m_completed = true;
+            return m_process.exitValue();
+        }
+
+        /**
+         * Releases this invocation's slot.  If {@link #waitFor()} wasn't
+         * called, the coprocess is in an unknown state so it is killed.
+         */
+        public void release() {
+            if ( m_released )
+                return;
+            m_released = true;
+            if ( m_daemon != null ) {
+                if ( m_completed )
+                    putDaemon( m_daemon );
+                else
+                    m_daemon.dispose();
+            } else
+                m_process.destroy();
+            m_active.decrementAndGet();
+            m_runTime.addAndGet( System.nanoTime() - m_startTime );
+            m_slots.release();
+        }
+
+        private Invocation( String[] cmd, boolean direct ) throws IOException {
+            m_startTime = System.nanoTime();
+            final ForkDaemon daemon = direct ? null : takeDaemon();
+            if ( daemon != null ) {
+                daemon.invoke( cmd );
+                m_daemon = daemon;
+                m_process = null;
+                m_stdErr = daemon.getStdErr();
+                m_stdOut = daemon.getStdOut();
+            } else {
+                m_daemon = null;
+                m_process = Runtime.getRuntime().exec( cmd );
+                m_stdErr = new BufferedInputStream( m_process.getErrorStream() );
+                m_stdOut = m_process.getInputStream();
+            }
+        }
+
+        private final ForkDaemon m_daemon;
+        private final Process m_process;
+        private final InputStream m_stdErr;
+        private final InputStream m_stdOut;
+        private final long m_startTime;
+        private boolean m_completed;
+        private boolean m_released;
+    }
+
+    /**
+     * Starts a dcraw invocation, first waiting for a free slot if necessary.
+     *
+     * @param cmd The dcraw command line.
+     * @return Returns the new {@link Invocation}.
+     */
+    public static Invocation execute( String[] cmd ) throws IOException {
+        return execute( cmd, false );
+    }
+
+    /**
+     * Starts a dcraw invocation, first waiting for a free slot if necessary.
+     *
+     * @param cmd The dcraw command line.
+     * @param direct If <code>true</code>, always start a new {@link Process}
+     * rather than use a {@link ForkDaemon}.  This is needed when dcraw writes
+     * an image to its standard output: the fork daemon alternates between
+     * relaying stdout and stderr, so it stalls on large output.
+     * @return Returns the new {@link Invocation}.
+     */
+    public static Invocation execute( String[] cmd, boolean direct )
+        throws IOException
+    {
+        final long t0 = System.nanoTime();
+        m_waiting.incrementAndGet();
+        m_slots.acquireUninterruptibly();
+        m_waiting.decrementAndGet();
+        m_waitTime.addAndGet( System.nanoTime() - t0 );
+        m_active.incrementAndGet();
+        m_invocations.incrementAndGet();
+        try {
+            return new Invocation( cmd, direct );
+        }
+        catch ( IOException e ) {
+            m_active.decrementAndGet();
+            m_slots.release();
+            throw e;
+        }
+        catch ( RuntimeException e ) {
+            m_active.decrementAndGet();
+            m_slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of dcraw invocations currently running.
+     *
+     * @return Returns said number.
+     */
+    public static int getActiveCount() {
+        return m_active.get();
+    }
+
+    /**
+     * Gets the average time from the start of an invocation to its release.
+     *
+     * @return Returns said time in milliseconds.
+     */
+    public static long getAverageLatency() {
+        final long n = m_invocations.get();
+        return n > 0 ? m_runTime.get() / n / 1000000 : 0;
+    }
+
+    /**
+     * Gets the average time an invocation had to wait for a free slot.
+     *
+     * @return Returns said time in milliseconds.
+     */
+    public static long getAverageWaitTime() {
+        final long n = m_invocations.get();
+        return n > 0 ? m_waitTime.get() / n / 1000000 : 0;
+    }
+
+    /**
+     * Gets the total number of dcraw invocations so far.
+     *
+     * @return Returns said number.
+     */
+    public static long getInvocationCount() {
+        return m_invocations.get();
+    }
+
+    /**
+     * Gets the maximum number of dcraw invocations that can run at once.
+     *
+     * @return Returns said number.
+     */
+    public static int getPoolSize() {
+        return POOL_SIZE;
+    }
+
+    /**
+     * Gets the number of invocations currently waiting for a free slot.
+     *
+     * @return Returns said number.
+     */
+    public static int getQueueLength() {
+        return m_waiting.get();
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * Gets an idle {@link ForkDaemon}, starting a new one if they are all in
+     * use.  Since the number of slots is bounded, so is the number of
+     * daemons.
+     *
+     * @return Returns said daemon or <code>null</code> if there is no fork
+     * daemon or a new one couldn't be started.
+     */
+    private static ForkDaemon takeDaemon() {
+        if ( ForkDaemon.INSTANCE == null )
+            return null;
+        synchronized ( m_idleDaemons ) {
+            if ( !m_daemonsSeeded ) {
+                m_idleDaemons.add( ForkDaemon.INSTANCE );
+                m_daemonsSeeded = true;
+            }
+            if ( !m_idleDaemons.isEmpty() )
+                return m_idleDaemons.removeFirst();
+        }
+        try {
+            return ForkDaemon.create();
+        }
+        catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void putDaemon( ForkDaemon daemon ) {
+        synchronized ( m_idleDaemons ) {
+            m_idleDaemons.add( daemon );
+        }
+    }
+
+    private static final int POOL_SIZE;
+
+    static {
+        int size = Runtime.getRuntime().availableProcessors();
+        final String s = System.getProperty( "lightcrafts.dcraw.processes" );
+        if ( s != null )
+            try {
+                size = Integer.parseInt( s );
+            }
+            catch ( NumberFormatException e ) {
+                // use the default
+            }
+        POOL_SIZE = Math.max( size, 1 );
+    }
+
+    private static final Semaphore m_slots = new Semaphore( POOL_SIZE, true );
+
+    private static final LinkedList<ForkDaemon> m_idleDaemons =
+        new LinkedList<ForkDaemon>();
+
+    private static boolean m_daemonsSeeded;
+
+    private static final AtomicInteger m_active = new AtomicInteger();
+    private static final AtomicInteger m_waiting = new AtomicInteger();
+    private static final AtomicLong m_invocations = new AtomicLong();
+    private static final AtomicLong m_runTime = new AtomicLong();
+    private static final AtomicLong m_waitTime = new AtomicLong();
+
+    private DCRawProcessPool() {
+        // no instances
+    }
+}
+/* vim:set et sw=4 ts=4: */
@@ -62,6 +62,31 @@ public final class ForkDaemon {
         INSTANCE = new ForkDaemon();
     }
 
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Starts an additional fork daemon so that more than one coprocess can
+     * run at once.  Each daemon must be used by only one thread at a time.
+     *
+     * @return Returns a new {@link ForkDaemon}.
+     */
+    static ForkDaemon create() throws IOException {
+        return new ForkDaemon();
+    }
+
+    /**
+     * Kills the daemon, e.g., when its pipes were left in an unknown state.
+     */
+    void dispose() {
+        try {
+            stdin.close();
+        }
+        catch ( IOException e ) {
+            // ignore
+        }
+        forkerProcess.destroy();
+    }
+
     ////////// protected //////////////////////////////////////////////////////
 
     protected void finalize() throws Throwable {
@@ -13,6 +13,7 @@ import java.awt.*;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import sun.awt.image.ShortInterleavedRaster;
 import sun.awt.image.ByteInterleavedRaster;
@@ -547,6 +548,8 @@ public class LCMS {
 
         private RCHandle cmsTransform = null;
 
+        private final boolean pooled;
+
         private static class TransformData {
             final long inputProfileHandle;
             final int inputType;
@@ -612,45 +615,56 @@ public class LCMS {
             }
         }
 
-        public Transform(Profile input, int inputType, Profile output, int outputType, int intent, int flags) {
-            TransformData td = new TransformData(input, inputType, output, outputType, intent, flags);
-            RCHandle transformHandle = (RCHandle) transformCache.get(td);
+        private static long createTransform(TransformData td) {
+            if (td.proofProfileHandle == 0) {
+                int flags = td.flags;
 
-            if (transformHandle != null && transformHandle.increment() > 1)
-                cmsTransform = transformHandle;
-            else {
                 // Don't bother hires with 8bit to 8bit transforms
-                if (inputType != TYPE_RGB_8 || outputType != TYPE_RGB_8)
+                if (td.inputType != TYPE_RGB_8 || td.outputType != TYPE_RGB_8)
                     flags |= cmsFLAGS_HIGHRESPRECALC;
 
-                cmsTransform = new RCHandle(cmsCreateTransform(input.cmsProfile.handle, inputType,
-                                                               output.cmsProfile.handle, outputType,
-                                                               intent, flags));
+                return cmsCreateTransform(td.inputProfileHandle, td.inputType,
+                                          td.outputProfileHandle, td.outputType,
+                                          td.intent, flags);
+            } else
+                return cmsCreateProofingTransform(td.inputProfileHandle, td.inputType,
+                                                  td.outputProfileHandle, td.outputType,
+                                                  td.proofProfileHandle,
+                                                  td.intent, td.proofIntent,
+                                                  td.flags
+                                                  | cmsFLAGS_NOTPRECALC
+                                                  | cmsFLAGS_SOFTPROOFING);
+        }
+
+        private Transform(TransformData td) {
+            pooled = false;
+            synchronized (transformCache) {
+                RCHandle transformHandle = (RCHandle) transformCache.get(td);
 
-                transformCache.put(td, cmsTransform);
-                cmsTransform.increment(); // for the cache reference
+                if (transformHandle != null && transformHandle.increment() > 1)
+                    cmsTransform = transformHandle;
+                else {
+                    cmsTransform = new RCHandle(createTransform(td));
+
+                    transformCache.put(td, cmsTransform);
+                    cmsTransform.increment(); // for the cache reference
+                }
             }
         }
 
+        // Used by TransformPool, the handle is private to this instance
+        private Transform(RCHandle handle) {
+            pooled = true;
+            cmsTransform = handle;
+        }
+
+        public Transform(Profile input, int inputType, Profile output, int outputType, int intent, int flags) {
+            this(new TransformData(input, inputType, output, outputType, intent, flags));
+        }
+
         public Transform(Profile input, int inputType, Profile output, int outputType, Profile proof,
                          int intent, int proofIntent, int flags) {
-            TransformData td = new TransformData(input, inputType, output, outputType, proof, intent, proofIntent, flags);
-            RCHandle transformHandle = (RCHandle) transformCache.get(td);
-
-            if (transformHandle != null && transformHandle.increment() > 1)
-                cmsTransform = transformHandle;
-            else {
-                cmsTransform = new RCHandle(cmsCreateProofingTransform(input.cmsProfile.handle, inputType,
-                                                                       output.cmsProfile.handle, outputType,
-                                                                       proof.cmsProfile.handle,
-                                                                       intent, proofIntent,
-                                                                       flags
-                                                                       | cmsFLAGS_NOTPRECALC
-                                                                       | cmsFLAGS_SOFTPROOFING));
-
-                transformCache.put(td, cmsTransform);
-                cmsTransform.increment(); // for the cache reference
-            }
+            this(new TransformData(input, inputType, output, outputType, proof, intent, proofIntent, flags));
         }
 
         public void doTransform(ByteInterleavedRaster input, ByteInterleavedRaster output) {
@@ -707,7 +721,16 @@ public class LCMS {
             cmsDoTransform(cmsTransform.handle, input, output, 1);
         }
 
+        public void doTransform(short[] input, short[] output, int pixels) {
+            cmsDoTransform(cmsTransform.handle, input, output, pixels);
+        }
+
         public void dispose() {
+            if (!pooled)
+                release();
+        }
+
+        private void release() {
             if (cmsTransform != null && cmsTransform.decrement() == 0) {
                 cmsDeleteTransform(cmsTransform.handle);
             }
@@ -715,7 +738,99 @@ public class LCMS {
         }
 
         public void finalize() {
-            dispose();
+            release();
+        }
+    }
+
+    /**
+     * A process-wide cache of native transforms, keyed by profiles, pixel
+     * types, intents and flags.  LCMS transforms keep internal state that
+     * makes them unsafe to share between threads, so every thread gets its
+     * own native handle for a given key: tile workers can then convert
+     * concurrently without any locking.
+     * <p>
+     * Transforms obtained from the pool belong to the calling thread, they
+     * must not be handed to other threads nor disposed by the caller.
+     */
+    public static class TransformPool {
+        // Transforms held by each thread, the least recently used are dropped
+        private static final int MAX_TRANSFORMS_PER_THREAD = 8;
+
+        private static final AtomicLong hitCount = new AtomicLong();
+        private static final AtomicLong missCount = new AtomicLong();
+
+        private static final class Entry {
+            final Transform transform;
+
+            // Keep the profiles alive as long as the transform uses their handles
+            final Profile input;
+            final Profile output;
+            final Profile proof;
+
+            Entry(Transform transform, Profile input, Profile output, Profile proof) {
+                this.transform = transform;
+                this.input = input;
+                this.output = output;
+                this.proof = proof;
+            }
+        }
+
+        private static final ThreadLocal<Map<Transform.TransformData, Entry>> threadTransforms =
+            new ThreadLocal<Map<Transform.TransformData, Entry>>() {
+                protected Map<Transform.TransformData, Entry> initialValue() {
+                    return new LinkedHashMap<Transform.TransformData, Entry>(16, 0.75f, true) {
+                        protected boolean removeEldestEntry(Map.Entry<Transform.TransformData, Entry> eldest) {
+                            if (size() > MAX_TRANSFORMS_PER_THREAD) {
+                                eldest.getValue().transform.release();
+                                return true;
+                            }
+                            return false;
+                        }
+                    };
+                }
+            };
+
+        private TransformPool() { }
+
+        public static Transform getTransform(Profile input, int inputType, Profile output, int outputType,
+                                             int intent, int flags) {
+            return getTransform(new Transform.TransformData(input, inputType, output, outputType, intent, flags),
+                                input, output, null);
+        }
+
+        public static Transform getTransform(Profile input, int inputType, Profile output, int outputType,
+                                             Profile proof, int intent, int proofIntent, int flags) {
+            return getTransform(new Transform.TransformData(input, inputType, output, outputType, proof,
+                                                             intent, proofIntent, flags),
+                                input, output, proof);
+        }
+
+        private static Transform getTransform(Transform.TransformData td, Profile input, Profile output, Profile proof) {
+            Map<Transform.TransformData, Entry> transforms = threadTransforms.get();
+            Entry entry = transforms.get(td);
+            if (entry != null) {
+                hitCount.incrementAndGet();
+                return entry.transform;
+            }
+            missCount.incrementAndGet();
+            Transform transform = new Transform(new RCHandle(Transform.createTransform(td)));
+            transforms.put(td, new Entry(transform, input, output, proof));
+            return transform;
+        }
+
+        /**
+         * Number of lookups satisfied by a transform the calling thread
+         * already owned.
+         */
+        public static long getHitCount() {
+            return hitCount.get();
+        }
+
+        /**
+         * Number of lookups that had to build a new native transform.
+         */
+        public static long getMissCount() {
+            return missCount.get();
         }
     }
 
@@ -46,6 +46,7 @@ public final class Cache {
         m_freeBlockMgr.clear();
         m_objMap.clear();
         m_store.clear();
+        m_storeEnd = -1;
     }
 
     /**
@@ -150,17 +151,27 @@ public final class Cache {
      * any purpose.
      * @return Returns the read object.
      */
-    public synchronized Object readFromStore( Object key, Object aux )
+    public Object readFromStore( Object key, Object aux )
         throws IOException
     {
-        final CacheBlock block = m_blockMap.remove( key );
+        final CacheBlock block;
+        synchronized ( this ) {
+            block = m_blockMap.remove( key );
+        }
         if ( block == null )
             return null;
-        final ByteBuffer buf = m_store.getByteBuffer( block.getSize() );
-        m_store.readFromStore( block.getPosition(), buf );
-        final Object obj = m_objBroker.decodeFromByteBuffer( buf, aux );
-        m_freeBlockMgr.freeBlock( block );
-        return obj;
+        //
+        // The I/O is done outside of the lock so that concurrent readers only
+        // contend in the CacheStore, if at all.
+        //
+        try {
+            final ByteBuffer buf = m_store.getByteBuffer( block.getSize() );
+            m_store.readFromStore( block.getPosition(), buf );
+            return m_objBroker.decodeFromByteBuffer( buf, aux );
+        }
+        finally {
+            m_freeBlockMgr.freeBlock( block );
+        }
     }
 
     /**
@@ -199,27 +210,35 @@ public final class Cache {
      * @param key The object's key.
      * @param buf The encoded object to write.
      */
-    public synchronized void writeToStore( Object key, ByteBuffer buf )
+    public void writeToStore( Object key, ByteBuffer buf )
         throws IOException
     {
         final int objSize = buf.limit();
         CacheBlock block = m_freeBlockMgr.findBlockOfSize( objSize );
         if ( block == null ) {
             //
-            // There are no free blocks available: create a new one at the end
-            // of the store.
-            //
-            // The calls to getSize() and writeToStore() must be together in a
-            // synchronized block.
+            // There are no free blocks available: reserve a new one at the end
+            // of the store.  The end is tracked here rather than asked of the
+            // store so that concurrent writers get distinct blocks before any
+            // of them has actually written.
             //
-            synchronized ( m_store ) {
-                block = new CacheBlock( m_store.getSize(), objSize );
-                m_store.writeToStore( block.getPosition(), buf );
+            synchronized ( this ) {
+                if ( m_storeEnd < 0 )
+                    m_storeEnd = m_store.getSize();
+                block = new CacheBlock( m_storeEnd, objSize );
+                m_storeEnd += objSize;
             }
-        } else
+        }
+        try {
             m_store.writeToStore( block.getPosition(), buf );
-
-        m_blockMap.put( key, block );
+        }
+        catch ( IOException e ) {
+            m_freeBlockMgr.freeBlock( block );
+            throw e;
+        }
+        synchronized ( this ) {
+            m_blockMap.put( key, block );
+        }
     }
 
     ////////// protected //////////////////////////////////////////////////////
@@ -260,5 +279,11 @@ public final class Cache {
      * The {@link CacheStore} to use.
      */
     private final CacheStore m_store;
+
+    /**
+     * The position just past the last block allocated in the
+     * {@link CacheStore} or -1 if it has to be asked of the store.
+     */
+    private long m_storeEnd = -1;
 }
 /* vim:set et sw=4 ts=4: */
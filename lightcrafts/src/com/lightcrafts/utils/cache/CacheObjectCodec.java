@@ -0,0 +1,44 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils.cache;
+
+/**
+ * A <code>CacheObjectCodec</code> is a lossless compression stage that a
+ * {@link CacheObjectBroker} can apply to the bytes of an object before they
+ * are written to a {@link CacheStore}.
+ */
+public interface CacheObjectCodec {
+
+    /**
+     * Decodes bytes previously encoded by {@link #encode(byte[],int,byte[])}.
+     *
+     * @param src The encoded bytes.
+     * @param srcLength The number of encoded bytes.
+     * @param dest The array to decode into.
+     * @param destLength The exact number of bytes to decode.
+     * @throws IllegalArgumentException if the encoded bytes are corrupt.
+     */
+    void decode( byte[] src, int srcLength, byte[] dest, int destLength );
+
+    /**
+     * Encodes bytes.
+     *
+     * @param src The bytes to encode.
+     * @param srcLength The number of bytes to encode.
+     * @param dest The array to encode into.  It must be at least
+     * {@link #getMaxEncodedSize(int)} bytes long.
+     * @return Returns the number of encoded bytes.
+     */
+    int encode( byte[] src, int srcLength, byte[] dest );
+
+    /**
+     * Gets the largest number of bytes {@link #encode(byte[],int,byte[])}
+     * can produce.
+     *
+     * @param size The number of bytes to encode.
+     * @return Returns said number of bytes.
+     */
+    int getMaxEncodedSize( int size );
+
+}
+/* vim:set et sw=4 ts=4: */
@@ -34,9 +34,8 @@ public interface CacheStore {
     ByteBuffer getByteBuffer( int size );
 
     /**
-     * Gets the current size of the cache.  Note that a call to this method
-     * that is followed by a call to {@link #writeToStore(long,ByteBuffer)}
-     * must both be in a <code>synchronized</code> block on the store.
+     * Gets the current size of the cache.  Writing past the end of the store
+     * with {@link #writeToStore(long,ByteBuffer)} must grow it.
      *
      * @return Returns said size.
      */
@@ -27,6 +27,25 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
      */
     public synchronized void clear() {
         m_freeBlockList.clear();
+        m_freeSize = 0;
+    }
+
+    /**
+     * Gets the number of free blocks, a measure of fragmentation.
+     *
+     * @return Returns said number.
+     */
+    public synchronized int getFreeBlockCount() {
+        return m_freeBlockList.size();
+    }
+
+    /**
+     * Gets the total size of all the free blocks.
+     *
+     * @return Returns said size (in bytes).
+     */
+    public synchronized long getFreeSize() {
+        return m_freeSize;
     }
 
     /**
@@ -50,6 +69,7 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
                     // the free-block list.
                     //
                     i.remove();
+                    m_freeSize -= objSize;
                     return block;
                 }
                 if ( blockSize > objSize ) {
@@ -61,6 +81,7 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
                     final long blockPos = block.getPosition();
                     block.setPosition( blockPos + objSize );
                     block.setSize( blockSize - objSize );
+                    m_freeSize -= objSize;
                     return new CacheBlock( blockPos, objSize );
                 }
             }
@@ -74,6 +95,7 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
      * @param freeBlock The block to free.
      */
     public synchronized void freeBlock( CacheBlock freeBlock ) {
+        m_freeSize += freeBlock.getSize();
         if ( m_freeBlockList.isEmpty() ) {
             m_freeBlockList.add( freeBlock );
             return;
@@ -124,7 +146,7 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
                 block.setSize( blockSize + freeSize );
                 return;
             }
-            if ( freePos > blockPos )
+            if ( freePos < blockPos )
                 break;
         }
         //
@@ -139,5 +161,10 @@ public final class CoalescingFreeBlockManager implements FreeBlockManager {
      * The list of freed {@link CacheBlock}s.
      */
     private final ArrayList<CacheBlock> m_freeBlockList;
+
+    /**
+     * The sum of the sizes of the blocks in {@link #m_freeBlockList}.
+     */
+    private long m_freeSize;
 }
 /* vim:set et sw=4 ts=4: */
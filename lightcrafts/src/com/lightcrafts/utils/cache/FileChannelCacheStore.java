@@ -0,0 +1,117 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A <code>FileChannelCacheStore</code> is-a {@link CacheStore} that uses a
+ * {@link File} for its backing store and accesses it through positional
+ * {@link FileChannel} I/O.  Unlike {@link DirectFileCacheStore}, there is no
+ * shared file pointer, so any number of threads can read and write at the
+ * same time without locking.
+ * <p>
+ * The {@link ByteBuffer}s returned by {@link #getByteBuffer(int)} are direct
+ * so data goes between the file and the buffer without an intermediate copy.
+ * They are reused per thread: a buffer is valid only until the next call to
+ * {@link #getByteBuffer(int)} from the same thread.
+ */
+public final class FileChannelCacheStore implements CacheStore {
+
+    ////////// public /////////////////////////////////////////////////////////
+
+    /**
+     * Construct a <code>FileChannelCacheStore</code>.
+     *
+     * @param cacheFile The {@link File} to use for the cache.
+     */
+    public FileChannelCacheStore( File cacheFile ) throws IOException {
+        cacheFile.deleteOnExit();
+        m_file = new RandomAccessFile( cacheFile, "rw" );
+        m_channel = m_file.getChannel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() throws IOException {
+        m_channel.truncate( 0 );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void dispose() throws IOException {
+        m_file.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer getByteBuffer( int size ) {
+        ByteBuffer buf = m_threadBuf.get();
+        if ( buf == null || buf.capacity() < size ) {
+            buf = ByteBuffer.allocateDirect( size );
+            m_threadBuf.set( buf );
+        }
+        buf.clear();
+        buf.limit( size );
+        final ByteBuffer slice = buf.slice();
+        slice.order( ByteOrder.nativeOrder() );
+        return slice;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize() throws IOException {
+        return m_channel.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void readFromStore( long pos, ByteBuffer buf ) throws IOException {
+        buf.position( 0 );
+        while ( buf.hasRemaining() )
+            if ( m_channel.read( buf, pos + buf.position() ) < 0 )
+                throw new EOFException();
+        buf.position( 0 );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void writeToStore( long pos, ByteBuffer buf ) throws IOException {
+        buf.position( 0 );
+        while ( buf.hasRemaining() )
+            m_channel.write( buf, pos + buf.position() );
+        buf.position( 0 );
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * The {@link File} to use as the backing store.
+     */
+    private final RandomAccessFile m_file;
+
+    /**
+     * The {@link FileChannel} of {@link #m_file}.
+     */
+    private final FileChannel m_channel;
+
+    /**
+     * The per-thread buffer handed out by {@link #getByteBuffer(int)}; it
+     * grows to the largest size requested.
+     */
+    private final ThreadLocal<ByteBuffer> m_threadBuf =
+        new ThreadLocal<ByteBuffer>();
+}
+/* vim:set et sw=4 ts=4: */
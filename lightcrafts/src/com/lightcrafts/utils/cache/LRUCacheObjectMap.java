@@ -117,7 +117,7 @@ public final class LRUCacheObjectMap implements CacheObjectMap {
             broker.encodeToByteBuffer( buf, obj );
             synchronized ( this ) {
                 m_lruMap.put( key, buf );
-                m_curSize += objSize;
+                m_curSize += buf.capacity();
             }
             break;
         }
@@ -131,7 +131,7 @@ public final class LRUCacheObjectMap implements CacheObjectMap {
             throw new IllegalArgumentException();
         final ByteBuffer buf = m_lruMap.remove( key );
         if ( buf != null ) {
-            m_curSize -=  buf.limit();
+            m_curSize -= buf.capacity();
             final boolean freed = m_bufAlloc.freeByteBuffer( buf );
             assert freed;
             return true;
@@ -215,7 +215,7 @@ public final class LRUCacheObjectMap implements CacheObjectMap {
         catch ( IOException e ) {
             throw new CacheIOException( e );
         }
-        m_curSize -= buf.limit();
+        m_curSize -= buf.capacity();
         final boolean freed = m_bufAlloc.freeByteBuffer( buf );
         assert freed;
     }
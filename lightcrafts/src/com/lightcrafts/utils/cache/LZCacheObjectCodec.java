@@ -0,0 +1,200 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils.cache;
+
+import java.util.Arrays;
+
+/**
+ * An <code>LZCacheObjectCodec</code> is-a {@link CacheObjectCodec} that uses
+ * a byte oriented LZ77 scheme in the style of LZ4: greedy matching through a
+ * single-entry hash table and no entropy coding, so that both compression
+ * and decompression run close to memory speed.
+ * <p>
+ * The encoded data is a sequence of:
+ * <ul>
+ *   <li>a token byte: the literal count in the high nibble and the match
+ *       length minus 4 in the low nibble, a nibble of 15 being continued by
+ *       extra bytes (each adds up to 255, a byte under 255 ends it);</li>
+ *   <li>the literals;</li>
+ *   <li>the match offset as 2 little-endian bytes.</li>
+ * </ul>
+ * The last sequence has literals only.
+ */
+public final class LZCacheObjectCodec implements CacheObjectCodec {
+
+    ////////// public /////////////////////////////////////////////////////////
+
+    /**
+     * {@inheritDoc}
+     */
+    public void decode( byte[] src, int srcLength, byte[] dest,
+                        int destLength ) {
+        try {
+            int s = 0;
+            int d = 0;
+            while ( true ) {
+                final int token = src[ s++ ] & 0xFF;
+
+                int literals = token >>> 4;
+                if ( literals == 15 ) {
+                    int b;
+                    do {
+                        b = src[ s++ ] & 0xFF;
+                        literals += b;
+                    } while ( b == 255 );
+                }
+                System.arraycopy( src, s, dest, d, literals );
+                s += literals;
+                d += literals;
+
+                if ( s >= srcLength )
+                    break;
+
+                final int offset = (src[ s ] & 0xFF) | (src[ s + 1 ] & 0xFF) << 8;
+                s += 2;
+                if ( offset == 0 || offset > d )
+                    throw new IllegalArgumentException( "bad match offset" );
+
+                int matchLength = token & 0x0F;
+                if ( matchLength == 15 ) {
+                    int b;
+                    do {
+                        b = src[ s++ ] & 0xFF;
+                        matchLength += b;
+                    } while ( b == 255 );
+                }
+                matchLength += MIN_MATCH;
+
+                //
+                // Matches can overlap their own output (e.g., runs), so they
+                // must be copied forward one byte at a time.
+                //
+                int m = d - offset;
+                final int end = d + matchLength;
+                while ( d < end )
+                    dest[ d++ ] = dest[ m++ ];
+            }
+            if ( d != destLength )
+                throw new IllegalArgumentException( "bad decoded length" );
+        }
+        catch ( ArrayIndexOutOfBoundsException e ) {
+            throw new IllegalArgumentException( "corrupt data" );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int encode( byte[] src, int srcLength, byte[] dest ) {
+        final int[] table = m_hashTable.get();
+        Arrays.fill( table, -1 );
+
+        final int matchLimit = srcLength - LAST_LITERALS;
+        final int searchLimit = srcLength - MIN_MATCH - LAST_LITERALS;
+        int anchor = 0;
+        int i = 0;
+        int d = 0;
+        int misses = 0;
+
+        while ( i < searchLimit ) {
+            final int seq = readInt( src, i );
+            final int h = hash( seq );
+            final int ref = table[ h ];
+            table[ h ] = i;
+
+            if ( ref < 0 || i - ref > MAX_OFFSET || readInt( src, ref ) != seq ) {
+                //
+                // Skip faster over incompressible data.
+                //
+                i += 1 + (misses++ >>> SKIP_STRENGTH);
+                continue;
+            }
+            misses = 0;
+
+            int matchLength = MIN_MATCH;
+            while ( i + matchLength < matchLimit
+                    && src[ ref + matchLength ] == src[ i + matchLength ] )
+                ++matchLength;
+
+            d = writeSequence( src, anchor, i - anchor, i - ref,
+                               matchLength, dest, d );
+            i += matchLength;
+            anchor = i;
+        }
+        return writeLastLiterals( src, anchor, srcLength - anchor, dest, d );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaxEncodedSize( int size ) {
+        return size + size / 255 + 16;
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    private static int hash( int seq ) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt( byte[] buf, int i ) {
+        return (buf[ i ] & 0xFF) | (buf[ i + 1 ] & 0xFF) << 8
+             | (buf[ i + 2 ] & 0xFF) << 16 | (buf[ i + 3 ] & 0xFF) << 24;
+    }
+
+    private static int writeLength( int length, byte[] dest, int d ) {
+        while ( length >= 255 ) {
+            dest[ d++ ] = (byte)255;
+            length -= 255;
+        }
+        dest[ d++ ] = (byte)length;
+        return d;
+    }
+
+    private static int writeSequence( byte[] src, int literalPos,
+                                      int literals, int offset,
+                                      int matchLength, byte[] dest, int d ) {
+        final int match = matchLength - MIN_MATCH;
+        dest[ d++ ] = (byte)(Math.min( literals, 15 ) << 4
+                             | Math.min( match, 15 ));
+        if ( literals >= 15 )
+            d = writeLength( literals - 15, dest, d );
+        System.arraycopy( src, literalPos, dest, d, literals );
+        d += literals;
+        dest[ d++ ] = (byte)offset;
+        dest[ d++ ] = (byte)(offset >>> 8);
+        if ( match >= 15 )
+            d = writeLength( match - 15, dest, d );
+        return d;
+    }
+
+    private static int writeLastLiterals( byte[] src, int literalPos,
+                                          int literals, byte[] dest, int d ) {
+        dest[ d++ ] = (byte)(Math.min( literals, 15 ) << 4);
+        if ( literals >= 15 )
+            d = writeLength( literals - 15, dest, d );
+        System.arraycopy( src, literalPos, dest, d, literals );
+        return d + literals;
+    }
+
+    private static final int HASH_LOG = 14;
+
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int SKIP_STRENGTH = 6;
+
+    /**
+     * The per-thread hash table of the last position of each 4-byte
+     * sequence.
+     */
+    private final ThreadLocal<int[]> m_hashTable = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[ 1 << HASH_LOG ];
+        }
+    };
+}
+/* vim:set et sw=4 ts=4: */
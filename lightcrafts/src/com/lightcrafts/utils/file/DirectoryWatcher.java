@@ -0,0 +1,212 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>DirectoryWatcher</code> reports changes to the files in a directory
+ * as the operating system notifies them, using the
+ * <code>java.nio.file.WatchService</code> of Java 7 and later.  Since this
+ * code must still compile for and run on older Java versions, the
+ * <code>java.nio.file</code> API is only accessed through reflection:
+ * {@link #create(File)} returns <code>null</code> when it isn't available,
+ * in which case the caller has to poll.
+ */
+public final class DirectoryWatcher {
+
+    ////////// public /////////////////////////////////////////////////////////
+
+    /**
+     * Starts watching a directory.
+     *
+     * @param dir The directory to watch.
+     * @return Returns a new <code>DirectoryWatcher</code> or
+     * <code>null</code> if the directory can't be watched, e.g., because
+     * the Java runtime doesn't have a <code>WatchService</code>.
+     */
+    public static DirectoryWatcher create( File dir ) {
+        try {
+            return new DirectoryWatcher( dir );
+        }
+        catch ( Throwable t ) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops watching the directory.
+     */
+    public void close() {
+        try {
+            m_close.invoke( m_service );
+        }
+        catch ( Exception e ) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Waits for files in the directory to change.  Once a first change has
+     * happened, this keeps collecting changes until none has happened for
+     * the given quiet period so that, e.g., a file being copied is reported
+     * only once.
+     *
+     * @param quietTime The quiet period in milliseconds.
+     * @return Returns the files that were created, modified, or deleted, or
+     * <code>null</code> if the operating system dropped events and so the
+     * whole directory has to be rescanned.
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting.
+     * @throws IOException if the directory can no longer be watched, e.g.,
+     * because it was deleted.
+     */
+    public Set<File> waitForChanges( long quietTime )
+        throws InterruptedException, IOException
+    {
+        return waitForChanges( quietTime, -1 );
+    }
+
+    /**
+     * Waits for files in the directory to change, like
+     * {@link #waitForChanges(long)}, but for no longer than the given time
+     * for a first change.
+     *
+     * @param quietTime The quiet period in milliseconds.
+     * @param timeout The longest time to wait for a first change in
+     * milliseconds, or a negative value to wait for as long as it takes.
+     * @return Returns the files that were created, modified, or deleted,
+     * which are none if the time ran out, or <code>null</code> if the
+     * operating system dropped events and so the whole directory has to be
+     * rescanned.
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting.
+     * @throws IOException if the directory can no longer be watched, e.g.,
+     * because it was deleted.
+     */
+    public Set<File> waitForChanges( long quietTime, long timeout )
+        throws InterruptedException, IOException
+    {
+        final Set<File> changes = new HashSet<File>();
+        boolean overflow = false;
+        Object key = timeout < 0 ?
+            invoke( m_take, m_service ) :
+            invoke( m_poll, m_service, timeout, TimeUnit.MILLISECONDS );
+        while ( key != null ) {
+            final List<?> events = (List<?>)invoke( m_pollEvents, key );
+            for ( Object event : events ) {
+                final Object context = invoke( m_context, event );
+                if ( invoke( m_kind, event ) == m_overflowKind ||
+                     context == null )
+                    overflow = true;
+                else
+                    changes.add( new File( m_dir, context.toString() ) );
+            }
+            if ( !(Boolean)invoke( m_reset, key ) )
+                throw new IOException( "can no longer watch " + m_dir );
+            key = invoke(
+                m_poll, m_service, quietTime, TimeUnit.MILLISECONDS
+            );
+        }
+        return overflow ? null : changes;
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    private DirectoryWatcher( File dir ) throws Exception {
+        m_dir = dir;
+
+        final Class<?> fileSystemsClass =
+            Class.forName( "java.nio.file.FileSystems" );
+        final Class<?> fileSystemClass =
+            Class.forName( "java.nio.file.FileSystem" );
+        final Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+        final Class<?> serviceClass =
+            Class.forName( "java.nio.file.WatchService" );
+        final Class<?> keyClass = Class.forName( "java.nio.file.WatchKey" );
+        final Class<?> eventClass = Class.forName( "java.nio.file.WatchEvent" );
+        final Class<?> kindClass =
+            Class.forName( "java.nio.file.WatchEvent$Kind" );
+        final Class<?> kindsClass =
+            Class.forName( "java.nio.file.StandardWatchEventKinds" );
+
+        final Object fileSystem =
+            fileSystemsClass.getMethod( "getDefault" ).invoke( null );
+        m_service =
+            fileSystemClass.getMethod( "newWatchService" ).invoke( fileSystem );
+        m_close = serviceClass.getMethod( "close" );
+        m_take = serviceClass.getMethod( "take" );
+        m_poll = serviceClass.getMethod( "poll", long.class, TimeUnit.class );
+        m_pollEvents = keyClass.getMethod( "pollEvents" );
+        m_reset = keyClass.getMethod( "reset" );
+        m_kind = eventClass.getMethod( "kind" );
+        m_context = eventClass.getMethod( "context" );
+        m_overflowKind = kindsClass.getField( "OVERFLOW" ).get( null );
+
+        final Object kinds = Array.newInstance( kindClass, 3 );
+        Array.set( kinds, 0, kindsClass.getField( "ENTRY_CREATE" ).get( null ) );
+        Array.set( kinds, 1, kindsClass.getField( "ENTRY_DELETE" ).get( null ) );
+        Array.set( kinds, 2, kindsClass.getField( "ENTRY_MODIFY" ).get( null ) );
+
+        try {
+            final Object path = File.class.getMethod( "toPath" ).invoke( dir );
+            pathClass.getMethod( "register", serviceClass, kinds.getClass() )
+                .invoke( path, m_service, kinds );
+        }
+        catch ( Exception e ) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Invokes a <code>java.nio.file</code> method, unwrapping the
+     * exceptions that it may throw.
+     */
+    private static Object invoke( Method method, Object target,
+                                  Object... args )
+        throws InterruptedException, IOException
+    {
+        try {
+            return method.invoke( target, args );
+        }
+        catch ( InvocationTargetException e ) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof InterruptedException )
+                throw (InterruptedException)cause;
+            if ( cause instanceof IOException )
+                throw (IOException)cause;
+            // E.g., ClosedWatchServiceException
+            final IOException ioe = new IOException( cause.toString() );
+            ioe.initCause( cause );
+            throw ioe;
+        }
+        catch ( IllegalAccessException e ) {
+            final IOException ioe = new IOException( e.toString() );
+            ioe.initCause( e );
+            throw ioe;
+        }
+    }
+
+    private final File m_dir;
+
+    private final Object m_service;
+    private final Object m_overflowKind;
+
+    private final Method m_close;
+    private final Method m_context;
+    private final Method m_kind;
+    private final Method m_poll;
+    private final Method m_pollEvents;
+    private final Method m_reset;
+    private final Method m_take;
+}
+/* vim:set et sw=4 ts=4: */
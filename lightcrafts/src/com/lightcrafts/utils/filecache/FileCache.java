@@ -58,7 +58,6 @@ public final class FileCache {
             FileUtil.listFiles( cacheDir, FileCacheFilter.INSTANCE, true );
         if ( !FileUtil.delete( contents, FileCacheFilter.INSTANCE, true ) )
             throw new IOException( "Could not delete old cache" );
-        m_size = 0;
     }
 
     /**
@@ -70,14 +69,14 @@ public final class FileCache {
      */
     public boolean contains( String key ) {
         final File file = m_mapper.mapKeyToFile( key, false );
-        synchronized ( this ) {
-            //
-            // If we have a monitor, just ask it whether it's monitoring the
-            // file because it's faster than doing filesystem I/O.
-            //
-            if ( m_monitor != null )
-                return m_monitor.containsFile( file );
-        }
+        //
+        // If we have a monitor, just ask it whether it's monitoring the file
+        // because it's faster than doing filesystem I/O.  This doesn't lock
+        // the cache.
+        //
+        final FileCacheMonitor monitor = m_monitor;
+        if ( monitor != null )
+            return monitor.containsFile( file );
         return file.exists();
     }
 
@@ -131,6 +130,7 @@ public final class FileCache {
         if ( file.exists() ) {
             if ( DEBUG )
                 System.err.println( "  --> cache hit" );
+            touch( file );
             return file;
         }
         if ( DEBUG )
@@ -145,8 +145,9 @@ public final class FileCache {
      * @see #getCapacity()
      * @see #setCapacity(long)
      */
-    public synchronized long getSize() {
-        return m_size;
+    public long getSize() {
+        final FileCacheMonitor monitor = m_monitor;
+        return monitor != null ? monitor.getSize() : 0;
     }
 
     /**
@@ -170,11 +171,19 @@ public final class FileCache {
             final FileInputStream fis = new FileInputStream( file );
             if ( DEBUG )
                 System.err.println( "  --> cache hit" );
+            touch( file );
             return fis;
         }
         catch ( FileNotFoundException e ) {
             if ( DEBUG )
                 System.err.println( "  --> cache miss" );
+            //
+            // The file may have been deleted behind our back: don't keep
+            // counting it.
+            //
+            final FileCacheMonitor monitor = m_monitor;
+            if ( monitor != null )
+                monitor.removeFile( file );
             return null;
         }
     }
@@ -190,10 +199,11 @@ public final class FileCache {
      * @see #putToFile(String)
      */
     public void notifyAboutCloseOf( File file ) throws IOException {
-        if ( m_monitor != null ) {
-            addToCacheSize( file.length() );
-            m_monitor.addFile( file );
-            wakeUpMonitor();
+        final FileCacheMonitor monitor = m_monitor;
+        if ( monitor != null ) {
+            monitor.addFile( file );
+            if ( getSize() > m_capacity )
+                wakeUpMonitor();
         }
     }
 
@@ -258,23 +268,6 @@ public final class FileCache {
         }
     }
 
-    ////////// package ////////////////////////////////////////////////////////
-
-    /**
-     * Add to the cache size.
-     *
-     * @param size The number of bytes to add.
-     */
-    @SuppressWarnings({"ConstantConditions"})
-    synchronized void addToCacheSize( long size ) {
-        m_size += size;
-        if ( DEBUG )
-            System.err.println(
-                "FileCache.addToCacheSize(" + (size / (1024*1024))
-                + "); cache size now = " + (m_size / (1024*1024)) + " MB"
-            );
-    }
-
     ////////// protected //////////////////////////////////////////////////////
 
     protected void finalize() throws Throwable {
@@ -357,12 +350,22 @@ public final class FileCache {
                 throw new IOException(
                     "Could not delete " + file.getAbsolutePath()
                 );
-            if ( m_capacity > 0 )
-                addToCacheSize( - file.length() );
         }
         return m_monitor == null || m_monitor.removeFile( file );
     }
 
+    /**
+     * Notify the {@link FileCacheMonitor} that a file was accessed so that it
+     * won't be removed before files that haven't been.
+     *
+     * @param file The {@link File} that was accessed.
+     */
+    private void touch( File file ) {
+        final FileCacheMonitor monitor = m_monitor;
+        if ( monitor != null )
+            monitor.touchFile( file );
+    }
+
     /**
      * Notify the {@link FileCacheMonitor} that it may need to do something.
      */
@@ -393,12 +396,7 @@ public final class FileCache {
     /**
      * The {@link FileCacheMonitor} in use or <code>null</code> if none.
      */
-    private FileCacheMonitor m_monitor;
-
-    /**
-     * The current total size of all the files in the cache (in bytes).
-     */
-    private long m_size;
+    private volatile FileCacheMonitor m_monitor;
 
     ////////// main() for testing /////////////////////////////////////////////
 
@@ -0,0 +1,532 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils.filecache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <code>FileCacheIndex</code> keeps track of the size and last access time
+ * of every file in a {@link FileCache} in least-recently-used order, and
+ * persists them in a journal file in the cache directory so that the cache
+ * directory doesn't have to be walked (and every file in it stat'ed) on
+ * startup.
+ * <p>
+ * The journal is a header followed by records, each being an operation
+ * (put, touch, or remove) and the path of the file relative to the cache
+ * directory; a put also has the file's size and last access time; a touch,
+ * the last access time.  Records are buffered in memory and appended by
+ * {@link #flush()}.  When the journal has many more records than there are
+ * files, {@link #compact()} rewrites it as one put per file.  A record torn
+ * by a crash ends the journal.
+ * <p>
+ * Only one process may write a journal: if another process has it locked,
+ * the index is kept in memory only.
+ */
+final class FileCacheIndex {
+
+    ////////// package ////////////////////////////////////////////////////////
+
+    /**
+     * Construct a <code>FileCacheIndex</code>.
+     *
+     * @param cacheDir The cache directory to index.
+     */
+    FileCacheIndex( File cacheDir ) {
+        m_cacheDir = cacheDir;
+        m_cacheDirPath = cacheDir.getAbsolutePath() + File.separatorChar;
+        m_journalFile = new File( cacheDir, JOURNAL_NAME );
+    }
+
+    /**
+     * Removes all files from the index and empties the journal.
+     */
+    synchronized void clear() {
+        m_lru.clear();
+        m_entries.clear();
+        m_totalSize = 0;
+        m_buf.reset();
+        m_journalRecords = 0;
+        if ( m_channel != null )
+            try {
+                writeJournal( m_channel, new ArrayList<Entry>() );
+            }
+            catch ( IOException e ) {
+                closeJournal();
+            }
+        else if ( !m_loaded )
+            m_journalFile.delete();
+    }
+
+    /**
+     * Closes the journal after flushing it.
+     */
+    synchronized void close() {
+        flush();
+        closeJournal();
+        m_loaded = true;                // so load() won't reopen it
+    }
+
+    /**
+     * Rewrites the journal so that it contains exactly one record per file.
+     */
+    synchronized void compact() {
+        flush();
+        if ( m_channel == null )
+            return;
+        final List<Entry> entries = new ArrayList<Entry>( m_lru.values() );
+        final File temp = new File( m_cacheDir, JOURNAL_NAME + ".tmp" );
+        try {
+            final RandomAccessFile raf = new RandomAccessFile( temp, "rw" );
+            try {
+                writeJournal( raf.getChannel(), entries );
+            }
+            finally {
+                raf.close();
+            }
+            closeJournal();
+            if ( !m_journalFile.delete() || !temp.renameTo( m_journalFile ) )
+                throw new IOException( "Could not replace " + m_journalFile );
+            openJournal();
+            m_journalRecords = entries.size();
+            if ( FileCache.DEBUG )
+                System.err.println(
+                    "FileCacheIndex.compact(): " + entries.size() + " files"
+                );
+        }
+        catch ( IOException e ) {
+            //
+            // If the journal is lost, the cache directory will be scanned
+            // next time.
+            //
+            temp.delete();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Checks whether the given file is in the index.  This doesn't block.
+     *
+     * @param file The {@link File} to check.
+     * @return Returns <code>true</code> only if the file is in the index.
+     */
+    boolean contains( File file ) {
+        return m_entries.containsKey( getPath( file ) );
+    }
+
+    /**
+     * Appends the buffered records to the journal.
+     */
+    synchronized void flush() {
+        if ( m_channel == null ) {
+            //
+            // Until the journal is loaded, records wait for it; after that,
+            // there's no journal to write them to.
+            //
+            if ( m_loaded )
+                m_buf.reset();
+            return;
+        }
+        if ( m_buf.size() == 0 )
+            return;
+        try {
+            final ByteBuffer buf =
+                ByteBuffer.wrap( m_buf.getBuffer(), 0, m_buf.size() );
+            long pos = m_channel.size();
+            while ( buf.hasRemaining() )
+                pos += m_channel.write( buf, pos );
+        }
+        catch ( IOException e ) {
+            closeJournal();
+        }
+        m_buf.reset();
+    }
+
+    /**
+     * Gets the least recently used file.
+     *
+     * @return Returns said file or <code>null</code> if the index is empty.
+     */
+    synchronized File getEldestFile() {
+        final Iterator<Entry> i = m_lru.values().iterator();
+        return i.hasNext() ? getFile( i.next().m_path ) : null;
+    }
+
+    /**
+     * Gets the total size of all the files in the index.
+     *
+     * @return Returns said size (in bytes).
+     */
+    synchronized long getTotalSize() {
+        return m_totalSize;
+    }
+
+    /**
+     * Checks whether the journal has enough superseded records that it
+     * should be compacted.
+     *
+     * @return Returns <code>true</code> only if it should.
+     */
+    synchronized boolean needsCompaction() {
+        return m_channel != null &&
+               m_journalRecords > 2 * m_lru.size() + MIN_COMPACT_RECORDS;
+    }
+
+    /**
+     * Loads the index from the journal.
+     *
+     * @return Returns <code>true</code> only if the journal existed and was
+     * read; if <code>false</code>, the index is empty and the caller has to
+     * put all the files in the cache directory.
+     */
+    synchronized boolean load() {
+        if ( m_loaded )
+            return false;
+        m_loaded = true;
+        final boolean existed = m_journalFile.exists();
+        try {
+            openJournal();
+        }
+        catch ( IOException e ) {
+            return false;
+        }
+        if ( m_channel == null )
+            return false;               // locked by another process
+        if ( !existed )
+            return false;
+        try {
+            final int length = (int)m_channel.size();
+            final ByteBuffer buf = ByteBuffer.allocate( length );
+            while ( buf.hasRemaining() )
+                if ( m_channel.read( buf, buf.position() ) < 0 )
+                    break;
+            final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream( buf.array(), 0, buf.position() )
+            );
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                clear();
+                return false;
+            }
+            //
+            // Files put before loading are newer than anything in the
+            // journal.
+            //
+            final List<Entry> early = new ArrayList<Entry>( m_lru.values() );
+            final boolean complete = replay( in );
+            for ( Entry entry : early )
+                putEntry( entry.m_path, entry.m_size, entry.m_lastAccessTime );
+            if ( !complete )
+                compact();              // drop the torn record
+            return true;
+        }
+        catch ( IOException e ) {
+            clear();
+            return false;
+        }
+    }
+
+    /**
+     * Puts a file into the index, or updates it if it's already there, and
+     * makes it the most recently used.
+     *
+     * @param file The {@link File} to put.
+     * @param size The file's size.
+     * @param lastAccessTime The file's last access time.
+     * @return Returns the difference between the new and old size of the
+     * file in the index.
+     */
+    synchronized long put( File file, long size, long lastAccessTime ) {
+        final String path = getPath( file );
+        final long delta = putEntry( path, size, lastAccessTime );
+        if ( !isJournaling() )
+            return delta;
+        try {
+            m_out.writeByte( OP_PUT );
+            m_out.writeUTF( path );
+            m_out.writeLong( size );
+            m_out.writeLong( lastAccessTime );
+            ++m_journalRecords;
+        }
+        catch ( IOException e ) {
+            // can't happen: it's in memory
+        }
+        return delta;
+    }
+
+    /**
+     * Removes a file from the index.
+     *
+     * @param file The {@link File} to remove.
+     * @return Returns the size of the removed file or -1 if it wasn't in the
+     * index.
+     */
+    synchronized long remove( File file ) {
+        final String path = getPath( file );
+        final long size = removeEntry( path );
+        if ( size >= 0 && isJournaling() )
+            try {
+                m_out.writeByte( OP_REMOVE );
+                m_out.writeUTF( path );
+                ++m_journalRecords;
+            }
+            catch ( IOException e ) {
+                // can't happen: it's in memory
+            }
+        return size;
+    }
+
+    /**
+     * Notes an access to a file, making it the most recently used.  To keep
+     * the journal small, repeated accesses to the same file are journaled
+     * only once.
+     *
+     * @param file The {@link File} that was accessed.
+     */
+    synchronized void touch( File file ) {
+        final String path = getPath( file );
+        final Entry entry = m_lru.get( path );  // makes it most recent
+        if ( entry == null || path.equals( m_lastTouchedPath ) )
+            return;
+        m_lastTouchedPath = path;
+        entry.m_lastAccessTime = System.currentTimeMillis();
+        if ( !isJournaling() )
+            return;
+        try {
+            m_out.writeByte( OP_TOUCH );
+            m_out.writeUTF( path );
+            m_out.writeLong( entry.m_lastAccessTime );
+            ++m_journalRecords;
+        }
+        catch ( IOException e ) {
+            // can't happen: it's in memory
+        }
+    }
+
+    ////////// private ////////////////////////////////////////////////////////
+
+    /**
+     * An <code>Entry</code> is the index's data for a file.
+     */
+    private static final class Entry {
+        Entry( String path, long size, long lastAccessTime ) {
+            m_path = path;
+            m_size = size;
+            m_lastAccessTime = lastAccessTime;
+        }
+
+        final String m_path;
+        final long m_size;
+        long m_lastAccessTime;
+    }
+
+    /**
+     * A <code>RecordBuffer</code> is-a {@link ByteArrayOutputStream} that
+     * gives access to its buffer so it can be written without a copy.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Checks whether records should be buffered for the journal: they
+     * shouldn't once it's been closed, lost to an I/O error, or left to
+     * another process that holds its lock.
+     *
+     * @return Returns <code>true</code> only if they should.
+     */
+    private boolean isJournaling() {
+        return !m_loaded || m_channel != null;
+    }
+
+    private void closeJournal() {
+        try {
+            if ( m_lock != null )
+                m_lock.release();
+            if ( m_raf != null )
+                m_raf.close();
+        }
+        catch ( IOException e ) {
+            // nothing to do
+        }
+        m_lock = null;
+        m_raf = null;
+        m_channel = null;
+    }
+
+    private File getFile( String path ) {
+        return new File( m_cacheDir, path );
+    }
+
+    /**
+     * Gets the path of a file relative to the cache directory.
+     */
+    private String getPath( File file ) {
+        final String path = file.getAbsolutePath();
+        return path.startsWith( m_cacheDirPath ) ?
+            path.substring( m_cacheDirPath.length() ) : path;
+    }
+
+    /**
+     * Opens and locks the journal, creating it if necessary.  If another
+     * process has it locked, the journal is left closed.
+     */
+    private void openJournal() throws IOException {
+        m_raf = new RandomAccessFile( m_journalFile, "rw" );
+        m_channel = m_raf.getChannel();
+        try {
+            m_lock = m_channel.tryLock();
+        }
+        catch ( OverlappingFileLockException e ) {
+            m_lock = null;
+        }
+        if ( m_lock == null ) {
+            closeJournal();
+            return;
+        }
+        if ( m_channel.size() == 0 )
+            writeJournal( m_channel, new ArrayList<Entry>() );
+        m_journalRecords = 0;
+    }
+
+    private long putEntry( String path, long size, long lastAccessTime ) {
+        m_lastTouchedPath = null;
+        final Entry old = m_lru.remove( path );
+        final Entry entry = new Entry( path, size, lastAccessTime );
+        m_lru.put( path, entry );
+        m_entries.put( path, entry );
+        final long delta = size - (old != null ? old.m_size : 0);
+        m_totalSize += delta;
+        return delta;
+    }
+
+    private long removeEntry( String path ) {
+        final Entry old = m_lru.remove( path );
+        if ( old == null )
+            return -1;
+        m_entries.remove( path );
+        m_totalSize -= old.m_size;
+        return old.m_size;
+    }
+
+    /**
+     * Replays the journal's records.
+     *
+     * @return Returns <code>false</code> only if the last record is torn.
+     */
+    private boolean replay( DataInputStream in ) throws IOException {
+        while ( true ) {
+            final int op = in.read();
+            if ( op < 0 )
+                return true;
+            try {
+                final String path = in.readUTF();
+                switch ( op ) {
+                    case OP_PUT:
+                        final long size = in.readLong();
+                        putEntry( path, size, in.readLong() );
+                        break;
+                    case OP_TOUCH:
+                        final long time = in.readLong();
+                        final Entry entry = m_lru.get( path );
+                        if ( entry != null )
+                            entry.m_lastAccessTime = time;
+                        break;
+                    case OP_REMOVE:
+                        removeEntry( path );
+                        break;
+                    default:
+                        throw new IOException( "bad journal record " + op );
+                }
+                ++m_journalRecords;
+            }
+            catch ( EOFException e ) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes a journal consisting of a header and a put per entry.
+     */
+    private static void writeJournal( FileChannel channel,
+                                      List<Entry> entries )
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        for ( Entry entry : entries ) {
+            out.writeByte( OP_PUT );
+            out.writeUTF( entry.m_path );
+            out.writeLong( entry.m_size );
+            out.writeLong( entry.m_lastAccessTime );
+        }
+        channel.truncate( 0 );
+        final ByteBuffer buf = ByteBuffer.wrap( bytes.toByteArray() );
+        long pos = 0;
+        while ( buf.hasRemaining() )
+            pos += channel.write( buf, pos );
+    }
+
+    private static final String JOURNAL_NAME = "index.journal";
+
+    private static final int MAGIC = 0x4C5A4349;    // "LZCI"
+    private static final int VERSION = 1;
+
+    /**
+     * Don't compact unless there are at least this many superseded records.
+     */
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static final int OP_PUT     = 1;
+    private static final int OP_TOUCH   = 2;
+    private static final int OP_REMOVE  = 3;
+
+    /**
+     * The records not yet appended to the journal.
+     */
+    private final RecordBuffer m_buf = new RecordBuffer();
+    private final DataOutputStream m_out = new DataOutputStream( m_buf );
+
+    private final File m_cacheDir;
+    private final String m_cacheDirPath;
+
+    private FileChannel m_channel;
+    private final File m_journalFile;
+    private int m_journalRecords;
+    private String m_lastTouchedPath;
+    private boolean m_loaded;
+    private FileLock m_lock;
+    private RandomAccessFile m_raf;
+
+    /**
+     * All the files, by path relative to the cache directory, for lookups
+     * without locking.
+     */
+    private final Map<String,Entry> m_entries =
+        new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * All the files in least-recently-used order.
+     */
+    private final LinkedHashMap<String,Entry> m_lru =
+        new LinkedHashMap<String,Entry>( 1024, 0.75F, true );
+
+    /**
+     * The total size of all the files.
+     */
+    private long m_totalSize;
+}
+/* vim:set et sw=4 ts=4: */
@@ -4,8 +4,10 @@ package com.lightcrafts.utils.filecache;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import com.lightcrafts.utils.file.FileIterator;
 import com.lightcrafts.utils.file.FileUtil;
@@ -13,6 +15,12 @@ import com.lightcrafts.utils.file.FileUtil;
 /**
  * A <code>FileCacheMonitor</code> is used to monitor the size of a
  * {@link FileCache} to ensure that its size stays below its capacity.
+ * <p>
+ * The files in the cache are tracked by a {@link FileCacheIndex} that is
+ * persisted in the cache directory, so the cache directory is walked only
+ * when there is no index yet.  The monitor periodically flushes and compacts
+ * the index and, when the cache is over its capacity, removes the least
+ * recently used files in batches until it's a little under.
  *
  * @author Paul J. Lucas [paul@lightcrafts.com]
  */
@@ -22,44 +30,26 @@ final class FileCacheMonitor extends Thread {
 
     /**
      * Monitor the owning {@link FileCache}'s size: if it becomes greater than
-     * its capacity, remove files having the oldest access times.
+     * its capacity, remove the least recently used files.
      */
-    @SuppressWarnings({"ConstantConditions"})
     public void run() {
         initialize();
         while ( !m_stop ) {
-            while ( m_owningCache.getSize() > m_owningCache.getCapacity() ) {
-                if ( m_stop )
-                    return;
-                if ( FileCache.DEBUG )
-                    System.err.println(
-                        "run(): cache size = "
-                         + (m_owningCache.getSize() / (1024*1024)) + " MB"
-                    );
-                final CacheFile fileToRemove = getNextFileToRemove();
-                final long size = fileToRemove.length();
-                fileToRemove.delete();
-                if ( FileCache.DEBUG )
-                    System.err.println(
-                        "run(): purging " + fileToRemove.getAbsolutePath()
-                        + ", size = " + (size / (1024 * 1024)) + " MB"
-                    );
-                m_owningCache.addToCacheSize( -size );
-                if ( FileCache.DEBUG )
-                    System.err.println(
-                        "run(): cache size = "
-                        + (m_owningCache.getSize() / (1024 * 1024)) + " MB"
-                    );
-            }
+            removeOldFiles();
+            m_index.flush();
+            if ( m_index.needsCompaction() )
+                m_index.compact();
             synchronized ( this ) {
                 try {
-                    wait();
+                    if ( !m_stop )
+                        wait( FLUSH_INTERVAL );
                 }
                 catch ( InterruptedException e ) {
                     // ignore
                 }
             }
         }
+        m_index.close();
     }
 
     ////////// package ////////////////////////////////////////////////////////
@@ -75,39 +65,33 @@ final class FileCacheMonitor extends Thread {
         setDaemon( true );
         setPriority( MIN_PRIORITY );
         m_owningCache = owningCache;
+        m_index = new FileCacheIndex( owningCache.getCacheDirectory() );
+        //
+        // Records still buffered at exit would be lost since this thread is a
+        // daemon.
+        //
+        Runtime.getRuntime().addShutdownHook(
+            new Thread() {
+                public void run() {
+                    m_index.close();
+                }
+            }
+        );
         start();
     }
 
     /**
-     * Add a file.  If the file is already being monitored and its last access
-     * time hasn't changed, nothing is added; if the file's last access time is
-     * different, the old entry is replaced by the new one having the current
-     * last access time.
+     * Add a file, or update it if it's already being monitored, making it the
+     * most recently used.
      *
      * @param file The {@link File} to add.
-     * @return Returns <code>true</code> only if the file was added.
-     * @throws IOException if the file doesn't exist or its last access time
-     * could not be obtained.
+     * @throws IOException if the file doesn't exist.
      */
-    boolean addFile( File file ) throws IOException {
-        final long newLastAccessTime = FileUtil.getLastAccessTimeOf( file );
-        final String path = file.getAbsolutePath();
-        final CacheFile oldCacheFile, newCacheFile;
-
-        synchronized ( m_filesByPath ) {
-            oldCacheFile = m_filesByPath.get( path );
-            if ( oldCacheFile != null &&
-                 oldCacheFile.lastAccessTime() == newLastAccessTime )
-                return false;
-            newCacheFile = new CacheFile( path, newLastAccessTime );
-            m_filesByPath.put( path, newCacheFile );
-        }
-        synchronized ( m_filesByLastAccessTime ) {
-            if ( oldCacheFile != null )
-                m_filesByLastAccessTime.remove( oldCacheFile );
-            m_filesByLastAccessTime.add( newCacheFile );
-        }
-        return true;
+    void addFile( File file ) throws IOException {
+        final long size = file.length();
+        if ( size == 0 && !file.exists() )
+            throw new IOException( file.getAbsolutePath() + " doesn't exist" );
+        m_index.put( file, size, System.currentTimeMillis() );
     }
 
     /**
@@ -117,25 +101,18 @@ final class FileCacheMonitor extends Thread {
      */
     void clear() {
         m_abortInitialize = true;
-        synchronized ( m_filesByLastAccessTime ) {
-            m_filesByLastAccessTime.clear();
-        }
-        synchronized ( m_filesByPath ) {
-            m_filesByPath.clear();
-        }
+        m_index.clear();
     }
 
     /**
-     * Checks whether the given file is being monitored.
+     * Checks whether the given file is being monitored.  Until the index has
+     * been loaded, this checks whether the file exists.
      *
      * @param file The {@link File} to check.
      * @return Returns <code>true</code> only if the file is being monitored.
      */
     boolean containsFile( File file ) {
-        final String path = file.getAbsolutePath();
-        synchronized ( m_filesByPath ) {
-            return m_filesByPath.containsKey( path );
-        }
+        return m_initialized ? m_index.contains( file ) : file.exists();
     }
 
     /**
@@ -143,11 +120,21 @@ final class FileCacheMonitor extends Thread {
      */
     void dispose() {
         m_stop = true;
+        m_index.close();
         synchronized ( this ) {
             notify();
         }
     }
 
+    /**
+     * Gets the total size of all the files being monitored.
+     *
+     * @return Returns said size (in bytes).
+     */
+    long getSize() {
+        return m_index.getTotalSize();
+    }
+
     /**
      * Remove a file.
      *
@@ -156,18 +143,16 @@ final class FileCacheMonitor extends Thread {
      * @see #clear()
      */
     boolean removeFile( File file ) {
-        final String path = file.getAbsolutePath();
-        final CacheFile cacheFile;
-        synchronized ( m_filesByPath ) {
-            cacheFile = m_filesByPath.remove( path );
-        }
-        if ( cacheFile != null ) {
-            synchronized ( m_filesByLastAccessTime ) {
-                m_filesByLastAccessTime.remove( cacheFile );
-            }
-            return true;
-        }
-        return false;
+        return m_index.remove( file ) >= 0;
+    }
+
+    /**
+     * Notes that a file was accessed, making it the most recently used.
+     *
+     * @param file The {@link File} that was accessed.
+     */
+    void touchFile( File file ) {
+        m_index.touch( file );
     }
 
     ////////// protected //////////////////////////////////////////////////////
@@ -180,105 +165,144 @@ final class FileCacheMonitor extends Thread {
     ////////// private ////////////////////////////////////////////////////////
 
     /**
-     * Initialize by creating a set of all files in the cache, totaling their
-     * sizes, and setting the cache's size to said total.
+     * Initialize by loading the index or, if there is none, by creating it
+     * from all the files in the cache ordered by their last access times.
      */
     private void initialize() {
-        long totalSize = 0;
-        final FileIterator i = new FileIterator(
-            m_owningCache.getCacheDirectory(), FileCacheFilter.INSTANCE, true
-        );
-        while ( i.hasNext() ) {
-            if ( m_abortInitialize || m_stop )
+        try {
+            if ( m_index.load() )
                 return;
-            final File file = i.next();
-            final long size = file.length();
-            if ( size > 0 )
+            final List<File> files = new ArrayList<File>();
+            final List<Long> times = new ArrayList<Long>();
+            final FileIterator i = new FileIterator(
+                m_owningCache.getCacheDirectory(), FileCacheFilter.INSTANCE,
+                true
+            );
+            while ( i.hasNext() ) {
+                if ( m_abortInitialize || m_stop )
+                    return;
+                final File file = i.next();
                 try {
-                    addFile( file );
-                    totalSize += size;
+                    if ( file.length() > 0 ) {
+                        times.add( FileUtil.getLastAccessTimeOf( file ) );
+                        files.add( file );
+                    }
                 }
                 catch ( IOException e ) {
                     // ignore?
                 }
+            }
+            final Integer[] order = new Integer[ files.size() ];
+            for ( int j = 0; j < order.length; ++j )
+                order[j] = j;
+            Arrays.sort(
+                order,
+                new Comparator<Integer>() {
+                    public int compare( Integer j1, Integer j2 ) {
+                        return times.get( j1 ).compareTo( times.get( j2 ) );
+                    }
+                }
+            );
+            for ( int j : order ) {
+                if ( m_abortInitialize || m_stop )
+                    return;
+                final File file = files.get( j );
+                m_index.put( file, file.length(), times.get( j ) );
+            }
+            m_index.compact();
+        }
+        finally {
+            m_initialized = true;
         }
-        if ( totalSize > 0 )
-            m_owningCache.addToCacheSize( totalSize );
     }
 
     /**
-     * Gets the next {@link CacheFile} to remove.
-     *
-     * @return Returns said {@link CacheFile}.
+     * If the owning cache is over its capacity, remove the least recently
+     * used files until it's {@link #LOW_WATER_PERCENT} of its capacity.
+     * Files are removed in batches of {@link #REMOVE_BATCH_SIZE}, pausing
+     * between batches so as not to hog the disk.
      */
-    private CacheFile getNextFileToRemove() {
-        while ( true ) {
-            CacheFile file;
-            synchronized ( m_filesByLastAccessTime ) {
-                file = m_filesByLastAccessTime.poll();
-            }
-            try {
-                //
-                // We have to get the file's current last access time and
-                // compare it to the stored last access time: if they're equal,
-                // the file hasn't been accessed since its cache entry was
-                // created so it really is the oldest file and thus the one to
-                // be removed.
-                //
-                final long currentLastAccessTime =
-                    FileUtil.getLastAccessTimeOf( file );
-                if ( file.lastAccessTime() == currentLastAccessTime )
-                    return file;
+    @SuppressWarnings({"ConstantConditions"})
+    private void removeOldFiles() {
+        final long capacity = m_owningCache.getCapacity();
+        if ( m_index.getTotalSize() <= capacity )
+            return;
+        final long lowWater = capacity / 100 * LOW_WATER_PERCENT;
+        int removed = 0;
+        File firstUndeleted = null;
+        while ( !m_stop && m_index.getTotalSize() > lowWater ) {
+            final File file = m_index.getEldestFile();
+            if ( file == null || file.equals( firstUndeleted ) )
+                break;                  // nothing left that can be deleted
+            if ( !file.delete() && file.exists() ) {
                 //
-                // Otherwise, the file has been accessed since its cache entry
-                // so we need to replace its existing entry with a current one
-                // and throw it back into the queue.
+                // Keep it in the index so it's still tracked, but make it
+                // the most recently used so the others get their turn.
                 //
-                final String path = file.getAbsolutePath();
-                file = new CacheFile( path, currentLastAccessTime );
-                synchronized( m_filesByPath ) {
-                    m_filesByPath.put( path, file );
-                }
-                synchronized ( m_filesByLastAccessTime ) {
-                    m_filesByLastAccessTime.add( file );
-                }
+                if ( firstUndeleted == null )
+                    firstUndeleted = file;
+                m_index.touch( file );
+                continue;
             }
-            catch ( IOException e ) {
-                //
-                // There was a problem getting the file's current last access
-                // time: delete the file.
-                //
-                m_owningCache.addToCacheSize( -file.length() );
-                synchronized ( m_filesByPath ) {
-                    m_filesByPath.remove( file.getAbsolutePath() );
+            final long size = m_index.remove( file );
+            if ( FileCache.DEBUG )
+                System.err.println(
+                    "removeOldFiles(): purging " + file.getAbsolutePath()
+                    + ", size = " + (size / (1024 * 1024)) + " MB"
+                );
+            if ( ++removed % REMOVE_BATCH_SIZE == 0 ) {
+                m_index.flush();
+                try {
+                    Thread.sleep( REMOVE_BATCH_PAUSE );
+                }
+                catch ( InterruptedException e ) {
+                    // ignore
                 }
-                file.delete();
             }
         }
+        if ( FileCache.DEBUG )
+            System.err.println(
+                "removeOldFiles(): cache size = "
+                + (m_index.getTotalSize() / (1024 * 1024)) + " MB"
+            );
     }
 
+    /**
+     * How often (in milliseconds) the index is flushed.
+     */
+    private static final long FLUSH_INTERVAL = 5 * 1000;
+
+    /**
+     * Once the cache is over capacity, files are removed until its size is
+     * this percentage of its capacity so the next few additions don't each
+     * cause another removal.
+     */
+    private static final int LOW_WATER_PERCENT = 95;
+
+    /**
+     * How long (in milliseconds) to pause between batches of removals.
+     */
+    private static final long REMOVE_BATCH_PAUSE = 50;
+
+    /**
+     * How many files to remove between pauses.
+     */
+    private static final int REMOVE_BATCH_SIZE = 64;
+
     /**
      * A flag to indicate that initialization, if in progress, should abort.
      */
-    private boolean m_abortInitialize;
+    private volatile boolean m_abortInitialize;
 
     /**
-     * The set of all the files in the cache ordered only by their last access
-     * times.
+     * The index of all the files in the cache.
      */
-    private final PriorityQueue<CacheFile> m_filesByLastAccessTime =
-        new PriorityQueue<CacheFile>( 11, CacheFileComparator.INSTANCE );
+    private final FileCacheIndex m_index;
 
     /**
-     * A map of all the files in the cache where the key is the file's absolute
-     * path and the value is the associated {@link CacheFile}.
-     * <p>
-     * This is needed so as to have only one {@link CacheFile} object for a
-     * given file on disk thereby ensuring that there will only be exactly one
-     * last access time for a given file.
+     * A flag to indicate that the index has been loaded.
      */
-    private final HashMap<String,CacheFile> m_filesByPath =
-        new HashMap<String,CacheFile>();
+    private volatile boolean m_initialized;
 
     /**
      * The {@link FileCache} that owns this <code>FileCacheMonitor</code>.
@@ -288,6 +312,6 @@ final class FileCacheMonitor extends Thread {
     /**
      * A flag to indicate when this thread should stop.
      */
-    private boolean m_stop;
+    private volatile boolean m_stop;
 }
 /* vim:set et sw=4 ts=4: */
@@ -0,0 +1,94 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.libs.test;
+
+import com.lightcrafts.image.libs.LCJPEGReader;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * A benchmark of thumbnailing the JPEG files in a folder two ways: decoding
+ * at full resolution and then scaling down, and letting LCJPEGReader scale
+ * by 1/2, 1/4 or 1/8 during decoding before the final scaling.  It reports
+ * the time per image for each and the decoded sizes.
+ * <p>
+ * The arguments are a folder of JPEG files and optionally a thumbnail size,
+ * which defaults to 320.
+ */
+public class LCJPEGScaledReadTest {
+
+    public static void main(String[] args) throws Exception {
+        File folder = new File(args[0]);
+        int size = (args.length > 1) ? Integer.parseInt(args[1]) : 320;
+
+        File[] files = folder.listFiles(
+            new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    name = name.toLowerCase();
+                    return name.endsWith(".jpg") || name.endsWith(".jpeg");
+                }
+            }
+        );
+        long fullTime = 0;
+        long scaledTime = 0;
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+
+            long start = System.currentTimeMillis();
+            RenderedImage full = new LCJPEGReader(path).getImage();
+            RenderedImage fullThumb = scale(full, size);
+            long full1 = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            RenderedImage scaled =
+                new LCJPEGReader(path, size, size, null).getImage();
+            RenderedImage scaledThumb = scale(scaled, size);
+            long scaled1 = System.currentTimeMillis() - start;
+
+            fullTime += full1;
+            scaledTime += scaled1;
+
+            System.out.println(
+                file.getName() + ": full " +
+                full.getWidth() + "x" + full.getHeight() + " " +
+                full1 + " ms, scaled " +
+                scaled.getWidth() + "x" + scaled.getHeight() + " " +
+                scaled1 + " ms, thumbnails " +
+                fullThumb.getWidth() + "x" + fullThumb.getHeight() + " and " +
+                scaledThumb.getWidth() + "x" + scaledThumb.getHeight()
+            );
+        }
+        if (files.length > 0) {
+            System.out.println(
+                "average: full " + fullTime / files.length +
+                " ms, scaled " + scaledTime / files.length + " ms"
+            );
+        }
+    }
+
+    // Scale the given image to fit in a square of the given size.
+    private static RenderedImage scale(RenderedImage image, int size) {
+        double factor = Math.min(
+            1, size / (double) Math.max(image.getWidth(), image.getHeight())
+        );
+        int width = (int) Math.round(image.getWidth() * factor);
+        int height = (int) Math.round(image.getHeight() * factor);
+        BufferedImage thumb =
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        g.setRenderingHint(
+            RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR
+        );
+        g.drawRenderedImage(
+            image, AffineTransform.getScaleInstance(factor, factor)
+        );
+        g.dispose();
+        return thumb;
+    }
+}
@@ -0,0 +1,188 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.image.metadata.test;
+
+import com.lightcrafts.image.ImageInfo;
+import com.lightcrafts.image.metadata.*;
+import com.lightcrafts.image.metadata.values.*;
+import com.lightcrafts.utils.Rational;
+
+import static com.lightcrafts.image.metadata.CoreTags.*;
+import static com.lightcrafts.image.metadata.EXIFTags.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A microbenchmark comparing ImageMetadataCodec with the Externalizable
+ * serialization of ImageMetadata that the browser used to cache metadata.
+ * It checks that both round trips give the same metadata, then reports the
+ * encoded sizes and the time per image to encode, to decode, and to decode
+ * and then read one value (which the codec does lazily).
+ * <p>
+ * The arguments are image files to read metadata from.  With none, a
+ * synthetic EXIF-like ImageMetadata is used.
+ */
+public class ImageMetadataCodecTest {
+
+    private final static int Iterations = 20000;
+
+    public static void main(String[] args) throws Exception {
+        List<ImageMetadata> metas = new ArrayList<ImageMetadata>();
+        for (String arg : args) {
+            ImageInfo info = ImageInfo.getInstanceFor(new File(arg));
+            metas.add(info.getMetadata());
+        }
+        if (metas.isEmpty()) {
+            metas.add(createMetadata());
+        }
+        for (ImageMetadata meta : metas) {
+            compare(meta);
+        }
+    }
+
+    private static void compare(ImageMetadata meta) throws Exception {
+        byte[] serialized = serialize(meta);
+        byte[] encoded = ImageMetadataCodec.encode(meta);
+
+        String expected = meta.toString();
+        if (! expected.equals(deserialize(serialized).toString())) {
+            System.out.println("serialization round trip differs");
+        }
+        if (! expected.equals(ImageMetadataCodec.decode(encoded).toString())) {
+            System.out.println("codec round trip differs");
+        }
+        System.out.println(
+            "size: serialized " + serialized.length +
+            ", encoded " + encoded.length
+        );
+        // Warm up, then measure.
+        for (int pass=0; pass<2; pass++) {
+            boolean report = pass > 0;
+
+            long start = System.nanoTime();
+            for (int n=0; n<Iterations; n++) {
+                serialize(meta);
+            }
+            report(report, "serialize", start);
+
+            start = System.nanoTime();
+            for (int n=0; n<Iterations; n++) {
+                ImageMetadataCodec.encode(meta);
+            }
+            report(report, "encode", start);
+
+            start = System.nanoTime();
+            for (int n=0; n<Iterations; n++) {
+                deserialize(serialized).getOrientation();
+            }
+            report(report, "deserialize, get orientation", start);
+
+            start = System.nanoTime();
+            for (int n=0; n<Iterations; n++) {
+                ImageMetadataCodec.decode(encoded).getOrientation();
+            }
+            report(report, "decode, get orientation", start);
+
+            start = System.nanoTime();
+            for (int n=0; n<Iterations; n++) {
+                ImageMetadata decoded = ImageMetadataCodec.decode(encoded);
+                for (ImageMetadataDirectory dir : decoded.getDirectories()) {
+                    dir.size();
+                }
+            }
+            report(report, "decode all directories", start);
+        }
+    }
+
+    private static void report(boolean report, String what, long start) {
+        if (report) {
+            long nanos = (System.nanoTime() - start) / Iterations;
+            System.out.println(what + ": " + nanos / 1000f + " us");
+        }
+    }
+
+    private static byte[] serialize(ImageMetadata meta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(meta);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static ImageMetadata deserialize(byte[] bytes)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return (ImageMetadata) in.readObject();
+    }
+
+    private static ImageMetadata createMetadata() {
+        ImageMetadata meta = new ImageMetadata();
+        meta.putValue(
+            CoreDirectory.class, CORE_FILE_NAME,
+            new StringMetaValue("IMG_0001.CR2")
+        );
+        meta.putValue(
+            CoreDirectory.class, CORE_DIR_NAME,
+            new StringMetaValue("/Users/someone/Pictures/2011")
+        );
+        meta.putValue(
+            CoreDirectory.class, CORE_FILE_SIZE,
+            new UnsignedLongMetaValue(12345678)
+        );
+        meta.putValue(
+            CoreDirectory.class, CORE_RATING, new UnsignedShortMetaValue(3)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_MAKE, new StringMetaValue("Canon")
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_MODEL,
+            new StringMetaValue("Canon EOS 5D Mark II")
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_ORIENTATION,
+            new UnsignedShortMetaValue(1)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_DATE_TIME_ORIGINAL,
+            new DateMetaValue(new Date(1300000000000L))
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_EXPOSURE_TIME,
+            new UnsignedRationalMetaValue(1, 250)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_FNUMBER,
+            new UnsignedRationalMetaValue(56, 10)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_EXPOSURE_BIAS_VALUE,
+            new RationalMetaValue(new Rational(-1, 3))
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_FOCAL_LENGTH,
+            new UnsignedRationalMetaValue(85, 1)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_ISO_SPEED_RATINGS,
+            new UnsignedShortMetaValue(400)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_FLASH, new UnsignedShortMetaValue(16)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_PIXEL_X_DIMENSION,
+            new UnsignedLongMetaValue(5616)
+        );
+        meta.putValue(
+            EXIFDirectory.class, EXIF_USER_COMMENT,
+            new UndefinedMetaValue(new byte[64])
+        );
+        return meta;
+    }
+}
@@ -0,0 +1,223 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.jai.opimage;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.lightcrafts.jai.utils.Functions;
+
+/**
+ * Checks the accuracy of RecursiveGaussian against convolution with the
+ * kernels from Functions.getGaussKernel(), which it replaces for large
+ * sigmas in LCSeparableConvolveRIF.
+ */
+public class RecursiveGaussianTest extends TestCase {
+
+    private final static double[] Sigmas = { 8, 16, 32, 64 };
+
+    public RecursiveGaussianTest(String name) {
+        super(name);
+    }
+
+    // A flat image must stay flat, or blurs would shift brightness.
+    public void testConstant() {
+        int width = 100;
+        int height = 80;
+        for (double sigma : Sigmas) {
+            RecursiveGaussian filter = new RecursiveGaussian(sigma);
+            double[] buffer = RecursiveGaussian.createBuffer(width, height);
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    buffer[RecursiveGaussian.index(x, y, width)] = 0.5;
+            filter.blur(buffer, width, height);
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    assertEquals(
+                        0.5, buffer[RecursiveGaussian.index(x, y, width)], 1e-9
+                    );
+        }
+    }
+
+    // Blurring an impulse far from the edges must preserve its mass and
+    // spread it as much as the kernel does.
+    public void testImpulse() {
+        int width = 2000;
+        for (double sigma : Sigmas) {
+            float[] kernel = getKernel(sigma);
+            double expected = RecursiveGaussian.getSigma(kernel);
+            RecursiveGaussian filter = new RecursiveGaussian(expected);
+            double[] buffer = RecursiveGaussian.createBuffer(width, 1);
+            buffer[RecursiveGaussian.index(width / 2, 0, width)] = 1;
+            filter.blur(buffer, width, 1);
+
+            double sum = 0;
+            double variance = 0;
+            for (int x = 0; x < width; x++) {
+                double v = buffer[RecursiveGaussian.index(x, 0, width)];
+                sum += v;
+                variance += (x - width / 2) * (x - width / 2) * v;
+            }
+            assertEquals(1, sum, 1e-6);
+            assertEquals(expected, Math.sqrt(variance), 0.05 * expected);
+        }
+    }
+
+    // A step edge is where the shapes of the responses differ the most: the
+    // kernels are truncated at one sigma, so they're nearly boxes.
+    public void testStep() {
+        int width = 1000;
+        for (double sigma : Sigmas) {
+            float[] kernel = getKernel(sigma);
+            double[] image = new double[width];
+            for (int x = width / 2; x < width; x++)
+                image[x] = 1;
+            double[] expected = convolve(image, width, 1, kernel);
+            double[] actual = blur(image, width, 1, kernel);
+            assertEquals(0, maxError(expected, actual), 0.07);
+        }
+    }
+
+    // On detail at the scale of the blur, the filter should be close to a
+    // true Gaussian, and on average close to the kernels.
+    public void testNoise() {
+        int width = 300;
+        int height = 200;
+        for (double sigma : Sigmas) {
+            float[] kernel = getKernel(sigma);
+            double[] image = getNoise(width, height, sigma);
+            double[] actual = blur(image, width, height, kernel);
+
+            double[] expected = convolve(image, width, height, kernel);
+            assertEquals(0, meanError(expected, actual), 0.03);
+
+            double s = RecursiveGaussian.getSigma(kernel);
+            float[] gaussian = new float[2 * (int) Math.ceil(5 * s) + 1];
+            double sum = 0;
+            for (int i = 0; i < gaussian.length; i++) {
+                int x = i - gaussian.length / 2;
+                gaussian[i] = (float) Math.exp(-x * x / (2 * s * s));
+                sum += gaussian[i];
+            }
+            for (int i = 0; i < gaussian.length; i++)
+                gaussian[i] /= sum;
+            expected = convolve(image, width, height, gaussian);
+            assertEquals(0, maxError(expected, actual), 0.05);
+        }
+    }
+
+    // LCRecursiveGaussianOpImage blurs each tile with only a margin of its
+    // surroundings, which must not leave seams.
+    public void testTile() {
+        int width = 600;
+        int height = 400;
+        for (double sigma : Sigmas) {
+            float[] kernel = getKernel(sigma);
+            double[] image = getNoise(width, height, sigma);
+            double[] whole = blur(image, width, height, kernel);
+
+            int pad = (int) Math.ceil(5 * RecursiveGaussian.getSigma(kernel));
+            int tileX = 150;
+            int tileY = 100;
+            int tileWidth = Math.min(width - tileX, 200 + 2 * pad);
+            int tileHeight = Math.min(height - tileY, 100 + 2 * pad);
+            double[] tile = new double[tileWidth * tileHeight];
+            for (int y = 0; y < tileHeight; y++)
+                System.arraycopy(
+                    image, (tileY + y) * width + tileX,
+                    tile, y * tileWidth, tileWidth
+                );
+            tile = blur(tile, tileWidth, tileHeight, kernel);
+
+            for (int y = pad; y < tileHeight - pad; y++)
+                for (int x = pad; x < tileWidth - pad; x++)
+                    assertEquals(
+                        whole[(tileY + y) * width + tileX + x],
+                        tile[y * tileWidth + x], 1e-3
+                    );
+        }
+    }
+
+    private static float[] getKernel(double sigma) {
+        return Functions.getGaussKernel(sigma).getHorizontalKernelData();
+    }
+
+    // Blur the way LCSeparableConvolveRIF does for large kernels.
+    private static double[] blur(double[] image, int width, int height,
+                                 float[] kernel) {
+        RecursiveGaussian filter =
+            new RecursiveGaussian(RecursiveGaussian.getSigma(kernel));
+        double[] buffer = RecursiveGaussian.createBuffer(width, height);
+        for (int y = 0; y < height; y++)
+            System.arraycopy(
+                image, y * width,
+                buffer, RecursiveGaussian.index(0, y, width), width
+            );
+        filter.blur(buffer, width, height);
+        double[] result = new double[width * height];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(
+                buffer, RecursiveGaussian.index(0, y, width),
+                result, y * width, width
+            );
+        return result;
+    }
+
+    // Separable convolution with edge pixels replicated.
+    private static double[] convolve(double[] image, int width, int height,
+                                     float[] kernel) {
+        int r = kernel.length / 2;
+        double[] rows = new double[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                double v = 0;
+                for (int k = -r; k <= r; k++) {
+                    int xx = Math.min(Math.max(x + k, 0), width - 1);
+                    v += kernel[k + r] * image[y * width + xx];
+                }
+                rows[y * width + x] = v;
+            }
+        double[] result = new double[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                double v = 0;
+                for (int k = -r; k <= r; k++) {
+                    int yy = Math.min(Math.max(y + k, 0), height - 1);
+                    v += kernel[k + r] * rows[yy * width + x];
+                }
+                result[y * width + x] = v;
+            }
+        return result;
+    }
+
+    // Random values in [0, 1] with detail at a scale near the blur's.
+    private static double[] getNoise(int width, int height, double sigma) {
+        Random random = new Random(1);
+        int cell = Math.max(1, (int) (sigma / 2));
+        int cellsX = width / cell + 2;
+        int cellsY = height / cell + 2;
+        double[] cells = new double[cellsX * cellsY];
+        for (int i = 0; i < cells.length; i++)
+            cells[i] = random.nextDouble();
+        double[] image = new double[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image[y * width + x] = cells[(y / cell) * cellsX + x / cell];
+        return image;
+    }
+
+    private static double meanError(double[] expected, double[] actual) {
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++)
+            sum += Math.abs(expected[i] - actual[i]);
+        return sum / expected.length;
+    }
+
+    private static double maxError(double[] expected, double[] actual) {
+        double max = 0;
+        for (int i = 0; i < expected.length; i++)
+            max = Math.max(max, Math.abs(expected[i] - actual[i]));
+        return max;
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright (C) 2005-2011 Fabio Riccardi */
+
+package com.lightcrafts.utils;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that ColorLUT3D stays within its tolerance of LCMS, on other colors
+ * than the ones it was validated with when it was built.
+ */
+public class ColorLUT3DTest extends TestCase {
+
+    // Not the number of samples used by buildBest(), so the colors differ
+    private final static int Samples = 20011;
+
+    private final static ICC_Profile sRGB =
+        ICC_Profile.getInstance(ColorSpace.CS_sRGB);
+
+    private final static ICC_Profile linearRGB =
+        ICC_Profile.getInstance(ColorSpace.CS_LINEAR_RGB);
+
+    public ColorLUT3DTest(String name) {
+        super(name);
+    }
+
+    public void testToLinear() {
+        checkAccuracy(sRGB, linearRGB);
+    }
+
+    public void testFromLinear() {
+        checkAccuracy(linearRGB, sRGB);
+    }
+
+    // get() doesn't wait for the LUT, it shows up once built in the background
+    public void testBuiltInBackground() throws InterruptedException {
+        ColorLUT3D lut = ColorLUT3D.get(sRGB, linearRGB, LCMS.INTENT_PERCEPTUAL, 0);
+        for (int i = 0; lut == null && i < 600; i++) {
+            Thread.sleep(100);
+            lut = ColorLUT3D.get(sRGB, linearRGB, LCMS.INTENT_PERCEPTUAL, 0);
+        }
+        assertNotNull(lut);
+        assertTrue(lut.getMaxError() <= ColorLUT3D.TOLERANCE);
+    }
+
+    private static void checkAccuracy(ICC_Profile source, ICC_Profile target) {
+        ColorLUT3D lut = ColorLUT3D.buildFromProfiles(
+            source, target, LCMS.INTENT_PERCEPTUAL, 0
+        );
+        assertTrue(lut.getMaxError() <= ColorLUT3D.TOLERANCE);
+
+        LCMS.Profile sourceProfile = new LCMS.Profile(source);
+        LCMS.Profile targetProfile = new LCMS.Profile(target);
+        final LCMS.Transform transform = new LCMS.Transform(
+            sourceProfile, LCMS.TYPE_RGB_16, targetProfile, LCMS.TYPE_RGB_16,
+            LCMS.INTENT_PERCEPTUAL, 0
+        );
+        try {
+            int error = lut.measureError(
+                new ColorLUT3D.Sampler() {
+                    public void transform(short[] input, short[] output, int pixels) {
+                        transform.doTransform(input, output, pixels);
+                    }
+                },
+                Samples
+            );
+            assertTrue(
+                "error " + error + " exceeds " + ColorLUT3D.TOLERANCE,
+                error <= ColorLUT3D.TOLERANCE
+            );
+        }
+        finally {
+            transform.dispose();
+            targetProfile.dispose();
+            sourceProfile.dispose();
+        }
+    }
+}